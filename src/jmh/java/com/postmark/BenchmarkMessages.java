@@ -0,0 +1,49 @@
+package com.postmark;
+
+import java.util.Random;
+
+/**
+ * Representative messages and texts shared by the benchmarks.
+ */
+final class BenchmarkMessages {
+
+	private static final String ACCENTED = "éèàùçôëïœ€";
+
+	private BenchmarkMessages() {
+	}
+
+	/**
+	 * @param length the text length
+	 * @param nonASCIIRatio the ratio of non-ASCII chars in the text
+	 * @return a pseudo-random text, the same for the same arguments
+	 */
+	static String text(int length, double nonASCIIRatio) {
+		Random random = new Random(length);
+		StringBuilder sb = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			if (random.nextDouble() < nonASCIIRatio)
+				sb.append(ACCENTED.charAt(random.nextInt(ACCENTED.length())));
+			else if (i % 60 == 59)
+				sb.append('\n');
+			else
+				sb.append((char) ('a' + random.nextInt(26)));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @param bodyLength the HTML body length
+	 * @param nonASCIIRatio the ratio of non-ASCII chars in the bodies
+	 * @return a Postmark message with text and HTML bodies
+	 */
+	static PostmarkMessage message(int bodyLength, double nonASCIIRatio) {
+		PostmarkMessage m = new PostmarkMessage();
+		m.setFrom("Newsletter <news@exemple.com>");
+		m.setTo(new String[] { "you@exemple.com", "him@exemple.com" });
+		m.setSubject("Les nouveautés de la semaine");
+		m.setTag("newsletter");
+		m.setText(text(Math.max(bodyLength / 4, 16), nonASCIIRatio));
+		m.setHtmlBody("<html><body><p>" + text(bodyLength, nonASCIIRatio) + "</p></body></html>");
+		return m;
+	}
+}
@@ -0,0 +1,32 @@
+package com.postmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+import com.postmark.PostmarkMailSender.DateTimeTypeAdapter;
+
+/**
+ * Parsing of the <tt>SubmittedAt</tt> date of Postmark responses.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DateTimeTypeAdapterBenchmark {
+
+	DateTimeTypeAdapter adapter = new DateTimeTypeAdapter();
+	JsonElement submittedAt = new JsonPrimitive("2010-11-26T12:01:05.1794748-05:00");
+
+	@Benchmark
+	public DateTime deserialize() {
+		return adapter.deserialize(submittedAt, DateTime.class, null);
+	}
+}
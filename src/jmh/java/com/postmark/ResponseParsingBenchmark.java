@@ -0,0 +1,61 @@
+package com.postmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.postmark.PostmarkMailSender.DateTimeTypeAdapter;
+import com.postmark.PostmarkMailSender.PostmarkResponse;
+import com.postmark.util.JsonPullParser;
+
+/**
+ * Parsing of batch responses: the former String and Gson path, with an eager
+ * <tt>SubmittedAt</tt> date, against the pull parser reading the body bytes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ResponseParsingBenchmark {
+
+	@Param({ "1", "500" })
+	int messages;
+
+	Gson gson = new GsonBuilder().registerTypeAdapter(DateTime.class, new DateTimeTypeAdapter()).create();
+	byte[] body;
+	byte[] buf = new byte[8192];
+
+	@Setup
+	public void setUp() throws UnsupportedEncodingException {
+		StringBuilder json = new StringBuilder("[");
+		for (int i = 0; i < messages; i++) {
+			if (i > 0)
+				json.append(',');
+			json.append("{\"ErrorCode\":0,\"Message\":\"OK\",\"MessageID\":\"b7bc2f4a-e38e-4336-af7d-e6c392c2f817\","
+					+ "\"SubmittedAt\":\"2010-11-26T12:01:05.1794748-05:00\",\"To\":\"you@exemple.com\"}");
+		}
+		body = json.append(']').toString().getBytes("UTF-8");
+	}
+
+	@Benchmark
+	public PostmarkResponse[] gson() throws UnsupportedEncodingException {
+		return gson.fromJson(new String(body, "UTF-8"), PostmarkResponse[].class);
+	}
+
+	@Benchmark
+	public PostmarkResponse[] pullParser() throws IOException {
+		return PostmarkResponseReader.readBatch(new JsonPullParser(new ByteArrayInputStream(body), buf));
+	}
+}
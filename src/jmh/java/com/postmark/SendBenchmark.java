@@ -0,0 +1,81 @@
+package com.postmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Full {@link PostmarkMailSender#send(org.springframework.mail.SimpleMailMessage)}
+ * round trip against an in-process HTTP stub answering immediately.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SendBenchmark {
+
+	private static final byte[] RESPONSE = ("{\"ErrorCode\":0,\"Message\":\"OK\",\"MessageID\":\"b7bc2f4a-e38e-4336-af7d-e6c392c2f817\","
+			+ "\"SubmittedAt\":\"2010-11-26T12:01:05.1794748-05:00\",\"To\":\"you@exemple.com\"}").getBytes();
+
+	@Param({ "1000", "200000" })
+	int bodyLength;
+
+	HttpServer server;
+	ExecutorService serverExecutor;
+	PostmarkMailSender sender;
+	PostmarkMessage message;
+
+	@Setup
+	public void setup() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/email", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				InputStream in = exchange.getRequestBody();
+				byte[] skip = new byte[8192];
+				while (in.read(skip) >= 0) {
+					// drain the request
+				}
+				exchange.getResponseHeaders().add("Content-Type", "application/json");
+				exchange.sendResponseHeaders(200, RESPONSE.length);
+				exchange.getResponseBody().write(RESPONSE);
+				exchange.close();
+			}
+		});
+		serverExecutor = Executors.newFixedThreadPool(8);
+		server.setExecutor(serverExecutor);
+		server.start();
+
+		sender = new PostmarkMailSender("POSTMARK_API_TEST");
+		sender.setApiUrl("http://127.0.0.1:" + server.getAddress().getPort());
+		message = BenchmarkMessages.message(bodyLength, .03);
+	}
+
+	@TearDown
+	public void tearDown() {
+		sender.close();
+		server.stop(0);
+		serverExecutor.shutdown();
+	}
+
+	@Benchmark
+	public void send() {
+		sender.send(message);
+	}
+}
@@ -0,0 +1,87 @@
+package com.postmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.mail.SimpleMailMessage;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.postmark.PostmarkMailSender.SimpleMailMessageAdapter;
+import com.postmark.util.UnicodeEscapeFilterWriter;
+
+/**
+ * Serialization of one message: the Gson tree adapter followed by the escaper,
+ * against the streaming writer, and against a per-recipient copy of a frozen message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SerializationBenchmark {
+
+	/** Output stream discarding its content. */
+	static final OutputStream NULL_OUTPUT = new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	@Param({ "1000", "200000" })
+	int bodyLength;
+
+	@Param({ "0.03" })
+	double nonASCIIRatio;
+
+	@Param({ "false", "true" })
+	boolean rawUtf8;
+
+	Gson gson;
+	PostmarkMessage message;
+	FrozenMessage frozen;
+
+	@Setup
+	public void setup() {
+		GsonBuilder gsonBuilder = new GsonBuilder();
+		gsonBuilder.disableHtmlEscaping();
+		gsonBuilder.registerTypeAdapter(SimpleMailMessage.class, new SimpleMailMessageAdapter());
+		gsonBuilder.registerTypeAdapter(PostmarkMessage.class, new SimpleMailMessageAdapter());
+		gson = gsonBuilder.create();
+		message = BenchmarkMessages.message(bodyLength, nonASCIIRatio);
+		frozen = new FrozenMessage(message, rawUtf8);
+	}
+
+	@Benchmark
+	public byte[] gsonAdapter() throws IOException {
+		// the pre-streaming pipeline: JSON tree, String, escaped String, bytes
+		return UnicodeEscapeFilterWriter.escape(gson.toJson(message)).getBytes(rawUtf8 ? "UTF-8" : "US-ASCII");
+	}
+
+	@Benchmark
+	public long streamingEntity() throws IOException {
+		SimpleMailMessageWriter.validate(message);
+		JsonEntity entity = JsonEntity.forMessage(message, rawUtf8);
+		entity.writeTo(NULL_OUTPUT);
+		return entity.getContentLength();
+	}
+
+	@Benchmark
+	public long frozenEntity() throws IOException {
+		FrozenMessage.Message copy = frozen.newMessage(message.getTo());
+		SimpleMailMessageWriter.validate(copy);
+		JsonEntity entity = JsonEntity.forMessage(copy, rawUtf8);
+		entity.writeTo(NULL_OUTPUT);
+		return entity.getContentLength();
+	}
+}
@@ -0,0 +1,57 @@
+package com.postmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.postmark.util.UnicodeEscapeFilterWriter;
+
+/**
+ * {@link UnicodeEscapeFilterWriter} across body sizes and non-ASCII ratios.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UnicodeEscapeBenchmark {
+
+	@Param({ "1000", "200000" })
+	int length;
+
+	@Param({ "0", "0.03", "0.3" })
+	double nonASCIIRatio;
+
+	String text;
+	ByteBuffer bytes;
+
+	@Setup
+	public void setup() {
+		text = BenchmarkMessages.text(length, nonASCIIRatio);
+		bytes = ByteBuffer.allocate(UnicodeEscapeFilterWriter.escapedLength(text));
+	}
+
+	@Benchmark
+	public String escape() throws IOException {
+		return UnicodeEscapeFilterWriter.escape(text);
+	}
+
+	@Benchmark
+	public int escapeToByteBuffer() {
+		bytes.clear();
+		return UnicodeEscapeFilterWriter.escape(text, 0, bytes);
+	}
+
+	@Benchmark
+	public int encodeUtf8() {
+		bytes.clear();
+		return UnicodeEscapeFilterWriter.encodeUtf8(text, 0, bytes);
+	}
+}
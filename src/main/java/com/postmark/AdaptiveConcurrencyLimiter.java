@@ -0,0 +1,223 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+package com.postmark;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Concurrency limiter finding the number of requests in flight Postmark sustains,
+ * with additive increase and multiplicative decrease (AIMD).
+ * <p>
+ * While requests succeed with a healthy latency, the limit grows by about one
+ * request per round trip. A dropped request (429, 5xx, I/O error or timeout), or a
+ * latency above {@link #getLatencyTolerance()} times the average latency, cuts the
+ * limit by {@link #getBackoffRatio()}, at most once per average round trip so that
+ * one congestion event does not collapse the limit.
+ * <p>
+ * This class is thread-safe, and its setters must be called before it is used.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+	/** Default initial limit. */
+	public static final int DEFAULT_INITIAL_LIMIT = 10;
+	/** Default minimum limit. */
+	public static final int DEFAULT_MIN_LIMIT = 1;
+	/** Default maximum limit. */
+	public static final int DEFAULT_MAX_LIMIT = 200;
+	/** Default factor applied to the limit on a drop. */
+	public static final double DEFAULT_BACKOFF_RATIO = 0.75;
+	/** Default ratio of the average latency above which a request counts as a drop. */
+	public static final double DEFAULT_LATENCY_TOLERANCE = 3;
+
+	/** Weight of a new sample in the average latency. */
+	private static final double SMOOTHING = 0.05;
+
+	private int minLimit = DEFAULT_MIN_LIMIT;
+	private int maxLimit = DEFAULT_MAX_LIMIT;
+	private double backoffRatio = DEFAULT_BACKOFF_RATIO;
+	private double latencyTolerance = DEFAULT_LATENCY_TOLERANCE;
+
+	private double limit = DEFAULT_INITIAL_LIMIT;
+	private int inFlight;
+	private double averageLatencyNanos;
+	private long lastDecreaseNanos;
+	private boolean decreased;
+
+	/**
+	 * Waits until fewer requests than the limit are in flight, and counts one more.
+	 * It must be followed by {@link #release(long, boolean)}. Interrupts do not stop
+	 * the wait, but the interrupt status is kept.
+	 */
+	public synchronized void acquire() {
+		boolean interrupted = false;
+		while (inFlight >= (int) limit) {
+			try {
+				wait();
+			} catch (InterruptedException ie) {
+				interrupted = true;
+			}
+		}
+		inFlight++;
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Waits up to <tt>timeout</tt> until fewer requests than the limit are in flight,
+	 * and counts one more. When it succeeds, it must be followed by
+	 * {@link #release(long, boolean)} or {@link #cancel()}. Interrupts do not stop the
+	 * wait, but the interrupt status is kept.
+	 * 
+	 * @return whether the request was counted
+	 */
+	public synchronized boolean tryAcquire(long timeout, TimeUnit unit) {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		boolean interrupted = false;
+		try {
+			while (inFlight >= (int) limit) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0)
+					return false;
+				try {
+					TimeUnit.NANOSECONDS.timedWait(this, remaining);
+				} catch (InterruptedException ie) {
+					interrupted = true;
+				}
+			}
+			inFlight++;
+			return true;
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Counts a request abandoned before its outcome was known as completed, without
+	 * adjusting the limit.
+	 */
+	public synchronized void cancel() {
+		inFlight--;
+		notifyAll();
+	}
+
+	/**
+	 * Counts a request as completed and adjusts the limit.
+	 * 
+	 * @param latencyNanos the request round trip
+	 * @param dropped whether the request failed with a 429, 5xx or I/O error
+	 */
+	public synchronized void release(long latencyNanos, boolean dropped) {
+		inFlight--;
+		if (averageLatencyNanos == 0)
+			averageLatencyNanos = latencyNanos;
+		boolean slow = latencyNanos > latencyTolerance * averageLatencyNanos;
+		averageLatencyNanos += SMOOTHING * (latencyNanos - averageLatencyNanos);
+
+		long now = System.nanoTime();
+		if (dropped || slow) {
+			if (!decreased || now - lastDecreaseNanos > averageLatencyNanos) {
+				limit = Math.max(minLimit, limit * backoffRatio);
+				lastDecreaseNanos = now;
+				decreased = true;
+			}
+		} else if (inFlight + 1 >= (int) limit) {
+			// only grows while the limit is actually used
+			limit = Math.min(maxLimit, limit + 1 / limit);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * @return the current limit of requests in flight
+	 */
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	/**
+	 * @return the number of requests in flight
+	 */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * @param initialLimit the limit of requests in flight before any adjustment
+	 */
+	public synchronized void setInitialLimit(int initialLimit) {
+		this.limit = initialLimit;
+	}
+
+	/**
+	 * @param minLimit the limit never goes below
+	 */
+	public synchronized void setMinLimit(int minLimit) {
+		this.minLimit = minLimit;
+	}
+
+	public synchronized int getMinLimit() {
+		return minLimit;
+	}
+
+	/**
+	 * @param maxLimit the limit never goes above, typically the connection pool size
+	 */
+	public synchronized void setMaxLimit(int maxLimit) {
+		this.maxLimit = maxLimit;
+	}
+
+	public synchronized int getMaxLimit() {
+		return maxLimit;
+	}
+
+	/**
+	 * @param backoffRatio the factor applied to the limit on a drop
+	 */
+	public synchronized void setBackoffRatio(double backoffRatio) {
+		this.backoffRatio = backoffRatio;
+	}
+
+	public synchronized double getBackoffRatio() {
+		return backoffRatio;
+	}
+
+	/**
+	 * @param latencyTolerance the ratio of the average latency above which a request counts as a drop
+	 */
+	public synchronized void setLatencyTolerance(double latencyTolerance) {
+		this.latencyTolerance = latencyTolerance;
+	}
+
+	public synchronized double getLatencyTolerance() {
+		return latencyTolerance;
+	}
+}
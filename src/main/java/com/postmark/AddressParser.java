@@ -0,0 +1,437 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+
+package com.postmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.springframework.mail.MailParseException;
+import org.springframework.mail.SimpleMailMessage;
+
+/**
+ * Parser of the address fields of a message, checking them before the message is sent
+ * so that a malformed address fails locally instead of costing a Postmark request.
+ * <p>
+ * Fields are parsed in a single pass, without regular expressions, along a subset of
+ * RFC 5322: comma-separated mailboxes, each an <tt>addr-spec</tt> or a
+ * <tt>name-addr</tt> such as <tt>"Doe, John" &lt;john@exemple.com&gt;</tt>. Local parts
+ * are dot-atoms or quoted strings, domains are host names of at least two labels or
+ * address literals. Comments, groups and obsolete forms are rejected, and non-ASCII
+ * chars are accepted in addresses for internationalized mail.
+ * <p>
+ * Valid field values are kept in a fixed-size cache, so that the addresses sent to
+ * again and again are checked without parsing nor allocation.
+ * <p>
+ * This class is thread-safe.
+ */
+public class AddressParser {
+
+	/** Maximum number of To, Cc and Bcc recipients of a message accepted by Postmark. */
+	public static final int MAX_RECIPIENTS = 50;
+	/** Default number of field values in the cache. */
+	public static final int DEFAULT_CACHE_SIZE = 4096;
+
+	/** Parser shared by the senders. */
+	public static final AddressParser SHARED = new AddressParser(DEFAULT_CACHE_SIZE);
+
+	private static final int MAX_ADDRESS_LENGTH = 254;
+	private static final int MAX_LOCAL_PART_LENGTH = 64;
+	private static final int MAX_LABEL_LENGTH = 63;
+	private static final String ATEXT_SPECIALS = "!#$%&'*+-/=?^_`{|}~";
+
+	private static final Address[] NO_ADDRESSES = new Address[0];
+
+	/**
+	 * Mailbox parsed from an address field.
+	 */
+	public static class Address {
+		private final String displayName;
+		private final String address;
+		private final String normalized;
+
+		Address(String displayName, String address) {
+			this.displayName = displayName;
+			this.address = address;
+			this.normalized = address.toLowerCase(Locale.ENGLISH);
+		}
+
+		/**
+		 * @return the display name, unquoted, or <tt>null</tt>
+		 */
+		public String getDisplayName() {
+			return displayName;
+		}
+
+		/**
+		 * @return the address as written, without display name nor angle brackets
+		 */
+		public String getAddress() {
+			return address;
+		}
+
+		/**
+		 * @return the lower-cased address, to compare addresses as Postmark does
+		 */
+		public String getNormalized() {
+			return normalized;
+		}
+
+		@Override
+		public String toString() {
+			return address;
+		}
+	}
+
+	/**
+	 * Valid field value and its mailboxes.
+	 */
+	private static class Entry {
+		final String value;
+		final Address[] addresses;
+
+		Entry(String value, Address[] addresses) {
+			this.value = value;
+			this.addresses = addresses;
+		}
+	}
+
+	private final AtomicReferenceArray<Entry> cache;
+	private final int mask;
+
+	/**
+	 * @param cacheSize the number of field values in the cache, rounded up to a power
+	 * of two, <tt>0</tt> for no cache
+	 */
+	public AddressParser(int cacheSize) {
+		int size = cacheSize <= 0 ? 0 : Integer.highestOneBit(Math.max(cacheSize - 1, 1)) << 1;
+		cache = size > 0 ? new AtomicReferenceArray<Entry>(size) : null;
+		mask = size - 1;
+	}
+
+	/**
+	 * Checks the address fields of <tt>message</tt>: From holds one mailbox, ReplyTo,
+	 * To, Cc and Bcc hold lists of mailboxes, To at least one, and there are at most
+	 * {@link #MAX_RECIPIENTS} recipients.
+	 * 
+	 * @param message the message to check, whose required fields are set
+	 * @return the number of To, Cc and Bcc recipients
+	 * @throws MailParseException if an address is malformed or there are too many recipients
+	 */
+	public int validate(SimpleMailMessage message) throws MailParseException {
+		if (message.getFrom() != null && addresses("From", message.getFrom()).length != 1)
+			throw new MailParseException("From must be a single address: " + message.getFrom());
+		if (message.getReplyTo() != null)
+			addresses("ReplyTo", message.getReplyTo());
+		int to = count("To", message.getTo());
+		if (message.getTo() != null && to == 0)
+			throw new MailParseException("You must specify a to address");
+		int recipients = to + count("Cc", message.getCc()) + count("Bcc", message.getBcc());
+		if (recipients > MAX_RECIPIENTS)
+			throw new MailParseException("Postmark accepts at most " + MAX_RECIPIENTS
+					+ " recipients per message, not " + recipients);
+		return recipients;
+	}
+
+	private int count(String field, String[] values) throws MailParseException {
+		if (values == null)
+			return 0;
+		int count = 0;
+		for (String value : values) {
+			if (value != null)
+				count += addresses(field, value).length;
+		}
+		return count;
+	}
+
+	/**
+	 * @param value a field value
+	 * @return the mailboxes of <tt>value</tt>
+	 * @throws MailParseException if <tt>value</tt> is not a list of mailboxes
+	 */
+	public List<Address> parse(String value) throws MailParseException {
+		return Collections.unmodifiableList(Arrays.asList(addresses(null, value)));
+	}
+
+	/**
+	 * @param value a field value
+	 * @return the single mailbox of <tt>value</tt>
+	 * @throws MailParseException if <tt>value</tt> is not a single mailbox
+	 */
+	public Address parseMailbox(String value) throws MailParseException {
+		Address[] addresses = addresses(null, value);
+		if (addresses.length != 1)
+			throw error(null, value, "not a single mailbox");
+		return addresses[0];
+	}
+
+	/**
+	 * @param recipient a recipient, with or without display name
+	 * @return the normalized address of <tt>recipient</tt>, or its trimmed and
+	 * lower-cased value if it is not a single valid mailbox
+	 */
+	public String normalize(String recipient) {
+		try {
+			Address[] addresses = addresses(null, recipient);
+			if (addresses.length == 1)
+				return addresses[0].getNormalized();
+		} catch (MailParseException mpe) {
+			// malformed, kept as is
+		}
+		return recipient.trim().toLowerCase(Locale.ENGLISH);
+	}
+
+	private Address[] addresses(String field, String value) throws MailParseException {
+		if (cache == null)
+			return parseList(field, value);
+		int index = spread(value.hashCode()) & mask;
+		Entry entry = cache.get(index);
+		if (entry != null && entry.value.equals(value))
+			return entry.addresses;
+		Address[] addresses = parseList(field, value);
+		cache.set(index, new Entry(value, addresses));
+		return addresses;
+	}
+
+	private static int spread(int h) {
+		h ^= h >>> 16;
+		return h * 0x45d9f3b;
+	}
+
+	/**
+	 * Parses a comma-separated list of mailboxes. Empty list items are ignored.
+	 */
+	private static Address[] parseList(String field, String value) throws MailParseException {
+		Address first = null;
+		List<Address> more = null;
+		int length = value.length();
+		int start = 0;
+		while (start <= length) {
+			// find the end of the mailbox, and its angle brackets, outside quoted strings
+			int open = -1;
+			int close = -1;
+			int end = start;
+			boolean quoted = false;
+			for (; end < length; end++) {
+				char c = value.charAt(end);
+				if (quoted) {
+					if (c == '\\')
+						end++;
+					else if (c == '"')
+						quoted = false;
+				} else if (c == '"') {
+					quoted = true;
+				} else if (c == ',') {
+					break;
+				} else if (c == '<') {
+					if (open >= 0)
+						throw error(field, value, "more than one '<'");
+					open = end;
+				} else if (c == '>') {
+					if (open < 0 || close >= 0)
+						throw error(field, value, "unexpected '>'");
+					close = end;
+				}
+			}
+			if (quoted)
+				throw error(field, value, "unterminated quoted string");
+
+			Address address;
+			if (open >= 0) {
+				if (close < 0)
+					throw error(field, value, "missing '>'");
+				if (trimEnd(value, close + 1, end) != close + 1)
+					throw error(field, value, "text after '>'");
+				address = new Address(displayName(field, value, start, open),
+						addrSpec(field, value, trimStart(value, open + 1, close), trimEnd(value, open + 1, close)));
+			} else {
+				int from = trimStart(value, start, end);
+				int to = trimEnd(value, start, end);
+				address = from < to ? new Address(null, addrSpec(field, value, from, to)) : null;
+			}
+			if (address != null) {
+				if (first == null) {
+					first = address;
+				} else {
+					if (more == null)
+						more = new ArrayList<Address>();
+					more.add(address);
+				}
+			}
+			start = end + 1;
+		}
+		if (first == null)
+			return NO_ADDRESSES;
+		if (more == null)
+			return new Address[] { first };
+		Address[] addresses = new Address[more.size() + 1];
+		addresses[0] = first;
+		for (int i = 0; i < more.size(); i++)
+			addresses[i + 1] = more.get(i);
+		return addresses;
+	}
+
+	/**
+	 * @return the display name before the angle brackets, unquoted, or <tt>null</tt>
+	 */
+	private static String displayName(String field, String value, int start, int end) throws MailParseException {
+		int from = trimStart(value, start, end);
+		int to = trimEnd(value, start, end);
+		if (from == to)
+			return null;
+		StringBuilder name = null;
+		for (int i = from; i < to; i++) {
+			char c = value.charAt(i);
+			if (c < 0x20 || c == 0x7f)
+				throw error(field, value, "control char in display name");
+			if (c == '"' || c == '\\') {
+				if (name == null)
+					name = new StringBuilder(to - from).append(value, from, i);
+				if (c == '\\')
+					name.append(value.charAt(++i));
+			} else if (name != null) {
+				name.append(c);
+			}
+		}
+		return name != null ? name.toString() : value.substring(from, to);
+	}
+
+	/**
+	 * Checks the <tt>local-part@domain</tt> address between <tt>start</tt> and <tt>end</tt>.
+	 * 
+	 * @return the address
+	 */
+	private static String addrSpec(String field, String value, int start, int end) throws MailParseException {
+		if (end - start > MAX_ADDRESS_LENGTH)
+			throw error(field, value, "address longer than " + MAX_ADDRESS_LENGTH + " chars");
+		int i = start;
+		if (i < end && value.charAt(i) == '"') {
+			// quoted local part
+			for (i++; i < end && value.charAt(i) != '"'; i++) {
+				char c = value.charAt(i);
+				if (c == '\\')
+					i++;
+				else if (c < 0x20 && c != '\t')
+					throw error(field, value, "control char in quoted local part");
+			}
+			if (i >= end)
+				throw error(field, value, "unterminated quoted local part");
+			i++;
+		} else {
+			boolean dot = true;
+			for (; i < end && value.charAt(i) != '@'; i++) {
+				char c = value.charAt(i);
+				if (c == '.') {
+					if (dot)
+						throw error(field, value, i == start ? "local part starts with '.'" : "'..' in local part");
+					dot = true;
+				} else if (isAtext(c)) {
+					dot = false;
+				} else {
+					throw error(field, value, "invalid char '" + c + "' in local part");
+				}
+			}
+			if (i == start)
+				throw error(field, value, "missing local part");
+			if (dot)
+				throw error(field, value, "local part ends with '.'");
+		}
+		if (i - start > MAX_LOCAL_PART_LENGTH)
+			throw error(field, value, "local part longer than " + MAX_LOCAL_PART_LENGTH + " chars");
+		if (i >= end || value.charAt(i) != '@')
+			throw error(field, value, "missing '@'");
+		domain(field, value, i + 1, end);
+		return value.substring(start, end);
+	}
+
+	/**
+	 * Checks a domain made of at least two labels, or an address literal.
+	 */
+	private static void domain(String field, String value, int start, int end) throws MailParseException {
+		if (start == end)
+			throw error(field, value, "missing domain");
+		if (value.charAt(start) == '[') {
+			if (value.charAt(end - 1) != ']' || end - start < 3)
+				throw error(field, value, "invalid address literal");
+			for (int i = start + 1; i < end - 1; i++) {
+				char c = value.charAt(i);
+				if (c == '[' || c == ']' || c == '\\' || c <= 0x20)
+					throw error(field, value, "invalid char in address literal");
+			}
+			return;
+		}
+		int labels = 0;
+		int labelStart = start;
+		for (int i = start; i <= end; i++) {
+			char c = i < end ? value.charAt(i) : '.';
+			if (c == '.') {
+				int labelLength = i - labelStart;
+				if (labelLength == 0)
+					throw error(field, value, "empty domain label");
+				if (labelLength > MAX_LABEL_LENGTH)
+					throw error(field, value, "domain label longer than " + MAX_LABEL_LENGTH + " chars");
+				if (value.charAt(labelStart) == '-' || value.charAt(i - 1) == '-')
+					throw error(field, value, "domain label starts or ends with '-'");
+				labels++;
+				labelStart = i + 1;
+			} else if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-' || c >= 0x80)) {
+				throw error(field, value, "invalid char '" + c + "' in domain");
+			}
+		}
+		if (labels < 2)
+			throw error(field, value, "domain without '.'");
+	}
+
+	private static boolean isAtext(char c) {
+		return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9'
+				|| c >= 0x80 || ATEXT_SPECIALS.indexOf(c) >= 0;
+	}
+
+	private static int trimStart(String value, int start, int end) {
+		while (start < end && value.charAt(start) <= ' ')
+			start++;
+		return start;
+	}
+
+	private static int trimEnd(String value, int start, int end) {
+		while (end > start && value.charAt(end - 1) <= ' ')
+			end--;
+		return end;
+	}
+
+	private static MailParseException error(String field, String value, String reason) {
+		return new MailParseException("Invalid " + (field != null ? field + " " : "") + "address '" + value + "': " + reason);
+	}
+}
@@ -0,0 +1,125 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+package com.postmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+import org.springframework.core.io.InputStreamSource;
+
+/**
+ * File attached to a {@link PostmarkMessage}, read and Base64 encoded into the request
+ * body while it is sent, so that its contents are never held in memory.
+ * <p>
+ * The source is read each time the message is sent, retries included, and must hold
+ * the same bytes until then.
+ * <p>
+ * Attachments are serialized with their message by reference: a file attachment keeps
+ * its path, and an {@link InputStreamSource} attachment can only be serialized when its
+ * source is {@link Serializable}.
+ */
+public class Attachment implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String name;
+	private final String contentType;
+	private final File file;
+	private final InputStreamSource source;
+	private final long length;
+
+	/**
+	 * @param name the file name shown to the recipient
+	 * @param contentType the MIME type, such as <tt>application/pdf</tt>
+	 * @param file the file to attach, read through its {@link java.nio.channels.FileChannel}
+	 */
+	public Attachment(String name, String contentType, File file) {
+		this(name, contentType, file, null, file.length());
+		if (!file.isFile())
+			throw new IllegalArgumentException("Not a file: " + file);
+	}
+
+	/**
+	 * @param name the file name shown to the recipient
+	 * @param contentType the MIME type, such as <tt>application/pdf</tt>
+	 * @param source the source of the contents, opened for each send, for instance a
+	 * Spring {@link org.springframework.core.io.Resource}
+	 * @param length the number of bytes of the contents
+	 */
+	public Attachment(String name, String contentType, InputStreamSource source, long length) {
+		this(name, contentType, null, source, length);
+	}
+
+	private Attachment(String name, String contentType, File file, InputStreamSource source, long length) {
+		if (name == null || contentType == null)
+			throw new IllegalArgumentException("An attachment needs a name and a content type");
+		if (length < 0)
+			throw new IllegalArgumentException("Negative attachment length: " + length);
+		this.name = name;
+		this.contentType = contentType;
+		this.file = file;
+		this.source = source;
+		this.length = length;
+	}
+
+	/**
+	 * @return a new channel reading the contents, to be closed by the caller
+	 */
+	ReadableByteChannel open() throws IOException {
+		if (file != null)
+			return new FileInputStream(file).getChannel();
+		return Channels.newChannel(source.getInputStream());
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * @return the length of the contents in bytes, before Base64 encoding
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	@Override
+	public String toString() {
+		return "Attachment [name=" + name + ", contentType=" + contentType + ", length=" + length + "]";
+	}
+}
@@ -0,0 +1,159 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+
+package com.postmark;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import org.apache.http.client.methods.AbortableHttpRequest;
+
+/**
+ * One HTTP request of a send, which can be aborted from another thread: by its
+ * deadline, or by a hedged attempt.
+ * <p>
+ * The request body counts as written right before its last bytes are handed to the
+ * connection: before the write completing a body of known length, or once a chunked
+ * body is written, before its last chunk. A request aborted earlier never reaches
+ * Postmark in full.
+ */
+final class Attempt {
+
+	/** Deadline of the attempts without one. */
+	static final long NO_DEADLINE = Long.MAX_VALUE;
+
+	private final long deadlineNanos;
+	private AbortableHttpRequest request;
+	private boolean written;
+	private boolean aborted;
+	private boolean expired;
+
+	/**
+	 * @param deadlineNanos the {@link System#nanoTime()} after which the attempt is
+	 * aborted, or {@link #NO_DEADLINE}
+	 */
+	Attempt(long deadlineNanos) {
+		this.deadlineNanos = deadlineNanos;
+	}
+
+	/**
+	 * @param timeoutNanos a timeout, <tt>0</tt> for none
+	 * @return the deadline of a send starting now
+	 */
+	static long deadline(long timeoutNanos) {
+		if (timeoutNanos <= 0)
+			return NO_DEADLINE;
+		// timeouts of decades are no deadline, and keep clear of overflows
+		return timeoutNanos < NO_DEADLINE / 4 ? System.nanoTime() + timeoutNanos : NO_DEADLINE;
+	}
+
+	long getDeadlineNanos() {
+		return deadlineNanos;
+	}
+
+	/**
+	 * Binds the HTTP request about to be executed.
+	 * 
+	 * @throws IOException if this attempt has already been aborted
+	 */
+	synchronized void start(AbortableHttpRequest request) throws IOException {
+		if (aborted)
+			throw abortedException();
+		this.request = request;
+	}
+
+	/**
+	 * Unbinds the HTTP request once executed, so that a late abort leaves its pooled
+	 * connection alone.
+	 */
+	synchronized void end() {
+		request = null;
+	}
+
+	/**
+	 * Records the request body as about to be complete.
+	 * 
+	 * @throws IOException if this attempt has been aborted while writing the body
+	 */
+	synchronized void onWritten() throws IOException {
+		if (aborted)
+			throw abortedException();
+		written = true;
+	}
+
+	/**
+	 * Aborts the request, for a hedged attempt which won or lost.
+	 */
+	synchronized void abort() {
+		aborted = true;
+		if (request != null)
+			request.abort();
+	}
+
+	/**
+	 * Aborts the request unless its body has been fully written.
+	 * 
+	 * @return whether the request was aborted
+	 */
+	synchronized boolean abortUnwritten() {
+		if (written)
+			return false;
+		abort();
+		return true;
+	}
+
+	/**
+	 * Aborts the request, for the deadline has passed.
+	 */
+	synchronized void expire() {
+		expired = true;
+		abort();
+	}
+
+	synchronized boolean isWritten() {
+		return written;
+	}
+
+	/**
+	 * @return whether this attempt was aborted by a hedged attempt, not by its deadline
+	 */
+	synchronized boolean isCancelled() {
+		return aborted && !expired;
+	}
+
+	synchronized boolean isExpired() {
+		return expired;
+	}
+
+	private IOException abortedException() {
+		return new InterruptedIOException(expired ? "Send deadline exceeded" : "Request aborted");
+	}
+}
@@ -0,0 +1,383 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+package com.postmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.mail.MailException;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.MailSender;
+import org.springframework.mail.SimpleMailMessage;
+
+import com.postmark.PostmarkMailSender.PostmarkResponse;
+import com.postmark.util.DaemonThreadFactory;
+
+/**
+ * MailSender accumulating single messages into batches, sent through the batch
+ * endpoint of a {@link PostmarkMailSender}.
+ * <p>
+ * Messages are put in a bounded queue, drained by background flushers. A flusher
+ * takes the first queued message, waits up to the linger time for more, and sends
+ * them in one batch, split as required by {@link PostmarkMailSender#getMaxBatchBytes()}.
+ * Many threads sending one message at a time thus get the throughput of batches,
+ * for a latency of at most the linger time.
+ * <p>
+ * When the queue is full, senders block until there is room, or fail at once if
+ * {@link #setBlockWhenFull(boolean)} is disabled.
+ */
+public class BatchingMailSender implements MailSender, DisposableBean {
+
+	/** Default time a flusher waits for more messages to fill a batch. */
+	public static final long DEFAULT_LINGER_MILLIS = 5;
+	/** Default maximum number of queued messages. */
+	public static final int DEFAULT_MAX_QUEUE_SIZE = 10000;
+	/** Default number of flusher threads. */
+	public static final int DEFAULT_FLUSHER_THREADS = 1;
+
+	private final PostmarkMailSender mailSender;
+	private long lingerMillis = DEFAULT_LINGER_MILLIS;
+	private int maxBatchSize;
+	private int maxQueueSize = DEFAULT_MAX_QUEUE_SIZE;
+	private volatile boolean blockWhenFull = true;
+	private int flusherThreads = DEFAULT_FLUSHER_THREADS;
+
+	private volatile BlockingQueue<SendFuture> queue;
+	private final List<Thread> flushers = new ArrayList<Thread>();
+	private volatile boolean closed;
+	/** Held shared to queue a message and exclusively to close, so that none is queued once closed. */
+	private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+	/** Number of messages queued or being sent. */
+	private final AtomicLong pending = new AtomicLong();
+	private final AtomicLong batchCount = new AtomicLong();
+
+	/**
+	 * @param mailSender the sender of the batches, not closed by this sender
+	 */
+	public BatchingMailSender(PostmarkMailSender mailSender) {
+		this.mailSender = mailSender;
+		this.maxBatchSize = mailSender.getMaxBatchSize();
+	}
+
+	/**
+	 * Starts the flushers. Otherwise they are started by the first send.
+	 */
+	public synchronized void start() {
+		if (closed)
+			throw new IllegalStateException("BatchingMailSender has been closed");
+		if (queue != null)
+			return;
+		queue = new ArrayBlockingQueue<SendFuture>(maxQueueSize);
+		DaemonThreadFactory threadFactory = new DaemonThreadFactory("postmark-batching");
+		for (int i = 0; i < flusherThreads; i++) {
+			Thread flusher = threadFactory.newThread(new Runnable() {
+				@Override
+				public void run() {
+					drain();
+				}
+			});
+			flushers.add(flusher);
+			flusher.start();
+		}
+	}
+
+	/**
+	 * Sends the queued messages and stops the flushers. Messages sent afterwards are rejected.
+	 */
+	public void close() {
+		List<Thread> threads;
+		closeLock.writeLock().lock();
+		try {
+			synchronized (this) {
+				if (closed)
+					return;
+				closed = true;
+				threads = new ArrayList<Thread>(flushers);
+			}
+		} finally {
+			closeLock.writeLock().unlock();
+		}
+		for (Thread flusher : threads) {
+			try {
+				flusher.join();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		// messages queued while the flushers were stopping, none can be queued any more
+		if (queue != null) {
+			List<SendFuture> rest = new ArrayList<SendFuture>();
+			queue.drainTo(rest);
+			if (!rest.isEmpty())
+				send(rest);
+		}
+	}
+
+	/**
+	 * Calls {@link #close()} when the Spring context is destroyed.
+	 */
+	@Override
+	public void destroy() {
+		close();
+	}
+
+	/**
+	 * Waits until the messages sent so far have been sent to Postmark.
+	 * 
+	 * @param timeoutMillis maximum time to wait
+	 * @return whether all messages have been sent
+	 */
+	public boolean flush(long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized (pending) {
+			while (pending.get() > 0) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0)
+					return false;
+				pending.wait(remaining);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Queues <tt>message</tt> and waits until its batch has been sent.
+	 */
+	@Override
+	public void send(SimpleMailMessage message) throws MailException {
+		Future<PostmarkResponse> future = sendAsync(message, null);
+		try {
+			future.get();
+		} catch (ExecutionException ee) {
+			throw SendFuture.toMailException(ee.getCause());
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new MailSendException("Interrupted while waiting for the batch of the message", ie);
+		}
+	}
+
+	/**
+	 * Sends the messages as batches at once, without queuing them.
+	 * 
+	 * @see PostmarkMailSender#send(SimpleMailMessage[])
+	 */
+	@Override
+	public void send(SimpleMailMessage[] simpleMessages) throws MailException {
+		mailSender.send(simpleMessages);
+	}
+
+	/**
+	 * Queues <tt>message</tt>, to be sent in the next batch. Invalid messages fail at once.
+	 * 
+	 * @param message the message to send
+	 * @param callback notified of the outcome once done, may be <tt>null</tt>
+	 * @return the future Postmark response, failing with a {@link MailException}
+	 * @throws MailSendException if the queue is full and {@link #isBlockWhenFull()} is disabled
+	 */
+	public Future<PostmarkResponse> sendAsync(SimpleMailMessage message, SendCallback callback) throws MailSendException {
+		SendFuture future = new SendFuture(message, callback);
+		try {
+			SimpleMailMessageWriter.validate(message);
+		} catch (MailException mex) {
+			future.fail(mex);
+			return future;
+		}
+		closeLock.readLock().lock();
+		try {
+			if (closed)
+				throw new IllegalStateException("BatchingMailSender has been closed");
+			start();
+			pending.incrementAndGet();
+			if (blockWhenFull) {
+				// the flushers keep making room, as closing waits for this put
+				boolean queued = false;
+				try {
+					queue.put(future);
+					queued = true;
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new MailSendException("Interrupted while waiting for room in the send queue", ie);
+				} finally {
+					if (!queued)
+						done(1);
+				}
+			} else if (!queue.offer(future)) {
+				done(1);
+				throw new MailSendException("Send queue is full, " + maxQueueSize + " messages are waiting");
+			}
+		} finally {
+			closeLock.readLock().unlock();
+		}
+		return future;
+	}
+
+	/**
+	 * Sends the queued messages in batches until closed, then sends the rest.
+	 */
+	private void drain() {
+		long lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+		List<SendFuture> batch = new ArrayList<SendFuture>(maxBatchSize);
+		try {
+			while (!closed || !queue.isEmpty()) {
+				SendFuture first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null)
+					continue;
+				batch.add(first);
+				long deadline = System.nanoTime() + lingerNanos;
+				while (batch.size() < maxBatchSize) {
+					if (queue.drainTo(batch, maxBatchSize - batch.size()) > 0)
+						continue;
+					long remaining = deadline - System.nanoTime();
+					SendFuture next = remaining > 0 && !closed ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+					if (next == null)
+						break;
+					batch.add(next);
+				}
+				send(batch);
+				batch.clear();
+			}
+		} catch (InterruptedException ie) {
+			// terminate
+		}
+	}
+
+	private void send(List<SendFuture> batch) {
+		List<SimpleMailMessage> messages = new ArrayList<SimpleMailMessage>(batch.size());
+		for (SendFuture future : batch)
+			messages.add(future.getMessage());
+		try {
+			// counted first, the futures of the batch complete in run
+			batchCount.incrementAndGet();
+			mailSender.new BatchTask(messages, new ArrayList<SendFuture>(batch)).run();
+		} finally {
+			done(batch.size());
+		}
+	}
+
+	private void done(int messages) {
+		if (pending.addAndGet(-messages) == 0) {
+			synchronized (pending) {
+				pending.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of messages waiting in the queue
+	 */
+	public int getQueueSize() {
+		BlockingQueue<SendFuture> queue = this.queue;
+		return queue == null ? 0 : queue.size();
+	}
+
+	/**
+	 * @return the number of batches sent
+	 */
+	public long getBatchCount() {
+		return batchCount.get();
+	}
+
+	private synchronized void checkNotStarted() {
+		if (queue != null)
+			throw new IllegalStateException("Batching settings cannot be changed once started");
+	}
+
+	/**
+	 * @param lingerMillis time a flusher waits for more messages before sending a
+	 * batch which is not full. Defaults to 5 ms.
+	 */
+	public void setLingerMillis(long lingerMillis) {
+		checkNotStarted();
+		this.lingerMillis = lingerMillis;
+	}
+
+	public long getLingerMillis() {
+		return lingerMillis;
+	}
+
+	/**
+	 * @param maxBatchSize maximum number of messages per batch. Defaults to the one of the sender.
+	 */
+	public void setMaxBatchSize(int maxBatchSize) {
+		checkNotStarted();
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	/**
+	 * @param maxQueueSize maximum number of queued messages
+	 */
+	public void setMaxQueueSize(int maxQueueSize) {
+		checkNotStarted();
+		this.maxQueueSize = maxQueueSize;
+	}
+
+	public int getMaxQueueSize() {
+		return maxQueueSize;
+	}
+
+	/**
+	 * @param blockWhenFull whether sends wait for room when the queue is full, rather
+	 * than fail with a {@link MailSendException}. Defaults to <tt>true</tt>.
+	 */
+	public void setBlockWhenFull(boolean blockWhenFull) {
+		this.blockWhenFull = blockWhenFull;
+	}
+
+	public boolean isBlockWhenFull() {
+		return blockWhenFull;
+	}
+
+	/**
+	 * @param flusherThreads number of threads sending batches concurrently
+	 */
+	public void setFlusherThreads(int flusherThreads) {
+		checkNotStarted();
+		this.flusherThreads = flusherThreads;
+	}
+
+	public int getFlusherThreads() {
+		return flusherThreads;
+	}
+}
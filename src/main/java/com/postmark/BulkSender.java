@@ -0,0 +1,233 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+
+package com.postmark;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.springframework.mail.MailException;
+import org.springframework.mail.SimpleMailMessage;
+
+import com.postmark.PostmarkMailSender.PostmarkResponse;
+import com.postmark.PostmarkMailSender.PostmarkResponseStatus;
+import com.postmark.util.DaemonThreadFactory;
+
+/**
+ * Sends messages pulled from an {@link Iterator} through the batch endpoint of a
+ * {@link PostmarkMailSender}, in constant memory.
+ * <p>
+ * The calling thread pulls messages lazily, in chunks of
+ * {@link PostmarkMailSender#getMaxBatchSize()}, and hands them to worker threads
+ * which serialize and send them. At most {@link #setMaxPendingBatches(int)} chunks
+ * wait for a worker, so the iterator is only read as fast as the batches are sent,
+ * and the heap holds a bounded number of messages whatever the size of the campaign.
+ * <p>
+ * Outcomes are reported message by message to a {@link SendCallback} rather than
+ * collected: a message is no longer referenced once its outcome is reported. The
+ * callback is invoked from the worker threads, and must be thread-safe.
+ * <p>
+ * Combined with {@link MailMerge}, a campaign can be sent from a CSV file of
+ * recipients without ever being held in memory.
+ */
+public class BulkSender {
+
+	/** Default number of worker threads. */
+	public static final int DEFAULT_THREADS = 4;
+
+	private final PostmarkMailSender mailSender;
+	private int threads = DEFAULT_THREADS;
+	private int maxPendingBatches = DEFAULT_THREADS;
+
+	/**
+	 * @param mailSender the sender of the batches, not closed by this sender
+	 */
+	public BulkSender(PostmarkMailSender mailSender) {
+		this.mailSender = mailSender;
+	}
+
+	/**
+	 * Sends all the messages of <tt>messages</tt>, and returns once each has been
+	 * reported to <tt>callback</tt>.
+	 * <p>
+	 * An exception thrown by the iterator, or an unexpected exception of the sender
+	 * such as it being closed, stops the pull: the chunks already pulled are still
+	 * sent, then the exception is rethrown.
+	 * 
+	 * @param messages the messages to send, read from the calling thread only
+	 * @param callback notified of the outcome of each message, may be <tt>null</tt>
+	 * @return the counts of outcomes
+	 */
+	public Result send(Iterator<? extends SimpleMailMessage> messages, SendCallback callback) {
+		final CountingCallback counting = new CountingCallback(callback);
+		final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+		final Semaphore permits = new Semaphore(threads + maxPendingBatches);
+		ExecutorService workers = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("postmark-bulk"));
+		int chunkSize = mailSender.getMaxBatchSize();
+		try {
+			while (failure.get() == null && messages.hasNext()) {
+				final List<SimpleMailMessage> chunk = new ArrayList<SimpleMailMessage>(chunkSize);
+				while (chunk.size() < chunkSize && messages.hasNext())
+					chunk.add(messages.next());
+				permits.acquireUninterruptibly();
+				workers.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							mailSender.sendBatches(chunk, counting);
+						} catch (RuntimeException re) {
+							failure.compareAndSet(null, re);
+						} finally {
+							permits.release();
+						}
+					}
+				});
+			}
+		} finally {
+			// waits for the chunks in flight
+			permits.acquireUninterruptibly(threads + maxPendingBatches);
+			workers.shutdown();
+		}
+		if (failure.get() != null)
+			throw failure.get();
+		return counting.result;
+	}
+
+	/**
+	 * Sends all the messages of <tt>messages</tt>.
+	 * 
+	 * @see #send(Iterator, SendCallback)
+	 */
+	public Result send(Iterable<? extends SimpleMailMessage> messages, SendCallback callback) {
+		return send(messages.iterator(), callback);
+	}
+
+	/**
+	 * @param threads number of threads serializing and sending batches, at most the
+	 * number of connections of the sender
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @param maxPendingBatches maximum number of pulled chunks waiting for a worker
+	 */
+	public void setMaxPendingBatches(int maxPendingBatches) {
+		this.maxPendingBatches = maxPendingBatches;
+	}
+
+	public int getMaxPendingBatches() {
+		return maxPendingBatches;
+	}
+
+	/**
+	 * Counts of the outcomes of a bulk send.
+	 */
+	public static class Result {
+		private final AtomicLong sentCount = new AtomicLong();
+		private final AtomicLong duplicateCount = new AtomicLong();
+		private final AtomicLong suppressedCount = new AtomicLong();
+		private final AtomicLong failedCount = new AtomicLong();
+
+		/**
+		 * @return the number of messages accepted by Postmark
+		 */
+		public long getSentCount() {
+			return sentCount.get();
+		}
+
+		/**
+		 * @return the number of messages suppressed by the deduplication window
+		 */
+		public long getDuplicateCount() {
+			return duplicateCount.get();
+		}
+
+		/**
+		 * @return the number of messages not sent as their recipients are suppressed
+		 */
+		public long getSuppressedCount() {
+			return suppressedCount.get();
+		}
+
+		/**
+		 * @return the number of messages which could not be sent
+		 */
+		public long getFailedCount() {
+			return failedCount.get();
+		}
+
+		@Override
+		public String toString() {
+			return "Result [sent=" + getSentCount() + ", duplicates=" + getDuplicateCount()
+					+ ", suppressed=" + getSuppressedCount() + ", failed=" + getFailedCount() + "]";
+		}
+	}
+
+	private static class CountingCallback implements SendCallback {
+		final Result result = new Result();
+		private final SendCallback callback;
+
+		CountingCallback(SendCallback callback) {
+			this.callback = callback;
+		}
+
+		@Override
+		public void onSuccess(SimpleMailMessage message, PostmarkResponse response) {
+			if (response.getStatus() == PostmarkResponseStatus.DUPLICATE)
+				result.duplicateCount.incrementAndGet();
+			else if (response.getStatus() == PostmarkResponseStatus.SUPPRESSED)
+				result.suppressedCount.incrementAndGet();
+			else
+				result.sentCount.incrementAndGet();
+			if (callback != null)
+				callback.onSuccess(message, response);
+		}
+
+		@Override
+		public void onFailure(SimpleMailMessage message, MailException exception) {
+			result.failedCount.incrementAndGet();
+			if (callback != null)
+				callback.onFailure(message, exception);
+		}
+	}
+}
@@ -0,0 +1,158 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+package com.postmark;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.mail.MailSendException;
+
+/**
+ * Circuit breaker failing sends fast while Postmark is unhealthy.
+ * <p>
+ * After {@link #getFailureThreshold()} consecutive transient failures, the breaker
+ * opens and rejects sends with an {@link OpenException} for {@link #getOpenMillis()}.
+ * It then lets one trial request through: the breaker closes if it succeeds, and opens
+ * again otherwise. User errors prove that Postmark is reachable and count as successes.
+ * Only the outcome of the trial request changes an open breaker: requests let through
+ * before it opened may still finish, but do not close nor reopen it.
+ * <p>
+ * This class is thread-safe, and its setters must be called before it is used.
+ */
+public class CircuitBreaker {
+
+	/** Default number of consecutive failures opening the breaker. */
+	public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+	/** Default time the breaker stays open before a trial request. */
+	public static final long DEFAULT_OPEN_MILLIS = 10000;
+
+	/**
+	 * Exception thrown by sends rejected by an open breaker.
+	 */
+	public static class OpenException extends MailSendException {
+		private static final long serialVersionUID = 1L;
+
+		OpenException() {
+			super("Postmark circuit breaker is open, not sending");
+		}
+	}
+
+	private int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+	private long openMillis = DEFAULT_OPEN_MILLIS;
+
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+	/** Time until which the breaker is open, or 0 if it is closed. */
+	private volatile long openUntil;
+	private final AtomicBoolean trialInFlight = new AtomicBoolean();
+
+	/**
+	 * Lets a request through, which must then be followed by {@link #onSuccess(boolean)},
+	 * {@link #onFailure(boolean)} or {@link #onCancel(boolean)}, given the returned token.
+	 * 
+	 * @return whether the request is the trial request of the open breaker
+	 * @throws OpenException if the breaker is open
+	 */
+	public boolean acquire() throws OpenException {
+		long until = openUntil;
+		if (until == 0)
+			return false;
+		if (System.currentTimeMillis() < until || !trialInFlight.compareAndSet(false, true))
+			throw new OpenException();
+		return true;
+	}
+
+	/**
+	 * Records a request reaching Postmark.
+	 * 
+	 * @param trial the token returned by {@link #acquire()} for the request
+	 */
+	public void onSuccess(boolean trial) {
+		consecutiveFailures.set(0);
+		if (trial) {
+			openUntil = 0;
+			trialInFlight.set(false);
+		}
+	}
+
+	/**
+	 * Records a transient failure.
+	 * 
+	 * @param trial the token returned by {@link #acquire()} for the request
+	 */
+	public void onFailure(boolean trial) {
+		if (trial) {
+			openUntil = System.currentTimeMillis() + openMillis;
+			trialInFlight.set(false);
+		} else if (openUntil == 0 && consecutiveFailures.incrementAndGet() >= failureThreshold) {
+			openUntil = System.currentTimeMillis() + openMillis;
+		}
+	}
+
+	/**
+	 * Records a request abandoned before its outcome was known, which neither closes
+	 * nor opens the breaker. A trial request lets another one through.
+	 * 
+	 * @param trial the token returned by {@link #acquire()} for the request
+	 */
+	public void onCancel(boolean trial) {
+		if (trial)
+			trialInFlight.set(false);
+	}
+
+	/**
+	 * @return whether the breaker rejects sends
+	 */
+	public boolean isOpen() {
+		return openUntil != 0;
+	}
+
+	/**
+	 * @param failureThreshold the number of consecutive transient failures opening the breaker
+	 */
+	public void setFailureThreshold(int failureThreshold) {
+		this.failureThreshold = failureThreshold;
+	}
+
+	public int getFailureThreshold() {
+		return failureThreshold;
+	}
+
+	/**
+	 * @param openMillis the time the breaker stays open before letting a trial request through
+	 */
+	public void setOpenMillis(long openMillis) {
+		this.openMillis = openMillis;
+	}
+
+	public long getOpenMillis() {
+		return openMillis;
+	}
+}
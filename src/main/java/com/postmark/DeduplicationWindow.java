@@ -0,0 +1,195 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+package com.postmark;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.mail.SimpleMailMessage;
+
+import com.postmark.util.ExpiringLongSet;
+
+/**
+ * Suppresses the messages sent again within a time window, typically by upstream
+ * retries, before they are serialized or sent.
+ * <p>
+ * A message is identified by its {@link PostmarkMessage#getIdempotencyKey() idempotency
+ * key} when set, or else by a 64-bit hash of its fields: From, To, Cc, Bcc, ReplyTo,
+ * Subject, TextBody, HtmlBody, Tag, the name and length of attachments and the slot
+ * values of frozen messages. Keys are kept in an {@link ExpiringLongSet}, whose memory
+ * use is fixed by its capacity.
+ * <p>
+ * A key is taken when the message is sent, and given back if sending fails, so that
+ * a failed message can be sent again.
+ * 
+ * @see PostmarkMailSender#setDeduplicationWindow(DeduplicationWindow)
+ */
+public class DeduplicationWindow {
+
+	/** Default time during which a message is not sent again. */
+	public static final long DEFAULT_WINDOW_MILLIS = 10 * 60 * 1000;
+	/** Default number of keys remembered within a window, about 4MB of memory. */
+	public static final int DEFAULT_MAX_KEYS = 128 * 1024;
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	/** Seed of idempotency keys, so that they never match a content hash by design. */
+	private static final long KEY_OFFSET = 0x84222325cbf29ce4L;
+
+	private final ExpiringLongSet keys;
+	private final AtomicLong suppressed = new AtomicLong();
+
+	public DeduplicationWindow() {
+		this(DEFAULT_WINDOW_MILLIS, DEFAULT_MAX_KEYS);
+	}
+
+	/**
+	 * @param windowMillis time during which a message is not sent again
+	 * @param maxKeys number of messages remembered within a window, beyond which the
+	 * oldest ones are forgotten early
+	 */
+	public DeduplicationWindow(long windowMillis, int maxKeys) {
+		keys = new ExpiringLongSet(windowMillis, maxKeys);
+	}
+
+	/**
+	 * Takes the key of a message about to be sent.
+	 * 
+	 * @return whether <tt>key</tt> was free, <tt>false</tt> if the message is a duplicate
+	 */
+	boolean tryAcquire(long key) {
+		if (keys.add(key))
+			return true;
+		suppressed.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Gives back the key of a message which could not be sent.
+	 */
+	void release(long key) {
+		keys.remove(key);
+	}
+
+	/**
+	 * @return the number of duplicates suppressed
+	 */
+	public long getSuppressedCount() {
+		return suppressed.get();
+	}
+
+	public long getWindowMillis() {
+		return keys.getWindowMillis();
+	}
+
+	/**
+	 * @return the key identifying <tt>message</tt>
+	 */
+	static long key(SimpleMailMessage message) {
+		if (message instanceof PostmarkMessage) {
+			String idempotencyKey = ((PostmarkMessage) message).getIdempotencyKey();
+			if (idempotencyKey != null)
+				return hash(KEY_OFFSET, idempotencyKey);
+		}
+		long h;
+		if (message instanceof FrozenMessage.Message) {
+			FrozenMessage.Message frozen = (FrozenMessage.Message) message;
+			h = frozen.getFrozenMessage().getContentHash();
+			for (String slot : frozen.getFrozenMessage().getSlots())
+				h = hash(h, frozen.getValue(slot));
+		} else {
+			h = templateHash(message);
+		}
+		h = hash(h, message.getTo());
+		h = hash(h, message.getCc());
+		h = hash(h, message.getBcc());
+		if (message instanceof PostmarkMessage && ((PostmarkMessage) message).getAttachments() != null) {
+			// attachments are identified by name and length, their contents are not read
+			for (Attachment attachment : ((PostmarkMessage) message).getAttachments()) {
+				h = hash(h, attachment.getName());
+				h = hash(h, (int) attachment.getLength());
+				h = hash(h, (int) (attachment.getLength() >>> 32));
+			}
+		}
+		return h;
+	}
+
+	/**
+	 * @return the hash of the fields of <tt>message</tt> but its recipients
+	 */
+	static long templateHash(SimpleMailMessage message) {
+		long h = hash(FNV_OFFSET, message.getFrom());
+		h = hash(h, message.getReplyTo());
+		h = hash(h, message.getSubject());
+		h = hash(h, message.getText());
+		if (message instanceof PostmarkMessage) {
+			h = hash(h, ((PostmarkMessage) message).getHtmlBody());
+			h = hash(h, ((PostmarkMessage) message).getTag());
+		}
+		if (message instanceof PostmarkTemplateMessage) {
+			PostmarkTemplateMessage templateMessage = (PostmarkTemplateMessage) message;
+			h = hash(h, String.valueOf(templateMessage.getTemplateId()));
+			h = hash(h, templateMessage.getTemplateAlias());
+			// the model is identified by its hash code, as computed by its maps and collections
+			h = hash(h, templateMessage.getTemplateModel() != null ? templateMessage.getTemplateModel().hashCode() : 0);
+		}
+		return h;
+	}
+
+	private static long hash(long h, String[] values) {
+		if (values == null)
+			return hash(h, (String) null);
+		for (String value : values)
+			h = hash(h, value);
+		return hash(h, values.length);
+	}
+
+	/**
+	 * FNV-1a of the chars of <tt>value</tt> followed by its length, so that
+	 * consecutive fields cannot be shifted into each other.
+	 */
+	private static long hash(long h, String value) {
+		if (value == null)
+			return hash(h, -1);
+		for (int i = 0, n = value.length(); i < n; i++) {
+			h ^= value.charAt(i);
+			h *= FNV_PRIME;
+		}
+		return hash(h, value.length());
+	}
+
+	private static long hash(long h, int value) {
+		for (int i = 0; i < 32; i += 8) {
+			h ^= (value >>> i) & 0xff;
+			h *= FNV_PRIME;
+		}
+		return h;
+	}
+}
@@ -0,0 +1,370 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+package com.postmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.springframework.mail.MailParseException;
+import org.springframework.mail.SimpleMailMessage;
+
+import com.postmark.util.BufferPool;
+import com.postmark.util.Utf8JsonWriter;
+
+/**
+ * Message pre-encoded once, to be sent to many recipients.
+ * <p>
+ * Freezing a message validates it and encodes its From, Subject, Tag, HtmlBody,
+ * TextBody and ReplyTo fields as JSON bytes. {@link #newMessage(String...)} then
+ * creates cheap per-recipient messages, holding their own To, Cc and Bcc, and values
+ * for the substitution slots of the frozen fields. When sent, the pre-encoded bytes
+ * are copied as they are and only the per-recipient parts are encoded, so that a
+ * large body is escaped once for the whole fan-out.
+ * <p>
+ * Slots are written <tt>${name}</tt> in the Subject, HtmlBody and TextBody, where the
+ * name is made of letters, digits, <tt>_</tt>, <tt>.</tt> and <tt>-</tt>. Every slot
+ * needs a value when the message is sent.
+ * <p>
+ * Per-recipient messages are {@link PostmarkMessage}s, so they can be sent by every
+ * send method of {@link PostmarkMailSender} and by {@link OutboxMailSender}. Their
+ * frozen fields cannot be changed.
+ * <p>
+ * This class is immutable and thread-safe.
+ */
+public class FrozenMessage implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Pattern SLOT = Pattern.compile("\\$\\{([A-Za-z0-9_.\\-]+)\\}");
+
+	/**
+	 * Field encoded as escaped fragments, between which slot values are inserted.
+	 */
+	private static class Field implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		final byte[][] fragments;
+		final String[] slots;
+
+		Field(byte[][] fragments, String[] slots) {
+			this.fragments = fragments;
+			this.slots = slots;
+		}
+
+		void write(Utf8JsonWriter out, Map<String, String> values) throws IOException {
+			out.beginString();
+			for (int i = 0; i < fragments.length; i++) {
+				out.escapedStringPart(fragments[i], 0, fragments[i].length);
+				if (i < slots.length)
+					out.stringPart(values.get(slots[i]));
+			}
+			out.endString();
+		}
+	}
+
+	private final PostmarkMessage template;
+	private final boolean rawUtf8;
+	private final byte[] from;
+	private final Field subject;
+	private final byte[] tag;
+	private final Field htmlBody;
+	private final Field text;
+	private final byte[] replyTo;
+	private final Set<String> slots = new LinkedHashSet<String>();
+	private final long contentHash;
+
+	/**
+	 * Freezes a message escaping all non-ASCII chars.
+	 * 
+	 * @see #FrozenMessage(SimpleMailMessage, boolean)
+	 */
+	public FrozenMessage(SimpleMailMessage template) throws MailParseException {
+		this(template, false);
+	}
+
+	/**
+	 * Freezes a message. Its recipients are ignored.
+	 * 
+	 * @param template the message to freeze, which is copied
+	 * @param rawUtf8 whether non-ASCII chars are encoded as UTF-8 rather than escaped,
+	 * see {@link PostmarkMailSender#setRawUtf8(boolean)}
+	 * @throws MailParseException if a field required by Postmark is missing
+	 */
+	public FrozenMessage(SimpleMailMessage template, boolean rawUtf8) throws MailParseException {
+		if (template instanceof PostmarkTemplateMessage) {
+			throw new MailParseException("Template messages are rendered by Postmark and cannot be frozen");
+		}
+		SimpleMailMessageWriter.validate(template, false);
+		this.template = new PostmarkMessage();
+		this.template.setFrom(template.getFrom());
+		this.template.setSubject(template.getSubject());
+		this.template.setText(template.getText());
+		this.template.setReplyTo(template.getReplyTo());
+		if (template instanceof PostmarkMessage) {
+			this.template.setTag(((PostmarkMessage) template).getTag());
+			this.template.setPriority(((PostmarkMessage) template).getPriority());
+			this.template.setHtmlBody(((PostmarkMessage) template).getHtmlBody());
+		}
+		this.rawUtf8 = rawUtf8;
+		contentHash = DeduplicationWindow.templateHash(this.template);
+
+		byte[] buf = BufferPool.SHARED.acquire();
+		try {
+			from = encodeValue(this.template.getFrom(), buf);
+			subject = encodeField(this.template.getSubject(), buf);
+			tag = encodeValue(this.template.getTag(), buf);
+			htmlBody = encodeField(this.template.getHtmlBody(), buf);
+			text = encodeField(this.template.getText(), buf);
+			replyTo = encodeValue(this.template.getReplyTo(), buf);
+		} catch (IOException ioe) {
+			throw new IllegalStateException("In-memory writer cannot fail", ioe);
+		} finally {
+			BufferPool.SHARED.release(buf);
+		}
+	}
+
+	/**
+	 * @return the names of the substitution slots, in order of appearance
+	 */
+	public Set<String> getSlots() {
+		return Collections.unmodifiableSet(slots);
+	}
+
+	/**
+	 * @return the hash of the frozen fields, see {@link DeduplicationWindow}
+	 */
+	long getContentHash() {
+		return contentHash;
+	}
+
+	/**
+	 * @param to the recipients of the message
+	 * @return a new message to the given recipients, sharing the frozen fields
+	 */
+	public Message newMessage(String... to) {
+		Message message = new Message();
+		message.setTo(to);
+		message.setPriority(template.getPriority());
+		return message;
+	}
+
+	/**
+	 * @return the JSON string value, quotes included, or <tt>null</tt>
+	 */
+	private byte[] encodeValue(String value, byte[] buf) throws IOException {
+		if (value == null)
+			return null;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Utf8JsonWriter out = new Utf8JsonWriter(bytes, buf, rawUtf8);
+		out.value(value);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private Field encodeField(String value, byte[] buf) throws IOException {
+		if (value == null)
+			return null;
+		List<byte[]> fragments = new ArrayList<byte[]>();
+		List<String> fieldSlots = new ArrayList<String>();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Utf8JsonWriter out = new Utf8JsonWriter(bytes, buf, rawUtf8);
+		Matcher matcher = SLOT.matcher(value);
+		int start = 0;
+		while (matcher.find()) {
+			out.stringPart(value.substring(start, matcher.start()));
+			out.flush();
+			fragments.add(bytes.toByteArray());
+			bytes.reset();
+			fieldSlots.add(matcher.group(1));
+			start = matcher.end();
+		}
+		out.stringPart(value.substring(start));
+		out.flush();
+		fragments.add(bytes.toByteArray());
+		slots.addAll(fieldSlots);
+		return new Field(fragments.toArray(new byte[fragments.size()][]), fieldSlots.toArray(new String[fieldSlots.size()]));
+	}
+
+	/**
+	 * Message to some recipients, sharing the frozen fields of its {@link FrozenMessage}.
+	 * Setting a frozen field throws an {@link UnsupportedOperationException}.
+	 */
+	public class Message extends PostmarkMessage {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Map<String, String> values = new HashMap<String, String>();
+
+		Message() {
+		}
+
+		/**
+		 * Sets the value of a substitution slot.
+		 * 
+		 * @return this message
+		 */
+		public Message setValue(String slot, String value) {
+			values.put(slot, value);
+			return this;
+		}
+
+		public String getValue(String slot) {
+			return values.get(slot);
+		}
+
+		/**
+		 * @return the frozen message this message comes from
+		 */
+		public FrozenMessage getFrozenMessage() {
+			return FrozenMessage.this;
+		}
+
+		void checkValues() throws MailParseException {
+			for (String slot : slots) {
+				if (values.get(slot) == null)
+					throw new MailParseException("You must specify a value for slot " + slot);
+			}
+		}
+
+		void write(Utf8JsonWriter out) throws IOException {
+			out.beginObject();
+			out.name("From").rawValue(from, 0, from.length);
+			out.name("To").value(getTo(), ',');
+			if (getCc() != null) {
+				out.name("Cc").value(getCc(), ',');
+			}
+			if (getBcc() != null) {
+				out.name("Bcc").value(getBcc(), ',');
+			}
+			out.name("Subject");
+			subject.write(out, values);
+			if (tag != null) {
+				out.name("Tag").rawValue(tag, 0, tag.length);
+			}
+			if (htmlBody != null) {
+				out.name("HtmlBody");
+				htmlBody.write(out, values);
+			}
+			if (text != null) {
+				out.name("TextBody");
+				text.write(out, values);
+			}
+			if (replyTo != null) {
+				out.name("ReplyTo").rawValue(replyTo, 0, replyTo.length);
+			}
+			SimpleMailMessageWriter.writeAttachments(getAttachments(), out);
+			out.endObject();
+		}
+
+		@Override
+		public String getFrom() {
+			return template.getFrom();
+		}
+
+		@Override
+		public String getSubject() {
+			return template.getSubject();
+		}
+
+		@Override
+		public String getText() {
+			return template.getText();
+		}
+
+		@Override
+		public String getReplyTo() {
+			return template.getReplyTo();
+		}
+
+		@Override
+		public String getTag() {
+			return template.getTag();
+		}
+
+		@Override
+		public String getHtmlBody() {
+			return template.getHtmlBody();
+		}
+
+		@Override
+		public void setFrom(String from) {
+			throw new UnsupportedOperationException("From is frozen");
+		}
+
+		@Override
+		public void setSubject(String subject) {
+			throw new UnsupportedOperationException("Subject is frozen");
+		}
+
+		@Override
+		public void setText(String text) {
+			throw new UnsupportedOperationException("Text is frozen");
+		}
+
+		@Override
+		public void setReplyTo(String replyTo) {
+			throw new UnsupportedOperationException("ReplyTo is frozen");
+		}
+
+		@Override
+		public void setTag(String tag) {
+			throw new UnsupportedOperationException("Tag is frozen");
+		}
+
+		@Override
+		public void setHtmlBody(String htmlBody) {
+			throw new UnsupportedOperationException("HtmlBody is frozen");
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Message) || !super.equals(other))
+				return false;
+			Message message = (Message) other;
+			return getFrozenMessage() == message.getFrozenMessage() && values.equals(message.values);
+		}
+
+		@Override
+		public int hashCode() {
+			return super.hashCode() * 31 + values.hashCode();
+		}
+	}
+}
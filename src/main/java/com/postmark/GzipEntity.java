@@ -0,0 +1,162 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+package com.postmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHeader;
+
+import com.postmark.util.BufferPool;
+import com.postmark.util.DeflaterPool;
+
+/**
+ * Request entity compressing the wrapped entity in the gzip format while it is
+ * streamed, with pooled deflaters and buffers.
+ * <p>
+ * The compressed length is not known in advance, so the entity is sent chunked.
+ */
+class GzipEntity extends HttpEntityWrapper {
+
+	/** Gzip header: magic, deflate method, no flags, no time, unknown OS. */
+	private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+	private final DeflaterPool deflaters;
+
+	GzipEntity(HttpEntity entity, DeflaterPool deflaters) {
+		super(entity);
+		this.deflaters = deflaters;
+	}
+
+	@Override
+	public Header getContentEncoding() {
+		return new BasicHeader("Content-Encoding", "gzip");
+	}
+
+	@Override
+	public long getContentLength() {
+		return -1;
+	}
+
+	@Override
+	public boolean isChunked() {
+		return true;
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		writeTo(bytes);
+		return new ByteArrayInputStream(bytes.toByteArray());
+	}
+
+	@Override
+	public void writeTo(OutputStream outstream) throws IOException {
+		if (outstream == null)
+			throw new IllegalArgumentException("Output stream may not be null");
+		Deflater deflater = deflaters.acquire();
+		byte[] buf = BufferPool.SHARED.acquire();
+		try {
+			outstream.write(HEADER);
+			DeflatingStream deflating = new DeflatingStream(outstream, deflater, buf);
+			wrappedEntity.writeTo(deflating);
+			deflating.finish();
+			outstream.flush();
+		} finally {
+			BufferPool.SHARED.release(buf);
+			deflaters.release(deflater);
+		}
+	}
+
+	/**
+	 * Stream compressing its input to the deflate format, and writing the gzip
+	 * trailer on {@link #finish()}. Closing it does not close the underlying stream.
+	 */
+	private static class DeflatingStream extends OutputStream {
+		private final OutputStream out;
+		private final Deflater deflater;
+		private final byte[] buf;
+		private final CRC32 crc = new CRC32();
+		private long size;
+
+		DeflatingStream(OutputStream out, Deflater deflater, byte[] buf) {
+			this.out = out;
+			this.deflater = deflater;
+			this.buf = buf;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return;
+			crc.update(b, off, len);
+			size += len;
+			deflater.setInput(b, off, len);
+			while (!deflater.needsInput())
+				deflate();
+		}
+
+		void finish() throws IOException {
+			deflater.finish();
+			while (!deflater.finished())
+				deflate();
+			writeInt((int) crc.getValue());
+			writeInt((int) size);
+		}
+
+		private void deflate() throws IOException {
+			int n = deflater.deflate(buf, 0, buf.length);
+			if (n > 0)
+				out.write(buf, 0, n);
+		}
+
+		private void writeInt(int v) throws IOException {
+			// little-endian, as gzip requires
+			out.write(v & 0xff);
+			out.write((v >>> 8) & 0xff);
+			out.write((v >>> 16) & 0xff);
+			out.write((v >>> 24) & 0xff);
+		}
+	}
+}
@@ -0,0 +1,250 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+
+package com.postmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.postmark.util.LatencyHistogram;
+
+/**
+ * Policy hedging single sends: when a send has no response after a delay, a second
+ * attempt is made and the first response wins.
+ * <p>
+ * The delay is the {@link #getPercentile() percentile} of the latencies of the sends
+ * hedged by this policy, kept within {@link #getMinDelayMillis()} and
+ * {@link #getMaxDelayMillis()}, so that only the slowest sends are hedged.
+ * <p>
+ * Postmark has no idempotency key: a message posted twice is delivered twice. By
+ * default, a send is hedged only while its request body has not been fully written,
+ * which covers a slow connection setup or a stalled pooled connection: the first
+ * attempt is aborted, and Postmark cannot have accepted its truncated body. With
+ * {@link #setDuplicatesAllowed(boolean) duplicates allowed}, both attempts race and
+ * the slower one is aborted, which also covers a slow response, at the risk of
+ * delivering the message twice.
+ * <p>
+ * Hedges are limited by a budget shared by all the sends of a policy: each send earns
+ * {@link #getBudgetRatio()} hedge, up to {@link #getBudgetCapacity()}, and each hedge
+ * spends one. When Postmark slows down as a whole, hedges thus add at most this ratio
+ * to the load.
+ * <p>
+ * This class is thread-safe, and its setters must be called before it is used.
+ */
+public class HedgePolicy {
+
+	/** Default percentile of the latencies used as the hedge delay. */
+	public static final double DEFAULT_PERCENTILE = 0.95;
+	/** Default lower bound of the hedge delay. */
+	public static final long DEFAULT_MIN_DELAY_MILLIS = 10;
+	/** Default upper bound of the hedge delay, also used until there are enough samples. */
+	public static final long DEFAULT_MAX_DELAY_MILLIS = 2000;
+	/** Default number of latency samples needed before the percentile is used. */
+	public static final int DEFAULT_MIN_SAMPLES = 100;
+	/** Default number of hedges earned by a send. */
+	public static final double DEFAULT_BUDGET_RATIO = 0.1;
+	/** Default maximum number of hedges in the budget. */
+	public static final int DEFAULT_BUDGET_CAPACITY = 20;
+
+	/** Budget tokens are counted in thousandths of hedge. */
+	private static final long TOKEN = 1000;
+	/** The delay is computed again at most this often. */
+	private static final long DELAY_REFRESH_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private double percentile = DEFAULT_PERCENTILE;
+	private long minDelayMillis = DEFAULT_MIN_DELAY_MILLIS;
+	private long maxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+	private int minSamples = DEFAULT_MIN_SAMPLES;
+	private boolean duplicatesAllowed;
+	private double budgetRatio = DEFAULT_BUDGET_RATIO;
+	private int budgetCapacity = DEFAULT_BUDGET_CAPACITY;
+
+	private final LatencyHistogram latencies = new LatencyHistogram();
+	private final AtomicLong budget = new AtomicLong(DEFAULT_BUDGET_CAPACITY * TOKEN);
+	private final AtomicLong hedgeCount = new AtomicLong();
+	private final AtomicLong hedgeWinCount = new AtomicLong();
+	private volatile long delayNanos = -1;
+	private volatile long delayComputedAt;
+
+	/**
+	 * Records a send, which adds to the hedge budget.
+	 */
+	void onSend() {
+		long earned = (long) (budgetRatio * TOKEN);
+		long capacity = budgetCapacity * TOKEN;
+		while (true) {
+			long current = budget.get();
+			if (current >= capacity || budget.compareAndSet(current, Math.min(current + earned, capacity)))
+				return;
+		}
+	}
+
+	/**
+	 * Spends a hedge from the budget.
+	 * 
+	 * @return whether the budget allowed the hedge
+	 */
+	boolean tryHedge() {
+		while (true) {
+			long current = budget.get();
+			if (current < TOKEN)
+				return false;
+			if (budget.compareAndSet(current, current - TOKEN)) {
+				hedgeCount.incrementAndGet();
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Records the latency of a send which got a response.
+	 */
+	void record(long nanos) {
+		latencies.record(nanos);
+	}
+
+	/**
+	 * Records a send answered by its second attempt.
+	 */
+	void onHedgeWon() {
+		hedgeWinCount.incrementAndGet();
+	}
+
+	/**
+	 * @return the delay after which a send is hedged, in nanoseconds
+	 */
+	long getDelayNanos() {
+		long now = System.nanoTime();
+		long delay = delayNanos;
+		if (delay >= 0 && now - delayComputedAt < DELAY_REFRESH_NANOS)
+			return delay;
+		long max = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+		delay = latencies.getCount() < minSamples ? max
+				: Math.max(TimeUnit.MILLISECONDS.toNanos(minDelayMillis), Math.min(latencies.getPercentile(percentile), max));
+		delayComputedAt = now;
+		delayNanos = delay;
+		return delay;
+	}
+
+	/**
+	 * @return the number of second attempts made
+	 */
+	public long getHedgeCount() {
+		return hedgeCount.get();
+	}
+
+	/**
+	 * @return the number of sends answered by their second attempt
+	 */
+	public long getHedgeWinCount() {
+		return hedgeWinCount.get();
+	}
+
+	/**
+	 * @param percentile the percentile of the send latencies used as the hedge delay, between 0 and 1
+	 */
+	public void setPercentile(double percentile) {
+		this.percentile = percentile;
+	}
+
+	public double getPercentile() {
+		return percentile;
+	}
+
+	/**
+	 * @param minDelayMillis the lower bound of the hedge delay
+	 */
+	public void setMinDelayMillis(long minDelayMillis) {
+		this.minDelayMillis = minDelayMillis;
+	}
+
+	public long getMinDelayMillis() {
+		return minDelayMillis;
+	}
+
+	/**
+	 * @param maxDelayMillis the upper bound of the hedge delay, also used until there
+	 * are {@link #getMinSamples()} latency samples
+	 */
+	public void setMaxDelayMillis(long maxDelayMillis) {
+		this.maxDelayMillis = maxDelayMillis;
+	}
+
+	public long getMaxDelayMillis() {
+		return maxDelayMillis;
+	}
+
+	/**
+	 * @param minSamples the number of latency samples needed before the percentile is used
+	 */
+	public void setMinSamples(int minSamples) {
+		this.minSamples = minSamples;
+	}
+
+	public int getMinSamples() {
+		return minSamples;
+	}
+
+	/**
+	 * @param duplicatesAllowed whether a send whose request body was fully written may
+	 * be hedged, at the risk of delivering the message twice. Default <tt>false</tt>.
+	 */
+	public void setDuplicatesAllowed(boolean duplicatesAllowed) {
+		this.duplicatesAllowed = duplicatesAllowed;
+	}
+
+	public boolean isDuplicatesAllowed() {
+		return duplicatesAllowed;
+	}
+
+	/**
+	 * @param budgetRatio the number of hedges earned by each send
+	 */
+	public void setBudgetRatio(double budgetRatio) {
+		this.budgetRatio = budgetRatio;
+	}
+
+	public double getBudgetRatio() {
+		return budgetRatio;
+	}
+
+	/**
+	 * @param budgetCapacity the maximum number of hedges in the budget, which starts full
+	 */
+	public void setBudgetCapacity(int budgetCapacity) {
+		this.budgetCapacity = budgetCapacity;
+		budget.set(budgetCapacity * TOKEN);
+	}
+
+	public int getBudgetCapacity() {
+		return budgetCapacity;
+	}
+}
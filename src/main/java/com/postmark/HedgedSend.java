@@ -0,0 +1,215 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+
+package com.postmark;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.postmark.PostmarkMailSender.PostmarkResponse;
+
+/**
+ * Single send making a second attempt when the first one is slow to answer.
+ * 
+ * @see HedgePolicy
+ */
+final class HedgedSend implements Runnable {
+
+	/**
+	 * Posts one attempt of the message.
+	 */
+	interface Sender {
+		PostmarkResponse send(Attempt attempt) throws IOException;
+	}
+
+	private final Sender sender;
+	private final long deadline;
+	private final HedgePolicy policy;
+	private final ScheduledExecutorService timer;
+	private final Executor hedgeExecutor;
+	private final Attempt first;
+	private Attempt second;
+	/** Whether an attempt won, after which the other one is aborted. */
+	private boolean done;
+	private boolean secondDone;
+	private PostmarkResponse secondResponse;
+	private Exception secondFailure;
+
+	/**
+	 * @param sender the sender of each attempt
+	 * @param deadline the deadline of the send, see {@link Attempt#deadline(long)}
+	 * @param policy the policy deciding on the second attempt
+	 * @param timer the executor starting the second attempt after the hedge delay
+	 * @param hedgeExecutor the executor of the second attempt
+	 */
+	HedgedSend(Sender sender, long deadline, HedgePolicy policy, ScheduledExecutorService timer, Executor hedgeExecutor) {
+		this.sender = sender;
+		this.deadline = deadline;
+		this.policy = policy;
+		this.timer = timer;
+		this.hedgeExecutor = hedgeExecutor;
+		this.first = new Attempt(deadline);
+	}
+
+	PostmarkResponse send() throws IOException {
+		policy.onSend();
+		long start = System.nanoTime();
+		ScheduledFuture<?> hedge = timer.schedule(this, policy.getDelayNanos(), TimeUnit.NANOSECONDS);
+		Exception failure;
+		try {
+			PostmarkResponse response = sender.send(first);
+			policy.record(System.nanoTime() - start);
+			if (firstWins())
+				return response;
+			failure = null;
+		} catch (IOException ioe) {
+			failure = ioe;
+		} catch (RuntimeException re) {
+			failure = re;
+		} finally {
+			hedge.cancel(false);
+		}
+		if (failure != null && first.isCancelled() && !policy.isDuplicatesAllowed()) {
+			// the first attempt was aborted before Postmark got its whole body
+			PostmarkResponse response = sender.send(new Attempt(deadline));
+			policy.onHedgeWon();
+			return response;
+		}
+		if (failure != null && !awaitSecond(failure))
+			throw rethrow(failure);
+		return secondResult();
+	}
+
+	/**
+	 * Starts the second attempt, once the hedge delay has passed.
+	 */
+	@Override
+	public void run() {
+		if (!policy.isDuplicatesAllowed()) {
+			if (!first.isWritten() && policy.tryHedge())
+				first.abortUnwritten();
+			return;
+		}
+		synchronized (this) {
+			if (done || !policy.tryHedge())
+				return;
+			second = new Attempt(deadline);
+		}
+		try {
+			hedgeExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					sendSecond();
+				}
+			});
+		} catch (RuntimeException re) {
+			onSecondDone(null, re);
+		}
+	}
+
+	private void sendSecond() {
+		try {
+			onSecondDone(sender.send(second), null);
+		} catch (Exception e) {
+			onSecondDone(null, e);
+		}
+	}
+
+	private synchronized void onSecondDone(PostmarkResponse response, Exception failure) {
+		secondDone = true;
+		secondResponse = response;
+		secondFailure = failure;
+		if (response != null && !done) {
+			done = true;
+			first.abort();
+			policy.onHedgeWon();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * @return whether the response of the first attempt wins, else the second one answered first
+	 */
+	private synchronized boolean firstWins() {
+		if (done)
+			return false;
+		done = true;
+		if (second != null)
+			second.abort();
+		return true;
+	}
+
+	/**
+	 * @return whether the outcome is the one of the second attempt, else the failure
+	 * of the first one is final
+	 */
+	private synchronized boolean awaitSecond(Exception failure) {
+		if (done)
+			return true;
+		if (second == null || (!first.isCancelled() && !RetryPolicy.isTransient(failure))) {
+			done = true;
+			if (second != null)
+				second.abort();
+			return false;
+		}
+		return true;
+	}
+
+	private PostmarkResponse secondResult() throws IOException {
+		synchronized (this) {
+			try {
+				while (!secondDone)
+					wait();
+			} catch (InterruptedException ie) {
+				second.abort();
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for a hedged attempt");
+			}
+		}
+		if (secondResponse != null)
+			return secondResponse;
+		throw rethrow(secondFailure);
+	}
+
+	/**
+	 * @return <tt>failure</tt>, thrown if it is an {@link IOException}
+	 * @throws IOException <tt>failure</tt>
+	 */
+	private static RuntimeException rethrow(Exception failure) throws IOException {
+		if (failure instanceof IOException)
+			throw (IOException) failure;
+		return (RuntimeException) failure;
+	}
+}
@@ -0,0 +1,87 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+
+package com.postmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.conn.ClientConnectionManager;
+
+/**
+ * Daemon thread periodically closing expired and idle connections of a pooled
+ * {@link ClientConnectionManager}.
+ * <p>
+ * A pooled connection can be half-closed by the server while it sits in the pool,
+ * which HttpClient only notices when the connection is leased again. Evicting them
+ * in the background keeps stale connections from failing real requests.
+ */
+class IdleConnectionEvictor extends Thread {
+
+	private final ClientConnectionManager connectionManager;
+	private final long intervalMillis;
+	private final long idleTimeoutMillis;
+	private volatile boolean shutdown;
+
+	IdleConnectionEvictor(ClientConnectionManager connectionManager, long intervalMillis, long idleTimeoutMillis) {
+		super("postmark-idle-connection-evictor");
+		setDaemon(true);
+		this.connectionManager = connectionManager;
+		this.intervalMillis = intervalMillis;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!shutdown) {
+				synchronized (this) {
+					wait(intervalMillis);
+				}
+				if (shutdown)
+					break;
+				connectionManager.closeExpiredConnections();
+				connectionManager.closeIdleConnections(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+			}
+		} catch (InterruptedException ie) {
+			// terminate
+		}
+	}
+
+	/**
+	 * Stops this thread. Does not shut the connection manager down.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		synchronized (this) {
+			notifyAll();
+		}
+	}
+}
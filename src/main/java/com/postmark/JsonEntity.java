@@ -0,0 +1,229 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+
+package com.postmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.springframework.mail.SimpleMailMessage;
+
+import com.postmark.util.Utf8JsonWriter;
+import com.postmark.util.BufferPool;
+
+/**
+ * Repeatable request entity streaming its JSON content straight to the connection,
+ * through a pooled buffer.
+ */
+class JsonEntity extends AbstractHttpEntity {
+
+	/**
+	 * Content of a JSON entity, written on demand.
+	 */
+	interface Content {
+		void writeTo(Utf8JsonWriter out) throws IOException;
+	}
+
+	/** Length of the object wrapping the array of a template batch: <tt>{"Messages":}</tt>. */
+	static final int TEMPLATE_BATCH_OVERHEAD = 13;
+
+	private final Content content;
+	private final boolean rawUtf8;
+	private long length;
+	private volatile long escapeNanos;
+
+	/**
+	 * @param content the JSON content
+	 * @param rawUtf8 whether non-ASCII chars are encoded as UTF-8 rather than escaped
+	 * @param length the length in bytes of the content, or <tt>-1</tt> to compute it when needed
+	 */
+	JsonEntity(Content content, boolean rawUtf8, long length) {
+		this.content = content;
+		this.rawUtf8 = rawUtf8;
+		this.length = length;
+		setContentType("application/json; charset=utf-8");
+	}
+
+	/**
+	 * @param message a validated message
+	 * @param rawUtf8 whether non-ASCII chars are encoded as UTF-8 rather than escaped
+	 * @return an entity holding the message
+	 */
+	static JsonEntity forMessage(final SimpleMailMessage message, boolean rawUtf8) {
+		return new JsonEntity(new Content() {
+			@Override
+			public void writeTo(Utf8JsonWriter out) throws IOException {
+				SimpleMailMessageWriter.write(message, out);
+			}
+		}, rawUtf8, -1);
+	}
+
+	/**
+	 * @param messages validated messages
+	 * @param rawUtf8 whether non-ASCII chars are encoded as UTF-8 rather than escaped
+	 * @param length the sum of the lengths of the messages, as computed by
+	 * {@link SimpleMailMessageWriter#length(SimpleMailMessage, boolean)}
+	 * @return an entity holding a JSON array of the messages
+	 */
+	static JsonEntity forBatch(final List<? extends SimpleMailMessage> messages, boolean rawUtf8, long length) {
+		return new JsonEntity(new Content() {
+			@Override
+			public void writeTo(Utf8JsonWriter out) throws IOException {
+				out.beginArray();
+				for (SimpleMailMessage message : messages)
+					SimpleMailMessageWriter.write(message, out);
+				out.endArray();
+			}
+		}, rawUtf8, length + messages.size() + 1);
+	}
+
+	/**
+	 * @param messages validated template messages
+	 * @param rawUtf8 whether non-ASCII chars are encoded as UTF-8 rather than escaped
+	 * @param length the sum of the lengths of the messages, as computed by
+	 * {@link SimpleMailMessageWriter#length(SimpleMailMessage, boolean)}
+	 * @return an entity holding the messages as expected by <tt>/email/batchWithTemplates</tt>
+	 */
+	static JsonEntity forTemplateBatch(final List<? extends SimpleMailMessage> messages, boolean rawUtf8, long length) {
+		return new JsonEntity(new Content() {
+			@Override
+			public void writeTo(Utf8JsonWriter out) throws IOException {
+				out.beginObject().name("Messages").beginArray();
+				for (SimpleMailMessage message : messages)
+					SimpleMailMessageWriter.write(message, out);
+				out.endArray().endObject();
+			}
+		}, rawUtf8, length + messages.size() + 1 + TEMPLATE_BATCH_OVERHEAD);
+	}
+
+	/**
+	 * @param messages messages encoded by {@link SimpleMailMessageWriter#encode(SimpleMailMessage, boolean)}
+	 * @return an entity holding a JSON array of the messages
+	 */
+	static JsonEntity forEncoded(final List<byte[]> messages) {
+		long length = messages.size() + 1;
+		for (byte[] message : messages)
+			length += message.length;
+		return new JsonEntity(new Content() {
+			@Override
+			public void writeTo(Utf8JsonWriter out) throws IOException {
+				out.beginArray();
+				for (byte[] message : messages)
+					out.rawValue(message, 0, message.length);
+				out.endArray();
+			}
+		}, false, length);
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return false;
+	}
+
+	@Override
+	public long getContentLength() {
+		if (length < 0) {
+			try {
+				length = write(null);
+			} catch (IOException ioe) {
+				throw new IllegalStateException("Counting writer cannot fail", ioe);
+			}
+		}
+		return length;
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.max(getContentLength(), 32));
+		writeTo(bytes);
+		return new ByteArrayInputStream(bytes.toByteArray());
+	}
+
+	@Override
+	public void writeTo(OutputStream outstream) throws IOException {
+		if (outstream == null)
+			throw new IllegalArgumentException("Output stream may not be null");
+		write(outstream);
+		outstream.flush();
+	}
+
+	/**
+	 * @return the JSON content with the attachment contents replaced by their length,
+	 * which reads no attachment
+	 */
+	String toSummary() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buf = BufferPool.SHARED.acquire();
+		try {
+			Utf8JsonWriter out = Utf8JsonWriter.summarizing(bytes, buf, rawUtf8);
+			content.writeTo(out);
+			out.flush();
+			return bytes.toString("UTF-8");
+		} catch (IOException ioe) {
+			throw new IllegalStateException("In-memory writer cannot fail", ioe);
+		} finally {
+			BufferPool.SHARED.release(buf);
+		}
+	}
+
+	/**
+	 * @return the time spent escaping strings during the last {@link #writeTo(OutputStream)}
+	 */
+	long getEscapeNanos() {
+		return escapeNanos;
+	}
+
+	private long write(OutputStream outstream) throws IOException {
+		byte[] buf = BufferPool.SHARED.acquire();
+		try {
+			Utf8JsonWriter out = new Utf8JsonWriter(outstream, buf, rawUtf8);
+			if (outstream != null)
+				out.timeEscapes();
+			content.writeTo(out);
+			out.flush();
+			if (outstream != null)
+				escapeNanos = out.getEscapeNanos();
+			return out.getCount();
+		} finally {
+			BufferPool.SHARED.release(buf);
+		}
+	}
+}
@@ -0,0 +1,232 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+
+package com.postmark;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.springframework.mail.MailParseException;
+import org.springframework.mail.MailPreparationException;
+
+/**
+ * Iterator of the messages of a mail merge: a {@link FrozenMessage} sent to each row
+ * of a CSV file, read one row at a time.
+ * <p>
+ * The first row names the columns. The <tt>To</tt> column, and the optional
+ * <tt>Cc</tt> and <tt>Bcc</tt> columns, give the recipients of each message, and
+ * every column gives the value of the substitution slot of the same name. Each slot
+ * of the frozen message needs a column.
+ * <p>
+ * Fields are separated by commas, and may be quoted with double quotes to hold commas,
+ * line breaks or doubled double quotes, as in RFC 4180. Blank lines are skipped.
+ * <p>
+ * Meant to be sent with {@link BulkSender}, which pulls the rows as the batches are
+ * sent. This class is not thread-safe.
+ */
+public class MailMerge implements Iterator<FrozenMessage.Message>, Closeable {
+
+	private final FrozenMessage template;
+	private final Reader reader;
+	private final String[] columns;
+	private int toColumn = -1;
+	private int ccColumn = -1;
+	private int bccColumn = -1;
+
+	private int line = 1;
+	private long rowCount;
+	private List<String> next;
+	private boolean eof;
+
+	/**
+	 * Reads the rows of a UTF-8 CSV file.
+	 * 
+	 * @see #MailMerge(FrozenMessage, Reader)
+	 */
+	public MailMerge(FrozenMessage template, File csv) throws IOException {
+		this(template, new InputStreamReader(new FileInputStream(csv), "UTF-8"));
+	}
+
+	/**
+	 * Reads the header row.
+	 * 
+	 * @param template the message sent to each row
+	 * @param csv the CSV rows, closed by {@link #close()}
+	 * @throws MailParseException if the header has no <tt>To</tt> column or misses a
+	 * column for a slot of <tt>template</tt>
+	 */
+	public MailMerge(FrozenMessage template, Reader csv) throws IOException {
+		this.template = template;
+		this.reader = csv instanceof BufferedReader ? csv : new BufferedReader(csv);
+		List<String> header = readRow();
+		if (header == null)
+			throw new MailParseException("The CSV has no header row");
+		// byte order mark of CSV files saved as UTF-8 by spreadsheets
+		if (header.get(0).startsWith("\uFEFF"))
+			header.set(0, header.get(0).substring(1));
+		columns = header.toArray(new String[header.size()]);
+		for (int i = 0; i < columns.length; i++) {
+			if ("To".equalsIgnoreCase(columns[i]))
+				toColumn = i;
+			else if ("Cc".equalsIgnoreCase(columns[i]))
+				ccColumn = i;
+			else if ("Bcc".equalsIgnoreCase(columns[i]))
+				bccColumn = i;
+		}
+		if (toColumn < 0)
+			throw new MailParseException("The CSV has no To column");
+		for (String slot : template.getSlots()) {
+			if (!header.contains(slot))
+				throw new MailParseException("The CSV has no column for slot " + slot);
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (next == null && !eof) {
+			try {
+				next = readRow();
+			} catch (IOException ioe) {
+				throw new MailPreparationException("Could not read the CSV at line " + line, ioe);
+			}
+			eof = next == null;
+		}
+		return next != null;
+	}
+
+	/**
+	 * @throws MailParseException if the row does not have as many fields as the header
+	 */
+	@Override
+	public FrozenMessage.Message next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		List<String> row = next;
+		next = null;
+		rowCount++;
+		if (row.size() != columns.length)
+			throw new MailParseException("Row " + rowCount + " has " + row.size()
+					+ " fields, the header has " + columns.length);
+		FrozenMessage.Message message = template.newMessage(row.get(toColumn));
+		if (ccColumn >= 0 && row.get(ccColumn).length() > 0)
+			message.setCc(row.get(ccColumn));
+		if (bccColumn >= 0 && row.get(bccColumn).length() > 0)
+			message.setBcc(row.get(bccColumn));
+		for (int i = 0; i < columns.length; i++)
+			message.setValue(columns[i], row.get(i));
+		return message;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * @return the number of rows returned so far, header excluded
+	 */
+	public long getRowCount() {
+		return rowCount;
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	/**
+	 * @return the fields of the next non-blank row, or <tt>null</tt> at the end of the CSV
+	 */
+	private List<String> readRow() throws IOException {
+		List<String> row = new ArrayList<String>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		boolean wasQuoted = false;
+		int startLine = line;
+		while (true) {
+			int c = reader.read();
+			if (c < 0) {
+				if (quoted)
+					throw new MailParseException("Unterminated quoted field at line " + startLine);
+				if (row.isEmpty() && field.length() == 0 && !wasQuoted)
+					return null;
+				row.add(field.toString());
+				return row;
+			}
+			if (quoted) {
+				if (c == '"') {
+					reader.mark(1);
+					if (reader.read() == '"') {
+						field.append('"');
+					} else {
+						reader.reset();
+						quoted = false;
+					}
+				} else {
+					if (c == '\n')
+						line++;
+					field.append((char) c);
+				}
+			} else if (c == '"' && field.length() == 0 && !wasQuoted) {
+				quoted = true;
+				wasQuoted = true;
+			} else if (c == ',') {
+				row.add(field.toString());
+				field.setLength(0);
+				wasQuoted = false;
+			} else if (c == '\n' || c == '\r') {
+				if (c == '\r') {
+					reader.mark(1);
+					if (reader.read() != '\n')
+						reader.reset();
+				}
+				line++;
+				if (row.isEmpty() && field.length() == 0 && !wasQuoted) {
+					startLine = line;
+					continue;
+				}
+				row.add(field.toString());
+				return row;
+			} else {
+				field.append((char) c);
+			}
+		}
+	}
+}
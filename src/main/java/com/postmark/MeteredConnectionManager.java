@@ -0,0 +1,84 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+package com.postmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.HttpParams;
+
+import com.postmark.SenderMetrics.Phase;
+
+/**
+ * Pooling connection manager timing connection leases and counting leased
+ * connections in {@link SenderMetrics}.
+ */
+class MeteredConnectionManager extends ThreadSafeClientConnManager {
+
+	private final SenderMetrics metrics;
+
+	MeteredConnectionManager(HttpParams params, SchemeRegistry schemeRegistry, SenderMetrics metrics) {
+		super(params, schemeRegistry);
+		this.metrics = metrics;
+	}
+
+	@Override
+	public ClientConnectionRequest requestConnection(HttpRoute route, Object state) {
+		final ClientConnectionRequest request = super.requestConnection(route, state);
+		return new ClientConnectionRequest() {
+			@Override
+			public ManagedClientConnection getConnection(long timeout, TimeUnit unit)
+					throws InterruptedException, ConnectionPoolTimeoutException {
+				long start = System.nanoTime();
+				ManagedClientConnection connection = request.getConnection(timeout, unit);
+				metrics.record(Phase.LEASE, System.nanoTime() - start);
+				metrics.onLease();
+				return connection;
+			}
+
+			@Override
+			public void abortRequest() {
+				request.abortRequest();
+			}
+		};
+	}
+
+	@Override
+	public void releaseConnection(ManagedClientConnection connection, long validDuration, TimeUnit timeUnit) {
+		metrics.onRelease();
+		super.releaseConnection(connection, validDuration, timeUnit);
+	}
+}
@@ -0,0 +1,416 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+
+package com.postmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.mail.MailException;
+import org.springframework.mail.MailParseException;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.MailSender;
+import org.springframework.mail.SimpleMailMessage;
+
+import com.postmark.PostmarkMailSender.PostmarkResponse;
+import com.postmark.PostmarkMailSender.PostmarkResponseStatus;
+import com.postmark.util.DaemonThreadFactory;
+import com.postmark.util.SegmentedJournal;
+import com.postmark.util.SegmentedJournal.Record;
+
+/**
+ * MailSender buffering messages in a durable on-disk outbox, delivered in the
+ * background through a {@link PostmarkMailSender}.
+ * <p>
+ * {@link #send(SimpleMailMessage)} validates and encodes the message, appends it to a
+ * {@link SegmentedJournal} and returns without waiting for Postmark. Drain threads
+ * post the journal contents in batches and acknowledge the delivered messages. When
+ * a batch fails as a request, e.g. Postmark cannot be reached or the server token is
+ * refused, it is retried until it is delivered, so that an outage or a configuration
+ * error only delays messages. Messages Postmark returns no result for are posted again.
+ * <p>
+ * A batch whose contents Postmark refuses as a whole, with a 422 status, is posted
+ * again message by message to find the faulty ones. Only the messages Postmark
+ * rejects with an error code of their own are logged and dropped.
+ * <p>
+ * Messages still in the outbox when the process stops, or crashes, are delivered
+ * when an outbox is started again on the same directory. Delivery is at least once:
+ * a message posted right before a crash may be sent twice.
+ * <p>
+ * {@link PostmarkTemplateMessage Template messages} are not supported: they are posted
+ * to other endpoints than the batches of the outbox.
+ */
+public class OutboxMailSender implements MailSender, DisposableBean {
+
+	private static Logger logger = Logger.getLogger("com.postmark");
+
+	/** Default number of drain threads. */
+	public static final int DEFAULT_DRAIN_THREADS = 1;
+	/** Default delay before posting a failed batch again. */
+	public static final long DEFAULT_RETRY_DELAY_MILLIS = 5000;
+
+	private final PostmarkMailSender mailSender;
+	private final File directory;
+	private int segmentSize = SegmentedJournal.DEFAULT_SEGMENT_SIZE;
+	private boolean syncOnAppend;
+	private int drainThreads = DEFAULT_DRAIN_THREADS;
+	private long retryDelayMillis = DEFAULT_RETRY_DELAY_MILLIS;
+
+	private volatile SegmentedJournal journal;
+	private final List<Thread> drainers = new ArrayList<Thread>();
+	private volatile boolean closed;
+	private final AtomicLong deliveredCount = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	/**
+	 * @param mailSender the sender delivering the messages, not closed by this outbox
+	 * @param directory the outbox directory, holding no other files
+	 */
+	public OutboxMailSender(PostmarkMailSender mailSender, File directory) {
+		this.mailSender = mailSender;
+		this.directory = directory;
+	}
+
+	/**
+	 * Opens the outbox and starts delivering the messages left by a previous run.
+	 * Otherwise the outbox is started by the first send.
+	 * 
+	 * @throws IOException if the outbox directory cannot be opened
+	 */
+	public synchronized void start() throws IOException {
+		if (closed)
+			throw new IllegalStateException("Outbox is closed");
+		if (journal != null)
+			return;
+		journal = new SegmentedJournal(directory, segmentSize, syncOnAppend);
+		if (journal.getPendingCount() > 0)
+			logger.log(Level.INFO, "Replaying " + journal.getPendingCount() + " messages from outbox " + directory);
+		DaemonThreadFactory threadFactory = new DaemonThreadFactory("postmark-outbox");
+		for (int i = 0; i < drainThreads; i++) {
+			Thread drainer = threadFactory.newThread(new Runnable() {
+				@Override
+				public void run() {
+					drain();
+				}
+			});
+			drainers.add(drainer);
+			drainer.start();
+		}
+	}
+
+	/**
+	 * Stops delivering and closes the outbox. Messages not delivered yet stay in the
+	 * outbox directory until it is started again.
+	 */
+	public void close() {
+		List<Thread> threads;
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			notifyAll();
+			threads = new ArrayList<Thread>(drainers);
+		}
+		boolean interrupted = false;
+		for (Thread drainer : threads) {
+			drainer.interrupt();
+			try {
+				drainer.join(TimeUnit.SECONDS.toMillis(10));
+			} catch (InterruptedException ie) {
+				interrupted = true;
+				break;
+			}
+		}
+		// the drainers no longer poll nor acknowledge
+		if (journal != null)
+			journal.close();
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Calls {@link #close()} when the Spring context is destroyed.
+	 */
+	@Override
+	public void destroy() {
+		close();
+	}
+
+	/**
+	 * Waits until all messages in the outbox are delivered or dropped.
+	 * 
+	 * @param timeoutMillis maximum time to wait
+	 * @return whether the outbox is empty
+	 */
+	public boolean awaitDelivery(long timeoutMillis) throws InterruptedException {
+		SegmentedJournal journal = this.journal;
+		return journal == null || journal.awaitAcknowledged(timeoutMillis);
+	}
+
+	/**
+	 * @return the number of messages in the outbox
+	 */
+	public long getPendingCount() {
+		SegmentedJournal journal = this.journal;
+		return journal == null ? 0 : journal.getPendingCount();
+	}
+
+	/**
+	 * @return the number of messages delivered since the outbox was started
+	 */
+	public long getDeliveredCount() {
+		return deliveredCount.get();
+	}
+
+	/**
+	 * @return the number of messages rejected by Postmark since the outbox was started
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	private synchronized void checkNotStarted() {
+		if (journal != null)
+			throw new IllegalStateException("Outbox settings cannot be changed once it has started");
+	}
+
+	/**
+	 * @param segmentSize the size of the outbox segment files, which bounds the size of a message
+	 */
+	public void setSegmentSize(int segmentSize) {
+		checkNotStarted();
+		this.segmentSize = segmentSize;
+	}
+
+	public int getSegmentSize() {
+		return segmentSize;
+	}
+
+	/**
+	 * @param syncOnAppend whether each message is forced to disk before send returns.
+	 * Otherwise messages survive a process crash, but may be lost by an OS crash.
+	 */
+	public void setSyncOnAppend(boolean syncOnAppend) {
+		checkNotStarted();
+		this.syncOnAppend = syncOnAppend;
+	}
+
+	public boolean isSyncOnAppend() {
+		return syncOnAppend;
+	}
+
+	/**
+	 * @param drainThreads the number of threads posting batches concurrently
+	 */
+	public void setDrainThreads(int drainThreads) {
+		checkNotStarted();
+		this.drainThreads = drainThreads;
+	}
+
+	public int getDrainThreads() {
+		return drainThreads;
+	}
+
+	/**
+	 * @param retryDelayMillis the delay before posting a failed batch again
+	 */
+	public void setRetryDelayMillis(long retryDelayMillis) {
+		this.retryDelayMillis = retryDelayMillis;
+	}
+
+	public long getRetryDelayMillis() {
+		return retryDelayMillis;
+	}
+
+	@Override
+	public void send(SimpleMailMessage message) throws MailException {
+		if (message instanceof PostmarkTemplateMessage)
+			throw new MailParseException("Template messages cannot be sent through an outbox");
+		SimpleMailMessageWriter.validate(message);
+		mailSender.checkAddresses(message);
+		append(SimpleMailMessageWriter.encode(message, mailSender.isRawUtf8()));
+	}
+
+	@Override
+	public void send(SimpleMailMessage[] simpleMessages) throws MailException {
+		Map<Object, Exception> failedMessages = new LinkedHashMap<Object, Exception>();
+		for (SimpleMailMessage message : simpleMessages) {
+			try {
+				send(message);
+			} catch (MailException mex) {
+				failedMessages.put(message, mex);
+			}
+		}
+		if (!failedMessages.isEmpty())
+			throw new MailSendException(failedMessages);
+	}
+
+	private void append(byte[] message) throws MailException {
+		try {
+			if (journal == null)
+				start();
+			journal.append(message);
+		} catch (IOException ioe) {
+			throw new MailSendException("Could not write message to outbox " + directory, ioe);
+		}
+	}
+
+	/**
+	 * Posts the journal contents until the outbox is closed.
+	 */
+	private void drain() {
+		// leaves room for the separators and brackets
+		long maxBytes = mailSender.getMaxBatchBytes() - mailSender.getMaxBatchSize() - 1;
+		try {
+			while (!closed) {
+				if (!journal.await(TimeUnit.SECONDS.toMillis(1)))
+					continue;
+				List<Record> records = journal.poll(mailSender.getMaxBatchSize(), maxBytes);
+				while (!records.isEmpty()) {
+					List<Record> unanswered = deliver(records);
+					if (unanswered == null)
+						return;
+					if (!unanswered.isEmpty()) {
+						logger.log(Level.WARNING, "Postmark returned no result for " + unanswered.size()
+								+ " outbox messages, retrying in " + retryDelayMillis + " ms");
+						pause();
+					}
+					records = unanswered;
+				}
+			}
+		} catch (InterruptedException ie) {
+			// closed
+		}
+	}
+
+	/**
+	 * Posts records and acknowledges those Postmark delivered or rejected.
+	 * 
+	 * @return the records Postmark returned no result for, or <tt>null</tt> if the outbox
+	 * was closed in the meantime
+	 */
+	private List<Record> deliver(List<Record> records) throws InterruptedException {
+		List<byte[]> messages = new ArrayList<byte[]>(records.size());
+		for (Record record : records)
+			messages.add(record.getData());
+		PostmarkResponse[] responses;
+		try {
+			responses = post(messages);
+		} catch (PostmarkResponseException refused) {
+			if (records.size() > 1) {
+				// one faulty message fails the whole batch, isolate it
+				List<Record> unanswered = new ArrayList<Record>();
+				for (Record record : records) {
+					List<Record> left = deliver(Collections.singletonList(record));
+					if (left == null)
+						return null;
+					unanswered.addAll(left);
+				}
+				return unanswered;
+			}
+			logger.log(Level.SEVERE, "Postmark rejected outbox message " + records.get(0).getSequence() + ": " + refused.getMessage());
+			rejectedCount.incrementAndGet();
+			journal.acknowledge(records.get(0).getSequence());
+			return Collections.emptyList();
+		}
+		if (responses == null)
+			return null;
+		List<Record> unanswered = new ArrayList<Record>();
+		for (int i = 0; i < records.size(); i++) {
+			PostmarkResponse response = responses[i];
+			if (response == null) {
+				unanswered.add(records.get(i));
+				continue;
+			}
+			if (response.getStatus() != PostmarkResponseStatus.SUCCESS) {
+				logger.log(Level.SEVERE, "Postmark rejected outbox message " + records.get(i).getSequence() + ": " + response);
+				rejectedCount.incrementAndGet();
+			} else {
+				deliveredCount.incrementAndGet();
+			}
+			journal.acknowledge(records.get(i).getSequence());
+		}
+		return unanswered;
+	}
+
+	/**
+	 * Posts a batch until it goes through, or Postmark refuses its contents.
+	 * 
+	 * @return the responses, or <tt>null</tt> if the outbox was closed in the meantime
+	 * @throws PostmarkResponseException if Postmark refused the contents of the batch
+	 */
+	private PostmarkResponse[] post(List<byte[]> messages) throws InterruptedException, PostmarkResponseException {
+		while (!closed) {
+			try {
+				return mailSender.sendEncoded(messages);
+			} catch (MailException mex) {
+				PostmarkResponseException refused = refusal(mex);
+				if (refused != null)
+					throw refused;
+				logger.log(Level.WARNING, "Could not deliver outbox batch, retrying in " + retryDelayMillis + " ms: " + mex.getMessage());
+				pause();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the refusal of the batch contents, a 422 status with a Postmark error code,
+	 * among the causes of <tt>failure</tt>, or <tt>null</tt> if the request failed otherwise
+	 */
+	private static PostmarkResponseException refusal(Throwable failure) {
+		for (Throwable t = failure; t != null; t = t.getCause()) {
+			if (t instanceof PostmarkResponseException) {
+				PostmarkResponseException pre = (PostmarkResponseException) t;
+				return pre.getStatusCode() == 422 && pre.getResponse().getErrorCode() != 0 ? pre : null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Waits for the retry delay, or until the outbox is closed.
+	 */
+	private synchronized void pause() throws InterruptedException {
+		if (!closed)
+			wait(retryDelayMillis);
+	}
+}
@@ -31,155 +31,1942 @@
 
 package com.postmark;
 
+import java.io.ByteArrayInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.Deflater;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.StatusLine;
 import org.apache.http.client.HttpClient;
-import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.BasicResponseHandler;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
 import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.mail.MailException;
 import org.springframework.mail.MailParseException;
 import org.springframework.mail.MailSendException;
 import org.springframework.mail.MailSender;
 import org.springframework.mail.SimpleMailMessage;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonDeserializationContext;
-import com.google.gson.JsonDeserializer;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParseException;
-import com.google.gson.JsonPrimitive;
-import com.google.gson.JsonSerializationContext;
-import com.google.gson.JsonSerializer;
-import com.google.gson.annotations.SerializedName;
-import com.postmark.util.UnicodeEscapeFilterWriter;
+import com.google.gson.JsonDeserializationContext;
+import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSerializationContext;
+import com.google.gson.JsonSerializer;
+import com.google.gson.annotations.SerializedName;
+import com.postmark.util.BufferPool;
+import com.postmark.util.DaemonThreadFactory;
+import com.postmark.util.DeflaterPool;
+import com.postmark.util.JsonPullParser;
+
+/**
+ * PostMark client implementation of Spring's MailSender.
+ * 
+ * This implementation is thread-safe and keeps a pool of keep-alive HTTP connections
+ * to the Postmark API, created on the first send. The pool is sized and tuned through
+ * the setters of this class, which must be called before the first send.
+ * <p>
+ * Call {@link #close()} (or let Spring call {@link #destroy()}) to release the pooled
+ * connections when the sender is no longer needed.
+ * 
+ * @see http://postmarkapp.com
+ * @see MailSender
+ */
+public class PostmarkMailSender implements MailSender, DisposableBean {
+
+    private static Logger logger = Logger.getLogger("com.postmark");
+    
+    /** Default maximum number of pooled connections. */
+    public static final int DEFAULT_MAX_CONNECTIONS = 20;
+    /** Default keep-alive duration when the server does not specify one. */
+    public static final long DEFAULT_KEEP_ALIVE_MILLIS = 30000;
+    /** Default time after which an unused pooled connection is closed. */
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60000;
+    /** Default interval between two runs of the idle connection eviction. */
+    public static final long DEFAULT_EVICTION_INTERVAL_MILLIS = 5000;
+    /** Default timeout of opening a connection to the API host. */
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+    /** Default timeout of waiting for data from an open connection. */
+    public static final int DEFAULT_SOCKET_TIMEOUT_MILLIS = 60000;
+    /** Default timeout of waiting for a pooled connection. */
+    public static final long DEFAULT_LEASE_TIMEOUT_MILLIS = 10000;
+
+    /** Maximum number of messages accepted by the batch endpoint. */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 500;
+    /** Maximum payload size accepted by the batch endpoint. */
+    public static final long DEFAULT_MAX_BATCH_BYTES = 50L * 1024 * 1024;
+
+    /** Default maximum number of pending asynchronous send tasks. */
+    public static final int DEFAULT_MAX_ASYNC_IN_FLIGHT = 1000;
+
+    /** Default request body size above which requests are gzip compressed, disabled. */
+    public static final long DEFAULT_GZIP_THRESHOLD = -1;
+
+    /** Default interval between two calls of the metrics reporter. */
+    public static final long DEFAULT_METRICS_REPORT_INTERVAL_MILLIS = 60000;
+
+    /** Default interval between two syncs of the suppression list. */
+    public static final long DEFAULT_SUPPRESSION_SYNC_INTERVAL_MILLIS = 5 * 60 * 1000;
+
+    /** Default number of connections opened by {@link #warmUp()}. */
+    public static final int DEFAULT_WARM_UP_CONNECTIONS = 4;
+    /** Default number of messages serialized by {@link #warmUp()}. */
+    public static final int DEFAULT_WARM_UP_MESSAGES = 10000;
+
+    static final String DEFAULT_API_URL = "http://api.postmarkapp.com";
+    static final String EMAIL_ENDPOINT = "/email";
+    static final String BATCH_ENDPOINT = "/email/batch";
+    static final String TEMPLATE_ENDPOINT = "/email/withTemplate";
+    static final String TEMPLATE_BATCH_ENDPOINT = "/email/batchWithTemplates";
+
+    /** Postmark error code of messages sent to recipients marked inactive. */
+    static final int INACTIVE_RECIPIENT_ERROR = 406;
+
+    private String serverToken;
+    private String apiUrl = DEFAULT_API_URL;
+
+    private int maxTotalConnections = DEFAULT_MAX_CONNECTIONS;
+    private int maxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS;
+    private long keepAliveMillis = DEFAULT_KEEP_ALIVE_MILLIS;
+    private long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+    private long evictionIntervalMillis = DEFAULT_EVICTION_INTERVAL_MILLIS;
+    private int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private int socketTimeoutMillis = DEFAULT_SOCKET_TIMEOUT_MILLIS;
+    private long leaseTimeoutMillis = DEFAULT_LEASE_TIMEOUT_MILLIS;
+
+    private volatile DefaultHttpClient httpClient;
+    private IdleConnectionEvictor evictor;
+    private boolean closed;
+
+    private boolean rawUtf8;
+    private volatile long gzipThreshold = DEFAULT_GZIP_THRESHOLD;
+    private int gzipLevel = Deflater.DEFAULT_COMPRESSION;
+    private DeflaterPool deflaters;
+
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private long maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+
+    private ExecutorService asyncExecutor;
+    private boolean ownAsyncExecutor;
+    private int maxAsyncInFlight = DEFAULT_MAX_ASYNC_IN_FLIGHT;
+    private Semaphore asyncPermits;
+    private final TaskClock asyncClock = new TaskClock();
+
+    private volatile DeduplicationWindow deduplicationWindow;
+    private volatile SuppressionList suppressionList;
+    private long suppressionSyncIntervalMillis = DEFAULT_SUPPRESSION_SYNC_INTERVAL_MILLIS;
+    private ScheduledExecutorService syncExecutor;
+    private volatile RetryPolicy retryPolicy;
+    private volatile CircuitBreaker circuitBreaker;
+    private volatile RateLimiter rateLimiter;
+    private volatile AdaptiveConcurrencyLimiter concurrencyLimiter;
+    private volatile PriorityScheduler priorityScheduler;
+    private volatile long deadlineMillis;
+    private volatile HedgePolicy hedgePolicy;
+    private volatile AddressParser addressParser = AddressParser.SHARED;
+    private volatile ScheduledExecutorService timer;
+    private volatile ExecutorService hedgeExecutor;
+
+    private final SenderMetrics metrics = new SenderMetrics();
+    private String jmxName;
+    private ObjectName registeredJmxName;
+    private MetricsReporter metricsReporter;
+    private long metricsReportIntervalMillis = DEFAULT_METRICS_REPORT_INTERVAL_MILLIS;
+    private ScheduledExecutorService reportExecutor;
+
+    private int warmUpConnections = DEFAULT_WARM_UP_CONNECTIONS;
+    private int warmUpMessages = DEFAULT_WARM_UP_MESSAGES;
+
+    /**
+     * Initializes a new instance of the PostmarkClient class.
+     * <p/>
+     * If you do not have a server token you can request one by signing up to
+     * use Postmark: http://postmarkapp.com.
+     *
+     * @param serverToken the postmark server token
+     */
+    public PostmarkMailSender(String serverToken) {
+        this.serverToken = serverToken;
+    }
+
+    /**
+     * Returns the shared HTTP client, creating its connection pool on first call.
+     * 
+     * @return the pooled HTTP client
+     * @throws IllegalStateException if this sender has been closed
+     */
+    protected HttpClient getHttpClient() {
+    	DefaultHttpClient client = httpClient;
+    	if (client != null)
+    		return client;
+    	synchronized (this) {
+    		if (closed)
+    			throw new IllegalStateException("PostmarkMailSender has been closed");
+    		if (httpClient == null) {
+    			HttpParams params = new BasicHttpParams();
+    			HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+    			HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
+    			ConnManagerParams.setMaxTotalConnections(params, maxTotalConnections);
+    			ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnectionsPerRoute));
+    			ConnManagerParams.setTimeout(params, leaseTimeoutMillis);
+    			HttpConnectionParams.setConnectionTimeout(params, connectTimeoutMillis);
+    			HttpConnectionParams.setSoTimeout(params, socketTimeoutMillis);
+
+    			SchemeRegistry schemeRegistry = new SchemeRegistry();
+    			schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+    			schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+    			ThreadSafeClientConnManager connectionManager = new MeteredConnectionManager(params, schemeRegistry, metrics);
+    			metrics.setMaxConnections(maxTotalConnections);
+    			DefaultHttpClient newClient = new DefaultHttpClient(connectionManager, params);
+    			newClient.setKeepAliveStrategy(new KeepAliveStrategy(keepAliveMillis));
+
+    			evictor = new IdleConnectionEvictor(connectionManager, evictionIntervalMillis, idleTimeoutMillis);
+    			evictor.start();
+    			deflaters = new DeflaterPool(gzipLevel, maxTotalConnections);
+    			startMetrics();
+    			httpClient = newClient;
+    			startSuppressionSync();
+    		}
+    		return httpClient;
+    	}
+    }
+
+    /**
+     * Closes the pooled HTTP connections. The sender cannot be used afterwards.
+     * <p>
+     * Calling this method more than once has no effect.
+     */
+    public synchronized void close() {
+    	closed = true;
+    	if (asyncExecutor != null && ownAsyncExecutor) {
+    		asyncExecutor.shutdown();
+    		asyncExecutor = null;
+    	}
+    	if (evictor != null) {
+    		evictor.shutdown();
+    		evictor = null;
+    	}
+    	stopMetrics();
+    	if (syncExecutor != null) {
+    		syncExecutor.shutdownNow();
+    		syncExecutor = null;
+    	}
+    	if (timer != null) {
+    		timer.shutdownNow();
+    		timer = null;
+    	}
+    	if (hedgeExecutor != null) {
+    		hedgeExecutor.shutdown();
+    		hedgeExecutor = null;
+    	}
+    	if (httpClient != null) {
+    		httpClient.getConnectionManager().shutdown();
+    		httpClient = null;
+    	}
+    	if (deflaters != null)
+    		deflaters.clear();
+    }
+
+    /**
+     * Spring lifecycle callback, closes this sender.
+     * 
+     * @see #close()
+     */
+	@Override
+	public void destroy() {
+		close();
+	}
+
+	/**
+	 * Prepares this sender for its first sends: creates the connection pool, opens
+	 * {@link #setWarmUpConnections(int) connections} to the API host, and runs
+	 * representative messages through serialization, escaping, compression and response
+	 * parsing so that the classes are loaded and the JIT has compiled the hot paths.
+	 * <p>
+	 * Nothing is sent. Call it before the application reports itself ready, for instance
+	 * as the Spring <tt>init-method</tt> of the sender. A host which cannot be reached is
+	 * logged, and does not fail the warm-up.
+	 * 
+	 * @throws IllegalStateException if this sender has been closed
+	 */
+	public void warmUp() {
+		long start = System.nanoTime();
+		HttpClient client = getHttpClient();
+		int opened = 0;
+		if (warmUpConnections > 0) {
+			try {
+				opened = SenderWarmUp.openConnections(client, apiUrl,
+						Math.min(warmUpConnections, maxConnectionsPerRoute), keepAliveMillis);
+			} catch (IOException ioe) {
+				logger.log(Level.WARNING, "Could not open connections to " + apiUrl + " during warm-up", ioe);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		try {
+			SenderWarmUp.prime(warmUpMessages, rawUtf8, gzipThreshold >= 0 ? deflaters : null);
+		} catch (IOException ioe) {
+			throw new IllegalStateException("In-memory warm-up cannot fail", ioe);
+		}
+		if (logger.isLoggable(Level.FINE))
+			logger.fine("Warmed up in " + (System.nanoTime() - start) / 1000000 + " ms, "
+					+ opened + " connections opened to " + apiUrl);
+	}
+
+	private synchronized void checkNotStarted() {
+		if (httpClient != null || closed)
+			throw new IllegalStateException("Connection pool settings must be set before the first send");
+	}
+
+	/**
+	 * @param maxTotalConnections maximum number of pooled connections, all routes included
+	 */
+	public void setMaxTotalConnections(int maxTotalConnections) {
+		checkNotStarted();
+		this.maxTotalConnections = maxTotalConnections;
+	}
+
+	public int getMaxTotalConnections() {
+		return maxTotalConnections;
+	}
+
+	/**
+	 * @param maxConnectionsPerRoute maximum number of pooled connections to the same host
+	 */
+	public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+		checkNotStarted();
+		this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+	}
+
+	public int getMaxConnectionsPerRoute() {
+		return maxConnectionsPerRoute;
+	}
+
+	/**
+	 * @param keepAliveMillis how long a connection is kept alive when the server
+	 * response does not carry a <tt>Keep-Alive</tt> timeout
+	 */
+	public void setKeepAliveMillis(long keepAliveMillis) {
+		checkNotStarted();
+		this.keepAliveMillis = keepAliveMillis;
+	}
+
+	public long getKeepAliveMillis() {
+		return keepAliveMillis;
+	}
+
+	/**
+	 * @param idleTimeoutMillis time after which an unused pooled connection is closed
+	 */
+	public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+		checkNotStarted();
+		this.idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	public long getIdleTimeoutMillis() {
+		return idleTimeoutMillis;
+	}
+
+	/**
+	 * @param evictionIntervalMillis interval between two checks for expired and idle connections
+	 */
+	public void setEvictionIntervalMillis(long evictionIntervalMillis) {
+		checkNotStarted();
+		this.evictionIntervalMillis = evictionIntervalMillis;
+	}
+
+	public long getEvictionIntervalMillis() {
+		return evictionIntervalMillis;
+	}
+
+	/**
+	 * @param connectTimeoutMillis the timeout of opening a connection to the API host,
+	 * <tt>0</tt> for none
+	 */
+	public void setConnectTimeoutMillis(int connectTimeoutMillis) {
+		checkNotStarted();
+		this.connectTimeoutMillis = connectTimeoutMillis;
+	}
+
+	public int getConnectTimeoutMillis() {
+		return connectTimeoutMillis;
+	}
+
+	/**
+	 * @param socketTimeoutMillis the timeout of waiting for data from an open connection,
+	 * while sending the request or waiting for the response, <tt>0</tt> for none
+	 */
+	public void setSocketTimeoutMillis(int socketTimeoutMillis) {
+		checkNotStarted();
+		this.socketTimeoutMillis = socketTimeoutMillis;
+	}
+
+	public int getSocketTimeoutMillis() {
+		return socketTimeoutMillis;
+	}
+
+	/**
+	 * @param leaseTimeoutMillis the timeout of waiting for a pooled connection when all
+	 * are in use, <tt>0</tt> for none
+	 */
+	public void setLeaseTimeoutMillis(long leaseTimeoutMillis) {
+		checkNotStarted();
+		this.leaseTimeoutMillis = leaseTimeoutMillis;
+	}
+
+	public long getLeaseTimeoutMillis() {
+		return leaseTimeoutMillis;
+	}
+
+	/**
+	 * @param apiUrl base URL of the Postmark API, without trailing slash.
+	 * Defaults to <tt>http://api.postmarkapp.com</tt>.
+	 */
+	public void setApiUrl(String apiUrl) {
+		this.apiUrl = apiUrl;
+	}
+
+	public String getApiUrl() {
+		return apiUrl;
+	}
+
+	/**
+	 * @param rawUtf8 whether non-ASCII chars are sent as raw UTF-8 rather than
+	 * <tt>\\uXXXX</tt> escaped, which makes accented text payloads smaller and cheaper to encode.
+	 * Defaults to <tt>false</tt>.
+	 */
+	public void setRawUtf8(boolean rawUtf8) {
+		this.rawUtf8 = rawUtf8;
+	}
+
+	public boolean isRawUtf8() {
+		return rawUtf8;
+	}
+
+	/**
+	 * @param gzipThreshold request body size in bytes from which the body is sent gzip
+	 * compressed, with a <tt>Content-Encoding: gzip</tt> header. Compressing small
+	 * messages costs more CPU than the bytes it saves. Negative disables compression,
+	 * which is the default.
+	 */
+	public void setGzipThreshold(long gzipThreshold) {
+		this.gzipThreshold = gzipThreshold;
+	}
+
+	public long getGzipThreshold() {
+		return gzipThreshold;
+	}
+
+	/**
+	 * @param gzipLevel compression level of gzip request bodies, from 1 (fastest) to 9 (smallest).
+	 * Defaults to {@link Deflater#DEFAULT_COMPRESSION}.
+	 */
+	public void setGzipLevel(int gzipLevel) {
+		checkNotStarted();
+		this.gzipLevel = gzipLevel;
+	}
+
+	public int getGzipLevel() {
+		return gzipLevel;
+	}
+
+	/**
+	 * @param maxBatchSize maximum number of messages sent in one call to the batch endpoint
+	 */
+	public void setMaxBatchSize(int maxBatchSize) {
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	/**
+	 * @param maxBatchBytes maximum size in bytes of the payload sent in one call to the batch endpoint
+	 */
+	public void setMaxBatchBytes(long maxBatchBytes) {
+		this.maxBatchBytes = maxBatchBytes;
+	}
+
+	public long getMaxBatchBytes() {
+		return maxBatchBytes;
+	}
+
+	/**
+	 * @param asyncExecutor executor running the asynchronous sends. When none is given,
+	 * a pool of {@link #getMaxConnectionsPerRoute()} daemon threads is created on first use
+	 * and shut down by {@link #close()}. An executor given here is not shut down by this sender.
+	 */
+	public synchronized void setAsyncExecutor(ExecutorService asyncExecutor) {
+		if (this.asyncExecutor != null)
+			throw new IllegalStateException("Asynchronous executor must be set before the first asynchronous send");
+		this.asyncExecutor = asyncExecutor;
+		this.ownAsyncExecutor = false;
+	}
+
+	/**
+	 * @param maxAsyncInFlight maximum number of asynchronous send tasks submitted and not yet
+	 * completed. Further asynchronous sends block until a task completes.
+	 */
+	public synchronized void setMaxAsyncInFlight(int maxAsyncInFlight) {
+		if (asyncPermits != null)
+			throw new IllegalStateException("Asynchronous settings must be set before the first asynchronous send");
+		this.maxAsyncInFlight = maxAsyncInFlight;
+	}
+
+	public int getMaxAsyncInFlight() {
+		return maxAsyncInFlight;
+	}
+
+	/**
+	 * @param deduplicationWindow suppresses the messages sent again within its window, or
+	 * <tt>null</tt>, the default, to send all messages. A suppressed message is not sent and
+	 * gets a response with the {@link PostmarkResponseStatus#DUPLICATE} status.
+	 */
+	public void setDeduplicationWindow(DeduplicationWindow deduplicationWindow) {
+		this.deduplicationWindow = deduplicationWindow;
+	}
+
+	public DeduplicationWindow getDeduplicationWindow() {
+		return deduplicationWindow;
+	}
+
+	/**
+	 * @param suppressionList the recipients not to send to, synced from Postmark in the
+	 * background every {@link #setSuppressionSyncIntervalMillis(long) interval} once the
+	 * pool is started, or <tt>null</tt>, the default. A message whose recipients are all
+	 * suppressed is not sent, and gets a response with the
+	 * {@link PostmarkResponseStatus#SUPPRESSED} status rather than a failure. Recipients
+	 * Postmark reports inactive when sending are added to the list.
+	 */
+	public void setSuppressionList(SuppressionList suppressionList) {
+		checkNotStarted();
+		this.suppressionList = suppressionList;
+	}
+
+	public SuppressionList getSuppressionList() {
+		return suppressionList;
+	}
+
+	/**
+	 * @param suppressionSyncIntervalMillis the interval between two syncs of the
+	 * suppression list, or <tt>0</tt> to only sync on {@link #syncSuppressions()} calls
+	 */
+	public void setSuppressionSyncIntervalMillis(long suppressionSyncIntervalMillis) {
+		checkNotStarted();
+		this.suppressionSyncIntervalMillis = suppressionSyncIntervalMillis;
+	}
+
+	public long getSuppressionSyncIntervalMillis() {
+		return suppressionSyncIntervalMillis;
+	}
+
+	/**
+	 * @param retryPolicy the policy retrying transient failures, or <tt>null</tt>, the
+	 * default, to report failures at once. Batch sends retry only the messages which
+	 * failed transiently.
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	/**
+	 * @param circuitBreaker the breaker failing sends fast while Postmark is unhealthy,
+	 * or <tt>null</tt>, the default, to always try
+	 */
+	public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+		this.circuitBreaker = circuitBreaker;
+	}
+
+	public CircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+
+	/**
+	 * @param deadlineMillis the time allowed to each single send and each batch request,
+	 * covering the connection lease, the request, the response and the retries, or
+	 * <tt>0</tt>, the default, for none. A request still running at its deadline is
+	 * aborted, and the send fails with a {@link DeadlineExceededException}.
+	 * @see #send(SimpleMailMessage, long, TimeUnit)
+	 */
+	public void setDeadlineMillis(long deadlineMillis) {
+		this.deadlineMillis = deadlineMillis;
+	}
+
+	public long getDeadlineMillis() {
+		return deadlineMillis;
+	}
+
+	/**
+	 * @param hedgePolicy the policy making a second attempt of the single sends which
+	 * are slow to answer, or <tt>null</tt>, the default, to wait for the first attempt.
+	 * Batch sends are not hedged.
+	 */
+	public void setHedgePolicy(HedgePolicy hedgePolicy) {
+		this.hedgePolicy = hedgePolicy;
+	}
+
+	public HedgePolicy getHedgePolicy() {
+		return hedgePolicy;
+	}
+
+	/**
+	 * @param rateLimiter the limiter of the rate of requests made with the server token
+	 * of this sender, or <tt>null</tt>, the default, for no limit
+	 */
+	public void setRateLimiter(RateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+
+	public RateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+
+	/**
+	 * @param concurrencyLimiter the limiter adapting the number of requests in flight to
+	 * what Postmark sustains, or <tt>null</tt>, the default, to only be limited by the
+	 * connection pool
+	 */
+	public void setConcurrencyLimiter(AdaptiveConcurrencyLimiter concurrencyLimiter) {
+		this.concurrencyLimiter = concurrencyLimiter;
+	}
+
+	public AdaptiveConcurrencyLimiter getConcurrencyLimiter() {
+		return concurrencyLimiter;
+	}
+
+	/**
+	 * @param priorityScheduler the scheduler handing out request permits by priority
+	 * class, or <tt>null</tt>, the default, to send in arrival order. The asynchronous
+	 * executor of this sender also runs queued tasks by the weights of the scheduler.
+	 */
+	public void setPriorityScheduler(PriorityScheduler priorityScheduler) {
+		this.priorityScheduler = priorityScheduler;
+	}
+
+	public PriorityScheduler getPriorityScheduler() {
+		return priorityScheduler;
+	}
+
+	/**
+	 * @param addressParser the parser checking the addresses and the number of
+	 * recipients of each message before it is sent, {@link AddressParser#SHARED} by
+	 * default, or <tt>null</tt> to leave the checks to Postmark
+	 */
+	public void setAddressParser(AddressParser addressParser) {
+		this.addressParser = addressParser;
+	}
+
+	public AddressParser getAddressParser() {
+		return addressParser;
+	}
+
+	/**
+	 * Checks the address fields of <tt>message</tt> with the {@link #setAddressParser(AddressParser)
+	 * address parser}, if any.
+	 */
+	void checkAddresses(SimpleMailMessage message) throws MailParseException {
+		AddressParser parser = addressParser;
+		if (parser != null)
+			parser.validate(message);
+	}
+
+	/**
+	 * @return the live metrics of this sender
+	 */
+	public SenderMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @param jmxName the JMX object name the metrics are registered under while the
+	 * connection pool is started, e.g. <tt>com.postmark:type=PostmarkMailSender,name=main</tt>,
+	 * or <tt>null</tt>, the default, not to register them
+	 */
+	public void setJmxName(String jmxName) {
+		checkNotStarted();
+		this.jmxName = jmxName;
+	}
+
+	public String getJmxName() {
+		return jmxName;
+	}
+
+	/**
+	 * @param metricsReporter the reporter called periodically with the metrics while the
+	 * connection pool is started, or <tt>null</tt>, the default, for none
+	 */
+	public void setMetricsReporter(MetricsReporter metricsReporter) {
+		checkNotStarted();
+		this.metricsReporter = metricsReporter;
+	}
+
+	public MetricsReporter getMetricsReporter() {
+		return metricsReporter;
+	}
+
+	/**
+	 * @param metricsReportIntervalMillis the interval between two calls of the metrics reporter
+	 */
+	public void setMetricsReportIntervalMillis(long metricsReportIntervalMillis) {
+		checkNotStarted();
+		this.metricsReportIntervalMillis = metricsReportIntervalMillis;
+	}
+
+	public long getMetricsReportIntervalMillis() {
+		return metricsReportIntervalMillis;
+	}
+
+	/**
+	 * @param warmUpConnections number of pooled connections opened by {@link #warmUp()},
+	 * at most the maximum number of connections per route
+	 */
+	public void setWarmUpConnections(int warmUpConnections) {
+		this.warmUpConnections = warmUpConnections;
+	}
+
+	public int getWarmUpConnections() {
+		return warmUpConnections;
+	}
+
+	/**
+	 * @param warmUpMessages number of messages serialized by {@link #warmUp()}
+	 */
+	public void setWarmUpMessages(int warmUpMessages) {
+		this.warmUpMessages = warmUpMessages;
+	}
+
+	public int getWarmUpMessages() {
+		return warmUpMessages;
+	}
+
+	/**
+	 * Registers the metrics MBean and starts the reporter, when the pool starts.
+	 */
+	private void startMetrics() {
+		if (jmxName != null) {
+			try {
+				ObjectName name = new ObjectName(jmxName);
+				ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+				registeredJmxName = name;
+			} catch (JMException jme) {
+				logger.log(Level.WARNING, "Could not register metrics MBean " + jmxName, jme);
+			}
+		}
+		if (metricsReporter != null) {
+			final MetricsReporter reporter = metricsReporter;
+			reportExecutor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("postmark-metrics"));
+			reportExecutor.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						reporter.report(metrics);
+					} catch (RuntimeException re) {
+						logger.log(Level.WARNING, "Metrics reporter failed", re);
+					}
+				}
+			}, metricsReportIntervalMillis, metricsReportIntervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void stopMetrics() {
+		if (reportExecutor != null) {
+			reportExecutor.shutdown();
+			reportExecutor = null;
+		}
+		if (registeredJmxName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredJmxName);
+			} catch (JMException jme) {
+				logger.log(Level.WARNING, "Could not unregister metrics MBean " + registeredJmxName, jme);
+			}
+			registeredJmxName = null;
+		}
+	}
+
+	/**
+	 * Schedules the suppression list syncs, when the pool starts.
+	 */
+	private void startSuppressionSync() {
+		if (suppressionList == null || suppressionSyncIntervalMillis <= 0)
+			return;
+		syncExecutor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("postmark-suppression-sync"));
+		syncExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					syncSuppressions();
+				} catch (RuntimeException re) {
+					logger.log(Level.WARNING, "Could not sync the suppression list: " + re.getMessage());
+				}
+			}
+		}, 0, suppressionSyncIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Fetches the suppressions of the message stream of the suppression list: all of
+	 * them when a full sync is due, otherwise those created since the day before the
+	 * last sync. Then saves the list to its file, if any.
+	 * 
+	 * @return the number of suppressions fetched
+	 * @throws IllegalStateException if this sender has no suppression list
+	 * @throws MailException if the suppressions could not be fetched
+	 */
+	public int syncSuppressions() throws MailException {
+		SuppressionList list = suppressionList;
+		if (list == null)
+			throw new IllegalStateException("No suppression list to sync");
+		long now = System.currentTimeMillis();
+		boolean full = list.isFullSyncDue(now);
+		String endpoint = "/message-streams/" + list.getMessageStream() + "/suppressions/dump";
+		if (!full) {
+			// Postmark filters on days, one day of overlap covers time zones
+			endpoint += "?fromdate=" + new DateTime(list.getLastSyncMillis(), DateTimeZone.UTC)
+					.minusDays(1).toString("yyyy-MM-dd");
+		}
+		Set<String> addresses;
+		try {
+			addresses = get(endpoint, suppressionsParser);
+		} catch (IOException ioe) {
+			throw new MailSendException("Could not fetch the suppressions", ioe);
+		}
+		if (full) {
+			list.replace(addresses, now);
+		} else {
+			for (String address : addresses)
+				list.add(address);
+			list.synced(now);
+		}
+		try {
+			list.save();
+		} catch (IOException ioe) {
+			logger.log(Level.WARNING, "Could not save the suppression list to " + list.getFile(), ioe);
+		}
+		if (logger.isLoggable(Level.FINE))
+			logger.fine((full ? "Full" : "Incremental") + " suppression sync fetched " + addresses.size()
+					+ " addresses, " + list.size() + " suppressed");
+		return addresses.size();
+	}
+
+	/**
+	 * @return the response of a message not sent as all its recipients are suppressed
+	 */
+	private PostmarkResponse suppressed() {
+		metrics.onOutcome(PostmarkResponseStatus.SUPPRESSED, 0);
+		PostmarkResponse theResponse = new PostmarkResponse();
+		theResponse.status = PostmarkResponseStatus.SUPPRESSED;
+		theResponse.errorCode = INACTIVE_RECIPIENT_ERROR;
+		theResponse.setMessage("All recipients are in the suppression list");
+		return theResponse;
+	}
+
+	/**
+	 * Adds the recipients of a message Postmark rejected as sent to inactive recipients
+	 * to the suppression list, if any.
+	 */
+	private void onInactiveRecipients(SimpleMailMessage message, int errorCode) {
+		SuppressionList list = suppressionList;
+		if (list != null && errorCode == INACTIVE_RECIPIENT_ERROR)
+			list.addRecipients(message);
+	}
+
+	/**
+	 * Freezes a message to send it to many recipients, with the encoding of this sender.
+	 * 
+	 * @param template the message to freeze, whose recipients are ignored
+	 * @return the frozen message, to create per-recipient messages from
+	 * @throws MailParseException if a field required by Postmark is missing
+	 * @see FrozenMessage
+	 */
+	public FrozenMessage freeze(SimpleMailMessage template) throws MailParseException {
+		return new FrozenMessage(template, rawUtf8);
+	}
+
+	@Override
+	public void send(SimpleMailMessage message) throws MailException {
+		sendMessage(message);
+	}
+
+	/**
+	 * Sends one message within <tt>timeout</tt>, instead of the
+	 * {@link #setDeadlineMillis(long) deadline} of this sender. The timeout covers the
+	 * connection lease, the request, the response and the retries.
+	 * 
+	 * @param message the message to send
+	 * @param timeout the time allowed to the send, which must be positive
+	 * @param unit the unit of <tt>timeout</tt>
+	 * @return the Postmark response
+	 * @throws MailSendException caused by a {@link DeadlineExceededException} if the
+	 * send did not complete in time
+	 */
+	public PostmarkResponse send(SimpleMailMessage message, long timeout, TimeUnit unit) throws MailException {
+		if (timeout <= 0)
+			throw new IllegalArgumentException("Timeout must be positive: " + timeout);
+		return sendMessage(message, Attempt.deadline(unit.toNanos(timeout)));
+	}
+
+	/**
+	 * Sends one message and returns the Postmark response.
+	 */
+	private PostmarkResponse sendMessage(SimpleMailMessage message) throws MailException {
+		return sendMessage(message, Attempt.deadline(TimeUnit.MILLISECONDS.toNanos(deadlineMillis)));
+	}
+
+	/**
+	 * Sends one message and returns the Postmark response.
+	 * 
+	 * @param deadline the {@link System#nanoTime()} after which the send is aborted,
+	 * or {@link Attempt#NO_DEADLINE}
+	 */
+	private PostmarkResponse sendMessage(SimpleMailMessage message, long deadline) throws MailException {
+        SuppressionList suppressions = suppressionList;
+        if (suppressions != null && suppressions.isSuppressed(message))
+            return suppressed();
+        DeduplicationWindow window = deduplicationWindow;
+        long key = 0;
+        if (window != null) {
+            key = DeduplicationWindow.key(message);
+            if (!window.tryAcquire(key))
+                return duplicate();
+        }
+        Priority priority = priorityOf(message);
+        RetryPolicy policy = retryPolicy;
+        if (policy != null)
+            policy.onSend();
+        for (int attempt = 1; ; attempt++) {
+            try {
+
+                // Convert the message into JSON content, streamed when sent
+                SimpleMailMessageWriter.validate(message);
+                checkAddresses(message);
+                HedgePolicy hedge = hedgePolicy;
+                PostmarkResponse theResponse = hedge != null
+                        ? new HedgedSend(attemptSender(message, priority), deadline, hedge, timer(), hedgeExecutor()).send()
+                        : execute(endpoint(message), JsonEntity.forMessage(message, rawUtf8), responseParser,
+                                priority, new Attempt(deadline));
+                theResponse.status = PostmarkResponseStatus.SUCCESS;
+                metrics.onOutcome(PostmarkResponseStatus.SUCCESS, 0);
+                return theResponse;
+
+            } catch (Exception e) {
+                if (backOff(e, attempt, deadline))
+                    continue;
+                logger.log(Level.SEVERE, "There has been an error sending email: " + e.getMessage());
+                recordFailure(e);
+                if (e instanceof PostmarkResponseException)
+                    onInactiveRecipients(message, ((PostmarkResponseException) e).getResponse().getErrorCode());
+                if (window != null)
+                    window.release(key);
+                throw new MailSendException("There has been an error sending email", e);
+            }
+        }
+	}
+
+	/**
+	 * Sends the messages through the Postmark batch endpoint, splitting them in as
+	 * few calls as allowed by {@link #getMaxBatchSize()} and {@link #getMaxBatchBytes()}.
+	 * <p>
+	 * Messages rejected locally or by Postmark are reported in the thrown
+	 * {@link MailSendException}, keyed by the original message.
+	 * {@link PostmarkTemplateMessage Template messages} are sent apart, through the
+	 * template batch endpoint.
+	 */
+	@Override
+	public void send(SimpleMailMessage[] simpleMessages) throws MailException {
+		final Map<Object, Exception> failedMessages = new LinkedHashMap<Object, Exception>();
+		sendBatches(Arrays.asList(simpleMessages), new SendCallback() {
+			@Override
+			public void onSuccess(SimpleMailMessage message, PostmarkResponse response) {
+			}
+			@Override
+			public void onFailure(SimpleMailMessage message, MailException exception) {
+				failedMessages.put(message, exception);
+			}
+		});
+		if(! failedMessages.isEmpty())
+			throw new MailSendException(failedMessages);
+	}
+
+	/**
+	 * Sends <tt>message</tt> from the asynchronous executor.
+	 * 
+	 * @param message the message to send
+	 * @return the future Postmark response, failing with a {@link MailException}
+	 * @see #sendAsync(SimpleMailMessage, SendCallback)
+	 */
+	public Future<PostmarkResponse> sendAsync(SimpleMailMessage message) {
+		return sendAsync(message, null);
+	}
+
+	/**
+	 * Sends <tt>message</tt> from the asynchronous executor.
+	 * <p>
+	 * Blocks while {@link #getMaxAsyncInFlight()} sends are already pending.
+	 * 
+	 * @param message the message to send
+	 * @param callback notified of the outcome once done, may be <tt>null</tt>
+	 * @return the future Postmark response, failing with a {@link MailException}
+	 */
+	public Future<PostmarkResponse> sendAsync(final SimpleMailMessage message, SendCallback callback) {
+		SendFuture future = new SendFuture(new Callable<PostmarkResponse>() {
+			@Override
+			public PostmarkResponse call() {
+				return sendMessage(message);
+			}
+		}, message, callback);
+		submitAsync(future, priorityOf(message));
+		return future;
+	}
+
+	/**
+	 * Sends the messages from the asynchronous executor, through the batch endpoint.
+	 * 
+	 * @param messages the messages to send
+	 * @return the future Postmark responses, in the order of <tt>messages</tt>
+	 * @see #sendAsync(Collection, SendCallback)
+	 */
+	public List<Future<PostmarkResponse>> sendAsync(SimpleMailMessage[] messages) {
+		return sendAsync(Arrays.asList(messages), null);
+	}
+
+	/**
+	 * Sends the messages from the asynchronous executor, through the batch endpoint.
+	 * <p>
+	 * One task is submitted per chunk of {@link #getMaxBatchSize()} messages, blocking
+	 * while {@link #getMaxAsyncInFlight()} tasks are already pending.
+	 * 
+	 * @param messages the messages to send
+	 * @param callback notified of the outcome of each message, may be <tt>null</tt>
+	 * @return the future Postmark responses, in the order of <tt>messages</tt>
+	 */
+	public List<Future<PostmarkResponse>> sendAsync(Collection<? extends SimpleMailMessage> messages, SendCallback callback) {
+		List<Future<PostmarkResponse>> futures = new ArrayList<Future<PostmarkResponse>>(messages.size());
+		List<SimpleMailMessage> chunk = new ArrayList<SimpleMailMessage>();
+		List<SendFuture> chunkFutures = new ArrayList<SendFuture>();
+		Iterator<? extends SimpleMailMessage> it = messages.iterator();
+		while (it.hasNext()) {
+			SimpleMailMessage message = it.next();
+			SendFuture future = new SendFuture(message, callback);
+			futures.add(future);
+			chunk.add(message);
+			chunkFutures.add(future);
+			if (chunk.size() >= maxBatchSize || !it.hasNext()) {
+				submitAsync(new BatchTask(chunk, chunkFutures), priorityOf(chunk));
+				chunk = new ArrayList<SimpleMailMessage>();
+				chunkFutures = new ArrayList<SendFuture>();
+			}
+		}
+		return futures;
+	}
+
+	/**
+	 * Task sending a chunk of messages and completing their futures.
+	 */
+	class BatchTask implements Runnable, SendCallback {
+		private final List<SimpleMailMessage> messages;
+		/** Pending futures by message, a same message instance may be sent more than once. */
+		private final Map<SimpleMailMessage, LinkedList<SendFuture>> futures
+				= new IdentityHashMap<SimpleMailMessage, LinkedList<SendFuture>>();
+
+		BatchTask(List<SimpleMailMessage> messages, List<SendFuture> messageFutures) {
+			this.messages = messages;
+			for (SendFuture future : messageFutures) {
+				LinkedList<SendFuture> pending = futures.get(future.getMessage());
+				if (pending == null)
+					futures.put(future.getMessage(), pending = new LinkedList<SendFuture>());
+				pending.add(future);
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				sendBatches(messages, this);
+			} catch (RuntimeException re) {
+				for (LinkedList<SendFuture> pending : futures.values())
+					for (SendFuture future : pending)
+						future.fail(re);
+			}
+		}
+
+		@Override
+		public void onSuccess(SimpleMailMessage message, PostmarkResponse response) {
+			futures.get(message).removeFirst().complete(response);
+		}
+
+		@Override
+		public void onFailure(SimpleMailMessage message, MailException exception) {
+			futures.get(message).removeFirst().fail(exception);
+		}
+	}
+
+	/**
+	 * Submits <tt>task</tt> to the asynchronous executor, waiting for an in-flight permit.
+	 */
+	private void submitAsync(final Runnable task, Priority priority) {
+		ExecutorService executor;
+		Semaphore permits;
+		synchronized (this) {
+			if (closed)
+				throw new IllegalStateException("PostmarkMailSender has been closed");
+			if (asyncExecutor == null) {
+				asyncExecutor = new ThreadPoolExecutor(maxConnectionsPerRoute, maxConnectionsPerRoute, 0L, TimeUnit.MILLISECONDS,
+						new PriorityBlockingQueue<Runnable>(), new DaemonThreadFactory("postmark-async"));
+				ownAsyncExecutor = true;
+			}
+			if (asyncPermits == null)
+				asyncPermits = new Semaphore(maxAsyncInFlight);
+			executor = asyncExecutor;
+			permits = asyncPermits;
+		}
+		permits.acquireUninterruptibly();
+		final Semaphore taskPermits = permits;
+		final TaskClock clock = asyncClock;
+		try {
+			executor.execute(new PrioritizedTask(clock.next(priority, priorityScheduler)) {
+				@Override
+				public void run() {
+					clock.started(tag);
+					try {
+						task.run();
+					} finally {
+						taskPermits.release();
+					}
+				}
+			});
+		} catch (RejectedExecutionException ree) {
+			permits.release();
+			throw ree;
+		}
+	}
+
+	/**
+	 * @return the priority class of <tt>message</tt>, from its own priority only when
+	 * there is no scheduler
+	 */
+	private Priority priorityOf(SimpleMailMessage message) {
+		PriorityScheduler scheduler = priorityScheduler;
+		if (scheduler != null)
+			return scheduler.priorityOf(message);
+		return PriorityScheduler.priorityOf(message, Collections.<String, Priority> emptyMap(), Priority.NORMAL);
+	}
 
-/**
- * PostMark client implementation of Spring's MailSender.
- * 
- * This implementation opens one HTTP request per mail sent,
- * that could be improved by re-using a pool of HTTP connections.
- * 
- * @see http://postmarkapp.com
- * @see MailSender
- */
-public class PostmarkMailSender implements MailSender {
+	/**
+	 * @return the highest priority class of <tt>messages</tt>
+	 */
+	private Priority priorityOf(List<? extends SimpleMailMessage> messages) {
+		PriorityScheduler scheduler = priorityScheduler;
+		if (scheduler != null)
+			return scheduler.priorityOf(messages);
+		return PriorityScheduler.priorityOf(messages, Collections.<String, Priority> emptyMap(), Priority.NORMAL);
+	}
 
-    private static Logger logger = Logger.getLogger("com.postmark");
-    
-    private String serverToken;
-    private static Gson gson;
-
-    static {
-    	GsonBuilder gsonBuilder = new GsonBuilder();
-    	gsonBuilder.disableHtmlEscaping();
-        gsonBuilder.registerTypeAdapter(SimpleMailMessage.class, new SimpleMailMessageAdapter());
-        gsonBuilder.registerTypeAdapter(PostmarkMessage.class, new SimpleMailMessageAdapter());
-        gsonBuilder.registerTypeAdapter(DateTime.class, new DateTimeTypeAdapter());
-        gson = gsonBuilder.create();
-    }
+	/**
+	 * Serializes the messages and sends them through the batch endpoint, in as few
+	 * calls as allowed by {@link #getMaxBatchSize()} and {@link #getMaxBatchBytes()}.
+	 * 
+	 * @param messages the messages to send
+	 * @param callback notified of the outcome of each message
+	 */
+	void sendBatches(Iterable<? extends SimpleMailMessage> messages, SendCallback callback) {
+		final DeduplicationWindow window = deduplicationWindow;
+		DeduplicatingCallback deduplicating = null;
+		if (window != null)
+			callback = deduplicating = new DeduplicatingCallback(window, callback);
+		try {
+			sendBatches(messages, callback, deduplicating);
+		} finally {
+			if (deduplicating != null)
+				deduplicating.releaseUnreported();
+		}
+	}
 
+	/**
+	 * @param deduplicating the callback holding the deduplication keys of the messages
+	 * being sent, <tt>null</tt> without deduplication window
+	 */
+	private void sendBatches(Iterable<? extends SimpleMailMessage> messages, SendCallback callback,
+			DeduplicatingCallback deduplicating) {
+		SuppressionList suppressions = suppressionList;
+		// messages skipped before acquiring a key are reported around the deduplication
+		SendCallback skipped = deduplicating != null ? deduplicating.callback : callback;
+		PendingBatch emails = new PendingBatch(false);
+		PendingBatch templates = new PendingBatch(true);
+		for(SimpleMailMessage simpleMessage: messages) {
+			if (suppressions != null && suppressions.isSuppressed(simpleMessage)) {
+				skipped.onSuccess(simpleMessage, suppressed());
+				continue;
+			}
+			if (deduplicating != null && !deduplicating.tryAcquire(simpleMessage)) {
+				skipped.onSuccess(simpleMessage, duplicate());
+				continue;
+			}
+			long messageLength;
+			try {
+				SimpleMailMessageWriter.validate(simpleMessage);
+				messageLength = SimpleMailMessageWriter.length(simpleMessage, rawUtf8);
+			} catch (MailException mex) {
+				callback.onFailure(simpleMessage, mex);
+				continue;
+			}
+			try {
+				checkAddresses(simpleMessage);
+			} catch (MailParseException mpe) {
+				// failed as if rejected by Postmark, without a request
+				callback.onFailure(simpleMessage, new MailSendException("Invalid email request", mpe));
+				continue;
+			}
+			PendingBatch batch = simpleMessage instanceof PostmarkTemplateMessage ? templates : emails;
+			if (!batch.messages.isEmpty() && (batch.messages.size() >= maxBatchSize
+					|| batch.length(messageLength) > maxBatchBytes)) {
+				sendBatch(batch.messages, batch.length, callback);
+				batch.clear();
+			}
+			batch.messages.add(simpleMessage);
+			batch.length += messageLength;
+		}
+		if (!emails.messages.isEmpty())
+			sendBatch(emails.messages, emails.length, callback);
+		if (!templates.messages.isEmpty())
+			sendBatch(templates.messages, templates.length, callback);
+	}
 
-    /**
-     * Initializes a new instance of the PostmarkClient class.
-     * <p/>
-     * If you do not have a server token you can request one by signing up to
-     * use Postmark: http://postmarkapp.com.
-     *
-     * @param serverToken the postmark server token
-     */
-    public PostmarkMailSender(String serverToken) {
-        this.serverToken = serverToken;
-    }
+	/**
+	 * Messages collected for the batch endpoint, or for the template batch endpoint.
+	 */
+	private static class PendingBatch {
+		private final boolean templates;
+		List<SimpleMailMessage> messages = new ArrayList<SimpleMailMessage>();
+		long length;
 
-	@Override
-	public void send(SimpleMailMessage message) throws MailException {
+		PendingBatch(boolean templates) {
+			this.templates = templates;
+		}
 
-        HttpClient httpClient = new DefaultHttpClient();
-        PostmarkResponse theResponse = new PostmarkResponse();
+		/**
+		 * @return the length of the request body once a message of <tt>messageLength</tt>
+		 * bytes is added: one separator per message and the brackets, plus the wrapping
+		 * object of template batches
+		 */
+		long length(long messageLength) {
+			return length + messageLength + messages.size() + 2
+					+ (templates ? JsonEntity.TEMPLATE_BATCH_OVERHEAD : 0);
+		}
 
-        try {
+		void clear() {
+			messages = new ArrayList<SimpleMailMessage>();
+			length = 0;
+		}
+	}
+
+	/**
+	 * @return the endpoint sending <tt>message</tt> alone
+	 */
+	static String endpoint(SimpleMailMessage message) {
+		return message instanceof PostmarkTemplateMessage ? TEMPLATE_ENDPOINT : EMAIL_ENDPOINT;
+	}
 
-            // Create post request to Postmark API endpoint
-            HttpPost method = new HttpPost("http://api.postmarkapp.com/email");
+	/**
+	 * @return the response of a message suppressed as a duplicate
+	 */
+	private PostmarkResponse duplicate() {
+		metrics.onOutcome(PostmarkResponseStatus.DUPLICATE, 0);
+		PostmarkResponse theResponse = new PostmarkResponse();
+		theResponse.status = PostmarkResponseStatus.DUPLICATE;
+		theResponse.setMessage("Duplicate of a message sent within the deduplication window");
+		return theResponse;
+	}
 
-            // Add standard headers required by Postmark
-            method.addHeader("Accept",			"application/json");
-            method.addHeader("Content-Type",	"application/json; charset=utf-8");
-            method.addHeader("X-Postmark-Server-Token", serverToken);
-            method.addHeader("User-Agent",		"Postmark-Java");
+	/**
+	 * Callback giving back the deduplication key of the messages which could not be sent.
+	 * <p>
+	 * The keys acquired for messages not reported yet are kept by message instance: a
+	 * same instance sent again is a duplicate, so it holds at most one key. Those left
+	 * once the send is over, when it failed unexpectedly, are given back.
+	 */
+	private static class DeduplicatingCallback implements SendCallback {
+		private final DeduplicationWindow window;
+		private final SendCallback callback;
+		private final Map<SimpleMailMessage, Long> unreported = new IdentityHashMap<SimpleMailMessage, Long>();
 
-            // Convert the message into JSON content
-            String messageContents = UnicodeEscapeFilterWriter.escape(gson.toJson(message));
-            logger.log(Level.FINER, "Message contents: " + messageContents);
+		DeduplicatingCallback(DeduplicationWindow window, SendCallback callback) {
+			this.window = window;
+			this.callback = callback;
+		}
 
-            // Add JSON as payload to post request
-            StringEntity payload = new StringEntity(messageContents);
-            payload.setContentEncoding(HTTP.UTF_8);
-            method.setEntity(payload);
+		/**
+		 * @return whether the key of <tt>message</tt> was acquired, else it is a duplicate
+		 */
+		boolean tryAcquire(SimpleMailMessage message) {
+			long key = DeduplicationWindow.key(message);
+			if (!window.tryAcquire(key))
+				return false;
+			unreported.put(message, key);
+			return true;
+		}
 
-            ResponseHandler<String> responseHandler = new BasicResponseHandler();
-            try {
-                String response = httpClient.execute(method, responseHandler);
-                logger.log(Level.FINER, "Message response: " + response);
-                theResponse = gson.fromJson(response, PostmarkResponse.class);
-                theResponse.status = PostmarkResponseStatus.SUCCESS;
-            } catch (HttpResponseException hre) {
-                switch(hre.getStatusCode()) {
-                    case 401:
-                    case 422:
-                        logger.log(Level.SEVERE, "There was a problem with the email: " + hre.getMessage());
-                        theResponse.setMessage(hre.getMessage());
-                        theResponse.status = PostmarkResponseStatus.USERERROR;
-                        throw new MailSendException("Postmark returned: "+theResponse);
-                    case 500:
-                        logger.log(Level.SEVERE, "There has been an error sending your email: " + hre.getMessage());
-                        theResponse.setMessage(hre.getMessage());
-                        theResponse.status = PostmarkResponseStatus.SERVERERROR;
-                        throw new MailSendException("Postmark returned: "+theResponse);
-                    default:
-                        logger.log(Level.SEVERE, "There has been an unknow error sending your email: " + hre.getMessage());
-                        theResponse.status = PostmarkResponseStatus.UNKNOWN;
-                        theResponse.setMessage(hre.getMessage());
-                        throw new MailSendException("Postmark returned: "+theResponse);
-                }
-            }
+		@Override
+		public void onSuccess(SimpleMailMessage message, PostmarkResponse response) {
+			unreported.remove(message);
+			callback.onSuccess(message, response);
+		}
+
+		@Override
+		public void onFailure(SimpleMailMessage message, MailException exception) {
+			Long key = unreported.remove(message);
+			window.release(key != null ? key.longValue() : DeduplicationWindow.key(message));
+			callback.onFailure(message, exception);
+		}
+
+		/**
+		 * Gives back the keys of the messages acquired but never reported.
+		 */
+		void releaseUnreported() {
+			for (Long key : unreported.values())
+				window.release(key.longValue());
+			unreported.clear();
+		}
+	}
+
+	/**
+	 * Posts one batch and maps the per-message results back to <tt>batch</tt>. Retries
+	 * go on with the messages which failed transiently.
+	 * 
+	 * @param batch messages which are either all or none {@link PostmarkTemplateMessage template messages}
+	 */
+	private void sendBatch(List<SimpleMailMessage> batch, long batchLength, SendCallback callback) {
+		long deadline = Attempt.deadline(TimeUnit.MILLISECONDS.toNanos(deadlineMillis));
+		Priority priority = priorityOf(batch);
+		RetryPolicy policy = retryPolicy;
+		if (policy != null)
+			policy.onSend();
+		for (int attempt = 1; ; attempt++) {
+			if (logger.isLoggable(Level.FINER))
+				logger.log(Level.FINER, "Sending batch of " + batch.size() + " messages");
+			PostmarkResponse[] responses;
+			try {
+				responses = batch.get(0) instanceof PostmarkTemplateMessage
+						? execute(TEMPLATE_BATCH_ENDPOINT, JsonEntity.forTemplateBatch(batch, rawUtf8, batchLength),
+								batchParser, priority, new Attempt(deadline))
+						: execute(BATCH_ENDPOINT, JsonEntity.forBatch(batch, rawUtf8, batchLength), batchParser,
+								priority, new Attempt(deadline));
+			} catch (Exception e) {
+				if (backOff(e, attempt, deadline))
+					continue;
+				logger.log(Level.SEVERE, "There has been an error sending batch: " + e.getMessage());
+				MailException mex = SendFuture.toMailException(e);
+				for (SimpleMailMessage simpleMessage : batch) {
+					recordFailure(e);
+					callback.onFailure(simpleMessage, mex);
+				}
+				return;
+			}
+			List<SimpleMailMessage> missing = new ArrayList<SimpleMailMessage>();
+			for (int i = 0; i < batch.size(); i++) {
+				PostmarkResponse theResponse = responses != null && i < responses.length ? responses[i] : null;
+				if (theResponse == null) {
+					missing.add(batch.get(i));
+				} else if (theResponse.errorCode != 0) {
+					theResponse.status = PostmarkResponseStatus.USERERROR;
+					metrics.onOutcome(PostmarkResponseStatus.USERERROR, theResponse.errorCode);
+					onInactiveRecipients(batch.get(i), theResponse.errorCode);
+					callback.onFailure(batch.get(i), new MailSendException("Postmark returned: " + theResponse));
+				} else {
+					theResponse.status = PostmarkResponseStatus.SUCCESS;
+					metrics.onOutcome(PostmarkResponseStatus.SUCCESS, 0);
+					callback.onSuccess(batch.get(i), theResponse);
+				}
+			}
+			if (missing.isEmpty())
+				return;
+			MailSendException noResult = new MailSendException("Postmark returned no result for this message");
+			if (!backOff(null, attempt, deadline)) {
+				for (SimpleMailMessage simpleMessage : missing) {
+					metrics.onOutcome(PostmarkResponseStatus.UNKNOWN, 0);
+					callback.onFailure(simpleMessage, noResult);
+				}
+				return;
+			}
+			batch = missing;
+			batchLength = 0;
+			for (SimpleMailMessage simpleMessage : missing)
+				batchLength += SimpleMailMessageWriter.length(simpleMessage, rawUtf8);
+		}
+	}
+
+	/**
+	 * Waits before retrying a failed attempt, if the retry policy allows it.
+	 * 
+	 * @param failure the failure, or <tt>null</tt> for messages Postmark returned no result for
+	 * @param attempt the number of the failed attempt, starting at 1
+	 * @param deadline the deadline of the send, which the retry must not reach
+	 * @return whether to retry
+	 */
+	private boolean backOff(Exception failure, int attempt, long deadline) {
+		RetryPolicy policy = retryPolicy;
+		if (policy == null || attempt >= policy.getMaxAttempts()
+				|| (failure != null && !policy.isRetryable(failure)))
+			return false;
+		long backoff = policy.backoffMillis(attempt);
+		if (deadline != Attempt.NO_DEADLINE && deadline - System.nanoTime() <= TimeUnit.MILLISECONDS.toNanos(backoff))
+			return false;
+		if (!policy.tryRetry())
+			return false;
+		logger.log(Level.WARNING, "Retrying failed attempt " + attempt + " in " + backoff + " ms"
+				+ (failure != null ? ": " + failure.getMessage() : ""));
+		try {
+			Thread.sleep(backoff);
+			return true;
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Posts messages already encoded as JSON as one batch, which must fit the batch limits.
+	 * 
+	 * @param messages messages encoded by {@link SimpleMailMessageWriter#encode(SimpleMailMessage, boolean)}
+	 * @return the responses, in the order of <tt>messages</tt>, with their status set.
+	 * A message Postmark returned no result for has a <tt>null</tt> response.
+	 * @throws MailException if the whole request failed
+	 */
+	PostmarkResponse[] sendEncoded(List<byte[]> messages) throws MailException {
+		if (logger.isLoggable(Level.FINER))
+			logger.log(Level.FINER, "Sending batch of " + messages.size() + " encoded messages");
+		PostmarkResponse[] responses;
+		try {
+			responses = execute(BATCH_ENDPOINT, JsonEntity.forEncoded(messages), batchParser, Priority.NORMAL,
+					new Attempt(Attempt.deadline(TimeUnit.MILLISECONDS.toNanos(deadlineMillis))));
+		} catch (Exception e) {
+			logger.log(Level.SEVERE, "There has been an error sending batch: " + e.getMessage());
+			for (int i = 0; i < messages.size(); i++)
+				recordFailure(e);
+			throw SendFuture.toMailException(e);
+		}
+		PostmarkResponse[] results = new PostmarkResponse[messages.size()];
+		for (int i = 0; i < results.length; i++) {
+			results[i] = responses != null && i < responses.length ? responses[i] : null;
+			if (results[i] == null) {
+				metrics.onOutcome(PostmarkResponseStatus.UNKNOWN, 0);
+				continue;
+			}
+			results[i].status = results[i].errorCode != 0 ? PostmarkResponseStatus.USERERROR : PostmarkResponseStatus.SUCCESS;
+			metrics.onOutcome(results[i].status, results[i].errorCode);
+		}
+		return results;
+	}
+
+	/**
+	 * Counts the outcome of a message which failed with <tt>failure</tt>. Local
+	 * validation failures are not counted.
+	 */
+	private void recordFailure(Throwable failure) {
+		for (Throwable t = failure; t != null; t = t.getCause()) {
+			if (t instanceof MailParseException)
+				return;
+			if (t instanceof PostmarkResponseException) {
+				PostmarkResponse response = ((PostmarkResponseException) t).getResponse();
+				metrics.onOutcome(response.getStatus(), response.getErrorCode());
+				return;
+			}
+		}
+		metrics.onOutcome(PostmarkResponseStatus.UNKNOWN, 0);
+	}
+
+	/**
+	 * Posts JSON contents to a Postmark API endpoint, once the priority scheduler, if
+	 * any, grants a permit.
+	 * 
+	 * @param endpoint the endpoint path, relative to the API URL
+	 * @param payload the JSON contents
+	 * @param priority the priority class of the request
+	 * @param attempt the control of the request; a hedged attempt aborted by the other
+	 * one does not count as a failure
+	 * @return the response body
+	 * @throws PostmarkResponseException if Postmark answered with an error status
+	 * @throws CircuitBreaker.OpenException if the circuit breaker is open
+	 * @throws DeadlineExceededException if the deadline of <tt>attempt</tt> has passed
+	 * @throws IOException in case of connection problem
+	 */
+	private <T> T execute(String endpoint, JsonEntity payload, ResponseParser<T> parser, Priority priority,
+			Attempt attempt) throws IOException {
+		PriorityScheduler scheduler = priorityScheduler;
+		if (scheduler == null)
+			return executeLimited(endpoint, payload, parser, attempt);
+		if (!scheduler.tryAcquire(priority, remainingNanos(attempt), TimeUnit.NANOSECONDS))
+			throw new DeadlineExceededException(new InterruptedIOException("No " + priority + " priority permit before the deadline"));
+		try {
+			return executeLimited(endpoint, payload, parser, attempt);
+		} finally {
+			scheduler.release(priority);
+		}
+	}
+
+	/**
+	 * @return the time left before the deadline of <tt>attempt</tt>, {@link Long#MAX_VALUE} without deadline
+	 */
+	private static long remainingNanos(Attempt attempt) {
+		return attempt.getDeadlineNanos() == Attempt.NO_DEADLINE ? Long.MAX_VALUE
+				: attempt.getDeadlineNanos() - System.nanoTime();
+	}
+
+	/**
+	 * Posts JSON contents to a Postmark API endpoint, through the circuit breaker and
+	 * the limiters if any. Waiting for the limiters is bounded by the deadline of
+	 * <tt>attempt</tt>. An attempt cancelled by a hedged send leaves no outcome.
+	 */
+	private <T> T executeLimited(String endpoint, JsonEntity payload, ResponseParser<T> parser, Attempt attempt) throws IOException {
+		CircuitBreaker breaker = circuitBreaker;
+		RateLimiter limiter = rateLimiter;
+		AdaptiveConcurrencyLimiter concurrency = concurrencyLimiter;
+		if (breaker == null && limiter == null && concurrency == null)
+			return post(endpoint, payload, parser, attempt);
+
+		boolean trial = breaker != null && breaker.acquire();
+		boolean bounded = attempt.getDeadlineNanos() != Attempt.NO_DEADLINE;
+		if (limiter != null) {
+			if (!bounded)
+				limiter.acquire();
+			else if (!limiter.tryAcquire(remainingNanos(attempt), TimeUnit.NANOSECONDS))
+				throw limiterTimeout(breaker, trial, "rate limiter");
+		}
+		if (concurrency != null) {
+			if (!bounded)
+				concurrency.acquire();
+			else if (!concurrency.tryAcquire(remainingNanos(attempt), TimeUnit.NANOSECONDS))
+				throw limiterTimeout(breaker, trial, "concurrency limiter");
+		}
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			T response = post(endpoint, payload, parser, attempt);
+			failed = false;
+			return response;
+		} catch (IOException ioe) {
+			failed = !attempt.isCancelled() && RetryPolicy.isTransient(ioe);
+			throw ioe;
+		} catch (RuntimeException re) {
+			failed = !attempt.isCancelled() && RetryPolicy.isTransient(re);
+			throw re;
+		} finally {
+			if (attempt.isCancelled()) {
+				// aborted by a hedged send, which says nothing of Postmark health
+				if (concurrency != null)
+					concurrency.cancel();
+				if (breaker != null)
+					breaker.onCancel(trial);
+			} else {
+				if (concurrency != null)
+					concurrency.release(System.nanoTime() - start, failed);
+				if (breaker != null) {
+					if (failed)
+						breaker.onFailure(trial);
+					else
+						breaker.onSuccess(trial);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the failure of an attempt which reached its deadline waiting for a limiter,
+	 * after giving back the trial request of the breaker if any
+	 */
+	private static DeadlineExceededException limiterTimeout(CircuitBreaker breaker, boolean trial, String limiter) {
+		if (breaker != null)
+			breaker.onCancel(trial);
+		return new DeadlineExceededException(new InterruptedIOException("No " + limiter + " permit before the deadline"));
+	}
 
-        } catch (Exception e) {
-            logger.log(Level.SEVERE, "There has been an error sending email: " + e.getMessage());
-            throw new MailSendException("There has been an error sending email", e);
-        
+	/**
+	 * Posts JSON contents to a Postmark API endpoint, aborted at the deadline of <tt>attempt</tt>.
+	 */
+	private <T> T post(String endpoint, JsonEntity payload, ResponseParser<T> parser, Attempt attempt) throws IOException {
+        HttpClient client = getHttpClient();
+
+        // Create post request to Postmark API endpoint
+        HttpPost method = new HttpPost(apiUrl + endpoint);
+
+        // Add standard headers required by Postmark
+        method.addHeader("Accept",			"application/json");
+        method.addHeader("Content-Type",	"application/json; charset=utf-8");
+        method.addHeader("X-Postmark-Server-Token", serverToken);
+        method.addHeader("User-Agent",		"Postmark-Java");
+
+        // Add JSON as payload to post request, only rendered as a string when logged,
+        // without reading the attachments
+        if (logger.isLoggable(Level.FINER))
+            logger.log(Level.FINER, "Message contents: " + payload.toSummary());
+        HttpEntity entity = payload;
+        long threshold = gzipThreshold;
+        if (threshold >= 0 && payload.getContentLength() >= threshold)
+            entity = new GzipEntity(payload, deflaters);
+        method.setEntity(new MeteredEntity(entity, payload, attempt));
+
+        metrics.onRequestStart();
+        long start = System.nanoTime();
+        ScheduledFuture<?> expiry = null;
+        try {
+            attempt.start(method);
+            expiry = scheduleExpiry(attempt);
+            return client.execute(method, parser);
+        } catch (IOException ioe) {
+            if (attempt.isExpired())
+                throw new DeadlineExceededException(ioe);
+            throw ioe;
         } finally {
-            httpClient.getConnectionManager().shutdown();
+            attempt.end();
+            if (expiry != null)
+                expiry.cancel(false);
+            metrics.record(SenderMetrics.Phase.ROUND_TRIP, System.nanoTime() - start);
+            metrics.onRequestEnd();
         }
+	}
 
-		
+	/**
+	 * Schedules the abort of <tt>attempt</tt> at its deadline, or aborts it now if
+	 * the deadline has passed.
+	 * 
+	 * @return the scheduled abort, or <tt>null</tt>
+	 */
+	private ScheduledFuture<?> scheduleExpiry(final Attempt attempt) {
+		if (attempt.getDeadlineNanos() == Attempt.NO_DEADLINE)
+			return null;
+		long remaining = attempt.getDeadlineNanos() - System.nanoTime();
+		if (remaining <= 0) {
+			attempt.expire();
+			return null;
+		}
+		return timer().schedule(new Runnable() {
+			@Override
+			public void run() {
+				attempt.expire();
+			}
+		}, remaining, TimeUnit.NANOSECONDS);
 	}
 
-	@Override
-	public void send(SimpleMailMessage[] simpleMessages) throws MailException {
-		///FIXME default naive, non-optimal implementation (sequentially opens simpleMessages.length HTTP connections...)
-		Map<Object, Exception> failedMessages = new LinkedHashMap<Object, Exception>();
-		for(SimpleMailMessage simpleMessage: simpleMessages) {
+	/**
+	 * @return the executor aborting requests at their deadline and starting hedged attempts
+	 */
+	private ScheduledExecutorService timer() {
+		ScheduledExecutorService executor = timer;
+		if (executor != null)
+			return executor;
+		synchronized (this) {
+			if (closed)
+				throw new IllegalStateException("PostmarkMailSender has been closed");
+			if (timer == null)
+				timer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("postmark-timer"));
+			return timer;
+		}
+	}
+
+	/**
+	 * @return the sender of the attempts of a hedged send of <tt>message</tt>
+	 */
+	private HedgedSend.Sender attemptSender(final SimpleMailMessage message, final Priority priority) {
+		return new HedgedSend.Sender() {
+			@Override
+			public PostmarkResponse send(Attempt attempt) throws IOException {
+				return execute(endpoint(message), JsonEntity.forMessage(message, rawUtf8), responseParser, priority, attempt);
+			}
+		};
+	}
+
+	/**
+	 * @return the executor of the second attempts of hedged sends
+	 */
+	private ExecutorService hedgeExecutor() {
+		ExecutorService executor = hedgeExecutor;
+		if (executor != null)
+			return executor;
+		synchronized (this) {
+			if (closed)
+				throw new IllegalStateException("PostmarkMailSender has been closed");
+			if (hedgeExecutor == null)
+				hedgeExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory("postmark-hedge"));
+			return hedgeExecutor;
+		}
+	}
+
+	/**
+	 * Gets JSON contents from a Postmark API endpoint, bypassing the circuit breaker
+	 * and the limiters, which are meant for sends.
+	 */
+	private <T> T get(String endpoint, ResponseParser<T> parser) throws IOException {
+		HttpGet method = new HttpGet(apiUrl + endpoint);
+		method.addHeader("Accept", "application/json");
+		method.addHeader("X-Postmark-Server-Token", serverToken);
+		method.addHeader("User-Agent", "Postmark-Java");
+		return getHttpClient().execute(method, parser);
+	}
+
+	/**
+	 * Reads Postmark responses from the entity stream, and turns error statuses into
+	 * a {@link PostmarkResponseException} carrying the Postmark error code and message.
+	 */
+	private abstract class ResponseParser<T> implements ResponseHandler<T> {
+
+		@Override
+		public T handleResponse(HttpResponse response) throws IOException {
+			StatusLine statusLine = response.getStatusLine();
+			HttpEntity entity = response.getEntity();
+			if (statusLine.getStatusCode() >= 300)
+				throw responseException(statusLine, entity);
+			if (entity == null)
+				throw new MailParseException("Postmark response has no content");
+			byte[] buf = BufferPool.SHARED.acquire();
+			long start = System.nanoTime();
 			try {
-				send(simpleMessage);
-			} catch (MailException mex) {
-				failedMessages.put(simpleMessage, mex);
+				return read(new JsonPullParser(content(entity), buf));
+			} catch (IllegalStateException ise) {
+				throw new MailParseException("Could not parse the Postmark response", ise);
+			} finally {
+				metrics.record(SenderMetrics.Phase.PARSE, System.nanoTime() - start);
+				BufferPool.SHARED.release(buf);
 			}
 		}
-		if(! failedMessages.isEmpty())
-			throw new MailSendException(failedMessages);
+
+		abstract T read(JsonPullParser in) throws IOException;
+	}
+
+	private final ResponseParser<PostmarkResponse> responseParser = new ResponseParser<PostmarkResponse>() {
+		@Override
+		PostmarkResponse read(JsonPullParser in) throws IOException {
+			return PostmarkResponseReader.read(in);
+		}
+	};
+
+	private final ResponseParser<PostmarkResponse[]> batchParser = new ResponseParser<PostmarkResponse[]>() {
+		@Override
+		PostmarkResponse[] read(JsonPullParser in) throws IOException {
+			return PostmarkResponseReader.readBatch(in);
+		}
+	};
+
+	private final ResponseParser<Set<String>> suppressionsParser = new ResponseParser<Set<String>>() {
+		@Override
+		Set<String> read(JsonPullParser in) throws IOException {
+			Set<String> addresses = SuppressionList.newSet();
+			PostmarkResponseReader.readSuppressions(in, addresses);
+			return addresses;
+		}
+	};
+
+	/**
+	 * @return the response body stream, or the logged body when responses are logged
+	 */
+	private static InputStream content(HttpEntity entity) throws IOException {
+		if (!logger.isLoggable(Level.FINER))
+			return entity.getContent();
+		byte[] body = EntityUtils.toByteArray(entity);
+		logger.log(Level.FINER, "Message response: " + new String(body, HTTP.UTF_8));
+		return new ByteArrayInputStream(body);
+	}
+
+	/**
+	 * Reads the Postmark error of an error response. Error bodies which are not
+	 * Postmark errors, such as the page of a proxy, leave the HTTP reason phrase as message.
+	 */
+	private static PostmarkResponseException responseException(StatusLine statusLine, HttpEntity entity) {
+		PostmarkResponse theResponse = new PostmarkResponse();
+		theResponse.setMessage(statusLine.getReasonPhrase());
+		if (entity != null) {
+			byte[] buf = BufferPool.SHARED.acquire();
+			try {
+				PostmarkResponse error = PostmarkResponseReader.read(new JsonPullParser(content(entity), buf));
+				theResponse.setErrorCode(error.getErrorCode());
+				if (error.getMessage() != null)
+					theResponse.setMessage(error.getMessage());
+			} catch (Exception e) {
+				logger.log(Level.FINE, "Could not read the Postmark error: " + e.getMessage());
+			} finally {
+				BufferPool.SHARED.release(buf);
+			}
+		}
+		int statusCode = statusLine.getStatusCode();
+		switch (statusCode) {
+			case 401:
+			case 422:
+				logger.log(Level.SEVERE, "There was a problem with the email: " + theResponse.getMessage());
+				theResponse.status = PostmarkResponseStatus.USERERROR;
+				break;
+			case 500:
+				logger.log(Level.SEVERE, "There has been an error sending your email: " + theResponse.getMessage());
+				theResponse.status = PostmarkResponseStatus.SERVERERROR;
+				break;
+			default:
+				logger.log(Level.SEVERE, "There has been an unknow error sending your email: " + theResponse.getMessage());
+				theResponse.status = PostmarkResponseStatus.UNKNOWN;
+		}
+		return new PostmarkResponseException(statusCode, theResponse);
+	}
+
+	/**
+	 * Entity timing the serialization of the request body and counting the bytes sent.
+	 */
+	private class MeteredEntity extends HttpEntityWrapper {
+		private final JsonEntity payload;
+		private final Attempt attempt;
+
+		/**
+		 * @param entity the entity sent, <tt>payload</tt> or its compressed form
+		 * @param payload the JSON entity, timing its escaping
+		 */
+		MeteredEntity(HttpEntity entity, JsonEntity payload, Attempt attempt) {
+			super(entity);
+			this.payload = payload;
+			this.attempt = attempt;
+		}
+
+		/**
+		 * Times the upload of the body, and the serialization within it as the time
+		 * not spent in the writes to the connection.
+		 */
+		@Override
+		public void writeTo(OutputStream outstream) throws IOException {
+			long start = System.nanoTime();
+			long length = wrappedEntity.isChunked() ? -1 : wrappedEntity.getContentLength();
+			CountingOutputStream out = new CountingOutputStream(outstream, attempt, length);
+			try {
+				wrappedEntity.writeTo(out);
+				// a chunked body is only complete once its last chunk follows
+				if (!attempt.isWritten())
+					attempt.onWritten();
+			} finally {
+				long upload = System.nanoTime() - start;
+				metrics.record(SenderMetrics.Phase.UPLOAD, upload);
+				metrics.record(SenderMetrics.Phase.SERIALIZE, upload - out.writeNanos);
+				metrics.record(SenderMetrics.Phase.ESCAPE, payload.getEscapeNanos());
+				metrics.onBytesSent(out.count);
+			}
+		}
+	}
+
+	/**
+	 * Failure of a send which did not complete before its deadline.
+	 * 
+	 * @see PostmarkMailSender#setDeadlineMillis(long)
+	 */
+	public static class DeadlineExceededException extends MailSendException {
+		private static final long serialVersionUID = 1L;
+
+		DeadlineExceededException(IOException cause) {
+			super("Send deadline exceeded", cause);
+		}
+	}
+
+	/**
+	 * Stream counting the bytes of a request body and the time spent writing them to
+	 * the connection, and marking its attempt written right before the write
+	 * completing a body of known length.
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+		private final Attempt attempt;
+		private final long length;
+		long count;
+		long writeNanos;
+
+		/**
+		 * @param length the length of the body, or <tt>-1</tt> if unknown
+		 */
+		CountingOutputStream(OutputStream out, Attempt attempt, long length) {
+			super(out);
+			this.attempt = attempt;
+			this.length = length;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			beforeWrite(1);
+			long start = System.nanoTime();
+			out.write(b);
+			writeNanos += System.nanoTime() - start;
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			beforeWrite(len);
+			long start = System.nanoTime();
+			out.write(b, off, len);
+			writeNanos += System.nanoTime() - start;
+			count += len;
+		}
+
+		/**
+		 * Once the last bytes of the body are handed to the connection, Postmark may
+		 * get the whole request: it can no longer be aborted as unwritten.
+		 */
+		private void beforeWrite(int len) throws IOException {
+			if (length >= 0 && count + len >= length && !attempt.isWritten())
+				attempt.onWritten();
+		}
 	}
 	
 	
@@ -189,19 +1976,23 @@ public class PostmarkMailSender implements MailSender {
 	/**
 	 * Possible outcomes of a Response from the Postmark server
 	 */
-	static enum PostmarkResponseStatus {
-		UNKNOWN, SUCCESS, USERERROR, SERVERERROR
+	public static enum PostmarkResponseStatus {
+		UNKNOWN, SUCCESS, USERERROR, SERVERERROR,
+		/** Not sent, as a duplicate of a recent message, see {@link DeduplicationWindow}. */
+		DUPLICATE,
+		/** Not sent, as all its recipients are suppressed, see {@link SuppressionList}. */
+		SUPPRESSED
 	}
 
 	/**
 	 * Response from the Postmark server
 	 */
-	static class PostmarkResponse {
+	public static class PostmarkResponse {
 	    @Override
 		public String toString() {
 			return "PostmarkResponse [errorCode=" + errorCode + ", message="
 					+ message + ", status=" + status + ", submittedAt="
-					+ submittedAt + ", to=" + to + "]";
+					+ (submittedAt != null ? submittedAt : submittedAtText) + ", to=" + to + ", messageId=" + messageId + "]";
 		}
 
 		/** The status outcome of the response. */
@@ -212,9 +2003,15 @@ public class PostmarkMailSender implements MailSender {
 	    @SerializedName("Message")
 	    public String message;
 
-	    /** The time the request was received by Postmark. */
+	    /**
+	     * The time the request was received by Postmark, only set once parsed: read it
+	     * through {@link #getSubmittedAt()}.
+	     */
 	    @SerializedName("SubmittedAt")
-	    public DateTime submittedAt;
+	    private DateTime submittedAt;
+
+	    /** The time as received, parsed on first access. */
+	    transient String submittedAtText;
 
 	    /** The recipient of the submitted request. */
 	    @SerializedName("To")
@@ -224,6 +2021,10 @@ public class PostmarkMailSender implements MailSender {
 	    @SerializedName("ErrorCode")
 	    public int errorCode;
 
+	    /** The Postmark identifier of the accepted message. */
+	    @SerializedName("MessageID")
+	    public String messageId;
+
 	    public PostmarkResponseStatus getStatus() {
 	        return status;
 	    }
@@ -238,11 +2039,17 @@ public class PostmarkMailSender implements MailSender {
 	        this.message = message;
 	    }
 
+	    /**
+	     * @return the time the request was received by Postmark, parsed on first call
+	     */
 	    public DateTime getSubmittedAt() {
+	        if (submittedAt == null && submittedAtText != null)
+	            submittedAt = new DateTime(submittedAtText);
 	        return submittedAt;
 	    }
 	    public void setSubmittedAt(DateTime submittedAt) {
 	        this.submittedAt = submittedAt;
+	        this.submittedAtText = null;
 	    }
 
 	    public String getTo() {
@@ -258,6 +2065,34 @@ public class PostmarkMailSender implements MailSender {
 	    public void setErrorCode(int errorCode) {
 	        this.errorCode = errorCode;
 	    }
+
+	    public String getMessageId() {
+	        return messageId;
+	    }
+	    public void setMessageId(String messageId) {
+	        this.messageId = messageId;
+	    }
+	}
+	
+	
+	
+	/**
+	 * Keep-alive strategy honoring the server <tt>Keep-Alive</tt> header, and falling
+	 * back to a default duration instead of keeping connections forever.
+	 */
+	static class KeepAliveStrategy implements ConnectionKeepAliveStrategy {
+		private final ConnectionKeepAliveStrategy serverStrategy = new DefaultConnectionKeepAliveStrategy();
+		private final long defaultKeepAliveMillis;
+
+		KeepAliveStrategy(long defaultKeepAliveMillis) {
+			this.defaultKeepAliveMillis = defaultKeepAliveMillis;
+		}
+
+		@Override
+		public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+			long duration = serverStrategy.getKeepAliveDuration(response, context);
+			return duration > 0 ? Math.min(duration, defaultKeepAliveMillis) : defaultKeepAliveMillis;
+		}
 	}
 	
 	
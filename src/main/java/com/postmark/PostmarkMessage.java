@@ -31,6 +31,9 @@
 
 package com.postmark;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.springframework.mail.SimpleMailMessage;
 
 /**
@@ -42,6 +45,12 @@ public class PostmarkMessage extends SimpleMailMessage {
 
 	private String htmlBody;
 
+	private String idempotencyKey;
+
+	private Priority priority;
+
+	private List<Attachment> attachments;
+
 	public void setTag(String tag) {
 		this.tag = tag;
 	}
@@ -58,6 +67,46 @@ public class PostmarkMessage extends SimpleMailMessage {
 		this.htmlBody = htmlBody;
 	}
 
+	/**
+	 * @return the key identifying this message to a {@link DeduplicationWindow}, never sent to Postmark
+	 */
+	public String getIdempotencyKey() {
+		return idempotencyKey;
+	}
+
+	public void setIdempotencyKey(String idempotencyKey) {
+		this.idempotencyKey = idempotencyKey;
+	}
+
+	/**
+	 * @return the class scheduling this message in a {@link PriorityScheduler}, never
+	 * sent to Postmark, or <tt>null</tt> to derive it from the tag
+	 */
+	public Priority getPriority() {
+		return priority;
+	}
+
+	public void setPriority(Priority priority) {
+		this.priority = priority;
+	}
+
+	/**
+	 * @return the attachments, or <tt>null</tt> if there are none
+	 */
+	public List<Attachment> getAttachments() {
+		return attachments;
+	}
+
+	public void setAttachments(List<Attachment> attachments) {
+		this.attachments = attachments;
+	}
+
+	public void addAttachment(Attachment attachment) {
+		if (attachments == null)
+			attachments = new ArrayList<Attachment>();
+		attachments.add(attachment);
+	}
+
 }
 
 
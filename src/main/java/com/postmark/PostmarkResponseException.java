@@ -0,0 +1,70 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+package com.postmark;
+
+import org.springframework.mail.MailSendException;
+
+import com.postmark.PostmarkMailSender.PostmarkResponse;
+
+/**
+ * Exception thrown when Postmark answers a request with an error status.
+ */
+public class PostmarkResponseException extends MailSendException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int statusCode;
+	private final PostmarkResponse response;
+
+	/**
+	 * @param statusCode the HTTP status code
+	 * @param response the Postmark response, with its status set
+	 */
+	public PostmarkResponseException(int statusCode, PostmarkResponse response) {
+		super("Postmark returned: " + response);
+		this.statusCode = statusCode;
+		this.response = response;
+	}
+
+	/**
+	 * @return the HTTP status code
+	 */
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	/**
+	 * @return the Postmark response
+	 */
+	public PostmarkResponse getResponse() {
+		return response;
+	}
+}
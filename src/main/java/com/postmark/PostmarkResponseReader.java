@@ -0,0 +1,117 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+package com.postmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import com.postmark.PostmarkMailSender.PostmarkResponse;
+import com.postmark.util.JsonPullParser;
+
+/**
+ * Reads Postmark responses with a {@link JsonPullParser}, without an intermediate
+ * String or tree. Unknown fields are skipped, and <tt>SubmittedAt</tt> is only
+ * parsed as a date when read.
+ */
+final class PostmarkResponseReader {
+
+	private PostmarkResponseReader() {
+	}
+
+	/**
+	 * Reads a response object, of a single message or of an error.
+	 */
+	static PostmarkResponse read(JsonPullParser in) throws IOException {
+		PostmarkResponse response = new PostmarkResponse();
+		in.beginObject();
+		while (in.hasNext()) {
+			String name = in.nextName();
+			if (in.peek() == JsonPullParser.Token.NULL) {
+				in.nextNull();
+			} else if ("ErrorCode".equals(name)) {
+				response.errorCode = in.nextInt();
+			} else if ("Message".equals(name)) {
+				response.message = in.nextString();
+			} else if ("MessageID".equals(name)) {
+				response.messageId = in.nextString();
+			} else if ("SubmittedAt".equals(name)) {
+				response.submittedAtText = in.nextString();
+			} else if ("To".equals(name)) {
+				response.to = in.nextString();
+			} else {
+				in.skipValue();
+			}
+		}
+		in.endObject();
+		return response;
+	}
+
+	/**
+	 * Reads the array of responses of a batch, in the order of the messages.
+	 */
+	static PostmarkResponse[] readBatch(JsonPullParser in) throws IOException {
+		List<PostmarkResponse> responses = new ArrayList<PostmarkResponse>();
+		in.beginArray();
+		while (in.hasNext())
+			responses.add(read(in));
+		in.endArray();
+		return responses.toArray(new PostmarkResponse[responses.size()]);
+	}
+
+	/**
+	 * Reads the addresses of a suppression dump into <tt>addresses</tt>, normalized as
+	 * by {@link SuppressionList}.
+	 */
+	static void readSuppressions(JsonPullParser in, Collection<String> addresses) throws IOException {
+		in.beginObject();
+		while (in.hasNext()) {
+			if (!"Suppressions".equals(in.nextName()) || in.peek() != JsonPullParser.Token.BEGIN_ARRAY) {
+				in.skipValue();
+				continue;
+			}
+			in.beginArray();
+			while (in.hasNext()) {
+				in.beginObject();
+				while (in.hasNext()) {
+					if ("EmailAddress".equals(in.nextName()) && in.peek() == JsonPullParser.Token.STRING)
+						addresses.add(SuppressionList.normalize(in.nextString()));
+					else
+						in.skipValue();
+				}
+				in.endObject();
+			}
+			in.endArray();
+		}
+		in.endObject();
+	}
+}
@@ -0,0 +1,101 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+
+package com.postmark;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Postmark message rendered server-side from a stored template, sent through
+ * <tt>/email/withTemplate</tt> and <tt>/email/batchWithTemplates</tt>.
+ * <p>
+ * The template is identified by its id or its alias, and rendered with a model of
+ * named values: strings, numbers, booleans, maps, collections and arrays, other values
+ * being written as their <tt>toString()</tt>. The subject and bodies come from the
+ * template: those of this message are not sent.
+ */
+public class PostmarkTemplateMessage extends PostmarkMessage {
+
+	private static final long serialVersionUID = 1L;
+
+	private Long templateId;
+
+	private String templateAlias;
+
+	private Map<String, Object> templateModel;
+
+	/**
+	 * @return the id of the template, or <tt>null</tt> if identified by its alias
+	 */
+	public Long getTemplateId() {
+		return templateId;
+	}
+
+	public void setTemplateId(Long templateId) {
+		this.templateId = templateId;
+	}
+
+	/**
+	 * @return the alias of the template, or <tt>null</tt> if identified by its id
+	 */
+	public String getTemplateAlias() {
+		return templateAlias;
+	}
+
+	public void setTemplateAlias(String templateAlias) {
+		this.templateAlias = templateAlias;
+	}
+
+	/**
+	 * @return the values the template is rendered with, or <tt>null</tt> if there are none
+	 */
+	public Map<String, Object> getTemplateModel() {
+		return templateModel;
+	}
+
+	public void setTemplateModel(Map<String, Object> templateModel) {
+		this.templateModel = templateModel;
+	}
+
+	/**
+	 * Adds a value to the model, kept in insertion order.
+	 * 
+	 * @return this message
+	 */
+	public PostmarkTemplateMessage addModelValue(String name, Object value) {
+		if (templateModel == null)
+			templateModel = new LinkedHashMap<String, Object>();
+		templateModel.put(name, value);
+		return this;
+	}
+
+}
@@ -0,0 +1,56 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+
+package com.postmark;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous task, taken from the queue of the own executor by virtual start
+ * time, then in submission order.
+ */
+abstract class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+	private static final AtomicLong sequence = new AtomicLong();
+
+	final double tag;
+	private final long order = sequence.getAndIncrement();
+
+	PrioritizedTask(double tag) {
+		this.tag = tag;
+	}
+
+	@Override
+	public int compareTo(PrioritizedTask other) {
+		if (tag != other.tag)
+			return tag < other.tag ? -1 : 1;
+		return order < other.order ? -1 : order > other.order ? 1 : 0;
+	}
+}
@@ -0,0 +1,348 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+
+package com.postmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.mail.SimpleMailMessage;
+
+import com.postmark.util.LatencyHistogram;
+
+/**
+ * Scheduler handing out a fixed number of request permits to the
+ * {@link Priority priority classes} of the messages, so that bulk mail does not hold
+ * up latency-sensitive mail.
+ * <p>
+ * Each class has its own queue. When a permit frees, it goes to the waiting class
+ * with the lowest virtual time, which grows by the inverse of the class
+ * {@link #setWeight(Priority, int) weight} on each grant: under contention, classes
+ * get permits in proportion of their weights, so that no class starves. A class
+ * which was idle starts again from the current virtual time, and does not make up
+ * for the permits it did not use.
+ * <p>
+ * {@link Priority#LOW} requests cannot take the last {@link #getReservedPermits()}
+ * permits, which stay free for the other classes however much bulk mail is queued.
+ * <p>
+ * The priority of a message is the one {@link PostmarkMessage#setPriority(Priority) set
+ * on it}, else the one {@link #setTagPriority(String, Priority) mapped to its tag},
+ * else the {@link #getDefaultPriority() default priority}. A batch request has the
+ * highest priority of its messages.
+ * <p>
+ * Permits should not outnumber the connections of the sender, so that a request
+ * holding a permit never waits for a pooled connection.
+ * <p>
+ * This class is thread-safe, and its setters must be called before it is used.
+ */
+public class PriorityScheduler {
+
+	/** Default weight of {@link Priority#HIGH} requests. */
+	public static final int DEFAULT_HIGH_WEIGHT = 8;
+	/** Default weight of {@link Priority#NORMAL} requests. */
+	public static final int DEFAULT_NORMAL_WEIGHT = 4;
+	/** Default weight of {@link Priority#LOW} requests. */
+	public static final int DEFAULT_LOW_WEIGHT = 1;
+
+	private static final Priority[] PRIORITIES = Priority.values();
+
+	private final int permits;
+	private int reservedPermits;
+	private final int[] weights = { DEFAULT_HIGH_WEIGHT, DEFAULT_NORMAL_WEIGHT, DEFAULT_LOW_WEIGHT };
+	private final Map<String, Priority> tagPriorities = new ConcurrentHashMap<String, Priority>();
+	private Priority defaultPriority = Priority.NORMAL;
+
+	private final List<LinkedList<Waiter>> queues = new ArrayList<LinkedList<Waiter>>(PRIORITIES.length);
+	private final double[] virtualTimes = new double[PRIORITIES.length];
+	private double virtualTime;
+	private int inUse;
+	private final int[] inFlight = new int[PRIORITIES.length];
+	private final long[] grantedCounts = new long[PRIORITIES.length];
+	private final LatencyHistogram[] waitTimes = new LatencyHistogram[PRIORITIES.length];
+
+	/**
+	 * Request waiting for a permit.
+	 */
+	private static class Waiter {
+		final long enqueuedNanos = System.nanoTime();
+		boolean granted;
+	}
+
+	/**
+	 * @param permits the number of requests in flight, typically the maximum number of
+	 * connections per route of the sender
+	 */
+	public PriorityScheduler(int permits) {
+		if (permits < 1)
+			throw new IllegalArgumentException("At least one permit is needed: " + permits);
+		this.permits = permits;
+		this.reservedPermits = permits / 4;
+		for (int i = 0; i < PRIORITIES.length; i++) {
+			queues.add(new LinkedList<Waiter>());
+			waitTimes[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * @param message a message
+	 * @return the priority class of <tt>message</tt>
+	 */
+	public Priority priorityOf(SimpleMailMessage message) {
+		return priorityOf(message, tagPriorities, defaultPriority);
+	}
+
+	/**
+	 * @param messages the messages of a batch
+	 * @return the highest priority class of <tt>messages</tt>
+	 */
+	public Priority priorityOf(Iterable<? extends SimpleMailMessage> messages) {
+		return priorityOf(messages, tagPriorities, defaultPriority);
+	}
+
+	/**
+	 * @return the priority class of <tt>message</tt>, from its own priority, else its
+	 * tag, else <tt>defaultPriority</tt>
+	 */
+	static Priority priorityOf(SimpleMailMessage message, Map<String, Priority> tagPriorities, Priority defaultPriority) {
+		if (message instanceof PostmarkMessage) {
+			PostmarkMessage postmarkMessage = (PostmarkMessage) message;
+			if (postmarkMessage.getPriority() != null)
+				return postmarkMessage.getPriority();
+			if (postmarkMessage.getTag() != null) {
+				Priority priority = tagPriorities.get(postmarkMessage.getTag());
+				if (priority != null)
+					return priority;
+			}
+		}
+		return defaultPriority;
+	}
+
+	/**
+	 * @return the highest priority class of <tt>messages</tt>, <tt>defaultPriority</tt> if there is none
+	 */
+	static Priority priorityOf(Iterable<? extends SimpleMailMessage> messages, Map<String, Priority> tagPriorities,
+			Priority defaultPriority) {
+		Priority highest = null;
+		for (SimpleMailMessage message : messages) {
+			Priority priority = priorityOf(message, tagPriorities, defaultPriority);
+			if (highest == null || priority.ordinal() < highest.ordinal())
+				highest = priority;
+		}
+		return highest != null ? highest : defaultPriority;
+	}
+
+	/**
+	 * Waits for a permit. It must be followed by {@link #release(Priority)}. Interrupts
+	 * do not stop the wait, but the interrupt status is kept.
+	 * 
+	 * @param priority the priority class of the request
+	 */
+	public void acquire(Priority priority) {
+		tryAcquire(priority, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Waits for a permit, at most <tt>timeout</tt>. When granted, it must be followed
+	 * by {@link #release(Priority)}. Interrupts do not stop the wait, but the interrupt
+	 * status is kept.
+	 * 
+	 * @param priority the priority class of the request
+	 * @param timeout the maximum time to wait
+	 * @param unit the unit of <tt>timeout</tt>
+	 * @return whether the permit was granted
+	 */
+	public synchronized boolean tryAcquire(Priority priority, long timeout, TimeUnit unit) {
+		int index = priority.ordinal();
+		LinkedList<Waiter> queue = queues.get(index);
+		if (queue.isEmpty())
+			virtualTimes[index] = Math.max(virtualTimes[index], virtualTime);
+		Waiter waiter = new Waiter();
+		queue.add(waiter);
+		dispatch();
+
+		long remaining = unit.toNanos(timeout);
+		long deadline = waiter.enqueuedNanos + remaining;
+		boolean interrupted = false;
+		while (!waiter.granted && remaining > 0) {
+			try {
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			} catch (InterruptedException ie) {
+				interrupted = true;
+			}
+			if (remaining != Long.MAX_VALUE)
+				remaining = deadline - System.nanoTime();
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (!waiter.granted) {
+			queue.remove(waiter);
+			return false;
+		}
+		waitTimes[index].record(System.nanoTime() - waiter.enqueuedNanos);
+		return true;
+	}
+
+	/**
+	 * Gives back a permit, which goes to the next waiting request.
+	 * 
+	 * @param priority the priority class the permit was acquired for
+	 */
+	public synchronized void release(Priority priority) {
+		inUse--;
+		inFlight[priority.ordinal()]--;
+		dispatch();
+	}
+
+	/**
+	 * Grants the free permits to the waiting classes with the lowest virtual time.
+	 */
+	private void dispatch() {
+		boolean granted = false;
+		while (inUse < permits) {
+			int next = -1;
+			for (int i = 0; i < PRIORITIES.length; i++) {
+				if (queues.get(i).isEmpty() || (PRIORITIES[i] == Priority.LOW && inUse >= permits - reservedPermits))
+					continue;
+				if (next < 0 || virtualTimes[i] < virtualTimes[next])
+					next = i;
+			}
+			if (next < 0)
+				break;
+			queues.get(next).removeFirst().granted = true;
+			inUse++;
+			inFlight[next]++;
+			grantedCounts[next]++;
+			virtualTime = virtualTimes[next];
+			virtualTimes[next] += 1.0 / weights[next];
+			granted = true;
+		}
+		if (granted)
+			notifyAll();
+	}
+
+	/**
+	 * @return the number of requests of class <tt>priority</tt> waiting for a permit
+	 */
+	public synchronized int getQueueDepth(Priority priority) {
+		return queues.get(priority.ordinal()).size();
+	}
+
+	/**
+	 * @return the number of requests of class <tt>priority</tt> holding a permit
+	 */
+	public synchronized int getInFlight(Priority priority) {
+		return inFlight[priority.ordinal()];
+	}
+
+	/**
+	 * @return the number of permits granted to requests of class <tt>priority</tt>
+	 */
+	public synchronized long getGrantedCount(Priority priority) {
+		return grantedCounts[priority.ordinal()];
+	}
+
+	/**
+	 * @return the time the requests of class <tt>priority</tt> waited for their permit
+	 */
+	public LatencyHistogram.Snapshot getWaitTime(Priority priority) {
+		return waitTimes[priority.ordinal()].getSnapshot();
+	}
+
+	public int getPermits() {
+		return permits;
+	}
+
+	/**
+	 * @param reservedPermits the number of permits {@link Priority#LOW} requests cannot
+	 * take, a quarter of the permits by default
+	 */
+	public synchronized void setReservedPermits(int reservedPermits) {
+		if (reservedPermits >= permits)
+			throw new IllegalArgumentException("Reserving all the permits starves low priority requests");
+		this.reservedPermits = reservedPermits;
+	}
+
+	public synchronized int getReservedPermits() {
+		return reservedPermits;
+	}
+
+	/**
+	 * @param priority a priority class
+	 * @param weight the share of the permits the class gets under contention, relative
+	 * to the other classes
+	 */
+	public synchronized void setWeight(Priority priority, int weight) {
+		if (weight < 1)
+			throw new IllegalArgumentException("Weight must be positive: " + weight);
+		weights[priority.ordinal()] = weight;
+	}
+
+	public synchronized int getWeight(Priority priority) {
+		return weights[priority.ordinal()];
+	}
+
+	/**
+	 * @param tag a Postmark tag
+	 * @param priority the priority class of the messages with this tag and no priority of their own
+	 */
+	public void setTagPriority(String tag, Priority priority) {
+		tagPriorities.put(tag, priority);
+	}
+
+	/**
+	 * @param tagPriorities the priority classes of the messages by tag, replacing the current ones
+	 */
+	public void setTagPriorities(Map<String, Priority> tagPriorities) {
+		this.tagPriorities.clear();
+		this.tagPriorities.putAll(tagPriorities);
+	}
+
+	public Map<String, Priority> getTagPriorities() {
+		return Collections.unmodifiableMap(tagPriorities);
+	}
+
+	/**
+	 * @param defaultPriority the priority class of the messages with neither a priority
+	 * nor a mapped tag, {@link Priority#NORMAL} by default
+	 */
+	public void setDefaultPriority(Priority defaultPriority) {
+		this.defaultPriority = defaultPriority;
+	}
+
+	public Priority getDefaultPriority() {
+		return defaultPriority;
+	}
+}
@@ -0,0 +1,144 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+package com.postmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Token bucket limiting the rate of requests to Postmark.
+ * <p>
+ * The bucket holds up to <tt>burst</tt> permits and refills at <tt>permitsPerSecond</tt>.
+ * It is implemented as a generic cell rate algorithm: the whole state is the time at
+ * which the bucket would be full again, updated by compare-and-set, so that acquiring
+ * a permit never takes a lock.
+ * <p>
+ * This class is thread-safe.
+ */
+public class RateLimiter {
+
+	private final long intervalNanos;
+	private final long toleranceNanos;
+	/** Theoretical arrival time of the next permit, in {@link System#nanoTime()} time. */
+	private final AtomicLong nextPermitNanos;
+
+	/**
+	 * @param permitsPerSecond the sustained rate of permits
+	 * @param burst the number of permits which can be acquired at once after an idle period
+	 */
+	public RateLimiter(double permitsPerSecond, int burst) {
+		if (permitsPerSecond <= 0 || burst < 1)
+			throw new IllegalArgumentException("Rate and burst must be positive");
+		this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+		this.toleranceNanos = intervalNanos * (burst - 1);
+		this.nextPermitNanos = new AtomicLong(System.nanoTime());
+	}
+
+	/**
+	 * Acquires a permit if one is available at once.
+	 * 
+	 * @return whether a permit was acquired
+	 */
+	public boolean tryAcquire() {
+		while (true) {
+			long now = System.nanoTime();
+			long next = nextPermitNanos.get();
+			if (next - toleranceNanos - now > 0)
+				return false;
+			if (nextPermitNanos.compareAndSet(next, Math.max(next - now, 0) + now + intervalNanos))
+				return true;
+		}
+	}
+
+	/**
+	 * Acquires a permit, waiting for it if needed. Interrupts do not stop the wait,
+	 * but the interrupt status is kept.
+	 */
+	public void acquire() {
+		long now;
+		long wait;
+		while (true) {
+			now = System.nanoTime();
+			long next = nextPermitNanos.get();
+			wait = next - toleranceNanos - now;
+			if (nextPermitNanos.compareAndSet(next, Math.max(next - now, 0) + now + intervalNanos))
+				break;
+		}
+		// the permit is reserved, wait until it is due
+		long deadline = now + wait;
+		while (wait > 0) {
+			LockSupport.parkNanos(this, wait);
+			wait = deadline - System.nanoTime();
+		}
+	}
+
+	/**
+	 * Acquires a permit if it is due within <tt>timeout</tt>, waiting for it if needed.
+	 * Interrupts do not stop the wait, but the interrupt status is kept.
+	 * 
+	 * @return whether a permit was acquired, none is reserved otherwise
+	 */
+	public boolean tryAcquire(long timeout, TimeUnit unit) {
+		long timeoutNanos = unit.toNanos(timeout);
+		long now;
+		long wait;
+		while (true) {
+			now = System.nanoTime();
+			long next = nextPermitNanos.get();
+			wait = next - toleranceNanos - now;
+			if (wait > timeoutNanos)
+				return false;
+			if (nextPermitNanos.compareAndSet(next, Math.max(next - now, 0) + now + intervalNanos))
+				break;
+		}
+		long deadline = now + wait;
+		while (wait > 0) {
+			LockSupport.parkNanos(this, wait);
+			wait = deadline - System.nanoTime();
+		}
+		return true;
+	}
+
+	/**
+	 * @return the sustained rate of permits
+	 */
+	public double getPermitsPerSecond() {
+		return (double) TimeUnit.SECONDS.toNanos(1) / intervalNanos;
+	}
+
+	/**
+	 * @return the number of permits which can be acquired at once after an idle period
+	 */
+	public int getBurst() {
+		return (int) (toleranceNanos / intervalNanos) + 1;
+	}
+}
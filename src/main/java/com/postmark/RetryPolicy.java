@@ -0,0 +1,211 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+package com.postmark;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Policy retrying transient send failures with exponential backoff and jitter.
+ * <p>
+ * Transient failures are 5xx and 429 responses and I/O errors such as connection
+ * resets and timeouts. User errors (401, 422 and per-message error codes) are never
+ * retried.
+ * <p>
+ * Retries are limited by a budget shared by all the sends of a policy: each send
+ * earns {@link #getBudgetRatio()} retry, up to {@link #getBudgetCapacity()}, and
+ * each retry spends one. During an outage, retries thus add at most this ratio to
+ * the load, instead of multiplying it by the number of attempts.
+ * <p>
+ * This class is thread-safe, and its setters must be called before it is used.
+ */
+public class RetryPolicy {
+
+	/** Default maximum number of attempts of a send, including the first one. */
+	public static final int DEFAULT_MAX_ATTEMPTS = 3;
+	/** Default backoff before the first retry. */
+	public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 100;
+	/** Default maximum backoff between two attempts. */
+	public static final long DEFAULT_MAX_BACKOFF_MILLIS = 5000;
+	/** Default growth factor of the backoff. */
+	public static final double DEFAULT_MULTIPLIER = 2;
+	/** Default number of retries earned by a send. */
+	public static final double DEFAULT_BUDGET_RATIO = 0.2;
+	/** Default maximum number of retries in the budget. */
+	public static final int DEFAULT_BUDGET_CAPACITY = 100;
+
+	/** Budget tokens are counted in thousandths of retry. */
+	private static final long TOKEN = 1000;
+
+	private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+	private long initialBackoffMillis = DEFAULT_INITIAL_BACKOFF_MILLIS;
+	private long maxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+	private double multiplier = DEFAULT_MULTIPLIER;
+	private double budgetRatio = DEFAULT_BUDGET_RATIO;
+	private int budgetCapacity = DEFAULT_BUDGET_CAPACITY;
+
+	private final AtomicLong budget = new AtomicLong(DEFAULT_BUDGET_CAPACITY * TOKEN);
+	private final Random random = new Random();
+
+	/**
+	 * @param t a send failure
+	 * @return whether <tt>t</tt>, or one of its causes, is a transient failure
+	 */
+	public boolean isRetryable(Throwable t) {
+		return isTransient(t);
+	}
+
+	/**
+	 * @param t a send failure
+	 * @return whether <tt>t</tt>, or one of its causes, is a 5xx or 429 response or an I/O error
+	 */
+	static boolean isTransient(Throwable t) {
+		for (; t != null; t = t.getCause()) {
+			if (t instanceof PostmarkResponseException) {
+				int statusCode = ((PostmarkResponseException) t).getStatusCode();
+				return statusCode >= 500 || statusCode == 429;
+			}
+			if (t instanceof CircuitBreaker.OpenException)
+				return false;
+			if (t instanceof IOException)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Records a send, which adds to the retry budget.
+	 */
+	public void onSend() {
+		long earned = (long) (budgetRatio * TOKEN);
+		long capacity = budgetCapacity * TOKEN;
+		while (true) {
+			long current = budget.get();
+			if (current >= capacity || budget.compareAndSet(current, Math.min(current + earned, capacity)))
+				return;
+		}
+	}
+
+	/**
+	 * Spends a retry from the budget.
+	 * 
+	 * @return whether the budget allowed the retry
+	 */
+	public boolean tryRetry() {
+		while (true) {
+			long current = budget.get();
+			if (current < TOKEN)
+				return false;
+			if (budget.compareAndSet(current, current - TOKEN))
+				return true;
+		}
+	}
+
+	/**
+	 * @param attempt the number of the failed attempt, starting at 1
+	 * @return the delay before the next attempt, drawn uniformly up to the exponential backoff
+	 */
+	public long backoffMillis(int attempt) {
+		double backoff = initialBackoffMillis * Math.pow(multiplier, attempt - 1);
+		long bound = (long) Math.min(backoff, maxBackoffMillis);
+		synchronized (random) {
+			return bound <= 0 ? 0 : (long) (random.nextDouble() * bound) + 1;
+		}
+	}
+
+	/**
+	 * @param maxAttempts the maximum number of attempts of a send, including the first one
+	 */
+	public void setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = maxAttempts;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * @param initialBackoffMillis the backoff before the first retry
+	 */
+	public void setInitialBackoffMillis(long initialBackoffMillis) {
+		this.initialBackoffMillis = initialBackoffMillis;
+	}
+
+	public long getInitialBackoffMillis() {
+		return initialBackoffMillis;
+	}
+
+	/**
+	 * @param maxBackoffMillis the maximum backoff between two attempts
+	 */
+	public void setMaxBackoffMillis(long maxBackoffMillis) {
+		this.maxBackoffMillis = maxBackoffMillis;
+	}
+
+	public long getMaxBackoffMillis() {
+		return maxBackoffMillis;
+	}
+
+	/**
+	 * @param multiplier the growth factor of the backoff after each attempt
+	 */
+	public void setMultiplier(double multiplier) {
+		this.multiplier = multiplier;
+	}
+
+	public double getMultiplier() {
+		return multiplier;
+	}
+
+	/**
+	 * @param budgetRatio the number of retries earned by each send
+	 */
+	public void setBudgetRatio(double budgetRatio) {
+		this.budgetRatio = budgetRatio;
+	}
+
+	public double getBudgetRatio() {
+		return budgetRatio;
+	}
+
+	/**
+	 * @param budgetCapacity the maximum number of retries in the budget, which starts full
+	 */
+	public void setBudgetCapacity(int budgetCapacity) {
+		this.budgetCapacity = budgetCapacity;
+		budget.set(budgetCapacity * TOKEN);
+	}
+
+	public int getBudgetCapacity() {
+		return budgetCapacity;
+	}
+}
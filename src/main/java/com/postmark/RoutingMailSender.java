@@ -0,0 +1,241 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+package com.postmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.mail.MailException;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.MailSender;
+import org.springframework.mail.SimpleMailMessage;
+
+import com.postmark.PostmarkMailSender.PostmarkResponse;
+
+/**
+ * MailSender routing each message to one of several {@link PostmarkMailSender}s,
+ * typically one per Postmark server token.
+ * <p>
+ * Each route is a separate sender, with its own connection pool, asynchronous queue,
+ * limiters and metrics: a backlog on one route, say bulk marketing mails, cannot take
+ * the connections or threads of another one, say password resets.
+ * <p>
+ * By default a message is routed by its {@link PostmarkMessage#getTag() tag}: a tag
+ * naming a route selects it, any other message goes to the default route. A custom
+ * {@link MessageRouter} can be set instead.
+ * <p>
+ * Usage:
+ * <pre>
+ * Map&lt;String, PostmarkMailSender&gt; routes = new LinkedHashMap&lt;String, PostmarkMailSender&gt;();
+ * routes.put("transactional", new PostmarkMailSender(transactionalToken));
+ * routes.put("marketing", new PostmarkMailSender(marketingToken));
+ * RoutingMailSender sender = new RoutingMailSender(routes, "transactional");
+ * </pre>
+ */
+public class RoutingMailSender implements MailSender, DisposableBean {
+
+	/**
+	 * Routes messages by their Postmark tag.
+	 */
+	public static final MessageRouter TAG_ROUTER = new MessageRouter() {
+		@Override
+		public String route(SimpleMailMessage message) {
+			return message instanceof PostmarkMessage ? ((PostmarkMessage) message).getTag() : null;
+		}
+	};
+
+	private final Map<String, PostmarkMailSender> routes;
+	private final PostmarkMailSender defaultSender;
+	private volatile MessageRouter router = TAG_ROUTER;
+
+	/**
+	 * @param routes the senders by route name, closed with this sender
+	 * @param defaultRoute the name of the route of messages without a known route
+	 */
+	public RoutingMailSender(Map<String, PostmarkMailSender> routes, String defaultRoute) {
+		this.routes = Collections.unmodifiableMap(new LinkedHashMap<String, PostmarkMailSender>(routes));
+		this.defaultSender = this.routes.get(defaultRoute);
+		if (defaultSender == null)
+			throw new IllegalArgumentException("Unknown default route: " + defaultRoute);
+	}
+
+	/**
+	 * @param router chooses the route of each message. Defaults to {@link #TAG_ROUTER}.
+	 */
+	public void setRouter(MessageRouter router) {
+		this.router = router;
+	}
+
+	public MessageRouter getRouter() {
+		return router;
+	}
+
+	/**
+	 * @return the senders by route name
+	 */
+	public Map<String, PostmarkMailSender> getRoutes() {
+		return routes;
+	}
+
+	/**
+	 * @return the sender of the route of <tt>message</tt>, the default one if the
+	 * router returns no route or an unknown one
+	 */
+	public PostmarkMailSender getSender(SimpleMailMessage message) {
+		String route = router.route(message);
+		PostmarkMailSender sender = route == null ? null : routes.get(route);
+		return sender != null ? sender : defaultSender;
+	}
+
+	/**
+	 * Closes the senders of all routes.
+	 */
+	public void close() {
+		for (PostmarkMailSender sender : routes.values())
+			sender.close();
+	}
+
+	/**
+	 * Calls {@link #close()} when the Spring context is destroyed.
+	 */
+	@Override
+	public void destroy() {
+		close();
+	}
+
+	@Override
+	public void send(SimpleMailMessage message) throws MailException {
+		getSender(message).send(message);
+	}
+
+	/**
+	 * Sends the messages through the batch endpoint of their routes, one route after
+	 * the other.
+	 * <p>
+	 * Messages rejected locally or by Postmark are reported in the thrown
+	 * {@link MailSendException}, keyed by the original message.
+	 */
+	@Override
+	public void send(SimpleMailMessage[] simpleMessages) throws MailException {
+		Map<Object, Exception> failedMessages = new LinkedHashMap<Object, Exception>();
+		List<SimpleMailMessage> messages = Arrays.asList(simpleMessages);
+		for (Map.Entry<PostmarkMailSender, List<SimpleMailMessage>> group : groupByRoute(messages, route(messages)).entrySet()) {
+			List<SimpleMailMessage> routed = group.getValue();
+			try {
+				group.getKey().send(routed.toArray(new SimpleMailMessage[routed.size()]));
+			} catch (MailSendException mse) {
+				failedMessages.putAll(mse.getFailedMessages());
+			} catch (RuntimeException re) {
+				// this route failed as a whole, the other ones are still sent
+				for (SimpleMailMessage message : routed)
+					failedMessages.put(message, re);
+			}
+		}
+		if (!failedMessages.isEmpty())
+			throw new MailSendException(failedMessages);
+	}
+
+	/**
+	 * Sends <tt>message</tt> from the asynchronous executor of its route.
+	 * 
+	 * @see PostmarkMailSender#sendAsync(SimpleMailMessage, SendCallback)
+	 */
+	public Future<PostmarkResponse> sendAsync(SimpleMailMessage message, SendCallback callback) {
+		return getSender(message).sendAsync(message, callback);
+	}
+
+	/**
+	 * Sends the messages from the asynchronous executors of their routes, through the
+	 * batch endpoint.
+	 * 
+	 * @return the future Postmark responses, in the order of <tt>messages</tt>
+	 * @see PostmarkMailSender#sendAsync(Collection, SendCallback)
+	 */
+	public List<Future<PostmarkResponse>> sendAsync(Collection<? extends SimpleMailMessage> messages, SendCallback callback) {
+		List<PostmarkMailSender> senders = route(messages);
+		Map<PostmarkMailSender, List<SimpleMailMessage>> groups = groupByRoute(messages, senders);
+		if (groups.size() == 1) {
+			Map.Entry<PostmarkMailSender, List<SimpleMailMessage>> group = groups.entrySet().iterator().next();
+			return group.getKey().sendAsync(group.getValue(), callback);
+		}
+
+		// futures of each route, taken back in the order of the messages
+		Map<PostmarkMailSender, List<Future<PostmarkResponse>>> routeFutures
+				= new IdentityHashMap<PostmarkMailSender, List<Future<PostmarkResponse>>>();
+		for (Map.Entry<PostmarkMailSender, List<SimpleMailMessage>> group : groups.entrySet())
+			routeFutures.put(group.getKey(), group.getKey().sendAsync(group.getValue(), callback));
+		Map<PostmarkMailSender, Integer> positions = new IdentityHashMap<PostmarkMailSender, Integer>();
+		List<Future<PostmarkResponse>> futures = new ArrayList<Future<PostmarkResponse>>(messages.size());
+		for (PostmarkMailSender sender : senders) {
+			Integer position = positions.get(sender);
+			int index = position == null ? 0 : position;
+			futures.add(routeFutures.get(sender).get(index));
+			positions.put(sender, index + 1);
+		}
+		return futures;
+	}
+
+	/**
+	 * @return the sender of each message, in order
+	 */
+	private List<PostmarkMailSender> route(Collection<? extends SimpleMailMessage> messages) {
+		List<PostmarkMailSender> senders = new ArrayList<PostmarkMailSender>(messages.size());
+		for (SimpleMailMessage message : messages)
+			senders.add(getSender(message));
+		return senders;
+	}
+
+	/**
+	 * Splits <tt>messages</tt> by sender, keeping their order within each route.
+	 */
+	private Map<PostmarkMailSender, List<SimpleMailMessage>> groupByRoute(Collection<? extends SimpleMailMessage> messages,
+			List<PostmarkMailSender> senders) {
+		Map<PostmarkMailSender, List<SimpleMailMessage>> groups
+				= new IdentityHashMap<PostmarkMailSender, List<SimpleMailMessage>>();
+		int i = 0;
+		for (SimpleMailMessage message : messages) {
+			PostmarkMailSender sender = senders.get(i++);
+			List<SimpleMailMessage> group = groups.get(sender);
+			if (group == null)
+				groups.put(sender, group = new ArrayList<SimpleMailMessage>());
+			group.add(message);
+		}
+		return groups;
+	}
+}
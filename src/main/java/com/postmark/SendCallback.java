@@ -0,0 +1,62 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+
+package com.postmark;
+
+import org.springframework.mail.MailException;
+import org.springframework.mail.SimpleMailMessage;
+
+import com.postmark.PostmarkMailSender.PostmarkResponse;
+
+/**
+ * Receives the outcome of each message sent by {@link PostmarkMailSender}.
+ * <p>
+ * Callbacks of asynchronous sends are invoked from the sending threads:
+ * implementations must be thread-safe and should return quickly.
+ */
+public interface SendCallback {
+
+	/**
+	 * Called once <tt>message</tt> has been accepted by Postmark.
+	 * 
+	 * @param message the original message
+	 * @param response the Postmark response for this message
+	 */
+	void onSuccess(SimpleMailMessage message, PostmarkResponse response);
+
+	/**
+	 * Called when <tt>message</tt> could not be sent.
+	 * 
+	 * @param message the original message
+	 * @param exception the cause of the failure
+	 */
+	void onFailure(SimpleMailMessage message, MailException exception);
+}
@@ -0,0 +1,115 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+
+package com.postmark;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.springframework.mail.MailException;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.SimpleMailMessage;
+
+import com.postmark.PostmarkMailSender.PostmarkResponse;
+
+/**
+ * Future of an asynchronous send, notifying an optional {@link SendCallback}
+ * once done.
+ * <p>
+ * It is either run as a task sending its own message, or completed from the
+ * outside through {@link #complete(PostmarkResponse)} and {@link #fail(Throwable)}
+ * when its message is part of a batch.
+ */
+class SendFuture extends FutureTask<PostmarkResponse> {
+
+	private static Logger logger = Logger.getLogger("com.postmark");
+
+	/** Task of futures completed from the outside, never run. */
+	private static final Callable<PostmarkResponse> NO_TASK = new Callable<PostmarkResponse>() {
+		@Override
+		public PostmarkResponse call() {
+			throw new IllegalStateException("This future is completed by its batch");
+		}
+	};
+
+	private final SimpleMailMessage message;
+	private final SendCallback callback;
+
+	SendFuture(Callable<PostmarkResponse> task, SimpleMailMessage message, SendCallback callback) {
+		super(task);
+		this.message = message;
+		this.callback = callback;
+	}
+
+	SendFuture(SimpleMailMessage message, SendCallback callback) {
+		this(NO_TASK, message, callback);
+	}
+
+	void complete(PostmarkResponse response) {
+		set(response);
+	}
+
+	void fail(Throwable t) {
+		setException(t);
+	}
+
+	SimpleMailMessage getMessage() {
+		return message;
+	}
+
+	@Override
+	protected void done() {
+		if (callback == null || isCancelled())
+			return;
+		try {
+			PostmarkResponse response;
+			try {
+				response = get();
+			} catch (ExecutionException ee) {
+				callback.onFailure(message, toMailException(ee.getCause()));
+				return;
+			}
+			callback.onSuccess(message, response);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException re) {
+			logger.log(Level.WARNING, "Send callback failed", re);
+		}
+	}
+
+	static MailException toMailException(Throwable t) {
+		return t instanceof MailException ? (MailException) t
+				: new MailSendException("There has been an error sending email", t);
+	}
+}
@@ -0,0 +1,262 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+package com.postmark;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.postmark.PostmarkMailSender.PostmarkResponseStatus;
+import com.postmark.util.LatencyHistogram;
+
+/**
+ * Metrics of a {@link PostmarkMailSender}: latency of each phase of a request,
+ * outcome of each message, bytes sent and connection pool utilization.
+ * <p>
+ * The phases are:
+ * <ul>
+ * <li>{@link Phase#SERIALIZE}: producing the request body, i.e. writing its JSON,
+ * Base64 encoding the attachments and compressing it if needed. The body is streamed
+ * to the connection, and this phase is the time not spent in the writes to it.</li>
+ * <li>{@link Phase#ESCAPE}: escaping and encoding the strings of the body, part of
+ * {@link Phase#SERIALIZE}. Strings with no char to escape are copied as they are and
+ * not timed.</li>
+ * <li>{@link Phase#UPLOAD}: the whole writing of the request body, serialization
+ * included, so that <tt>UPLOAD - SERIALIZE</tt> is the time the connection took the
+ * bytes, including TCP backpressure.</li>
+ * <li>{@link Phase#LEASE}: waiting for a pooled connection.</li>
+ * <li>{@link Phase#ROUND_TRIP}: the whole HTTP exchange, from the lease to the response body.</li>
+ * <li>{@link Phase#PARSE}: parsing the response body.</li>
+ * </ul>
+ * All counters are lock-free, and are updated whether or not anything reads them.
+ */
+public class SenderMetrics implements SenderMetricsMXBean {
+
+	/**
+	 * Timed phase of a request.
+	 */
+	public static enum Phase {
+		SERIALIZE, ESCAPE, UPLOAD, LEASE, ROUND_TRIP, PARSE
+	}
+
+	private final LatencyHistogram[] latencies = new LatencyHistogram[Phase.values().length];
+	private final AtomicLongArray outcomes = new AtomicLongArray(PostmarkResponseStatus.values().length);
+	private final ConcurrentMap<Integer, AtomicLong> errorCodes = new ConcurrentHashMap<Integer, AtomicLong>();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicLong bytesSent = new AtomicLong();
+	private final AtomicInteger leased = new AtomicInteger();
+	private volatile int maxConnections;
+
+	SenderMetrics() {
+		for (int i = 0; i < latencies.length; i++)
+			latencies[i] = new LatencyHistogram();
+	}
+
+	void record(Phase phase, long nanos) {
+		latencies[phase.ordinal()].record(nanos);
+	}
+
+	void onOutcome(PostmarkResponseStatus status, int errorCode) {
+		outcomes.incrementAndGet(status.ordinal());
+		if (errorCode != 0) {
+			AtomicLong counter = errorCodes.get(errorCode);
+			if (counter == null) {
+				AtomicLong existing = errorCodes.putIfAbsent(errorCode, counter = new AtomicLong());
+				if (existing != null)
+					counter = existing;
+			}
+			counter.incrementAndGet();
+		}
+	}
+
+	void onRequestStart() {
+		requests.incrementAndGet();
+		inFlight.incrementAndGet();
+	}
+
+	void onRequestEnd() {
+		inFlight.decrementAndGet();
+	}
+
+	void onBytesSent(long bytes) {
+		bytesSent.addAndGet(bytes);
+	}
+
+	void onLease() {
+		leased.incrementAndGet();
+	}
+
+	void onRelease() {
+		leased.decrementAndGet();
+	}
+
+	void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * @return the latency histogram of a phase
+	 */
+	public LatencyHistogram getLatency(Phase phase) {
+		return latencies[phase.ordinal()];
+	}
+
+	/**
+	 * @return the number of messages with the given outcome
+	 */
+	public long getOutcomeCount(PostmarkResponseStatus status) {
+		return outcomes.get(status.ordinal());
+	}
+
+	@Override
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	@Override
+	public int getInFlightRequests() {
+		return inFlight.get();
+	}
+
+	@Override
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	@Override
+	public long getSuccessCount() {
+		return getOutcomeCount(PostmarkResponseStatus.SUCCESS);
+	}
+
+	@Override
+	public long getUserErrorCount() {
+		return getOutcomeCount(PostmarkResponseStatus.USERERROR);
+	}
+
+	@Override
+	public long getServerErrorCount() {
+		return getOutcomeCount(PostmarkResponseStatus.SERVERERROR);
+	}
+
+	@Override
+	public long getUnknownCount() {
+		return getOutcomeCount(PostmarkResponseStatus.UNKNOWN);
+	}
+
+	@Override
+	public long getDuplicateCount() {
+		return getOutcomeCount(PostmarkResponseStatus.DUPLICATE);
+	}
+
+	@Override
+	public long getSuppressedCount() {
+		return getOutcomeCount(PostmarkResponseStatus.SUPPRESSED);
+	}
+
+	/**
+	 * @return the number of messages rejected with each Postmark error code
+	 */
+	@Override
+	public Map<Integer, Long> getErrorCodeCounts() {
+		Map<Integer, Long> counts = new TreeMap<Integer, Long>();
+		for (Map.Entry<Integer, AtomicLong> entry : errorCodes.entrySet())
+			counts.put(entry.getKey(), entry.getValue().get());
+		return counts;
+	}
+
+	@Override
+	public int getLeasedConnections() {
+		return leased.get();
+	}
+
+	@Override
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * @return the ratio of the pool connections leased, between 0 and 1
+	 */
+	@Override
+	public double getPoolUtilization() {
+		int max = maxConnections;
+		return max == 0 ? 0 : (double) leased.get() / max;
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getSerializeLatency() {
+		return getLatency(Phase.SERIALIZE).getSnapshot();
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getEscapeLatency() {
+		return getLatency(Phase.ESCAPE).getSnapshot();
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getUploadLatency() {
+		return getLatency(Phase.UPLOAD).getSnapshot();
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getLeaseLatency() {
+		return getLatency(Phase.LEASE).getSnapshot();
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getRoundTripLatency() {
+		return getLatency(Phase.ROUND_TRIP).getSnapshot();
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getParseLatency() {
+		return getLatency(Phase.PARSE).getSnapshot();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("SenderMetrics [requests=").append(getRequestCount())
+			.append(", inFlight=").append(getInFlightRequests())
+			.append(", bytesSent=").append(getBytesSent())
+			.append(", pool=").append(getLeasedConnections()).append('/').append(getMaxConnections());
+		for (PostmarkResponseStatus status : PostmarkResponseStatus.values())
+			sb.append(", ").append(status).append('=').append(getOutcomeCount(status));
+		sb.append(", errorCodes=").append(getErrorCodeCounts());
+		for (Phase phase : Phase.values())
+			sb.append(", ").append(phase).append(": ").append(getLatency(phase).getSnapshot());
+		return sb.append(']').toString();
+	}
+}
@@ -0,0 +1,196 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+
+package com.postmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+
+import com.postmark.PostmarkMailSender.PostmarkResponse;
+import com.postmark.util.BufferPool;
+import com.postmark.util.DeflaterPool;
+import com.postmark.util.JsonPullParser;
+
+/**
+ * Work done by {@link PostmarkMailSender#warmUp()} before the first real send:
+ * opening pooled connections, and running representative messages and responses
+ * through the serialization and parsing code so that it is loaded and compiled.
+ */
+final class SenderWarmUp {
+
+	/** Messages of a warm-up batch. */
+	private static final int BATCH_SIZE = 10;
+	/** Length of the bodies of the warm-up messages, about a common HTML mail. */
+	private static final int BODY_LENGTH = 4000;
+	private static final String ACCENTED = "\u00e9\u00e8\u00e0\u00f9\u00e7\u00f4\u00eb\u00ef\u0153\u20ac\u2014\u2019";
+
+	private SenderWarmUp() {
+	}
+
+	/**
+	 * Opens connections to the API host and releases them to the pool, so that the
+	 * first sends do not pay the TCP and TLS handshakes.
+	 * 
+	 * @param count number of connections to open
+	 * @param keepAliveMillis how long the opened connections may be kept idle in the pool
+	 * @return the number of connections opened
+	 * @throws IOException if a connection cannot be opened
+	 */
+	static int openConnections(HttpClient client, String apiUrl, int count, long keepAliveMillis)
+			throws IOException, InterruptedException {
+		// same target and route as the HttpClient route planner, without proxy
+		URI uri = URI.create(apiUrl);
+		HttpHost target = new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme());
+		ClientConnectionManager manager = client.getConnectionManager();
+		HttpRoute route = new HttpRoute(target, null, manager.getSchemeRegistry().getScheme(target).isLayered());
+		HttpContext context = new BasicHttpContext();
+
+		// all connections are leased before any is released, so that the pool creates new ones
+		List<ManagedClientConnection> connections = new ArrayList<ManagedClientConnection>(count);
+		int opened = 0;
+		try {
+			for (int i = 0; i < count; i++) {
+				ManagedClientConnection connection = manager.requestConnection(route, null)
+						.getConnection(keepAliveMillis, TimeUnit.MILLISECONDS);
+				connections.add(connection);
+				if (!connection.isOpen()) {
+					connection.open(route, context, client.getParams());
+					opened++;
+				}
+				connection.markReusable();
+			}
+		} finally {
+			for (ManagedClientConnection connection : connections)
+				manager.releaseConnection(connection, keepAliveMillis, TimeUnit.MILLISECONDS);
+		}
+		return opened;
+	}
+
+	/**
+	 * Serializes batches of representative messages, optionally gzip compressed,
+	 * and parses the matching batch responses.
+	 * 
+	 * @param messages number of messages to serialize
+	 * @param deflaters the deflaters to compress with, or <tt>null</tt>
+	 */
+	static void prime(int messages, boolean rawUtf8, DeflaterPool deflaters) throws IOException {
+		List<PostmarkMessage> batch = new ArrayList<PostmarkMessage>(BATCH_SIZE);
+		for (int i = 0; i < BATCH_SIZE; i++)
+			batch.add(message(i));
+		byte[] response = response(BATCH_SIZE);
+		OutputStream sink = new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		};
+
+		for (int sent = 0; sent < messages; sent += BATCH_SIZE) {
+			// same steps as a batch send: validation, length counting, then writing
+			long length = 0;
+			for (PostmarkMessage message : batch) {
+				SimpleMailMessageWriter.validate(message);
+				length += SimpleMailMessageWriter.length(message, rawUtf8);
+			}
+			JsonEntity entity = JsonEntity.forBatch(batch, rawUtf8, length);
+			if (deflaters != null)
+				new GzipEntity(entity, deflaters).writeTo(sink);
+			else
+				entity.writeTo(sink);
+
+			byte[] buf = BufferPool.SHARED.acquire();
+			try {
+				PostmarkResponse[] responses = PostmarkResponseReader.readBatch(
+						new JsonPullParser(new ByteArrayInputStream(response), buf));
+				responses[0].getSubmittedAt();
+			} finally {
+				BufferPool.SHARED.release(buf);
+			}
+		}
+	}
+
+	private static PostmarkMessage message(int seed) {
+		Random random = new Random(seed);
+		StringBuilder body = new StringBuilder(BODY_LENGTH + 32).append("<p class=\"body\">");
+		while (body.length() < BODY_LENGTH) {
+			int r = random.nextInt(100);
+			if (r < 3)
+				body.append(ACCENTED.charAt(random.nextInt(ACCENTED.length())));
+			else if (r < 15)
+				body.append(' ');
+			else if (r == 15)
+				body.append("\"\n");
+			else
+				body.append((char) ('a' + random.nextInt(26)));
+		}
+		body.append("</p>");
+
+		PostmarkMessage message = new PostmarkMessage();
+		message.setFrom("Warm-up <warm-up@example.com>");
+		message.setTo(new String[] { "recipient" + seed + "@example.com", "Other Recipient <other@example.com>" });
+		message.setReplyTo("reply@example.com");
+		message.setSubject("Warm-up message n\u00b0" + seed);
+		message.setTag("warm-up");
+		message.setHtmlBody(body.toString());
+		message.setText(body.substring(16, body.length() - 4));
+		return message;
+	}
+
+	private static byte[] response(int count) throws IOException {
+		StringBuilder json = new StringBuilder("[");
+		for (int i = 0; i < count; i++) {
+			if (i > 0)
+				json.append(',');
+			json.append("{\"ErrorCode\":0,\"Message\":\"OK\",\"MessageID\":\"b7bc2f4a-e38e-4336-af7d-e6c392c2f8")
+					.append(String.format("%02d", i))
+					.append("\",\"SubmittedAt\":\"2010-11-26T12:01:05.1794748-05:00\",\"To\":\"recipient")
+					.append(i).append("@example.com\"}");
+		}
+		return json.append(']').toString().getBytes("UTF-8");
+	}
+}
@@ -0,0 +1,328 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+
+package com.postmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.mail.MailParseException;
+import org.springframework.mail.SimpleMailMessage;
+
+import com.postmark.util.Utf8JsonWriter;
+import com.postmark.util.BufferPool;
+
+/**
+ * Streaming counterpart of {@link PostmarkMailSender.SimpleMailMessageAdapter}.
+ * <p>
+ * Writes the same JSON, with the same escaping, directly to an {@link Utf8JsonWriter}.
+ * Attachments and {@link PostmarkTemplateMessage template messages}, which the adapter
+ * does not support, are streamed from their source and their model.
+ * Messages must be checked by {@link #validate(SimpleMailMessage)} before being
+ * written, so that invalid messages are rejected before any request is sent.
+ */
+final class SimpleMailMessageWriter {
+
+	/** Maximum nesting of the maps, collections and arrays of a template model. */
+	static final int MAX_MODEL_DEPTH = 16;
+
+	private SimpleMailMessageWriter() {
+	}
+
+	/**
+	 * Checks that <tt>src</tt> holds the fields required by Postmark.
+	 * 
+	 * @throws MailParseException if a required field is missing
+	 */
+	static void validate(SimpleMailMessage src) throws MailParseException {
+		validate(src, true);
+		if (src instanceof FrozenMessage.Message) {
+			((FrozenMessage.Message) src).checkValues();
+		}
+	}
+
+	/**
+	 * Checks that <tt>src</tt> holds the fields required by Postmark, except the
+	 * recipients when <tt>requireTo</tt> is false.
+	 * 
+	 * @throws MailParseException if a required field is missing
+	 */
+	static void validate(SimpleMailMessage src, boolean requireTo) throws MailParseException {
+		if (src.getFrom() == null) {
+			throw new MailParseException("You must specify a from address");
+		}
+		if (requireTo && src.getTo() == null) {
+			throw new MailParseException("You must specify a to address");
+		}
+		if (src instanceof PostmarkTemplateMessage) {
+			PostmarkTemplateMessage templateSrc = (PostmarkTemplateMessage) src;
+			if ((templateSrc.getTemplateId() == null) == (templateSrc.getTemplateAlias() == null)) {
+				throw new MailParseException("You must specify either a TemplateId or a TemplateAlias");
+			}
+			if (templateSrc.getTemplateModel() != null) {
+				checkModelValue(templateSrc.getTemplateModel(), 0);
+			}
+			return;
+		}
+		if (src.getSubject() == null) {
+			throw new MailParseException("You must specify a Subject field");
+		}
+		if (src instanceof PostmarkMessage) {
+			if (src.getText() == null && ((PostmarkMessage) src).getHtmlBody() == null) {
+				throw new MailParseException("You must specify a Text field !");
+			}
+		} else if (src.getText() == null) {
+			throw new MailParseException("You must specify a Text field");
+		}
+	}
+
+	/**
+	 * Writes <tt>src</tt> as a JSON object. It must have been validated beforehand.
+	 */
+	static void write(SimpleMailMessage src, Utf8JsonWriter out) throws IOException {
+		if (src instanceof FrozenMessage.Message) {
+			((FrozenMessage.Message) src).write(out);
+			return;
+		}
+		if (src instanceof PostmarkTemplateMessage) {
+			writeTemplate((PostmarkTemplateMessage) src, out);
+			return;
+		}
+		out.beginObject();
+		writeRecipients(src, out);
+		out.property("Subject", src.getSubject());
+
+		if (src instanceof PostmarkMessage) {
+			PostmarkMessage postmarkSrc = (PostmarkMessage) src;
+			if (postmarkSrc.getTag() != null) {
+				out.property("Tag", postmarkSrc.getTag());
+			}
+			if (postmarkSrc.getHtmlBody() != null) {
+				out.property("HtmlBody", postmarkSrc.getHtmlBody());
+			}
+		}
+
+		if (src.getText() != null) {
+			out.property("TextBody", src.getText());
+		}
+		if (src.getReplyTo() != null) {
+			out.property("ReplyTo", src.getReplyTo());
+		}
+		if (src instanceof PostmarkMessage) {
+			writeAttachments(((PostmarkMessage) src).getAttachments(), out);
+		}
+		out.endObject();
+	}
+
+	private static void writeRecipients(SimpleMailMessage src, Utf8JsonWriter out) throws IOException {
+		out.property("From", src.getFrom());
+		out.name("To").value(src.getTo(), ',');
+		if (src.getCc() != null) {
+			out.name("Cc").value(src.getCc(), ',');
+		}
+		if (src.getBcc() != null) {
+			out.name("Bcc").value(src.getBcc(), ',');
+		}
+	}
+
+	/**
+	 * Writes a template message as expected by <tt>/email/withTemplate</tt>: its
+	 * subject and bodies are left to the template.
+	 */
+	private static void writeTemplate(PostmarkTemplateMessage src, Utf8JsonWriter out) throws IOException {
+		out.beginObject();
+		writeRecipients(src, out);
+		if (src.getTemplateId() != null) {
+			out.name("TemplateId").value(src.getTemplateId().longValue());
+		} else {
+			out.property("TemplateAlias", src.getTemplateAlias());
+		}
+		out.name("TemplateModel");
+		if (src.getTemplateModel() != null) {
+			writeModelValue(src.getTemplateModel(), out);
+		} else {
+			out.beginObject().endObject();
+		}
+		if (src.getTag() != null) {
+			out.property("Tag", src.getTag());
+		}
+		if (src.getReplyTo() != null) {
+			out.property("ReplyTo", src.getReplyTo());
+		}
+		writeAttachments(src.getAttachments(), out);
+		out.endObject();
+	}
+
+	/**
+	 * Writes a value of a template model, walking maps, collections and arrays.
+	 */
+	private static void writeModelValue(Object value, Utf8JsonWriter out) throws IOException {
+		if (value == null) {
+			out.nullValue();
+		} else if (value instanceof CharSequence || value instanceof Character) {
+			out.value(value.toString());
+		} else if (value instanceof Number) {
+			out.numberValue((Number) value);
+		} else if (value instanceof Boolean) {
+			out.value(((Boolean) value).booleanValue());
+		} else if (value instanceof Map) {
+			out.beginObject();
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				out.name(String.valueOf(entry.getKey()));
+				writeModelValue(entry.getValue(), out);
+			}
+			out.endObject();
+		} else if (value instanceof Iterable) {
+			out.beginArray();
+			for (Object item : (Iterable<?>) value) {
+				writeModelValue(item, out);
+			}
+			out.endArray();
+		} else if (value.getClass().isArray()) {
+			out.beginArray();
+			for (int i = 0, length = Array.getLength(value); i < length; i++) {
+				writeModelValue(Array.get(value, i), out);
+			}
+			out.endArray();
+		} else {
+			out.value(value.toString());
+		}
+	}
+
+	/**
+	 * Checks that a value of a template model can be written as JSON: its numbers are
+	 * finite and it is not nested deeper than {@link #MAX_MODEL_DEPTH}, which also
+	 * rejects cyclic models.
+	 * 
+	 * @throws MailParseException if the value cannot be written
+	 */
+	private static void checkModelValue(Object value, int depth) throws MailParseException {
+		if (value instanceof Double || value instanceof Float) {
+			double d = ((Number) value).doubleValue();
+			if (Double.isNaN(d) || Double.isInfinite(d)) {
+				throw new MailParseException("Template model numbers must be finite: " + value);
+			}
+			return;
+		}
+		boolean container = value instanceof Map || value instanceof Iterable
+				|| (value != null && value.getClass().isArray());
+		if (!container) {
+			return;
+		}
+		if (depth >= MAX_MODEL_DEPTH) {
+			throw new MailParseException("Template model nested deeper than " + MAX_MODEL_DEPTH + " levels");
+		}
+		if (value instanceof Map) {
+			for (Object item : ((Map<?, ?>) value).values()) {
+				checkModelValue(item, depth + 1);
+			}
+		} else if (value instanceof Iterable) {
+			for (Object item : (Iterable<?>) value) {
+				checkModelValue(item, depth + 1);
+			}
+		} else {
+			for (int i = 0, length = Array.getLength(value); i < length; i++) {
+				checkModelValue(Array.get(value, i), depth + 1);
+			}
+		}
+	}
+
+	/**
+	 * Writes the <tt>Attachments</tt> property, streaming the contents of each
+	 * attachment through a Base64 encoder. Nothing is read when only counting or summarizing.
+	 * 
+	 * @param attachments the attachments, may be <tt>null</tt>
+	 */
+	static void writeAttachments(List<Attachment> attachments, Utf8JsonWriter out) throws IOException {
+		if (attachments == null || attachments.isEmpty()) {
+			return;
+		}
+		out.name("Attachments").beginArray();
+		for (Attachment attachment : attachments) {
+			out.beginObject();
+			out.property("Name", attachment.getName());
+			out.name("Content");
+			if (out.isCounting() || out.isSummarizing()) {
+				out.base64Value(null, attachment.getLength());
+			} else {
+				ReadableByteChannel in = attachment.open();
+				try {
+					out.base64Value(in, attachment.getLength());
+				} finally {
+					in.close();
+				}
+			}
+			out.property("ContentType", attachment.getContentType());
+			out.endObject();
+		}
+		out.endArray();
+	}
+
+	/**
+	 * @param rawUtf8 whether non-ASCII chars are encoded as UTF-8 rather than escaped
+	 * @return the length in bytes of the JSON written by {@link #write(SimpleMailMessage, Utf8JsonWriter)}
+	 */
+	static long length(SimpleMailMessage src, boolean rawUtf8) {
+		byte[] buf = BufferPool.SHARED.acquire();
+		try {
+			Utf8JsonWriter counter = Utf8JsonWriter.counting(buf, rawUtf8);
+			write(src, counter);
+			return counter.getCount();
+		} catch (IOException ioe) {
+			throw new IllegalStateException("Counting writer cannot fail", ioe);
+		} finally {
+			BufferPool.SHARED.release(buf);
+		}
+	}
+
+	/**
+	 * @param rawUtf8 whether non-ASCII chars are encoded as UTF-8 rather than escaped
+	 * @return the JSON written by {@link #write(SimpleMailMessage, Utf8JsonWriter)}
+	 */
+	static byte[] encode(SimpleMailMessage src, boolean rawUtf8) {
+		byte[] buf = BufferPool.SHARED.acquire();
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) length(src, rawUtf8));
+			Utf8JsonWriter out = new Utf8JsonWriter(bytes, buf, rawUtf8);
+			write(src, out);
+			out.flush();
+			return bytes.toByteArray();
+		} catch (IOException ioe) {
+			throw new IllegalStateException("In-memory writer cannot fail", ioe);
+		} finally {
+			BufferPool.SHARED.release(buf);
+		}
+	}
+}
@@ -0,0 +1,339 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+
+package com.postmark;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.mail.SimpleMailMessage;
+
+import com.postmark.util.BloomFilter;
+
+/**
+ * Local copy of the recipients Postmark has marked inactive (hard bounces, spam
+ * complaints, manual suppressions), so that messages to them are not sent.
+ * <p>
+ * Addresses are kept lower-cased in an exact set, behind a {@link BloomFilter}: most
+ * recipients are not suppressed, and are told apart by the filter alone. The filter
+ * is rebuilt twice as large when the set outgrows it.
+ * <p>
+ * The list is filled by {@link PostmarkMailSender#syncSuppressions()}, which a sender
+ * configured with {@link PostmarkMailSender#setSuppressionList(SuppressionList)} calls
+ * periodically in the background. Given a file, the list is loaded from it when
+ * created, and saved to it after each sync, so that a restarted process does not
+ * start empty.
+ * <p>
+ * This class is thread-safe.
+ */
+public class SuppressionList {
+
+	/** Default message stream whose suppressions are synced. */
+	public static final String DEFAULT_MESSAGE_STREAM = "outbound";
+	/** Default interval between two full syncs, which drop reactivated recipients. */
+	public static final long DEFAULT_FULL_SYNC_INTERVAL_MILLIS = 24 * 60 * 60 * 1000;
+
+	private static final int MIN_CAPACITY = 1024;
+	private static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+	private static final String FILE_HEADER = "# postmark-suppressions";
+
+	/**
+	 * Filter and set swapped together by full syncs.
+	 */
+	private static class Index {
+		final BloomFilter filter;
+		final Set<String> addresses;
+
+		Index(int capacity, Set<String> addresses) {
+			filter = new BloomFilter(capacity, FALSE_POSITIVE_PROBABILITY);
+			this.addresses = addresses;
+			for (String address : addresses)
+				filter.add(address);
+		}
+	}
+
+	private final File file;
+	private String messageStream = DEFAULT_MESSAGE_STREAM;
+	private long fullSyncIntervalMillis = DEFAULT_FULL_SYNC_INTERVAL_MILLIS;
+
+	private volatile Index index = new Index(MIN_CAPACITY, newSet());
+	private volatile long lastSyncMillis;
+	private volatile long lastFullSyncMillis;
+
+	/**
+	 * Creates an empty list, kept in memory only.
+	 */
+	public SuppressionList() {
+		this.file = null;
+	}
+
+	/**
+	 * Creates a list persisted to <tt>file</tt>, and loads it if the file exists.
+	 * 
+	 * @param file the file the list is saved to after each sync
+	 * @throws IOException if the file exists but cannot be read
+	 */
+	public SuppressionList(File file) throws IOException {
+		this.file = file;
+		if (file.exists())
+			load();
+	}
+
+	/**
+	 * @return whether <tt>recipient</tt>, an address with or without display name, is suppressed
+	 */
+	public boolean isSuppressed(String recipient) {
+		String address = normalize(recipient);
+		Index current = index;
+		return current.filter.mightContain(address) && current.addresses.contains(address);
+	}
+
+	/**
+	 * @return whether all the To, Cc and Bcc recipients of <tt>message</tt> are
+	 * suppressed, in which case Postmark would reject it
+	 */
+	public boolean isSuppressed(SimpleMailMessage message) {
+		if (index.addresses.isEmpty())
+			return false;
+		List<String> recipients = recipients(message);
+		for (String recipient : recipients) {
+			if (!isSuppressed(recipient))
+				return false;
+		}
+		return !recipients.isEmpty();
+	}
+
+	/**
+	 * Suppresses all the recipients of a message Postmark rejected as sent to inactive
+	 * recipients, until the next full sync.
+	 */
+	void addRecipients(SimpleMailMessage message) {
+		for (String recipient : recipients(message))
+			add(recipient);
+	}
+
+	/**
+	 * Suppresses a recipient locally, until the next full sync.
+	 */
+	public void add(String recipient) {
+		String address = normalize(recipient);
+		Index current = index;
+		if (current.addresses.add(address)) {
+			current.filter.add(address);
+			if (current.addresses.size() > current.filter.getExpectedInsertions())
+				grow(current);
+		}
+	}
+
+	/**
+	 * Stops suppressing a recipient locally, until the next sync.
+	 */
+	public void remove(String recipient) {
+		index.addresses.remove(normalize(recipient));
+	}
+
+	/**
+	 * @return the number of suppressed addresses
+	 */
+	public int size() {
+		return index.addresses.size();
+	}
+
+	/**
+	 * @return the suppressed addresses, lower-cased
+	 */
+	public Set<String> getAddresses() {
+		return Collections.unmodifiableSet(index.addresses);
+	}
+
+	private synchronized void grow(Index current) {
+		if (index == current)
+			index = new Index(current.filter.getExpectedInsertions() * 2, current.addresses);
+	}
+
+	/**
+	 * Replaces all addresses, by a full sync.
+	 */
+	synchronized void replace(Set<String> addresses, long syncMillis) {
+		index = new Index(Math.max(MIN_CAPACITY, addresses.size() * 2), addresses);
+		lastSyncMillis = syncMillis;
+		lastFullSyncMillis = syncMillis;
+	}
+
+	/**
+	 * Records an incremental sync, whose addresses have been added.
+	 */
+	void synced(long syncMillis) {
+		lastSyncMillis = syncMillis;
+	}
+
+	/**
+	 * @return whether the next sync should fetch all the suppressions
+	 */
+	boolean isFullSyncDue(long now) {
+		return lastSyncMillis == 0 || now - lastFullSyncMillis >= fullSyncIntervalMillis;
+	}
+
+	/**
+	 * @return the time of the last sync, full or incremental, or <tt>0</tt> if never synced
+	 */
+	public long getLastSyncMillis() {
+		return lastSyncMillis;
+	}
+
+	public long getLastFullSyncMillis() {
+		return lastFullSyncMillis;
+	}
+
+	/**
+	 * @param messageStream the Postmark message stream whose suppressions are synced
+	 */
+	public void setMessageStream(String messageStream) {
+		this.messageStream = messageStream;
+	}
+
+	public String getMessageStream() {
+		return messageStream;
+	}
+
+	/**
+	 * @param fullSyncIntervalMillis the interval between two full syncs. Other syncs
+	 * only fetch the suppressions created since the previous sync, and thus miss
+	 * reactivated recipients.
+	 */
+	public void setFullSyncIntervalMillis(long fullSyncIntervalMillis) {
+		this.fullSyncIntervalMillis = fullSyncIntervalMillis;
+	}
+
+	public long getFullSyncIntervalMillis() {
+		return fullSyncIntervalMillis;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Saves the list to its file, if any: a header with the sync times, then one
+	 * address per line. The file is replaced atomically where the platform allows it.
+	 */
+	public synchronized void save() throws IOException {
+		if (file == null)
+			return;
+		File tmp = new File(file.getPath() + ".tmp");
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+		try {
+			out.write(FILE_HEADER + " " + lastSyncMillis + " " + lastFullSyncMillis + "\n");
+			for (String address : index.addresses)
+				out.write(address + "\n");
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file)))
+			throw new IOException("Could not replace " + file);
+	}
+
+	private void load() throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String header = in.readLine();
+			if (header == null || !header.startsWith(FILE_HEADER + " "))
+				throw new IOException("Not a suppression list: " + file);
+			String[] times = header.substring(FILE_HEADER.length() + 1).split(" ");
+			Set<String> addresses = newSet();
+			for (String line = in.readLine(); line != null; line = in.readLine()) {
+				if (line.length() > 0)
+					addresses.add(line);
+			}
+			replace(addresses, 0);
+			lastSyncMillis = Long.parseLong(times[0]);
+			lastFullSyncMillis = Long.parseLong(times[1]);
+		} catch (RuntimeException re) {
+			throw new IOException("Corrupted suppression list " + file, re);
+		} finally {
+			in.close();
+		}
+	}
+
+	static Set<String> newSet() {
+		return Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	}
+
+	/**
+	 * @return the lower-cased address of a recipient, without display name
+	 */
+	static String normalize(String recipient) {
+		return AddressParser.SHARED.normalize(recipient);
+	}
+
+	/**
+	 * @return the To, Cc and Bcc recipients of <tt>message</tt>, fields holding several
+	 * recipients split on the commas which are not within quotes
+	 */
+	static List<String> recipients(SimpleMailMessage message) {
+		List<String> recipients = new ArrayList<String>();
+		String[][] fields = { message.getTo(), message.getCc(), message.getBcc() };
+		for (String[] field : fields) {
+			if (field == null)
+				continue;
+			for (String value : field) {
+				if (value == null)
+					continue;
+				boolean quoted = false;
+				int start = 0;
+				for (int i = 0; i <= value.length(); i++) {
+					char c = i < value.length() ? value.charAt(i) : ',';
+					if (c == '"') {
+						quoted = !quoted;
+					} else if (c == ',' && (!quoted || i == value.length())) {
+						String recipient = value.substring(start, i).trim();
+						if (recipient.length() > 0)
+							recipients.add(recipient);
+						start = i + 1;
+					}
+				}
+			}
+		}
+		return recipients;
+	}
+}
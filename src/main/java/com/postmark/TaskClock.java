@@ -0,0 +1,63 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+
+package com.postmark;
+
+/**
+ * Virtual clock ordering the queue of the own executor as {@link PriorityScheduler}
+ * grants its permits: each task of a class starts the inverse of the class weight
+ * after the previous one, so that under contention classes run in proportion of
+ * their weights and low priority tasks do not starve. A class which was idle
+ * starts again from the virtual time of the last task run.
+ */
+final class TaskClock {
+	private static final int[] DEFAULT_WEIGHTS = { PriorityScheduler.DEFAULT_HIGH_WEIGHT,
+			PriorityScheduler.DEFAULT_NORMAL_WEIGHT, PriorityScheduler.DEFAULT_LOW_WEIGHT };
+
+	private final double[] virtualTimes = new double[DEFAULT_WEIGHTS.length];
+	private double virtualTime;
+
+	/**
+	 * @param scheduler the scheduler giving the class weights, or <tt>null</tt> for the default weights
+	 * @return the virtual start time of the next task of class <tt>priority</tt>
+	 */
+	synchronized double next(Priority priority, PriorityScheduler scheduler) {
+		int index = priority.ordinal();
+		int weight = scheduler != null ? scheduler.getWeight(priority) : DEFAULT_WEIGHTS[index];
+		double start = Math.max(virtualTimes[index], virtualTime);
+		virtualTimes[index] = start + 1.0 / weight;
+		return start;
+	}
+
+	synchronized void started(double tag) {
+		virtualTime = Math.max(virtualTime, tag);
+	}
+}
@@ -0,0 +1,135 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+
+package com.postmark.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of strings: a compact set answering whether a string may have been
+ * added, with false positives but no false negatives.
+ * <p>
+ * The bits are sized at construction for an expected number of strings and a false
+ * positive probability, about 10 bits per string for 1%. Strings are hashed once to
+ * 64 bits, and the bit indexes derived by double hashing. Adds and lookups are
+ * lock-free.
+ */
+public class BloomFilter {
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final AtomicLongArray bits;
+	private final long bitCount;
+	private final int hashCount;
+	private final int expectedInsertions;
+
+	/**
+	 * @param expectedInsertions number of strings the filter is sized for
+	 * @param falsePositiveProbability probability that a string never added is reported
+	 * present, once <tt>expectedInsertions</tt> strings are added
+	 */
+	public BloomFilter(int expectedInsertions, double falsePositiveProbability) {
+		if (expectedInsertions <= 0 || falsePositiveProbability <= 0 || falsePositiveProbability >= 1)
+			throw new IllegalArgumentException("Expected insertions must be positive, and the probability within ]0, 1[");
+		this.expectedInsertions = expectedInsertions;
+		long m = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveProbability) / (Math.log(2) * Math.log(2)));
+		bits = new AtomicLongArray((int) Math.max(1, (m + 63) / 64));
+		bitCount = bits.length() * 64L;
+		hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedInsertions * Math.log(2)));
+	}
+
+	public void add(CharSequence value) {
+		long hash = hash(value);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 1; i <= hashCount; i++) {
+			long index = index(h1 + i * h2);
+			int word = (int) (index >>> 6);
+			long mask = 1L << index;
+			long current;
+			while (((current = bits.get(word)) & mask) == 0 && !bits.compareAndSet(word, current, current | mask))
+				;
+		}
+	}
+
+	/**
+	 * @return <tt>false</tt> if <tt>value</tt> was never added, <tt>true</tt> if it
+	 * probably was
+	 */
+	public boolean mightContain(CharSequence value) {
+		long hash = hash(value);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 1; i <= hashCount; i++) {
+			long index = index(h1 + i * h2);
+			if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	public int getExpectedInsertions() {
+		return expectedInsertions;
+	}
+
+	/**
+	 * @return the size of the filter in bits
+	 */
+	public long getBitCount() {
+		return bitCount;
+	}
+
+	public int getHashCount() {
+		return hashCount;
+	}
+
+	private long index(int combined) {
+		return (combined & 0xffffffffL) % bitCount;
+	}
+
+	/**
+	 * FNV-1a of the chars of <tt>value</tt>, spread by the murmur3 finalizer.
+	 */
+	private static long hash(CharSequence value) {
+		long h = FNV_OFFSET;
+		for (int i = 0; i < value.length(); i++) {
+			h ^= value.charAt(i);
+			h *= FNV_PRIME;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
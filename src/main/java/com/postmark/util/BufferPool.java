@@ -0,0 +1,93 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+
+package com.postmark.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of reusable byte arrays of a fixed size.
+ * <p>
+ * Arrays are handed out by {@link #acquire()} and must be given back through
+ * {@link #release(byte[])} once done. When the pool is empty a new array is allocated,
+ * and arrays released to a full pool are left to the garbage collector.
+ */
+public class BufferPool {
+
+	/** Shared pool of 8KB buffers used for request bodies. */
+	public static final BufferPool SHARED = new BufferPool(8192, 64);
+
+	private final int bufferSize;
+	private final int maxPooled;
+	private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<byte[]>();
+	private final AtomicInteger pooled = new AtomicInteger();
+
+	/**
+	 * @param bufferSize size of the arrays handed out by this pool
+	 * @param maxPooled maximum number of arrays kept for reuse
+	 */
+	public BufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * @return a pooled array, or a new one if none is available
+	 */
+	public byte[] acquire() {
+		byte[] buffer = buffers.poll();
+		if (buffer == null)
+			return new byte[bufferSize];
+		pooled.decrementAndGet();
+		return buffer;
+	}
+
+	/**
+	 * Gives <tt>buffer</tt> back to the pool. It must not be used afterwards.
+	 * 
+	 * @param buffer an array obtained from {@link #acquire()}
+	 */
+	public void release(byte[] buffer) {
+		if (buffer.length != bufferSize)
+			return;
+		if (pooled.incrementAndGet() > maxPooled) {
+			pooled.decrementAndGet();
+			return;
+		}
+		buffers.offer(buffer);
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+}
@@ -0,0 +1,102 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+package com.postmark.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * Bounded pool of reusable raw (headerless) {@link Deflater}s of a given level.
+ * <p>
+ * A Deflater holds native memory which is only freed by {@link Deflater#end()}, and
+ * allocating one for each request is costly. Deflaters are handed out by
+ * {@link #acquire()} and must be given back through {@link #release(Deflater)}, which
+ * resets them. Deflaters released to a full pool are ended.
+ */
+public class DeflaterPool {
+
+	private final int level;
+	private final int maxPooled;
+	private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+	private final AtomicInteger pooled = new AtomicInteger();
+
+	/**
+	 * @param level the compression level, see {@link Deflater}
+	 * @param maxPooled maximum number of deflaters kept for reuse
+	 */
+	public DeflaterPool(int level, int maxPooled) {
+		this.level = level;
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * @return a pooled deflater, or a new one if none is available
+	 */
+	public Deflater acquire() {
+		Deflater deflater = deflaters.poll();
+		if (deflater == null)
+			return new Deflater(level, true);
+		pooled.decrementAndGet();
+		return deflater;
+	}
+
+	/**
+	 * Resets <tt>deflater</tt> and gives it back to the pool. It must not be used afterwards.
+	 * 
+	 * @param deflater a deflater obtained from {@link #acquire()}
+	 */
+	public void release(Deflater deflater) {
+		if (pooled.incrementAndGet() > maxPooled) {
+			pooled.decrementAndGet();
+			deflater.end();
+			return;
+		}
+		deflater.reset();
+		deflaters.offer(deflater);
+	}
+
+	/**
+	 * Ends the pooled deflaters. Deflaters released afterwards are pooled again.
+	 */
+	public void clear() {
+		Deflater deflater;
+		while ((deflater = deflaters.poll()) != null) {
+			pooled.decrementAndGet();
+			deflater.end();
+		}
+	}
+
+	public int getLevel() {
+		return level;
+	}
+}
@@ -0,0 +1,224 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+package com.postmark.util;
+
+import java.util.Arrays;
+
+/**
+ * Bounded set of <tt>long</tt> keys forgetting them after a time window, with a
+ * memory use fixed at construction.
+ * <p>
+ * Keys are spread over lock-striped segments. Each segment holds two open-addressing
+ * tables of primitive longs: keys are added to the current generation, and looked up
+ * in both. A segment starts a new generation, dropping the oldest one, once the
+ * current generation is a window old or full. A key is thus remembered for at least
+ * the window, unless more than <tt>maxKeys</tt> keys are added within the window,
+ * and at most twice the window. Memory use is about 32 bytes per key of capacity.
+ */
+public class ExpiringLongSet {
+
+	private static final long EMPTY = 0;
+	private static final long REMOVED = 1;
+	private static final int SEGMENTS = 16;
+
+	private final long windowMillis;
+	private final Segment[] segments = new Segment[SEGMENTS];
+
+	/**
+	 * @param windowMillis how long keys are remembered
+	 * @param maxKeys number of keys remembered within a window, beyond which the oldest
+	 * keys are forgotten early
+	 */
+	public ExpiringLongSet(long windowMillis, int maxKeys) {
+		if (windowMillis <= 0 || maxKeys <= 0)
+			throw new IllegalArgumentException("Window and capacity must be positive");
+		this.windowMillis = windowMillis;
+		int segmentKeys = Math.max(1, (maxKeys + SEGMENTS - 1) / SEGMENTS);
+		for (int i = 0; i < SEGMENTS; i++)
+			segments[i] = new Segment(segmentKeys);
+	}
+
+	/**
+	 * Adds <tt>key</tt> unless it is already present.
+	 * 
+	 * @return whether <tt>key</tt> was added, <tt>false</tt> if it is present
+	 */
+	public boolean add(long key) {
+		long hash = mix(key);
+		return segmentFor(hash).add(hash, System.currentTimeMillis());
+	}
+
+	/**
+	 * @return whether <tt>key</tt> is present
+	 */
+	public boolean contains(long key) {
+		long hash = mix(key);
+		return segmentFor(hash).contains(hash, System.currentTimeMillis());
+	}
+
+	/**
+	 * Removes <tt>key</tt>, so that it can be added again.
+	 * 
+	 * @return whether <tt>key</tt> was present
+	 */
+	public boolean remove(long key) {
+		long hash = mix(key);
+		return segmentFor(hash).remove(hash);
+	}
+
+	/**
+	 * @return the number of keys in the current and previous generations, removed
+	 * keys included
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments)
+			size += segment.size();
+		return size;
+	}
+
+	public long getWindowMillis() {
+		return windowMillis;
+	}
+
+	private Segment segmentFor(long hash) {
+		return segments[(int) (hash >>> 60) & (SEGMENTS - 1)];
+	}
+
+	/**
+	 * Spreads the bits of <tt>key</tt> (murmur3 finalizer), keeping clear of the
+	 * reserved slot values.
+	 */
+	private static long mix(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key == EMPTY || key == REMOVED ? key + 2 : key;
+	}
+
+	private class Segment {
+		private final int maxKeys;
+		private long[] current;
+		private long[] previous;
+		private int currentSize;
+		private int previousSize;
+		private long generationStart;
+
+		Segment(int maxKeys) {
+			this.maxKeys = maxKeys;
+			// at most half full, for short probe sequences
+			int capacity = Integer.highestOneBit(Math.max(maxKeys, 2) * 2 - 1) << 1;
+			current = new long[capacity];
+			previous = new long[capacity];
+			generationStart = System.currentTimeMillis();
+		}
+
+		synchronized boolean add(long hash, long now) {
+			expire(now);
+			if (find(previous, hash) >= 0)
+				return false;
+			int mask = current.length - 1;
+			for (int i = (int) hash & mask; ; i = (i + 1) & mask) {
+				long slot = current[i];
+				if (slot == hash)
+					return false;
+				if (slot == EMPTY) {
+					if (currentSize >= maxKeys) {
+						rotate(now);
+						return add(hash, now);
+					}
+					current[i] = hash;
+					currentSize++;
+					return true;
+				}
+			}
+		}
+
+		synchronized boolean contains(long hash, long now) {
+			expire(now);
+			return find(current, hash) >= 0 || find(previous, hash) >= 0;
+		}
+
+		synchronized boolean remove(long hash) {
+			int i = find(current, hash);
+			if (i >= 0) {
+				current[i] = REMOVED;
+				return true;
+			}
+			i = find(previous, hash);
+			if (i >= 0) {
+				previous[i] = REMOVED;
+				return true;
+			}
+			return false;
+		}
+
+		synchronized int size() {
+			return currentSize + previousSize;
+		}
+
+		private int find(long[] table, long hash) {
+			int mask = table.length - 1;
+			for (int i = (int) hash & mask; ; i = (i + 1) & mask) {
+				long slot = table[i];
+				if (slot == hash)
+					return i;
+				if (slot == EMPTY)
+					return -1;
+			}
+		}
+
+		private void expire(long now) {
+			long age = now - generationStart;
+			if (age >= 2 * windowMillis) {
+				Arrays.fill(current, EMPTY);
+				Arrays.fill(previous, EMPTY);
+				currentSize = 0;
+				previousSize = 0;
+				generationStart = now;
+			} else if (age >= windowMillis) {
+				rotate(now);
+			}
+		}
+
+		private void rotate(long now) {
+			long[] dropped = previous;
+			previous = current;
+			previousSize = currentSize;
+			Arrays.fill(dropped, EMPTY);
+			current = dropped;
+			currentSize = 0;
+			generationStart = now;
+		}
+	}
+}
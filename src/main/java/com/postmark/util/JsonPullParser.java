@@ -0,0 +1,375 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+package com.postmark.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Minimal pull parser reading JSON from a stream of UTF-8 bytes.
+ * <p>
+ * Tokens are read on demand, through a caller-provided byte array, so that a
+ * document is decoded while it arrives and values which are not needed are skipped
+ * without being kept. The API follows the <tt>JsonReader</tt> of later Gson versions.
+ * <p>
+ * Malformed documents are reported by an {@link IllegalStateException}.
+ */
+public class JsonPullParser {
+
+	/**
+	 * Kinds of JSON tokens.
+	 */
+	public static enum Token {
+		BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+	}
+
+	private static final int EMPTY_DOCUMENT = 0;
+	private static final int NONEMPTY_DOCUMENT = 1;
+	private static final int EMPTY_OBJECT = 2;
+	private static final int DANGLING_NAME = 3;
+	private static final int NONEMPTY_OBJECT = 4;
+	private static final int EMPTY_ARRAY = 5;
+	private static final int NONEMPTY_ARRAY = 6;
+
+	private static final int MAX_DEPTH = 32;
+
+	private final InputStream in;
+	private final byte[] buf;
+	private int pos;
+	private int limit;
+	private long offset;
+
+	private final int[] stack = new int[MAX_DEPTH];
+	private int depth;
+
+	private Token peeked;
+	private String value;
+	private final StringBuilder chars = new StringBuilder();
+
+	/**
+	 * @param in the UTF-8 input, not closed by this parser
+	 * @param buf the buffer to use
+	 */
+	public JsonPullParser(InputStream in, byte[] buf) {
+		this.in = in;
+		this.buf = buf;
+		stack[depth++] = EMPTY_DOCUMENT;
+	}
+
+	/**
+	 * @return the kind of the next token, without consuming it
+	 */
+	public Token peek() throws IOException {
+		if (peeked != null)
+			return peeked;
+		int c;
+		switch (stack[depth - 1]) {
+		case EMPTY_DOCUMENT:
+			stack[depth - 1] = NONEMPTY_DOCUMENT;
+			return peeked = readValue(nextNonWhitespace());
+		case NONEMPTY_DOCUMENT:
+			c = nextNonWhitespace();
+			if (c != -1)
+				throw syntaxError("Expected end of document");
+			return peeked = Token.END_DOCUMENT;
+		case EMPTY_ARRAY:
+		case NONEMPTY_ARRAY:
+			c = nextNonWhitespace();
+			if (c == ']') {
+				depth--;
+				return peeked = Token.END_ARRAY;
+			}
+			if (stack[depth - 1] == NONEMPTY_ARRAY) {
+				if (c != ',')
+					throw syntaxError("Expected ',' or ']'");
+				c = nextNonWhitespace();
+			}
+			stack[depth - 1] = NONEMPTY_ARRAY;
+			return peeked = readValue(c);
+		case EMPTY_OBJECT:
+		case NONEMPTY_OBJECT:
+			c = nextNonWhitespace();
+			if (c == '}') {
+				depth--;
+				return peeked = Token.END_OBJECT;
+			}
+			if (stack[depth - 1] == NONEMPTY_OBJECT) {
+				if (c != ',')
+					throw syntaxError("Expected ',' or '}'");
+				c = nextNonWhitespace();
+			}
+			if (c != '"')
+				throw syntaxError("Expected a name");
+			value = readString();
+			stack[depth - 1] = DANGLING_NAME;
+			return peeked = Token.NAME;
+		case DANGLING_NAME:
+			if (nextNonWhitespace() != ':')
+				throw syntaxError("Expected ':'");
+			stack[depth - 1] = NONEMPTY_OBJECT;
+			return peeked = readValue(nextNonWhitespace());
+		default:
+			throw new AssertionError();
+		}
+	}
+
+	/**
+	 * @return whether the current object or array has another element
+	 */
+	public boolean hasNext() throws IOException {
+		Token token = peek();
+		return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END_DOCUMENT;
+	}
+
+	public void beginObject() throws IOException {
+		expect(Token.BEGIN_OBJECT);
+	}
+
+	public void endObject() throws IOException {
+		expect(Token.END_OBJECT);
+	}
+
+	public void beginArray() throws IOException {
+		expect(Token.BEGIN_ARRAY);
+	}
+
+	public void endArray() throws IOException {
+		expect(Token.END_ARRAY);
+	}
+
+	public String nextName() throws IOException {
+		expect(Token.NAME);
+		return value;
+	}
+
+	/**
+	 * @return the next string value, or the text of the next number
+	 */
+	public String nextString() throws IOException {
+		if (peek() != Token.NUMBER)
+			expect(Token.STRING);
+		peeked = null;
+		return value;
+	}
+
+	public int nextInt() throws IOException {
+		if (peek() != Token.STRING)
+			expect(Token.NUMBER);
+		peeked = null;
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException nfe) {
+			throw syntaxError("Expected an int but was " + value);
+		}
+	}
+
+	public boolean nextBoolean() throws IOException {
+		expect(Token.BOOLEAN);
+		return "true".equals(value);
+	}
+
+	public void nextNull() throws IOException {
+		expect(Token.NULL);
+	}
+
+	/**
+	 * Skips the next value, with its contents if it is an object or array.
+	 */
+	public void skipValue() throws IOException {
+		int count = 0;
+		do {
+			Token token = peek();
+			peeked = null;
+			if (token == Token.BEGIN_OBJECT || token == Token.BEGIN_ARRAY)
+				count++;
+			else if (token == Token.END_OBJECT || token == Token.END_ARRAY)
+				count--;
+			else if (token == Token.END_DOCUMENT)
+				throw syntaxError("Unexpected end of document");
+		} while (count > 0);
+	}
+
+	private void expect(Token expected) throws IOException {
+		Token token = peek();
+		if (token != expected)
+			throw syntaxError("Expected " + expected + " but was " + token);
+		peeked = null;
+	}
+
+	private Token readValue(int c) throws IOException {
+		switch (c) {
+		case '{':
+			push(EMPTY_OBJECT);
+			return Token.BEGIN_OBJECT;
+		case '[':
+			push(EMPTY_ARRAY);
+			return Token.BEGIN_ARRAY;
+		case '"':
+			value = readString();
+			return Token.STRING;
+		case 't':
+			literal("rue");
+			value = "true";
+			return Token.BOOLEAN;
+		case 'f':
+			literal("alse");
+			value = "false";
+			return Token.BOOLEAN;
+		case 'n':
+			literal("ull");
+			value = null;
+			return Token.NULL;
+		case -1:
+			throw syntaxError("Unexpected end of document");
+		default:
+			if (c != '-' && (c < '0' || c > '9'))
+				throw syntaxError("Unexpected character '" + (char) c + "'");
+			chars.setLength(0);
+			chars.append((char) c);
+			while ((c = read()) != -1) {
+				if ((c < '0' || c > '9') && c != '-' && c != '+' && c != '.' && c != 'e' && c != 'E') {
+					pos--;
+					break;
+				}
+				chars.append((char) c);
+			}
+			value = chars.toString();
+			return Token.NUMBER;
+		}
+	}
+
+	private void push(int context) {
+		if (depth == MAX_DEPTH)
+			throw new IllegalStateException("JSON nesting too deep");
+		stack[depth++] = context;
+	}
+
+	private void literal(String rest) throws IOException {
+		for (int i = 0; i < rest.length(); i++) {
+			if (read() != rest.charAt(i))
+				throw syntaxError("Unexpected literal");
+		}
+	}
+
+	/**
+	 * Reads the rest of a string whose opening quote has been read, decoding UTF-8
+	 * sequences and escapes.
+	 */
+	private String readString() throws IOException {
+		chars.setLength(0);
+		while (true) {
+			int c = read();
+			if (c == '"')
+				return chars.toString();
+			if (c == -1)
+				throw syntaxError("Unterminated string");
+			if (c == '\\') {
+				chars.append(readEscape());
+			} else if (c < 0x80) {
+				chars.append((char) c);
+			} else if ((c & 0xe0) == 0xc0) {
+				chars.append((char) ((c & 0x1f) << 6 | continuation()));
+			} else if ((c & 0xf0) == 0xe0) {
+				chars.append((char) ((c & 0x0f) << 12 | continuation() << 6 | continuation()));
+			} else if ((c & 0xf8) == 0xf0) {
+				int codePoint = (c & 0x07) << 18 | continuation() << 12 | continuation() << 6 | continuation();
+				chars.append(Character.toChars(codePoint));
+			} else {
+				throw syntaxError("Invalid UTF-8");
+			}
+		}
+	}
+
+	private int continuation() throws IOException {
+		int c = read();
+		if ((c & 0xc0) != 0x80)
+			throw syntaxError("Invalid UTF-8");
+		return c & 0x3f;
+	}
+
+	private char readEscape() throws IOException {
+		int c = read();
+		switch (c) {
+		case '"':
+		case '\\':
+		case '/':
+			return (char) c;
+		case 'b':
+			return '\b';
+		case 'f':
+			return '\f';
+		case 'n':
+			return '\n';
+		case 'r':
+			return '\r';
+		case 't':
+			return '\t';
+		case 'u':
+			int code = 0;
+			for (int i = 0; i < 4; i++) {
+				int digit = Character.digit(read(), 16);
+				if (digit < 0)
+					throw syntaxError("Invalid unicode escape");
+				code = code << 4 | digit;
+			}
+			return (char) code;
+		default:
+			throw syntaxError("Invalid escape");
+		}
+	}
+
+	private int nextNonWhitespace() throws IOException {
+		int c;
+		do {
+			c = read();
+		} while (c == ' ' || c == '\n' || c == '\r' || c == '\t');
+		return c;
+	}
+
+	private int read() throws IOException {
+		if (pos == limit) {
+			offset += limit;
+			pos = 0;
+			do {
+				limit = in.read(buf, 0, buf.length);
+			} while (limit == 0);
+			if (limit < 0) {
+				limit = 0;
+				return -1;
+			}
+		}
+		return buf[pos++] & 0xff;
+	}
+
+	private IllegalStateException syntaxError(String message) {
+		return new IllegalStateException("Malformed JSON at offset " + (offset + pos) + ": " + message);
+	}
+}
@@ -0,0 +1,189 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+package com.postmark.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in nanoseconds.
+ * <p>
+ * Values are counted in log-linear buckets: each power of two is split in 8 buckets,
+ * so that percentiles are reported within 12.5% of the actual value, with a fixed
+ * footprint of about 4 KB. Recording is a few atomic increments, without allocation.
+ * <p>
+ * This class is thread-safe.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (63 - SUB_BUCKET_BITS) * SUB_BUCKETS + SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Summary of a histogram at a point in time, in milliseconds.
+	 */
+	public static class Snapshot {
+		private final long count;
+		private final double meanMillis;
+		private final double p50Millis;
+		private final double p90Millis;
+		private final double p99Millis;
+		private final double p999Millis;
+		private final double maxMillis;
+
+		Snapshot(long count, double meanMillis, double p50Millis, double p90Millis,
+				double p99Millis, double p999Millis, double maxMillis) {
+			this.count = count;
+			this.meanMillis = meanMillis;
+			this.p50Millis = p50Millis;
+			this.p90Millis = p90Millis;
+			this.p99Millis = p99Millis;
+			this.p999Millis = p999Millis;
+			this.maxMillis = maxMillis;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public double getMeanMillis() {
+			return meanMillis;
+		}
+
+		public double getP50Millis() {
+			return p50Millis;
+		}
+
+		public double getP90Millis() {
+			return p90Millis;
+		}
+
+		public double getP99Millis() {
+			return p99Millis;
+		}
+
+		public double getP999Millis() {
+			return p999Millis;
+		}
+
+		public double getMaxMillis() {
+			return maxMillis;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("count=%d mean=%.2fms p50=%.2fms p99=%.2fms p999=%.2fms max=%.2fms",
+					count, meanMillis, p50Millis, p99Millis, p999Millis, maxMillis);
+		}
+	}
+
+	/**
+	 * Records a duration.
+	 * 
+	 * @param nanos the duration in nanoseconds, negative values count as 0
+	 */
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		counts.incrementAndGet(index(nanos));
+		count.incrementAndGet();
+		sum.addAndGet(nanos);
+		long current;
+		while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos))
+			;
+	}
+
+	/**
+	 * @return the number of recorded durations
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @param p the percentile, between 0 and 1
+	 * @return the duration in nanoseconds below which a ratio <tt>p</tt> of the
+	 * recorded durations fall, rounded up to the bucket bound
+	 */
+	public long getPercentile(double p) {
+		long total = 0;
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+			total += snapshot[i] = counts.get(i);
+		if (total == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(p * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return Math.min(lowerBound(i + 1) - 1, max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * @return a summary of the recorded durations
+	 */
+	public Snapshot getSnapshot() {
+		long n = count.get();
+		return new Snapshot(n, n == 0 ? 0 : millis(sum.get()) / n,
+				millis(getPercentile(.5)), millis(getPercentile(.9)), millis(getPercentile(.99)),
+				millis(getPercentile(.999)), millis(max.get()));
+	}
+
+	private static double millis(long nanos) {
+		return (double) nanos / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	static int index(long value) {
+		if (value < 2 * SUB_BUCKETS)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	static long lowerBound(int index) {
+		if (index < 2 * SUB_BUCKETS)
+			return index;
+		if (index >= BUCKETS)
+			return Long.MAX_VALUE;
+		int shift = index / SUB_BUCKETS - 1;
+		return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+	}
+}
@@ -0,0 +1,434 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+
+package com.postmark.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Durable append-only journal of byte records, stored in a directory as fixed-size
+ * memory-mapped segment files.
+ * <p>
+ * Each record gets an increasing sequence number. Records are handed out once by
+ * {@link #poll(int, long)}, and {@link #acknowledge(long)} marks them as done: the
+ * journal keeps a persistent cursor below which all records are acknowledged, and
+ * deletes the segments entirely below that cursor. Records may be acknowledged out of
+ * order, by concurrent consumers. When the journal is reopened,
+ * e.g. after a crash, every record from the cursor onwards is handed out again, even
+ * if acknowledged, so that records are processed at least once.
+ * <p>
+ * Record layout: <tt>[int length][int crc32][length bytes]</tt>. The length is written
+ * last and a zero length marks the end of a segment, so that torn writes are detected
+ * through their checksum and dropped on recovery.
+ * <p>
+ * This class is thread-safe.
+ */
+public class SegmentedJournal implements Closeable {
+
+	private static Logger logger = Logger.getLogger("com.postmark");
+
+	/** Default size of a segment file. */
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	private static final int HEADER_SIZE = 8;
+	private static final String SEGMENT_SUFFIX = ".segment";
+	private static final String CURSOR_FILE = "cursor";
+
+	/**
+	 * A journal record.
+	 */
+	public static class Record {
+		private final long sequence;
+		private final byte[] data;
+
+		Record(long sequence, byte[] data) {
+			this.sequence = sequence;
+			this.data = data;
+		}
+
+		public long getSequence() {
+			return sequence;
+		}
+
+		public byte[] getData() {
+			return data;
+		}
+	}
+
+	private static class Segment {
+		final long baseSequence;
+		final File file;
+		final MappedByteBuffer buffer;
+		/** Number of records and end offset of the written data. */
+		int count;
+		int end;
+
+		Segment(long baseSequence, File file, MappedByteBuffer buffer) {
+			this.baseSequence = baseSequence;
+			this.file = file;
+			this.buffer = buffer;
+		}
+	}
+
+	private final File directory;
+	private final int segmentSize;
+	private final boolean syncOnAppend;
+	private final CRC32 crc = new CRC32();
+
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+	private final MappedByteBuffer cursorBuffer;
+	/** All records before the cursor are acknowledged. */
+	private long cursor;
+	/** Acknowledged records after the cursor. */
+	private final TreeSet<Long> acknowledged = new TreeSet<Long>();
+	/** Next record to hand out, with its segment and offset. */
+	private long readSequence;
+	private Segment readSegment;
+	private int readOffset;
+	private boolean closed;
+	/** Records not acknowledged when the journal was closed. */
+	private long closedPendingCount;
+
+	/**
+	 * Opens the journal in <tt>directory</tt>, creating it if needed, and recovers
+	 * the records not acknowledged yet.
+	 * 
+	 * @param directory the journal directory, holding no other files
+	 * @param segmentSize the size of segment files, which bounds the size of a record
+	 * @param syncOnAppend whether each append and acknowledgement is forced to disk.
+	 * Otherwise records survive a process crash but may be lost by an OS crash.
+	 * @throws IOException if the journal cannot be opened
+	 */
+	public SegmentedJournal(File directory, int segmentSize, boolean syncOnAppend) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.syncOnAppend = syncOnAppend;
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create journal directory " + directory);
+
+		cursorBuffer = map(new File(directory, CURSOR_FILE), 8);
+		cursor = cursorBuffer.getLong(0);
+
+		File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		Arrays.sort(files);
+		for (File file : files) {
+			long base = Long.parseLong(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length()));
+			Segment segment = new Segment(base, file, map(file, segmentSize));
+			recover(segment);
+			segments.add(segment);
+		}
+		if (segments.isEmpty())
+			segments.add(createSegment(cursor));
+		if (cursor < segments.getFirst().baseSequence)
+			cursor = segments.getFirst().baseSequence;
+		compact();
+		seek(cursor);
+	}
+
+	/**
+	 * Appends a record.
+	 * 
+	 * @param data the record content
+	 * @return the record sequence number
+	 * @throws IOException if the record does not fit in a segment, or the journal is closed
+	 */
+	public synchronized long append(byte[] data) throws IOException {
+		if (closed)
+			throw new IOException("Journal is closed");
+		if (data.length + HEADER_SIZE * 2 > segmentSize)
+			throw new IOException("Record of " + data.length + " bytes does not fit in a journal segment");
+		Segment segment = segments.getLast();
+		if (segment.end + HEADER_SIZE + data.length + HEADER_SIZE > segmentSize) {
+			segment = createSegment(segment.baseSequence + segment.count);
+			segments.add(segment);
+		}
+		crc.reset();
+		crc.update(data);
+		ByteBuffer buffer = segment.buffer;
+		buffer.putInt(segment.end + 4, (int) crc.getValue());
+		ByteBuffer body = buffer.duplicate();
+		body.position(segment.end + HEADER_SIZE);
+		body.put(data);
+		// the length commits the record
+		buffer.putInt(segment.end, data.length);
+		if (syncOnAppend)
+			segment.buffer.force();
+		segment.end += HEADER_SIZE + data.length;
+		long sequence = segment.baseSequence + segment.count++;
+		notifyAll();
+		return sequence;
+	}
+
+	/**
+	 * Hands out the next records, which are not handed out again until the journal is reopened.
+	 * 
+	 * @param maxRecords maximum number of records returned
+	 * @param maxBytes maximum total size of the returned records, at least one record is returned
+	 * @return the next records, empty if none is available
+	 */
+	public synchronized List<Record> poll(int maxRecords, long maxBytes) {
+		List<Record> records = new ArrayList<Record>();
+		long bytes = 0;
+		while (records.size() < maxRecords) {
+			Segment segment = nextSegment();
+			if (segment == null)
+				break;
+			int length = segment.buffer.getInt(readOffset);
+			if (!records.isEmpty() && bytes + length > maxBytes)
+				break;
+			byte[] data = new byte[length];
+			ByteBuffer body = segment.buffer.duplicate();
+			body.position(readOffset + HEADER_SIZE);
+			body.get(data);
+			records.add(new Record(readSequence++, data));
+			readOffset += HEADER_SIZE + length;
+			bytes += length;
+		}
+		return records;
+	}
+
+	/**
+	 * Waits until records are available to {@link #poll(int, long)}.
+	 * 
+	 * @param timeoutMillis maximum time to wait
+	 * @return whether records are available
+	 */
+	public synchronized boolean await(long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (!closed && nextSegment() == null) {
+			long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0)
+				return false;
+			wait(wait);
+		}
+		return !closed;
+	}
+
+	/**
+	 * Marks a record handed out by {@link #poll(int, long)} as done.
+	 * 
+	 * @param sequence the record sequence number
+	 */
+	public synchronized void acknowledge(long sequence) {
+		if (closed || sequence < cursor)
+			return;
+		acknowledged.add(sequence);
+		long previous = cursor;
+		while (!acknowledged.isEmpty() && acknowledged.first() == cursor) {
+			acknowledged.pollFirst();
+			cursor++;
+		}
+		if (cursor != previous) {
+			cursorBuffer.putLong(0, cursor);
+			if (syncOnAppend)
+				cursorBuffer.force();
+			compact();
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Waits until all records are acknowledged.
+	 * 
+	 * @param timeoutMillis maximum time to wait
+	 * @return whether all records are acknowledged
+	 */
+	public synchronized boolean awaitAcknowledged(long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (!closed && getPendingCount() > 0) {
+			long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0)
+				return false;
+			wait(wait);
+		}
+		return !closed;
+	}
+
+	/**
+	 * @return the number of records not acknowledged yet, or when the journal was closed
+	 */
+	public synchronized long getPendingCount() {
+		if (closed)
+			return closedPendingCount;
+		Segment last = segments.getLast();
+		return last.baseSequence + last.count - cursor - acknowledged.size();
+	}
+
+	/**
+	 * @return the number of segment files
+	 */
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * Forces pending writes to disk.
+	 */
+	public synchronized void sync() {
+		if (closed)
+			return;
+		segments.getLast().buffer.force();
+		cursorBuffer.force();
+	}
+
+	/**
+	 * Forces pending writes to disk and closes the journal. Records not acknowledged
+	 * are handed out again when the journal is reopened.
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed)
+			return;
+		sync();
+		closedPendingCount = getPendingCount();
+		closed = true;
+		segments.clear();
+		notifyAll();
+	}
+
+	/**
+	 * Positions the read cursor at <tt>sequence</tt>.
+	 */
+	private void seek(long sequence) {
+		readSequence = sequence;
+		readSegment = segments.getLast();
+		for (Segment segment : segments) {
+			if (sequence < segment.baseSequence + segment.count) {
+				readSegment = segment;
+				break;
+			}
+		}
+		readOffset = 0;
+		for (long s = readSegment.baseSequence; s < sequence; s++)
+			readOffset += HEADER_SIZE + readSegment.buffer.getInt(readOffset);
+	}
+
+	/**
+	 * @return the segment holding the next record to hand out, or <tt>null</tt> if none is available
+	 */
+	private Segment nextSegment() {
+		if (closed)
+			return null;
+		for (Segment segment : segments) {
+			if (readSequence < segment.baseSequence + segment.count) {
+				if (segment != readSegment) {
+					// moved on to the start of the next segment
+					readSegment = segment;
+					readOffset = 0;
+				}
+				return segment;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Deletes the segments holding only acknowledged records.
+	 */
+	private void compact() {
+		while (segments.size() > 1) {
+			Segment first = segments.getFirst();
+			if (first.baseSequence + first.count > cursor)
+				break;
+			segments.removeFirst();
+			if (!first.file.delete())
+				logger.log(Level.WARNING, "Could not delete journal segment " + first.file);
+		}
+	}
+
+	/**
+	 * Finds the end of the valid records of a recovered segment.
+	 */
+	private void recover(Segment segment) {
+		ByteBuffer buffer = segment.buffer;
+		int offset = 0;
+		int count = 0;
+		while (offset + HEADER_SIZE <= segmentSize) {
+			int length = buffer.getInt(offset);
+			if (length <= 0 || offset + HEADER_SIZE + length > segmentSize)
+				break;
+			byte[] data = new byte[length];
+			ByteBuffer body = buffer.duplicate();
+			body.position(offset + HEADER_SIZE);
+			body.get(data);
+			crc.reset();
+			crc.update(data);
+			if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+				logger.log(Level.WARNING, "Dropping torn record " + (segment.baseSequence + count) + " of " + segment.file);
+				break;
+			}
+			offset += HEADER_SIZE + length;
+			count++;
+		}
+		// clears a torn record, so that the next append is not mistaken for it
+		if (offset + 4 <= segmentSize)
+			buffer.putInt(offset, 0);
+		segment.count = count;
+		segment.end = offset;
+	}
+
+	private Segment createSegment(long baseSequence) throws IOException {
+		File file = new File(directory, String.format("%020d%s", baseSequence, SEGMENT_SUFFIX));
+		return new Segment(baseSequence, file, map(file, segmentSize));
+	}
+
+	private static MappedByteBuffer map(File file, int size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (raf.length() < size)
+				raf.setLength(size);
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			// the mapping stays valid once the channel is closed
+			raf.close();
+		}
+	}
+}
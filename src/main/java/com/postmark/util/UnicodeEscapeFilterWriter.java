@@ -33,18 +33,19 @@ package com.postmark.util;
 
 import java.io.FilterWriter;
 import java.io.IOException;
-import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 
 /**
  * FilterWriter escaping non-ASCII characters to their <tt>\\uXXXX</tt> Unicode escape
  * sequence.
  * <p>
- * Processes the buffer char by char.
+ * Runs of ASCII chars are written in bulk, and escape sequences are built from a
+ * nibble table into a reused buffer, so that escaping does not allocate per char.
  * <p>
- * A faster way for heavy usage would be to pre-build the 65K entries table of escape
- * sequences, but that would mean keeping <tt>65K*4*2 = 512KB</tt> in memory just for
- * this feature, which should be fast enough as it is for most uses.
+ * The static methods escape into a new String, a {@link CharBuffer} or a
+ * {@link ByteBuffer} without going through a Writer.
  * 
  * @see FilterWriter
  */
@@ -54,30 +55,64 @@ public class UnicodeEscapeFilterWriter extends FilterWriter {
 		super(out);
 	}
 
-	private static char[] prefix = { '\\', 'u', '0', '0', '0' };
+	/** Lower case hexadecimal digit of each nibble value. */
+	static final char[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
+	/** Length of an escape sequence. */
+	static final int ESCAPE_LENGTH = 6;
+
+	private final char[] sequence = { '\\', 'u', '0', '0', '0', '0' };
 	
 
 	@Override
 	public void write(char[] cbuf, int off, int len) throws IOException {
-    	for (int i = 0; i < len; i++) {
-            if ((cbuf[i] > '\u007f')) {
-                String hx = Integer.toHexString(cbuf[i]);
-                out.write(prefix, 0, 6 - hx.length());
-                out.write(hx);
-            } else
-                out.write(cbuf[i]);
-        }
-    }
+		int end = off + len;
+		int start = off;
+		for (int i = off; i < end; i++) {
+			char c = cbuf[i];
+			if (c > '\u007f') {
+				if (i > start)
+					out.write(cbuf, start, i - start);
+				writeEscaped(c);
+				start = i + 1;
+			}
+		}
+		if (end > start)
+			out.write(cbuf, start, end - start);
+	}
 
-    @Override
-    public void write(int c) throws IOException {
-        write(new char[] {(char)c}, 0, 1);
-    }
+	@Override
+	public void write(int c) throws IOException {
+		if (c > '\u007f')
+			writeEscaped((char) c);
+		else
+			out.write(c);
+	}
 
-    @Override
-    public void write(String str, int off, int len) throws IOException {
-        write(str.toCharArray(), off, len);
-    }
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		int end = off + len;
+		int start = off;
+		for (int i = off; i < end; i++) {
+			char c = str.charAt(i);
+			if (c > '\u007f') {
+				if (i > start)
+					out.write(str, start, i - start);
+				writeEscaped(c);
+				start = i + 1;
+			}
+		}
+		if (end > start)
+			out.write(str, start, end - start);
+	}
+
+	private void writeEscaped(char c) throws IOException {
+		sequence[2] = HEX[(c >> 12) & 0xf];
+		sequence[3] = HEX[(c >> 8) & 0xf];
+		sequence[4] = HEX[(c >> 4) & 0xf];
+		sequence[5] = HEX[c & 0xf];
+		out.write(sequence, 0, ESCAPE_LENGTH);
+	}
     
     
     /**
@@ -95,18 +130,142 @@ public class UnicodeEscapeFilterWriter extends FilterWriter {
 
     /**
      * Escapes <tt>str</tt> using this Filter.
+     * <p>
+     * The exact escaped length is computed beforehand, and <tt>str</tt> itself is
+     * returned when it holds only ASCII chars.
      * 
      * @param str the original String
-     * @param estimatedNonASCIIRatio an estimation of the ratio of non-ASCII chars in <tt>str</tt>.
-     * It is used for the initial allocation size of the new char array.
+     * @param estimatedNonASCIIRatio ignored, kept for compatibility: the escaped length
+     * is now computed exactly.
      * @return the escaped String
      * @throws IOException
      */
     public static String escape(String str, float estimatedNonASCIIRatio) throws IOException {
-		StringWriter out = new StringWriter(Math.round(str.length() * (1 + estimatedNonASCIIRatio * 5)));
-		UnicodeEscapeFilterWriter fw = new UnicodeEscapeFilterWriter(out);
-		fw.write(str);
-		return out.toString();
+    	int length = escapedLength(str);
+    	if (length == str.length())
+    		return str;
+    	CharBuffer escaped = CharBuffer.allocate(length);
+    	escape(str, 0, escaped);
+    	return new String(escaped.array());
+    }
+
+    /**
+     * @param src the original chars
+     * @return the length of <tt>src</tt> once escaped
+     */
+    public static int escapedLength(CharSequence src) {
+    	int length = src.length();
+    	int escapedLength = length;
+    	for (int i = 0; i < length; i++) {
+    		if (src.charAt(i) > '\u007f')
+    			escapedLength += ESCAPE_LENGTH - 1;
+    	}
+    	return escapedLength;
+    }
+
+    /**
+     * Escapes <tt>src</tt> from index <tt>off</tt> into <tt>dst</tt>, as long as
+     * <tt>dst</tt> has room for the next escaped char.
+     * 
+     * @param src the original chars
+     * @param off index of the first char of <tt>src</tt> to escape
+     * @param dst the destination buffer
+     * @return the index of the first char of <tt>src</tt> not escaped,
+     * <tt>src.length()</tt> once all chars have been escaped
+     */
+    public static int escape(CharSequence src, int off, CharBuffer dst) {
+    	int length = src.length();
+    	int i = off;
+    	for (; i < length; i++) {
+    		char c = src.charAt(i);
+    		if (c <= '\u007f') {
+    			if (!dst.hasRemaining())
+    				break;
+    			dst.put(c);
+    		} else {
+    			if (dst.remaining() < ESCAPE_LENGTH)
+    				break;
+    			dst.put('\\').put('u')
+    				.put(HEX[(c >> 12) & 0xf]).put(HEX[(c >> 8) & 0xf])
+    				.put(HEX[(c >> 4) & 0xf]).put(HEX[c & 0xf]);
+    		}
+    	}
+    	return i;
+    }
+
+    /**
+     * Escapes <tt>src</tt> from index <tt>off</tt> into <tt>dst</tt> as ASCII bytes,
+     * as long as <tt>dst</tt> has room for the next escaped char.
+     * 
+     * @param src the original chars
+     * @param off index of the first char of <tt>src</tt> to escape
+     * @param dst the destination buffer
+     * @return the index of the first char of <tt>src</tt> not escaped,
+     * <tt>src.length()</tt> once all chars have been escaped
+     */
+    public static int escape(CharSequence src, int off, ByteBuffer dst) {
+    	int length = src.length();
+    	int i = off;
+    	for (; i < length; i++) {
+    		char c = src.charAt(i);
+    		if (c <= '\u007f') {
+    			if (!dst.hasRemaining())
+    				break;
+    			dst.put((byte) c);
+    		} else {
+    			if (dst.remaining() < ESCAPE_LENGTH)
+    				break;
+    			dst.put((byte) '\\').put((byte) 'u')
+    				.put((byte) HEX[(c >> 12) & 0xf]).put((byte) HEX[(c >> 8) & 0xf])
+    				.put((byte) HEX[(c >> 4) & 0xf]).put((byte) HEX[c & 0xf]);
+    		}
+    	}
+    	return i;
+    }
 
+    /**
+     * Encodes <tt>src</tt> from index <tt>off</tt> into <tt>dst</tt> as raw UTF-8,
+     * without escaping, as long as <tt>dst</tt> has room for the next encoded char.
+     * <p>
+     * For payloads sent with a UTF-8 charset, where escaping is not needed. Unpaired
+     * surrogates are encoded as <tt>'?'</tt>.
+     * 
+     * @param src the original chars
+     * @param off index of the first char of <tt>src</tt> to encode
+     * @param dst the destination buffer
+     * @return the index of the first char of <tt>src</tt> not encoded,
+     * <tt>src.length()</tt> once all chars have been encoded
+     */
+    public static int encodeUtf8(CharSequence src, int off, ByteBuffer dst) {
+    	int length = src.length();
+    	int i = off;
+    	while (i < length) {
+    		char c = src.charAt(i);
+    		if (c < 0x80) {
+    			if (!dst.hasRemaining())
+    				break;
+    			dst.put((byte) c);
+    		} else if (c < 0x800) {
+    			if (dst.remaining() < 2)
+    				break;
+    			dst.put((byte) (0xc0 | (c >> 6))).put((byte) (0x80 | (c & 0x3f)));
+    		} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(src.charAt(i + 1))) {
+    			if (dst.remaining() < 4)
+    				break;
+    			int cp = Character.toCodePoint(c, src.charAt(++i));
+    			dst.put((byte) (0xf0 | (cp >> 18))).put((byte) (0x80 | ((cp >> 12) & 0x3f)))
+    				.put((byte) (0x80 | ((cp >> 6) & 0x3f))).put((byte) (0x80 | (cp & 0x3f)));
+    		} else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+    			if (!dst.hasRemaining())
+    				break;
+    			dst.put((byte) '?');
+    		} else {
+    			if (dst.remaining() < 3)
+    				break;
+    			dst.put((byte) (0xe0 | (c >> 12))).put((byte) (0x80 | ((c >> 6) & 0x3f))).put((byte) (0x80 | (c & 0x3f)));
+    		}
+    		i++;
+    	}
+    	return i;
     }
 }
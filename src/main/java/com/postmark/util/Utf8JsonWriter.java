@@ -0,0 +1,570 @@
+// The MIT License
+//
+// Copyright (c) 2010 Jared Holdcroft
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+/* Postmark for Java / Spring
+ * <p/>
+ * This library can be used to leverage the postmarkapp.com functionality from a Java client
+ * <p/>
+ *
+ * https://github.com/Imaginatio/postmark-java
+ * forked from https://github.com/bitformed/postmark-java
+ */
+
+package com.postmark.util;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal streaming JSON writer producing UTF-8 bytes.
+ * <p>
+ * By default, strings are escaped the same way as Gson (with HTML escaping disabled)
+ * followed by {@link UnicodeEscapeFilterWriter}: quotes, backslashes and control
+ * characters get their JSON escape sequence, and every non-ASCII char its
+ * <tt>\\uXXXX</tt> form, so the output is pure ASCII. In raw UTF-8 mode, non-ASCII
+ * chars are encoded as UTF-8 instead, which is shorter and cheaper for accented text.
+ * <p>
+ * Output goes through a caller-provided byte array, flushed to the underlying stream
+ * when full, so that no intermediate String or char array is built. When created
+ * without an output stream, the writer only counts the bytes it would have written.
+ */
+public class Utf8JsonWriter implements Flushable {
+
+	private static final int MAX_DEPTH = 32;
+
+	private final OutputStream out;
+	private final byte[] buf;
+	private int pos;
+	private long flushed;
+	private final boolean rawUtf8;
+	private final boolean summarizing;
+	private boolean timingEscapes;
+	/** Time spent writing strings from their first escaped char, see {@link #getEscapeNanos()}. */
+	private long escapeNanos;
+	/** Start of the escaping of the current string, or 0 if none. */
+	private long escapeStart;
+
+	/** Whether the current object or array already holds a value, by depth. */
+	private final boolean[] nonEmpty = new boolean[MAX_DEPTH];
+	private int depth;
+	private boolean afterName;
+
+	/**
+	 * Creates a writer escaping all non-ASCII chars.
+	 * 
+	 * @param out the output stream, or <tt>null</tt> to only count written bytes
+	 * @param buf the buffer to use, at least 16 bytes long
+	 */
+	public Utf8JsonWriter(OutputStream out, byte[] buf) {
+		this(out, buf, false);
+	}
+
+	/**
+	 * @param out the output stream, or <tt>null</tt> to only count written bytes
+	 * @param buf the buffer to use, at least 16 bytes long
+	 * @param rawUtf8 whether non-ASCII chars are encoded as UTF-8 rather than escaped
+	 */
+	public Utf8JsonWriter(OutputStream out, byte[] buf, boolean rawUtf8) {
+		this(out, buf, rawUtf8, false);
+	}
+
+	private Utf8JsonWriter(OutputStream out, byte[] buf, boolean rawUtf8, boolean summarizing) {
+		this.out = out;
+		this.buf = buf;
+		this.rawUtf8 = rawUtf8;
+		this.summarizing = summarizing;
+	}
+
+	/**
+	 * @return a writer discarding its output, used to compute the length of a JSON content
+	 * @param buf the buffer to use
+	 * @param rawUtf8 whether non-ASCII chars are encoded as UTF-8 rather than escaped
+	 */
+	public static Utf8JsonWriter counting(byte[] buf, boolean rawUtf8) {
+		return new Utf8JsonWriter(null, buf, rawUtf8);
+	}
+
+	/**
+	 * @return a writer replacing Base64 values by their length, used to log a JSON content
+	 * without reading its binary parts
+	 * @param out the output stream
+	 * @param buf the buffer to use
+	 * @param rawUtf8 whether non-ASCII chars are encoded as UTF-8 rather than escaped
+	 */
+	public static Utf8JsonWriter summarizing(OutputStream out, byte[] buf, boolean rawUtf8) {
+		return new Utf8JsonWriter(out, buf, rawUtf8, true);
+	}
+
+	public Utf8JsonWriter beginObject() throws IOException {
+		beforeValue();
+		put('{');
+		push();
+		return this;
+	}
+
+	public Utf8JsonWriter endObject() throws IOException {
+		depth--;
+		put('}');
+		return this;
+	}
+
+	public Utf8JsonWriter beginArray() throws IOException {
+		beforeValue();
+		put('[');
+		push();
+		return this;
+	}
+
+	public Utf8JsonWriter endArray() throws IOException {
+		depth--;
+		put(']');
+		return this;
+	}
+
+	/**
+	 * Writes the name of the next object property.
+	 */
+	public Utf8JsonWriter name(String name) throws IOException {
+		if (nonEmpty[depth])
+			put(',');
+		nonEmpty[depth] = true;
+		string(name);
+		put(':');
+		afterName = true;
+		return this;
+	}
+
+	/**
+	 * Writes a string value, or <tt>null</tt>.
+	 */
+	public Utf8JsonWriter value(String value) throws IOException {
+		beforeValue();
+		if (value == null)
+			ascii("null");
+		else
+			string(value);
+		return this;
+	}
+
+	/**
+	 * Writes <tt>values</tt> joined by <tt>separator</tt> as one string value.
+	 */
+	public Utf8JsonWriter value(String[] values, char separator) throws IOException {
+		beforeValue();
+		put('"');
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0)
+				escape(separator);
+			chars(String.valueOf(values[i]));
+		}
+		put('"');
+		return this;
+	}
+
+	public Utf8JsonWriter value(long value) throws IOException {
+		beforeValue();
+		ascii(Long.toString(value));
+		return this;
+	}
+
+	/**
+	 * Writes a number value, or <tt>null</tt>. Integral and big numbers are written
+	 * exactly, others as by {@link Double#toString(double)}.
+	 * 
+	 * @throws IllegalArgumentException if <tt>value</tt> is NaN or infinite
+	 */
+	public Utf8JsonWriter numberValue(Number value) throws IOException {
+		if (value == null)
+			return nullValue();
+		if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte
+				|| value instanceof AtomicInteger || value instanceof AtomicLong)
+			return value(value.longValue());
+		String number;
+		if (value instanceof BigInteger || value instanceof BigDecimal) {
+			number = value.toString();
+		} else {
+			double d = value.doubleValue();
+			if (Double.isNaN(d) || Double.isInfinite(d))
+				throw new IllegalArgumentException("JSON numbers must be finite: " + value);
+			number = Double.toString(d);
+		}
+		beforeValue();
+		ascii(number);
+		return this;
+	}
+
+	public Utf8JsonWriter value(boolean value) throws IOException {
+		beforeValue();
+		ascii(value ? "true" : "false");
+		return this;
+	}
+
+	public Utf8JsonWriter nullValue() throws IOException {
+		beforeValue();
+		ascii("null");
+		return this;
+	}
+
+	/**
+	 * Writes a string property: its name followed by its value.
+	 */
+	public Utf8JsonWriter property(String name, String value) throws IOException {
+		return name(name).value(value);
+	}
+
+	/**
+	 * Writes an already encoded JSON value, which must be valid UTF-8, and pure ASCII
+	 * unless this writer is in raw UTF-8 mode.
+	 */
+	public Utf8JsonWriter rawValue(byte[] json, int off, int len) throws IOException {
+		beforeValue();
+		raw(json, off, len);
+		return this;
+	}
+
+	/**
+	 * Starts a string value written in parts, by {@link #stringPart(String)} and
+	 * {@link #escapedStringPart(byte[], int, int)}, and ended by {@link #endString()}.
+	 */
+	public Utf8JsonWriter beginString() throws IOException {
+		beforeValue();
+		put('"');
+		return this;
+	}
+
+	/**
+	 * Writes the escaped chars of <tt>s</tt>, as part of a string value. Outside of
+	 * a value, it writes the escaped content of a string without its quotes.
+	 */
+	public Utf8JsonWriter stringPart(String s) throws IOException {
+		chars(s);
+		return this;
+	}
+
+	/**
+	 * Writes already escaped string content, as produced by {@link #stringPart(String)},
+	 * as part of a string value.
+	 */
+	public Utf8JsonWriter escapedStringPart(byte[] escaped, int off, int len) throws IOException {
+		raw(escaped, off, len);
+		return this;
+	}
+
+	/**
+	 * Ends a string value started by {@link #beginString()}.
+	 */
+	public Utf8JsonWriter endString() throws IOException {
+		put('"');
+		return this;
+	}
+
+	/**
+	 * Writes a string value holding the Base64 encoding of the <tt>length</tt> bytes
+	 * read from <tt>in</tt>, in constant memory. In counting and summarizing modes,
+	 * <tt>in</tt> is not read and may be <tt>null</tt>.
+	 * 
+	 * @throws IOException if <tt>in</tt> does not hold exactly <tt>length</tt> bytes
+	 */
+	public Utf8JsonWriter base64Value(ReadableByteChannel in, long length) throws IOException {
+		if (summarizing)
+			return value("(" + length + " bytes)");
+		beforeValue();
+		put('"');
+		if (out == null) {
+			flushed += (length + 2) / 3 * 4;
+		} else {
+			byte[] data = BufferPool.SHARED.acquire();
+			try {
+				ByteBuffer buffer = ByteBuffer.wrap(data);
+				long read = 0;
+				int filled = 0;
+				int n;
+				while ((n = in.read(buffer)) >= 0) {
+					read += n;
+					filled += n;
+					// encodes whole groups of 3 bytes, the rest is kept for the next read
+					int whole = filled - filled % 3;
+					base64(data, whole);
+					for (int i = whole; i < filled; i++)
+						data[i - whole] = data[i];
+					filled -= whole;
+					buffer.clear();
+					buffer.position(filled);
+				}
+				if (read != length)
+					throw new IOException("Expected " + length + " bytes to encode but read " + read);
+				base64(data, filled);
+			} finally {
+				BufferPool.SHARED.release(data);
+			}
+		}
+		put('"');
+		return this;
+	}
+
+	/**
+	 * @return whether this writer only counts the bytes it would write
+	 */
+	public boolean isCounting() {
+		return out == null;
+	}
+
+	/**
+	 * @return whether this writer replaces Base64 values by their length
+	 */
+	public boolean isSummarizing() {
+		return summarizing;
+	}
+
+	/**
+	 * Times the escaping of strings, see {@link #getEscapeNanos()}. It costs two clock
+	 * reads per string holding chars to escape or encode, and none for the others.
+	 */
+	public Utf8JsonWriter timeEscapes() {
+		timingEscapes = true;
+		return this;
+	}
+
+	/**
+	 * @return the time spent writing the strings holding chars to escape or encode,
+	 * from the first of these chars and without the flushes, if {@link #timeEscapes()} was called
+	 */
+	public long getEscapeNanos() {
+		return escapeNanos;
+	}
+
+	/**
+	 * @return the number of bytes written so far, flushed or not
+	 */
+	public long getCount() {
+		return flushed + pos;
+	}
+
+	/**
+	 * Writes the buffered bytes to the output stream, without flushing the stream itself.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (out != null && pos > 0) {
+			if (escapeStart != 0) {
+				// the output stream is not part of the escaping
+				escapeNanos += System.nanoTime() - escapeStart;
+				out.write(buf, 0, pos);
+				escapeStart = System.nanoTime();
+			} else {
+				out.write(buf, 0, pos);
+			}
+		}
+		flushed += pos;
+		pos = 0;
+	}
+
+	private void push() {
+		if (++depth >= MAX_DEPTH)
+			throw new IllegalStateException("JSON nesting too deep");
+		nonEmpty[depth] = false;
+	}
+
+	private void beforeValue() throws IOException {
+		if (afterName) {
+			afterName = false;
+			return;
+		}
+		if (depth > 0) {
+			if (nonEmpty[depth])
+				put(',');
+			nonEmpty[depth] = true;
+		}
+	}
+
+	private void put(char c) throws IOException {
+		if (pos == buf.length)
+			flush();
+		buf[pos++] = (byte) c;
+	}
+
+	private void ascii(String s) throws IOException {
+		for (int i = 0; i < s.length(); i++)
+			put(s.charAt(i));
+	}
+
+	private void raw(byte[] b, int off, int len) throws IOException {
+		if (out == null) {
+			// counting only
+			flushed += len;
+			return;
+		}
+		while (len > 0) {
+			if (pos == buf.length)
+				flush();
+			int n = Math.min(len, buf.length - pos);
+			System.arraycopy(b, off, buf, pos, n);
+			pos += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	private void string(String s) throws IOException {
+		put('"');
+		chars(s);
+		put('"');
+	}
+
+	/**
+	 * Writes the chars of <tt>s</tt>, copying runs of plain ASCII chars in a tight
+	 * loop and falling back to {@link #escape(String, int)} for the others.
+	 */
+	private void chars(String s) throws IOException {
+		int i = 0;
+		int len = s.length();
+		while (i < len) {
+			byte[] b = buf;
+			int p = pos;
+			int limit = Math.min(len, i + b.length - p);
+			for (; i < limit; i++) {
+				char c = s.charAt(i);
+				if (c < 0x20 || c >= 0x7f || c == '"' || c == '\\')
+					break;
+				b[p++] = (byte) c;
+			}
+			pos = p;
+			if (i < limit) {
+				if (timingEscapes && escapeStart == 0)
+					escapeStart = System.nanoTime();
+				i = escape(s, i);
+			} else if (i < len) {
+				flush();
+			}
+		}
+		if (escapeStart != 0) {
+			escapeNanos += System.nanoTime() - escapeStart;
+			escapeStart = 0;
+		}
+	}
+
+	private static final byte[] BASE64 = new byte[64];
+	static {
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+		for (int i = 0; i < BASE64.length; i++)
+			BASE64[i] = (byte) alphabet.charAt(i);
+	}
+
+	/**
+	 * Writes the Base64 encoding of the <tt>len</tt> first bytes of <tt>data</tt>,
+	 * padded unless <tt>len</tt> is a multiple of 3.
+	 */
+	private void base64(byte[] data, int len) throws IOException {
+		int i = 0;
+		for (; i + 3 <= len; i += 3) {
+			if (buf.length - pos < 4)
+				flush();
+			int bits = (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8 | (data[i + 2] & 0xff);
+			buf[pos++] = BASE64[bits >>> 18];
+			buf[pos++] = BASE64[(bits >>> 12) & 0x3f];
+			buf[pos++] = BASE64[(bits >>> 6) & 0x3f];
+			buf[pos++] = BASE64[bits & 0x3f];
+		}
+		if (i < len) {
+			if (buf.length - pos < 4)
+				flush();
+			int bits = (data[i] & 0xff) << 16 | (i + 1 < len ? (data[i + 1] & 0xff) << 8 : 0);
+			buf[pos++] = BASE64[bits >>> 18];
+			buf[pos++] = BASE64[(bits >>> 12) & 0x3f];
+			buf[pos++] = i + 1 < len ? BASE64[(bits >>> 6) & 0x3f] : (byte) '=';
+			buf[pos++] = '=';
+		}
+	}
+
+	private static final byte[] HEX = new byte[16];
+	static {
+		for (int i = 0; i < HEX.length; i++)
+			HEX[i] = (byte) UnicodeEscapeFilterWriter.HEX[i];
+	}
+
+	/**
+	 * Writes the char at index <tt>i</tt> of <tt>s</tt>, which needs escaping or encoding.
+	 * 
+	 * @return the index of the next char to write
+	 */
+	private int escape(String s, int i) throws IOException {
+		char c = s.charAt(i);
+		if (rawUtf8 && c >= 0xa0 && c != 0x2028 && c != 0x2029) {
+			if (pos + 4 > buf.length)
+				flush();
+			if (c < 0x800) {
+				buf[pos++] = (byte) (0xc0 | (c >> 6));
+				buf[pos++] = (byte) (0x80 | (c & 0x3f));
+				return i + 1;
+			}
+			if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+				buf[pos++] = (byte) (0xe0 | (c >> 12));
+				buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				buf[pos++] = (byte) (0x80 | (c & 0x3f));
+				return i + 1;
+			}
+			if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(i + 1));
+				buf[pos++] = (byte) (0xf0 | (cp >> 18));
+				buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+				buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+				buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+				return i + 2;
+			}
+			// unpaired surrogates cannot be encoded, escape them
+		}
+		escape(c);
+		return i + 1;
+	}
+
+	private void escape(char c) throws IOException {
+		if (c >= 0x20 && c < 0x7f && c != '"' && c != '\\') {
+			put(c);
+			return;
+		}
+		if (pos + UnicodeEscapeFilterWriter.ESCAPE_LENGTH > buf.length)
+			flush();
+		buf[pos++] = '\\';
+		switch (c) {
+		case '"':  buf[pos++] = '"'; break;
+		case '\\': buf[pos++] = '\\'; break;
+		case '\b': buf[pos++] = 'b'; break;
+		case '\t': buf[pos++] = 't'; break;
+		case '\n': buf[pos++] = 'n'; break;
+		case '\f': buf[pos++] = 'f'; break;
+		case '\r': buf[pos++] = 'r'; break;
+		default:
+			buf[pos++] = 'u';
+			buf[pos++] = HEX[(c >> 12) & 0xf];
+			buf[pos++] = HEX[(c >> 8) & 0xf];
+			buf[pos++] = HEX[(c >> 4) & 0xf];
+			buf[pos++] = HEX[c & 0xf];
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package com.postmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.springframework.mail.MailParseException;
+import org.springframework.mail.MailSendException;
+
+import com.postmark.AddressParser.Address;
+
+public class AddressParserTest {
+
+	private final AddressParser parser = new AddressParser(16);
+
+	private void assertInvalid(String value) {
+		try {
+			parser.parse(value);
+			fail("No Exception arose whilst parsing " + value);
+		} catch (MailParseException mpe) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testValidAddresses() {
+		String[] valid = { "test@exemple.com", "first.last+tag@mail.exemple.co.uk", "o'brien@exemple.com",
+				"\"john doe\"@exemple.com", "user@[192.168.0.1]", "x@a-b.exemple.com", "jérôme@exemple.fr" };
+		for (String value : valid)
+			assertEquals(value, parser.parseMailbox(value).getAddress());
+	}
+
+	@Test
+	public void testInvalidAddresses() {
+		String[] invalid = { "test-exemple.com", "@exemple.com", "test@", "test@exemple", "a@@exemple.com",
+				".test@exemple.com", "test.@exemple.com", "te..st@exemple.com", "te st@exemple.com",
+				"test@-exemple.com", "test@exemple..com", "test@exem_ple.com", "<test@exemple.com",
+				"Test <test@exemple.com> trailing", "\"unterminated <test@exemple.com>",
+				"<Your name here> you@gmail.com" };
+		for (String value : invalid)
+			assertInvalid(value);
+		StringBuilder local = new StringBuilder();
+		for (int i = 0; i < 65; i++)
+			local.append('a');
+		assertInvalid(local + "@exemple.com");
+	}
+
+	@Test
+	public void testDisplayNames() {
+		List<Address> addresses = parser.parse("\"Doe, John\" <john@exemple.com>, Jane <jane@exemple.com>,"
+				+ " bob@exemple.com, \"Say \\\"hi\\\"\" <hi@exemple.com>,");
+		assertEquals(4, addresses.size());
+		assertEquals("Doe, John", addresses.get(0).getDisplayName());
+		assertEquals("john@exemple.com", addresses.get(0).getAddress());
+		assertEquals("Jane", addresses.get(1).getDisplayName());
+		assertNull(addresses.get(2).getDisplayName());
+		assertEquals("Say \"hi\"", addresses.get(3).getDisplayName());
+		assertEquals("hi@exemple.com", addresses.get(3).getAddress());
+	}
+
+	@Test
+	public void testNormalize() {
+		assertEquals("john@exemple.com", parser.normalize(" John <John@Exemple.COM> "));
+		assertEquals("john@exemple.com", parser.parseMailbox("JOHN@exemple.com").getNormalized());
+		// lenient with what it cannot parse
+		assertEquals("not an address", parser.normalize(" Not an Address"));
+	}
+
+	@Test
+	public void testCache() {
+		String value = "A <a@exemple.com>, b@exemple.com";
+		assertSame(parser.parse(value).get(0), parser.parse(new String(value)).get(0));
+		assertInvalid("test-exemple.com");
+		assertInvalid("test-exemple.com");
+		AddressParser uncached = new AddressParser(0);
+		assertEquals(2, uncached.parse(value).size());
+	}
+
+	@Test
+	public void testValidate() {
+		PostmarkMessage m = PostmarkMailSenderTest.message("Test recipients");
+		m.setCc(new String[] { "a@exemple.com, b@exemple.com", "c@exemple.com" });
+		assertEquals(4, parser.validate(m));
+
+		m.setFrom("a@exemple.com, b@exemple.com");
+		try {
+			parser.validate(m);
+			fail("No Exception arose whilst giving two senders.");
+		} catch (MailParseException mpe) {
+			// expected
+		}
+
+		m = PostmarkMailSenderTest.message("Test too many recipients");
+		String[] bcc = new String[AddressParser.MAX_RECIPIENTS];
+		for (int i = 0; i < bcc.length; i++)
+			bcc[i] = "bcc" + i + "@exemple.com";
+		m.setBcc(bcc);
+		try {
+			parser.validate(m);
+			fail("No Exception arose whilst giving too many recipients.");
+		} catch (MailParseException mpe) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testSenderFailsLocally() throws Exception {
+		PostmarkStandInServer server = new PostmarkStandInServer().start();
+		PostmarkMailSender mailSender = new PostmarkMailSender("POSTMARK_API_TEST");
+		try {
+			mailSender.setApiUrl(server.getUrl());
+			PostmarkMessage m = PostmarkMailSenderTest.message("Test invalid mail");
+			m.setTo("test@exemple");
+			try {
+				mailSender.send(m);
+				fail("No Exception arose whilst giving an incorrect e-mail address.");
+			} catch (MailSendException mse) {
+				assertEquals(MailParseException.class, mse.getCause().getClass());
+			}
+			assertEquals(0, server.getRequestCount());
+
+			// left to Postmark
+			mailSender.setAddressParser(null);
+			try {
+				mailSender.send(m);
+			} catch (MailSendException mse) {
+				// the stand-in may or may not accept it
+			}
+			assertEquals(1, server.getRequestCount());
+		} finally {
+			mailSender.close();
+			server.stop();
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package com.postmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.mail.MailSendException;
+
+import com.google.gson.JsonObject;
+import com.postmark.util.Utf8JsonWriter;
+
+/**
+ * Tests streamed attachments, against a local {@link PostmarkStandInServer}.
+ */
+public class AttachmentTest {
+
+	PostmarkStandInServer server;
+	PostmarkMailSender mailSender;
+	File file;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new PostmarkStandInServer().start();
+		mailSender = new PostmarkMailSender("POSTMARK_API_TEST");
+		mailSender.setApiUrl(server.getUrl());
+		file = File.createTempFile("postmark-attachment", ".bin");
+	}
+
+	@After
+	public void tearDown() {
+		mailSender.close();
+		server.stop();
+		file.delete();
+	}
+
+	private static byte[] randomBytes(int length) {
+		byte[] bytes = new byte[length];
+		new Random(length).nextBytes(bytes);
+		return bytes;
+	}
+
+	@Test
+	public void testBase64() throws IOException {
+		for (int length = 0; length < 40; length++)
+			checkBase64(randomBytes(length));
+		checkBase64(randomBytes(100000));
+	}
+
+	private void checkBase64(byte[] bytes) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		// small buffer, to go through flushes
+		Utf8JsonWriter writer = new Utf8JsonWriter(out, new byte[16]);
+		writer.base64Value(Channels.newChannel(new ByteArrayInputStream(bytes)), bytes.length);
+		writer.flush();
+		assertEquals("\"" + DatatypeConverter.printBase64Binary(bytes) + "\"", out.toString("US-ASCII"));
+
+		Utf8JsonWriter counter = Utf8JsonWriter.counting(new byte[16], false);
+		counter.base64Value(null, bytes.length);
+		assertEquals(out.size(), counter.getCount());
+	}
+
+	@Test
+	public void testSendFile() throws IOException {
+		byte[] contents = randomBytes(300 * 1024 + 1);
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(contents);
+		out.close();
+
+		PostmarkMessage m = PostmarkMailSenderTest.message("Test attachment");
+		m.addAttachment(new Attachment("report.pdf", "application/pdf", file));
+		m.addAttachment(new Attachment("notes.txt", "text/plain", new ByteArrayResource("été".getBytes("UTF-8")), 5));
+		mailSender.send(m);
+
+		JsonObject received = server.getReceivedMessages().get(0);
+		JsonObject pdf = received.getAsJsonArray("Attachments").get(0).getAsJsonObject();
+		assertEquals("report.pdf", pdf.get("Name").getAsString());
+		assertEquals("application/pdf", pdf.get("ContentType").getAsString());
+		assertTrue(Arrays.equals(contents, DatatypeConverter.parseBase64Binary(pdf.get("Content").getAsString())));
+		JsonObject txt = received.getAsJsonArray("Attachments").get(1).getAsJsonObject();
+		assertEquals("été", new String(DatatypeConverter.parseBase64Binary(txt.get("Content").getAsString()), "UTF-8"));
+
+		// the exact length is known without reading the attachments
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		JsonEntity.forMessage(m, false).writeTo(bytes);
+		assertEquals(bytes.size(), SimpleMailMessageWriter.length(m, false));
+	}
+
+	@Test
+	public void testFrozenMessageAttachment() throws IOException {
+		FrozenMessage frozen = mailSender.freeze(PostmarkMailSenderTest.message("Invoice for ${name}"));
+		FrozenMessage.Message m = frozen.newMessage(PostmarkMailSenderTest.VALID_EMAIL).setValue("name", "Ann");
+		m.addAttachment(new Attachment("invoice.txt", "text/plain", new ByteArrayResource(new byte[] { 'A', 'n', 'n' }), 3));
+		mailSender.send(m);
+		JsonObject received = server.getReceivedMessages().get(0);
+		assertEquals("QW5u", received.getAsJsonArray("Attachments").get(0).getAsJsonObject().get("Content").getAsString());
+	}
+
+	@Test
+	public void testSummary() {
+		PostmarkMessage m = PostmarkMailSenderTest.message("Test attachment");
+		m.addAttachment(new Attachment("notes.txt", "text/plain", new InputStreamSource() {
+			@Override
+			public InputStream getInputStream() throws IOException {
+				throw new AssertionError("Attachment read for a summary");
+			}
+		}, 12));
+		String summary = JsonEntity.forMessage(m, false).toSummary();
+		assertTrue(summary, summary.contains("\"Name\":\"notes.txt\",\"Content\":\"(12 bytes)\""));
+	}
+
+	@Test
+	public void testSerializable() throws Exception {
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(new byte[] { 'A', 'n', 'n' });
+		out.close();
+		PostmarkMessage m = PostmarkMailSenderTest.message("Test attachment");
+		m.addAttachment(new Attachment("invoice.txt", "text/plain", file));
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream objects = new ObjectOutputStream(bytes);
+		objects.writeObject(m);
+		objects.close();
+		PostmarkMessage copy = (PostmarkMessage) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+		assertEquals("invoice.txt", copy.getAttachments().get(0).getName());
+
+		mailSender.send(copy);
+		JsonObject received = server.getReceivedMessages().get(0);
+		assertEquals("QW5u", received.getAsJsonArray("Attachments").get(0).getAsJsonObject().get("Content").getAsString());
+	}
+
+	@Test
+	public void testWrongLength() {
+		PostmarkMessage m = PostmarkMailSenderTest.message("Test attachment");
+		m.addAttachment(new Attachment("notes.txt", "text/plain", new ByteArrayResource(new byte[10]), 12));
+		try {
+			mailSender.send(m);
+			fail("No Exception arose whilst giving a wrong attachment length.");
+		} catch (MailSendException mse) {
+			assertEquals(0, server.getAcceptedCount());
+		}
+	}
+}
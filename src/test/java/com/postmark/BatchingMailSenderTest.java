@@ -0,0 +1,189 @@
+package com.postmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mail.MailException;
+import org.springframework.mail.MailParseException;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.SimpleMailMessage;
+
+import com.postmark.PostmarkMailSender.PostmarkResponse;
+import com.postmark.PostmarkMailSender.PostmarkResponseStatus;
+
+/**
+ * Runs {@link BatchingMailSender} against a local {@link PostmarkStandInServer}.
+ */
+public class BatchingMailSenderTest {
+
+	PostmarkStandInServer server;
+	PostmarkMailSender postmarkSender;
+	BatchingMailSender mailSender;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new PostmarkStandInServer().start();
+		postmarkSender = new PostmarkMailSender("POSTMARK_API_TEST");
+		postmarkSender.setApiUrl(server.getUrl());
+		mailSender = new BatchingMailSender(postmarkSender);
+	}
+
+	@After
+	public void tearDown() {
+		mailSender.close();
+		postmarkSender.close();
+		server.stop();
+	}
+
+	@Test
+	public void testAccumulate() throws Exception {
+		mailSender.setLingerMillis(200);
+		List<Future<PostmarkResponse>> futures = new ArrayList<Future<PostmarkResponse>>();
+		for (int i = 0; i < 20; i++)
+			futures.add(mailSender.sendAsync(PostmarkMailSenderTest.message("Test batched mail #" + i), null));
+		for (Future<PostmarkResponse> future : futures) {
+			assertEquals(PostmarkResponseStatus.SUCCESS, future.get().getStatus());
+			assertNotNull(future.get().getMessageId());
+		}
+		assertEquals(1, server.getRequestCount());
+		assertEquals(20, server.getAcceptedCount());
+		assertEquals(1, mailSender.getBatchCount());
+	}
+
+	@Test
+	public void testMaxBatchSize() throws Exception {
+		mailSender.setLingerMillis(200);
+		mailSender.setMaxBatchSize(5);
+		for (int i = 0; i < 12; i++)
+			mailSender.sendAsync(PostmarkMailSenderTest.message("Test batched mail #" + i), null);
+		assertTrue(mailSender.flush(5000));
+		assertEquals(3, server.getRequestCount());
+		assertEquals(12, server.getAcceptedCount());
+	}
+
+	@Test
+	public void testConcurrentSends() throws Exception {
+		mailSender.setLingerMillis(20);
+		final int threads = 16;
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicInteger failures = new AtomicInteger();
+		for (int t = 0; t < threads; t++) {
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < 10; i++)
+							mailSender.send(PostmarkMailSenderTest.message("Test concurrent mail"));
+					} catch (MailException me) {
+						failures.incrementAndGet();
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		done.await();
+		assertEquals(0, failures.get());
+		assertEquals(160, server.getAcceptedCount());
+		assertTrue(server.getRequestCount() < 160);
+	}
+
+	@Test
+	public void testFailures() throws Exception {
+		PostmarkMessage invalid = PostmarkMailSenderTest.message("Test invalid mail");
+		invalid.setTo(PostmarkMailSenderTest.INVALID_EMAIL);
+		// rejected by Postmark rather than locally
+		postmarkSender.setAddressParser(null);
+		try {
+			mailSender.send(invalid);
+			fail("No Exception arose whilst giving an incorrect e-mail address.");
+		} catch (MailSendException mse) {
+			assertEquals(1, server.getRejectedCount());
+		}
+
+		Future<PostmarkResponse> future = mailSender.sendAsync(new SimpleMailMessage(), null);
+		try {
+			future.get();
+			fail("No Exception arose whilst giving an incomplete message.");
+		} catch (ExecutionException ee) {
+			assertTrue(ee.getCause() instanceof MailParseException);
+		}
+	}
+
+	@Test
+	public void testQueueFull() throws Exception {
+		mailSender.setMaxQueueSize(2);
+		mailSender.setBlockWhenFull(false);
+		server.setLatencyMillis(200, 200);
+		int rejected = 0;
+		for (int i = 0; i < 10; i++) {
+			try {
+				mailSender.sendAsync(PostmarkMailSenderTest.message("Test queued mail #" + i), null);
+			} catch (MailSendException mse) {
+				rejected++;
+			}
+		}
+		assertTrue(rejected > 0);
+		assertTrue(mailSender.flush(5000));
+		assertEquals(10 - rejected, server.getAcceptedCount());
+	}
+
+	@Test
+	public void testCloseSendsQueued() throws Exception {
+		mailSender.setLingerMillis(1000);
+		Future<PostmarkResponse> future = mailSender.sendAsync(PostmarkMailSenderTest.message("Test closing"), null);
+		mailSender.close();
+		assertEquals(PostmarkResponseStatus.SUCCESS, future.get().getStatus());
+	}
+
+	@Test
+	public void testCloseWhileSending() throws Exception {
+		mailSender.setLingerMillis(1);
+		final List<Future<PostmarkResponse>> futures = new ArrayList<Future<PostmarkResponse>>();
+		final CountDownLatch started = new CountDownLatch(4);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					started.countDown();
+					try {
+						while (true) {
+							Future<PostmarkResponse> future = mailSender.sendAsync(PostmarkMailSenderTest.message("Test closing"), null);
+							synchronized (futures) {
+								futures.add(future);
+							}
+						}
+					} catch (IllegalStateException ise) {
+						// closed
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		started.await();
+		Thread.sleep(50);
+		mailSender.close();
+		for (Thread thread : threads)
+			thread.join();
+		// every message queued before closing is sent
+		for (Future<PostmarkResponse> future : futures)
+			assertEquals(PostmarkResponseStatus.SUCCESS, future.get(5, TimeUnit.SECONDS).getStatus());
+		assertTrue(mailSender.flush(1000));
+		assertEquals(futures.size(), server.getAcceptedCount());
+	}
+}
@@ -0,0 +1,197 @@
+package com.postmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mail.MailException;
+import org.springframework.mail.MailParseException;
+import org.springframework.mail.SimpleMailMessage;
+
+import com.postmark.PostmarkMailSender.PostmarkResponse;
+
+/**
+ * Runs {@link BulkSender} and {@link MailMerge} against a local {@link PostmarkStandInServer}.
+ */
+public class BulkSenderTest {
+
+	PostmarkStandInServer server;
+	PostmarkMailSender mailSender;
+	BulkSender bulkSender;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new PostmarkStandInServer().start();
+		mailSender = new PostmarkMailSender("POSTMARK_API_TEST");
+		mailSender.setApiUrl(server.getUrl());
+		bulkSender = new BulkSender(mailSender);
+	}
+
+	@After
+	public void tearDown() {
+		mailSender.close();
+		server.stop();
+	}
+
+	/**
+	 * Callback counting outcomes, and iterator generating messages lazily, checking
+	 * that it is never read far ahead of the outcomes.
+	 */
+	private static class Campaign implements Iterator<SimpleMailMessage>, SendCallback {
+		final int size;
+		int pulled;
+		int maxPulledAhead;
+		final AtomicInteger succeeded = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+
+		Campaign(int size) {
+			this.size = size;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return pulled < size;
+		}
+
+		@Override
+		public SimpleMailMessage next() {
+			maxPulledAhead = Math.max(maxPulledAhead, pulled - succeeded.get() - failed.get());
+			PostmarkMessage message = PostmarkMailSenderTest.message("Test bulk mail #" + pulled);
+			if (pulled % 10 == 9)
+				message.setTo(PostmarkMailSenderTest.INVALID_EMAIL);
+			pulled++;
+			return message;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void onSuccess(SimpleMailMessage message, PostmarkResponse response) {
+			succeeded.incrementAndGet();
+		}
+
+		@Override
+		public void onFailure(SimpleMailMessage message, MailException exception) {
+			failed.incrementAndGet();
+		}
+	}
+
+	@Test
+	public void testIterator() {
+		mailSender.setMaxBatchSize(50);
+		bulkSender.setThreads(3);
+		bulkSender.setMaxPendingBatches(2);
+		Campaign campaign = new Campaign(2000);
+		BulkSender.Result result = bulkSender.send(campaign, campaign);
+
+		assertEquals(1800, result.getSentCount());
+		assertEquals(200, result.getFailedCount());
+		assertEquals(1800, campaign.succeeded.get());
+		assertEquals(200, campaign.failed.get());
+		assertEquals(1800, server.getAcceptedCount());
+		assertEquals(40, server.getRequestCount());
+		// workers, pending chunks, and the chunk being pulled
+		assertTrue(campaign.maxPulledAhead <= (3 + 2 + 1) * 50);
+	}
+
+	@Test
+	public void testIteratorFailure() {
+		final Campaign campaign = new Campaign(1000);
+		Iterator<SimpleMailMessage> failing = new Iterator<SimpleMailMessage>() {
+			@Override
+			public boolean hasNext() {
+				return true;
+			}
+
+			@Override
+			public SimpleMailMessage next() {
+				if (campaign.pulled == 20)
+					throw new IllegalStateException("Source failure");
+				return campaign.next();
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+		mailSender.setMaxBatchSize(10);
+		try {
+			bulkSender.send(failing, campaign);
+			fail("No Exception arose whilst the source fails.");
+		} catch (IllegalStateException ise) {
+			// the two chunks pulled before the failure are sent
+			assertEquals(18, campaign.succeeded.get());
+			assertEquals(2, campaign.failed.get());
+			assertEquals(2, server.getRequestCount());
+		}
+	}
+
+	private static FrozenMessage template() {
+		PostmarkMessage m = new PostmarkMessage();
+		m.setFrom(PostmarkMailSenderTest.VALID_EMAIL);
+		m.setSubject("Hello ${name}");
+		m.setText("Dear ${name}, your code is ${code}.");
+		return new FrozenMessage(m);
+	}
+
+	@Test
+	public void testMailMerge() throws IOException {
+		String csv = "\uFEFFTo,name,code,Cc\r\n"
+				+ "a@exemple.com,Ann,1,\r\n"
+				+ "\r\n"
+				+ "b@exemple.com,\"Bob, \"\"the\"\" builder\",2,c@exemple.com\n"
+				+ "\"Dee <d@exemple.com>\",\"multi\nline\",\"\",";
+		MailMerge merge = new MailMerge(template(), new StringReader(csv));
+		BulkSender.Result result = bulkSender.send(merge, null);
+		merge.close();
+
+		assertEquals(3, result.getSentCount());
+		assertEquals(3, merge.getRowCount());
+		assertEquals(1, server.getRequestCount());
+		assertEquals("Hello Ann", server.getReceivedMessages().get(0).get("Subject").getAsString());
+		assertEquals("Dear Bob, \"the\" builder, your code is 2.",
+				server.getReceivedMessages().get(1).get("TextBody").getAsString());
+		assertEquals("c@exemple.com", server.getReceivedMessages().get(1).get("Cc").getAsString());
+		assertEquals("Dee <d@exemple.com>", server.getReceivedMessages().get(2).get("To").getAsString());
+		assertEquals("Dear multi\nline, your code is .",
+				server.getReceivedMessages().get(2).get("TextBody").getAsString());
+	}
+
+	@Test
+	public void testMalformedCsv() throws IOException {
+		try {
+			new MailMerge(template(), new StringReader("To,name\na@exemple.com,Ann\n"));
+			fail("No Exception arose whilst a slot has no column.");
+		} catch (MailParseException mpe) {
+			// expected
+		}
+
+		MailMerge merge = new MailMerge(template(), new StringReader("To,name,code\na@exemple.com,Ann\n"));
+		try {
+			merge.next();
+			fail("No Exception arose whilst a row misses a field.");
+		} catch (MailParseException mpe) {
+			// expected
+		}
+
+		merge = new MailMerge(template(), new StringReader("To,name,code\na@exemple.com,\"Ann,1\n"));
+		try {
+			merge.hasNext();
+			fail("No Exception arose whilst a quoted field is not terminated.");
+		} catch (MailParseException mpe) {
+			// expected
+		}
+	}
+}
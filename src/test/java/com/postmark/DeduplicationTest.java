@@ -0,0 +1,171 @@
+package com.postmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mail.MailSendException;
+
+import com.postmark.PostmarkMailSender.PostmarkResponse;
+import com.postmark.PostmarkMailSender.PostmarkResponseStatus;
+import com.postmark.util.ExpiringLongSet;
+
+/**
+ * Tests {@link DeduplicationWindow} and its {@link ExpiringLongSet}.
+ */
+public class DeduplicationTest {
+
+	PostmarkStandInServer server;
+	PostmarkMailSender mailSender;
+	DeduplicationWindow window;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new PostmarkStandInServer().start();
+		mailSender = new PostmarkMailSender("POSTMARK_API_TEST");
+		mailSender.setApiUrl(server.getUrl());
+		window = new DeduplicationWindow();
+		mailSender.setDeduplicationWindow(window);
+	}
+
+	@After
+	public void tearDown() {
+		mailSender.close();
+		server.stop();
+	}
+
+	@Test
+	public void testExpiringLongSet() throws Exception {
+		ExpiringLongSet set = new ExpiringLongSet(50, 1000);
+		for (long key = 0; key < 1000; key++)
+			assertTrue(set.add(key));
+		for (long key = 0; key < 1000; key++)
+			assertFalse(set.add(key));
+		assertTrue(set.remove(42));
+		assertFalse(set.contains(42));
+		assertTrue(set.add(42));
+
+		Thread.sleep(120);
+		for (long key = 0; key < 1000; key++)
+			assertFalse(set.contains(key));
+	}
+
+	@Test
+	public void testExpiringLongSetCapacity() {
+		ExpiringLongSet set = new ExpiringLongSet(60000, 1600);
+		for (long key = 0; key < 100000; key++)
+			set.add(key);
+		// only the last two generations of each segment are kept
+		assertTrue(set.size() <= 2 * 1600);
+		assertTrue(set.contains(99999));
+		assertFalse(set.contains(0));
+	}
+
+	@Test
+	public void testSuppressDuplicate() {
+		mailSender.send(PostmarkMailSenderTest.message("Test Mail"));
+		mailSender.send(PostmarkMailSenderTest.message("Test Mail"));
+		mailSender.send(PostmarkMailSenderTest.message("Another Mail"));
+		assertEquals(2, server.getRequestCount());
+		assertEquals(1, window.getSuppressedCount());
+		assertEquals(1, mailSender.getMetrics().getDuplicateCount());
+	}
+
+	@Test
+	public void testFailedMessageNotSuppressed() {
+		server.failNextRequests(1);
+		try {
+			mailSender.send(PostmarkMailSenderTest.message("Test Mail"));
+			fail("No Exception arose whilst Postmark fails.");
+		} catch (MailSendException mse) {
+			// expected
+		}
+		mailSender.send(PostmarkMailSenderTest.message("Test Mail"));
+		assertEquals(1, server.getAcceptedCount());
+		assertEquals(0, window.getSuppressedCount());
+	}
+
+	@Test
+	public void testIdempotencyKey() {
+		PostmarkMessage m1 = PostmarkMailSenderTest.message("Your order");
+		m1.setIdempotencyKey("order-1");
+		PostmarkMessage m2 = PostmarkMailSenderTest.message("Your order, sent again");
+		m2.setIdempotencyKey("order-1");
+		PostmarkMessage m3 = PostmarkMailSenderTest.message("Your order");
+		m3.setIdempotencyKey("order-2");
+		mailSender.send(m1);
+		mailSender.send(m2);
+		mailSender.send(m3);
+		assertEquals(2, server.getAcceptedCount());
+		assertEquals(1, window.getSuppressedCount());
+	}
+
+	@Test
+	public void testBatch() throws Exception {
+		PostmarkMessage msg[] = new PostmarkMessage[4];
+		for (int i = 0; i < msg.length; i++)
+			msg[i] = PostmarkMailSenderTest.message("Test batch #" + (i % 2));
+		msg[1].setTo(PostmarkMailSenderTest.INVALID_EMAIL);
+		// rejected by Postmark rather than locally
+		mailSender.setAddressParser(null);
+		List<Future<PostmarkResponse>> futures = mailSender.sendAsync(msg);
+		assertEquals(PostmarkResponseStatus.SUCCESS, futures.get(0).get().getStatus());
+		assertEquals(PostmarkResponseStatus.DUPLICATE, futures.get(2).get().getStatus());
+		assertEquals(PostmarkResponseStatus.SUCCESS, futures.get(3).get().getStatus());
+		assertEquals(2, server.getAcceptedCount());
+		assertEquals(1, server.getRejectedCount());
+
+		// the rejected message is not remembered, and rejected again
+		try {
+			mailSender.send(new PostmarkMessage[] { msg[1] });
+			fail("No Exception arose whilst giving an incorrect e-mail address.");
+		} catch (MailSendException mse) {
+			assertEquals(2, server.getRejectedCount());
+		}
+	}
+
+	@Test
+	public void testKeysReleasedOnUnexpectedFailure() throws Exception {
+		PostmarkMessage ok = PostmarkMailSenderTest.message("Test acquired mail");
+		PostmarkMessage broken = new PostmarkMessage() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public String getReplyTo() {
+				throw new IllegalStateException("Broken message");
+			}
+		};
+		List<Future<PostmarkResponse>> futures = mailSender.sendAsync(new PostmarkMessage[] { ok, broken });
+		try {
+			futures.get(0).get();
+			fail("No Exception arose whilst failing the batch.");
+		} catch (ExecutionException ee) {
+			assertTrue(ee.getCause() instanceof IllegalStateException);
+		}
+		assertEquals(0, server.getRequestCount());
+
+		// the message never sent is not a duplicate
+		mailSender.send(ok);
+		assertEquals(1, server.getAcceptedCount());
+		assertEquals(0, window.getSuppressedCount());
+	}
+
+	@Test
+	public void testFrozenMessages() {
+		FrozenMessage frozen = mailSender.freeze(PostmarkMailSenderTest.message("Hello ${name}"));
+		mailSender.send(frozen.newMessage(PostmarkMailSenderTest.VALID_EMAIL).setValue("name", "Ann"));
+		mailSender.send(frozen.newMessage(PostmarkMailSenderTest.VALID_EMAIL).setValue("name", "Bob"));
+		mailSender.send(frozen.newMessage("other@exemple.com").setValue("name", "Bob"));
+		mailSender.send(frozen.newMessage(PostmarkMailSenderTest.VALID_EMAIL).setValue("name", "Ann"));
+		assertEquals(3, server.getAcceptedCount());
+		assertEquals(1, window.getSuppressedCount());
+	}
+}
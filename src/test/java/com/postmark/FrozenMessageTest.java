@@ -0,0 +1,106 @@
+package com.postmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.springframework.mail.MailParseException;
+import org.springframework.mail.SimpleMailMessage;
+
+import com.postmark.util.Utf8JsonWriter;
+
+public class FrozenMessageTest {
+
+	private static String write(SimpleMailMessage m, boolean rawUtf8) throws IOException {
+		SimpleMailMessageWriter.validate(m);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Utf8JsonWriter out = new Utf8JsonWriter(bytes, new byte[16], rawUtf8);
+		SimpleMailMessageWriter.write(m, out);
+		out.flush();
+		assertEquals(bytes.size(), SimpleMailMessageWriter.length(m, rawUtf8));
+		return bytes.toString("UTF-8");
+	}
+
+	private static PostmarkMessage template() {
+		PostmarkMessage m = new PostmarkMessage();
+		m.setFrom("Nicolas <nicolas@gmail.com>");
+		m.setSubject("Bonjour ${name} !");
+		m.setHtmlBody("<p>Chère ${name}, été \"€\" ${missing ${code}</p>");
+		m.setText("${name}");
+		m.setTag("newsletter");
+		m.setReplyTo("reply@gmail.com");
+		return m;
+	}
+
+	@Test
+	public void testSameOutputAsMessage() throws IOException {
+		for (boolean rawUtf8 : new boolean[] { false, true }) {
+			FrozenMessage frozen = new FrozenMessage(template(), rawUtf8);
+			assertEquals(Arrays.asList("name", "code"), Arrays.asList(frozen.getSlots().toArray()));
+
+			FrozenMessage.Message m = frozen.newMessage("you@gmail.com", "him@gmail.com");
+			m.setCc(new String[] { "cc@gmail.com" });
+			m.setValue("name", "Zoé \\ \"x\"").setValue("code", "");
+
+			PostmarkMessage expected = new PostmarkMessage();
+			expected.setFrom("Nicolas <nicolas@gmail.com>");
+			expected.setTo(new String[] { "you@gmail.com", "him@gmail.com" });
+			expected.setCc(new String[] { "cc@gmail.com" });
+			expected.setSubject("Bonjour Zoé \\ \"x\" !");
+			expected.setHtmlBody("<p>Chère Zoé \\ \"x\", été \"€\" ${missing </p>");
+			expected.setText("Zoé \\ \"x\"");
+			expected.setTag("newsletter");
+			expected.setReplyTo("reply@gmail.com");
+			assertEquals(write(expected, rawUtf8), write(m, rawUtf8));
+		}
+	}
+
+	@Test
+	public void testMissingValue() {
+		FrozenMessage.Message m = new FrozenMessage(template()).newMessage("you@gmail.com");
+		m.setValue("name", "Zoé");
+		try {
+			SimpleMailMessageWriter.validate(m);
+			fail("No Exception arose whilst missing a slot value.");
+		} catch (MailParseException mpe) {
+			assertEquals("You must specify a value for slot code", mpe.getMessage());
+		}
+	}
+
+	@Test(expected=MailParseException.class)
+	public void testInvalidTemplate() {
+		PostmarkMessage m = template();
+		m.setSubject(null);
+		new FrozenMessage(m);
+	}
+
+	@Test(expected=UnsupportedOperationException.class)
+	public void testFrozenField() {
+		new FrozenMessage(template()).newMessage("you@gmail.com").setSubject("Changed");
+	}
+
+	@Test
+	public void testSendFrozen() throws Exception {
+		PostmarkStandInServer server = new PostmarkStandInServer().start();
+		PostmarkMailSender mailSender = new PostmarkMailSender("POSTMARK_API_TEST");
+		try {
+			mailSender.setApiUrl(server.getUrl());
+			FrozenMessage frozen = mailSender.freeze(template());
+			FrozenMessage.Message[] messages = new FrozenMessage.Message[3];
+			for (int i = 0; i < messages.length; i++)
+				messages[i] = frozen.newMessage("user" + i + "@gmail.com").setValue("name", "User " + i).setValue("code", "" + i);
+			mailSender.send(messages);
+			mailSender.send(messages[0]);
+			assertEquals(4, server.getAcceptedCount());
+			assertEquals("Bonjour User 2 !", server.getReceivedMessages().get(2).get("Subject").getAsString());
+			assertEquals("user2@gmail.com", server.getReceivedMessages().get(2).get("To").getAsString());
+		} finally {
+			mailSender.close();
+			server.stop();
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package com.postmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import com.postmark.PostmarkMailSender.PostmarkResponse;
+import com.postmark.util.JsonPullParser;
+import com.postmark.util.JsonPullParser.Token;
+
+public class JsonPullParserTest {
+
+	private static JsonPullParser parser(String json) throws IOException {
+		// small buffer, to go through refills
+		return new JsonPullParser(new ByteArrayInputStream(json.getBytes("UTF-8")), new byte[3]);
+	}
+
+	@Test
+	public void testTokens() throws IOException {
+		JsonPullParser in = parser(" {\"a\" : [1, -2.5e3, true, false, null, \"x\"], \"b\":{}, \"c\":[]}\n");
+		in.beginObject();
+		assertEquals("a", in.nextName());
+		in.beginArray();
+		assertEquals(1, in.nextInt());
+		assertEquals(Token.NUMBER, in.peek());
+		assertEquals("-2.5e3", in.nextString());
+		assertTrue(in.nextBoolean());
+		assertFalse(in.nextBoolean());
+		in.nextNull();
+		assertEquals("x", in.nextString());
+		assertFalse(in.hasNext());
+		in.endArray();
+		assertEquals("b", in.nextName());
+		in.skipValue();
+		assertEquals("c", in.nextName());
+		in.beginArray();
+		in.endArray();
+		in.endObject();
+		assertEquals(Token.END_DOCUMENT, in.peek());
+	}
+
+	@Test
+	public void testStrings() throws IOException {
+		JsonPullParser in = parser("[\"été € 😀\", \"\\\"\\\\\\/\\b\\f\\n\\r\\t\\u00e9\\ud83d\\ude00\"]");
+		in.beginArray();
+		assertEquals("été € 😀", in.nextString());
+		assertEquals("\"\\/\b\f\n\r\té😀", in.nextString());
+		in.endArray();
+	}
+
+	@Test
+	public void testSkipNested() throws IOException {
+		JsonPullParser in = parser("{\"skip\":{\"a\":[{\"b\":[1,2]},\"]\"]},\"keep\":3}");
+		in.beginObject();
+		assertEquals("skip", in.nextName());
+		in.skipValue();
+		assertEquals("keep", in.nextName());
+		assertEquals(3, in.nextInt());
+		in.endObject();
+	}
+
+	@Test
+	public void testMalformed() throws IOException {
+		String[] malformed = { "{\"a\" 1}", "[1 2]", "{\"a\":tru}", "[\"unterminated", "{1:2}", "[1]]" };
+		for (String json : malformed) {
+			try {
+				JsonPullParser in = parser(json);
+				in.skipValue();
+				in.peek();
+				fail("No Exception arose whilst parsing " + json);
+			} catch (IllegalStateException ise) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void testReadResponses() throws IOException {
+		PostmarkResponse[] responses = PostmarkResponseReader.readBatch(parser("[{\"ErrorCode\":0,\"Message\":\"OK\","
+				+ "\"MessageID\":\"b7bc2f4a-e38e-4336-af7d-e6c392c2f817\",\"SubmittedAt\":\"2010-11-26T12:01:05.1794748-05:00\","
+				+ "\"To\":\"you@exemple.com\",\"Unknown\":{\"x\":[1]}},"
+				+ "{\"ErrorCode\":300,\"Message\":\"Invalid email address.\",\"MessageID\":null}]"));
+		assertEquals(2, responses.length);
+		assertEquals("b7bc2f4a-e38e-4336-af7d-e6c392c2f817", responses[0].getMessageId());
+		assertEquals("you@exemple.com", responses[0].getTo());
+		assertEquals("2010-11-26T12:01:05.1794748-05:00", responses[0].submittedAtText);
+		assertEquals(new DateTime("2010-11-26T12:01:05.179-05:00").getMillis(), responses[0].getSubmittedAt().getMillis());
+		assertEquals(300, responses[1].getErrorCode());
+		assertEquals("Invalid email address.", responses[1].getMessage());
+		assertNull(responses[1].getMessageId());
+		assertNull(responses[1].getSubmittedAt());
+	}
+}
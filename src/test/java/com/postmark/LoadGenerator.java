@@ -0,0 +1,187 @@
+package com.postmark;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.mail.MailException;
+
+/**
+ * Command line load generator driving a {@link PostmarkMailSender}.
+ * <p>
+ * Sends a number of messages from concurrent threads, mixing single and batch sends,
+ * then reports throughput and latency percentiles. Without a <tt>url</tt> argument, an
+ * embedded {@link PostmarkStandInServer} is started and configured from the arguments.
+ * <p>
+ * Arguments are given as <tt>name=value</tt>:
+ * <ul>
+ * <li><tt>url</tt>: API base URL, default an embedded stand-in</li>
+ * <li><tt>token</tt>: server token, default <tt>POSTMARK_API_TEST</tt></li>
+ * <li><tt>concurrency</tt>: number of sending threads, default 16</li>
+ * <li><tt>messages</tt>: total number of messages, default 10000</li>
+ * <li><tt>batchRatio</tt>: ratio of messages sent through batches, default 0</li>
+ * <li><tt>batchSize</tt>: messages per batch, default 50</li>
+ * <li><tt>bodySize</tt>: HTML body length, default 2000</li>
+ * <li><tt>nonASCIIRatio</tt>: ratio of accented chars in bodies, default 0.03</li>
+ * <li><tt>latency</tt>: stand-in latency in milliseconds, as <tt>min-max</tt>, default 0</li>
+ * <li><tt>errorRate</tt>: stand-in ratio of 500 responses, default 0</li>
+ * <li><tt>maxRate</tt>: stand-in limit of requests per second, default none</li>
+ * <li><tt>rate</tt>: client limit of requests per second, default none</li>
+ * <li><tt>adaptive</tt>: whether the client adapts its concurrency, default false</li>
+ * </ul>
+ */
+public class LoadGenerator {
+
+	private static final String ACCENTED = "éèàùçôëïœ€";
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq < 0)
+				throw new IllegalArgumentException("Expected name=value argument: " + arg);
+			options.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+		final int concurrency = Integer.parseInt(option(options, "concurrency", "16"));
+		final int messages = Integer.parseInt(option(options, "messages", "10000"));
+		final double batchRatio = Double.parseDouble(option(options, "batchRatio", "0"));
+		final int batchSize = Integer.parseInt(option(options, "batchSize", "50"));
+		int bodySize = Integer.parseInt(option(options, "bodySize", "2000"));
+		double nonASCIIRatio = Double.parseDouble(option(options, "nonASCIIRatio", "0.03"));
+
+		PostmarkStandInServer standIn = null;
+		String url = options.get("url");
+		if (url == null) {
+			standIn = new PostmarkStandInServer().start();
+			String[] latency = option(options, "latency", "0").split("-");
+			standIn.setLatencyMillis(Long.parseLong(latency[0]), Long.parseLong(latency[latency.length - 1]));
+			standIn.setErrorRates(0, 0, Double.parseDouble(option(options, "errorRate", "0")));
+			standIn.setMaxRequestsPerSecond(Integer.parseInt(option(options, "maxRate", "0")));
+			url = standIn.getUrl();
+		}
+
+		final PostmarkMailSender sender = new PostmarkMailSender(option(options, "token", "POSTMARK_API_TEST"));
+		sender.setApiUrl(url);
+		sender.setMaxTotalConnections(concurrency);
+		sender.setMaxConnectionsPerRoute(concurrency);
+		if (options.containsKey("rate"))
+			sender.setRateLimiter(new RateLimiter(Double.parseDouble(options.get("rate")), concurrency));
+		AdaptiveConcurrencyLimiter adaptive = null;
+		if (Boolean.parseBoolean(option(options, "adaptive", "false"))) {
+			adaptive = new AdaptiveConcurrencyLimiter();
+			adaptive.setMaxLimit(concurrency);
+			sender.setConcurrencyLimiter(adaptive);
+		}
+
+		final PostmarkMessage message = message(bodySize, nonASCIIRatio);
+		final PostmarkMessage[] batch = new PostmarkMessage[batchSize];
+		Arrays.fill(batch, message);
+
+		final AtomicLong remaining = new AtomicLong(messages);
+		final AtomicLong failures = new AtomicLong();
+		final long[][] latencies = new long[concurrency][];
+		final int[] counts = new int[concurrency];
+		final CountDownLatch done = new CountDownLatch(concurrency);
+
+		System.out.println("Sending " + messages + " messages to " + url + " from " + concurrency + " threads");
+		long start = System.nanoTime();
+		for (int t = 0; t < concurrency; t++) {
+			final int thread = t;
+			latencies[t] = new long[messages / concurrency + 16];
+			new Thread("load-generator-" + t) {
+				@Override
+				public void run() {
+					Random random = new Random(thread);
+					try {
+						while (true) {
+							boolean batchSend = random.nextDouble() < batchRatio;
+							int n = batchSend ? batchSize : 1;
+							if (remaining.addAndGet(-n) < 0)
+								break;
+							long sendStart = System.nanoTime();
+							try {
+								if (batchSend)
+									sender.send(batch);
+								else
+									sender.send(message);
+							} catch (MailException me) {
+								failures.incrementAndGet();
+							}
+							record(thread, System.nanoTime() - sendStart);
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+
+				private void record(int thread, long nanos) {
+					if (counts[thread] == latencies[thread].length)
+						latencies[thread] = Arrays.copyOf(latencies[thread], counts[thread] * 2);
+					latencies[thread][counts[thread]++] = nanos;
+				}
+			}.start();
+		}
+		done.await();
+		long elapsed = System.nanoTime() - start;
+
+		int total = 0;
+		for (int count : counts)
+			total += count;
+		long[] all = new long[total];
+		int pos = 0;
+		for (int t = 0; t < concurrency; t++) {
+			System.arraycopy(latencies[t], 0, all, pos, counts[t]);
+			pos += counts[t];
+		}
+		Arrays.sort(all);
+
+		System.out.printf("%d requests in %.2f s, %d failed%n", total, elapsed / 1e9, failures.get());
+		System.out.printf("throughput: %.1f requests/s, %.1f messages/s%n",
+				total / (elapsed / 1e9), (messages - Math.max(remaining.get(), 0)) / (elapsed / 1e9));
+		System.out.printf("latency ms: p50=%.2f p99=%.2f p999=%.2f max=%.2f%n",
+				percentile(all, .5), percentile(all, .99), percentile(all, .999), percentile(all, 1));
+
+		if (adaptive != null)
+			System.out.println("adaptive concurrency limit: " + adaptive.getLimit());
+
+		sender.close();
+		if (standIn != null)
+			standIn.stop();
+	}
+
+	private static String option(Map<String, String> options, String name, String defaultValue) {
+		String value = options.get(name);
+		return value != null ? value : defaultValue;
+	}
+
+	/**
+	 * @return the latency in milliseconds at percentile <tt>p</tt> of the sorted nanosecond latencies
+	 */
+	static double percentile(long[] sorted, double p) {
+		if (sorted.length == 0)
+			return 0;
+		int index = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+	}
+
+	static PostmarkMessage message(int bodySize, double nonASCIIRatio) {
+		Random random = new Random(bodySize);
+		StringBuilder body = new StringBuilder(bodySize);
+		for (int i = 0; i < bodySize; i++) {
+			if (random.nextDouble() < nonASCIIRatio)
+				body.append(ACCENTED.charAt(random.nextInt(ACCENTED.length())));
+			else
+				body.append((char) ('a' + random.nextInt(26)));
+		}
+		PostmarkMessage m = new PostmarkMessage();
+		m.setFrom("load@exemple.com");
+		m.setTo("you@exemple.com");
+		m.setSubject("Load test");
+		m.setTag("load-test");
+		m.setHtmlBody("<p>" + body + "</p>");
+		return m;
+	}
+}
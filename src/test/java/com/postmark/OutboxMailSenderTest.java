@@ -0,0 +1,144 @@
+package com.postmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mail.MailParseException;
+
+import com.postmark.util.SegmentedJournal;
+
+/**
+ * Runs {@link OutboxMailSender} against a local {@link PostmarkStandInServer}.
+ */
+public class OutboxMailSenderTest {
+
+	PostmarkStandInServer server;
+	PostmarkMailSender mailSender;
+	File directory;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new PostmarkStandInServer().start();
+		mailSender = new PostmarkMailSender("POSTMARK_API_TEST");
+		mailSender.setApiUrl(server.getUrl());
+		directory = SegmentedJournalTest.createTempDirectory();
+	}
+
+	@After
+	public void tearDown() {
+		mailSender.close();
+		server.stop();
+		SegmentedJournalTest.delete(directory);
+	}
+
+	private OutboxMailSender outbox() {
+		OutboxMailSender outbox = new OutboxMailSender(mailSender, directory);
+		outbox.setSegmentSize(64 * 1024);
+		outbox.setDrainThreads(2);
+		outbox.setRetryDelayMillis(50);
+		return outbox;
+	}
+
+	@Test
+	public void testDelivery() throws Exception {
+		OutboxMailSender outbox = outbox();
+		for (int i = 0; i < 100; i++)
+			outbox.send(PostmarkMailSenderTest.message("Outbox mail #" + i));
+		PostmarkMessage rejected = PostmarkMailSenderTest.message("Rejected");
+		rejected.setTo(PostmarkMailSenderTest.INVALID_EMAIL);
+		// rejected by Postmark once drained rather than locally
+		mailSender.setAddressParser(null);
+		outbox.send(rejected);
+		try {
+			outbox.send(new PostmarkMessage());
+			fail("No Exception arose whilst giving an invalid message.");
+		} catch (MailParseException mpe) {
+			// expected
+		}
+
+		assertTrue(outbox.awaitDelivery(10000));
+		assertEquals(100, server.getAcceptedCount());
+		assertEquals(100, outbox.getDeliveredCount());
+		assertEquals(1, outbox.getRejectedCount());
+		outbox.close();
+	}
+
+	@Test
+	public void testRetryAndReplay() throws Exception {
+		server.setErrorRates(0, 0, 1);
+		OutboxMailSender outbox = outbox();
+		for (int i = 0; i < 10; i++)
+			outbox.send(PostmarkMailSenderTest.message("Outbox mail #" + i));
+		assertEquals(10, outbox.getPendingCount());
+		Thread.sleep(200);
+		assertEquals(0, server.getAcceptedCount());
+		outbox.close();
+		assertEquals(10, outbox.getPendingCount());
+
+		server.setErrorRates(0, 0, 0);
+		outbox = outbox();
+		outbox.start();
+		assertTrue(outbox.awaitDelivery(10000));
+		assertEquals(10, server.getAcceptedCount());
+		outbox.close();
+	}
+
+	@Test
+	public void testRefusedBatch() throws Exception {
+		SegmentedJournal journal = new SegmentedJournal(directory, 64 * 1024, false);
+		for (int i = 0; i < 10; i++) {
+			if (i == 5)
+				journal.append("{\"From\":".getBytes("UTF-8"));
+			journal.append(SimpleMailMessageWriter.encode(PostmarkMailSenderTest.message("Outbox mail #" + i), false));
+		}
+		journal.close();
+
+		// the batch is refused as invalid JSON, then posted message by message
+		OutboxMailSender outbox = outbox();
+		outbox.start();
+		assertTrue(outbox.awaitDelivery(10000));
+		assertEquals(10, server.getAcceptedCount());
+		assertEquals(10, outbox.getDeliveredCount());
+		assertEquals(1, outbox.getRejectedCount());
+		outbox.close();
+	}
+
+	@Test
+	public void testUnauthorized() throws Exception {
+		server.setServerToken("ANOTHER_TOKEN");
+		OutboxMailSender outbox = outbox();
+		for (int i = 0; i < 10; i++)
+			outbox.send(PostmarkMailSenderTest.message("Outbox mail #" + i));
+		Thread.sleep(200);
+		// kept until the token is fixed
+		assertEquals(10, outbox.getPendingCount());
+		assertEquals(0, outbox.getRejectedCount());
+
+		server.setServerToken(null);
+		assertTrue(outbox.awaitDelivery(10000));
+		assertEquals(10, server.getAcceptedCount());
+		assertEquals(10, outbox.getDeliveredCount());
+		assertEquals(0, outbox.getRejectedCount());
+		outbox.close();
+	}
+
+	@Test
+	public void testMissingResult() throws Exception {
+		server.truncateNextBatches(1);
+		OutboxMailSender outbox = outbox();
+		outbox.setDrainThreads(1);
+		for (int i = 0; i < 10; i++)
+			outbox.send(PostmarkMailSenderTest.message("Outbox mail #" + i));
+		assertTrue(outbox.awaitDelivery(10000));
+		assertEquals(10, server.getAcceptedCount());
+		assertEquals(10, outbox.getDeliveredCount());
+		assertEquals(0, outbox.getRejectedCount());
+		outbox.close();
+	}
+}
@@ -0,0 +1,281 @@
+package com.postmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mail.MailSendException;
+
+import com.postmark.PostmarkMailSender.PostmarkResponse;
+import com.postmark.PostmarkMailSender.PostmarkResponseStatus;
+
+/**
+ * Runs {@link PostmarkMailSender} against a local {@link PostmarkStandInServer}.
+ */
+public class PostmarkMailSenderTest {
+
+	static final String VALID_EMAIL = "test@exemple.com";
+	static final String INVALID_EMAIL = "test-exemple.com";
+
+	PostmarkStandInServer server;
+	PostmarkMailSender mailSender;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new PostmarkStandInServer().start();
+		mailSender = new PostmarkMailSender("POSTMARK_API_TEST");
+		mailSender.setApiUrl(server.getUrl());
+	}
+
+	@After
+	public void tearDown() {
+		mailSender.close();
+		server.stop();
+	}
+
+	static PostmarkMessage message(String subject) {
+		PostmarkMessage m = new PostmarkMessage();
+		m.setFrom(VALID_EMAIL);
+		m.setTo(VALID_EMAIL);
+		m.setSubject(subject);
+		m.setText("This is the body\nthese are accents é à è ' etc..");
+		m.setTag("test");
+		return m;
+	}
+
+	@Test
+	public void testSendMail() {
+		mailSender.send(message("Test Mail"));
+		assertEquals(1, server.getAcceptedCount());
+		assertEquals("This is the body\nthese are accents é à è ' etc..",
+				server.getReceivedMessages().get(0).get("TextBody").getAsString());
+	}
+
+	@Test
+	public void testSendInvalidMail() {
+		PostmarkMessage m = message("Test Mail");
+		m.setTo(INVALID_EMAIL);
+		try {
+			mailSender.send(m);
+			fail("No Exception arose whilst giving an incorrect e-mail address.");
+		} catch (MailSendException mse) {
+			assertEquals(0, server.getAcceptedCount());
+		}
+	}
+
+	@Test
+	public void testSendMails() {
+		PostmarkMessage msg[] = new PostmarkMessage[4];
+		for (int i = 0; i < msg.length; i++)
+			msg[i] = message("Test multiple mails #" + i);
+		msg[0].setTo(INVALID_EMAIL);
+		msg[2].setFrom(INVALID_EMAIL);
+
+		try {
+			mailSender.send(msg);
+			fail("No Exception arose whilst giving incorrect e-mail addresses.");
+		} catch (MailSendException mse) {
+			assertEquals(2, mse.getFailedMessages().size());
+			assertTrue(mse.getFailedMessages().containsKey(msg[0]));
+			assertTrue(mse.getFailedMessages().containsKey(msg[2]));
+		}
+		assertEquals(1, server.getRequestCount());
+		assertEquals(2, server.getAcceptedCount());
+	}
+
+	@Test
+	public void testSendMailsInChunks() {
+		mailSender.setMaxBatchSize(3);
+		PostmarkMessage msg[] = new PostmarkMessage[7];
+		for (int i = 0; i < msg.length; i++)
+			msg[i] = message("Test chunked mails #" + i);
+		mailSender.send(msg);
+		assertEquals(3, server.getRequestCount());
+		assertEquals(7, server.getAcceptedCount());
+	}
+
+	@Test
+	public void testUnauthorized() {
+		server.setServerToken("ANOTHER_TOKEN");
+		try {
+			mailSender.send(message("Test Mail"));
+			fail("No Exception arose whilst giving an incorrect token.");
+		} catch (MailSendException mse) {
+			assertEquals(0, server.getAcceptedCount());
+		}
+	}
+
+	@Test
+	public void testErrorBody() {
+		server.setServerToken("ANOTHER_TOKEN");
+		try {
+			mailSender.send(message("Test Mail"));
+			fail("No Exception arose whilst giving an incorrect token.");
+		} catch (MailSendException mse) {
+			PostmarkResponseException pre = (PostmarkResponseException) mse.getCause();
+			assertEquals(401, pre.getStatusCode());
+			assertEquals(PostmarkStandInServer.ERROR_INVALID_TOKEN, pre.getResponse().getErrorCode());
+			assertEquals("Bad or missing server or user API token.", pre.getResponse().getMessage());
+		}
+	}
+
+	@Test
+	public void testSendAsync() throws Exception {
+		Future<PostmarkResponse> response = mailSender.sendAsync(message("Test async"));
+		assertEquals(PostmarkResponseStatus.SUCCESS, response.get().getStatus());
+		assertNotNull(response.get().getMessageId());
+
+		PostmarkMessage msg[] = new PostmarkMessage[3];
+		for (int i = 0; i < msg.length; i++)
+			msg[i] = message("Test async mails #" + i);
+		msg[1].setTo(INVALID_EMAIL);
+		List<Future<PostmarkResponse>> responses = mailSender.sendAsync(msg);
+		assertEquals(PostmarkResponseStatus.SUCCESS, responses.get(0).get().getStatus());
+		try {
+			responses.get(1).get();
+			fail("No Exception arose whilst giving an incorrect e-mail address.");
+		} catch (ExecutionException ee) {
+			assertSame(MailSendException.class, ee.getCause().getClass());
+		}
+		assertEquals(PostmarkResponseStatus.SUCCESS, responses.get(2).get().getStatus());
+	}
+
+	@Test
+	public void testGzip() {
+		mailSender.setGzipThreshold(1024);
+		mailSender.send(message("Test small mail"));
+		assertEquals(0, server.getGzipCount());
+
+		PostmarkMessage large = message("Test large mail");
+		StringBuilder body = new StringBuilder();
+		for (int i = 0; i < 1000; i++)
+			body.append("Line ").append(i).append(" été € 😀\n");
+		large.setText(body.toString());
+		mailSender.send(large);
+		assertEquals(1, server.getGzipCount());
+		assertEquals(body.toString(), server.getReceivedMessages().get(1).get("TextBody").getAsString());
+
+		mailSender.send(new PostmarkMessage[] { message("Test batch"), large });
+		assertEquals(2, server.getGzipCount());
+		assertEquals(4, server.getAcceptedCount());
+		assertEquals(body.toString(), server.getReceivedMessages().get(3).get("TextBody").getAsString());
+	}
+
+	@Test
+	public void testWarmUp() {
+		mailSender.setWarmUpConnections(3);
+		mailSender.setWarmUpMessages(100);
+		mailSender.setGzipThreshold(1024);
+		mailSender.warmUp();
+		ThreadSafeClientConnManager pool = (ThreadSafeClientConnManager) mailSender.getHttpClient().getConnectionManager();
+		assertEquals(3, pool.getConnectionsInPool());
+		assertEquals(0, server.getRequestCount());
+		assertEquals(0, mailSender.getMetrics().getLeasedConnections());
+
+		// the pre-opened connections are reused
+		mailSender.send(message("Test warm mail"));
+		assertEquals(3, pool.getConnectionsInPool());
+		assertEquals(1, server.getAcceptedCount());
+	}
+
+	private static RetryPolicy retryPolicy() {
+		RetryPolicy policy = new RetryPolicy();
+		policy.setInitialBackoffMillis(1);
+		return policy;
+	}
+
+	@Test
+	public void testRetry() {
+		mailSender.setRetryPolicy(retryPolicy());
+		server.failNextRequests(2);
+		mailSender.send(message("Test retried mail"));
+		assertEquals(3, server.getRequestCount());
+		assertEquals(1, server.getAcceptedCount());
+
+		server.failNextRequests(3);
+		try {
+			mailSender.send(message("Test retried mail"));
+			fail("No Exception arose whilst exceeding the attempts.");
+		} catch (MailSendException mse) {
+			assertEquals(6, server.getRequestCount());
+		}
+	}
+
+	@Test
+	public void testRetryFailedChunk() {
+		mailSender.setRetryPolicy(retryPolicy());
+		mailSender.setMaxBatchSize(3);
+		PostmarkMessage msg[] = new PostmarkMessage[7];
+		for (int i = 0; i < msg.length; i++)
+			msg[i] = message("Test retried chunks #" + i);
+		server.failNextRequests(1);
+		mailSender.send(msg);
+		assertEquals(4, server.getRequestCount());
+		assertEquals(7, server.getAcceptedCount());
+	}
+
+	@Test
+	public void testNoRetryOnUserError() {
+		mailSender.setRetryPolicy(retryPolicy());
+		server.setServerToken("ANOTHER_TOKEN");
+		try {
+			mailSender.send(message("Test Mail"));
+			fail("No Exception arose whilst giving an incorrect token.");
+		} catch (MailSendException mse) {
+			assertEquals(1, server.getRequestCount());
+		}
+	}
+
+	@Test
+	public void testRetryBudget() {
+		RetryPolicy policy = retryPolicy();
+		policy.setBudgetCapacity(1);
+		policy.setBudgetRatio(0);
+		mailSender.setRetryPolicy(policy);
+		server.setErrorRates(0, 0, 1);
+		for (int i = 0; i < 3; i++) {
+			try {
+				mailSender.send(message("Test Mail"));
+				fail("No Exception arose whilst Postmark fails.");
+			} catch (MailSendException mse) {
+				// expected
+			}
+		}
+		assertEquals(4, server.getRequestCount());
+	}
+
+	@Test
+	public void testCircuitBreaker() throws Exception {
+		CircuitBreaker breaker = new CircuitBreaker();
+		breaker.setFailureThreshold(2);
+		breaker.setOpenMillis(100);
+		mailSender.setCircuitBreaker(breaker);
+		server.setErrorRates(0, 0, 1);
+		for (int i = 0; i < 3; i++) {
+			try {
+				mailSender.send(message("Test Mail"));
+				fail("No Exception arose whilst Postmark fails.");
+			} catch (MailSendException mse) {
+				assertEquals(i == 2, mse.getCause() instanceof CircuitBreaker.OpenException);
+			}
+		}
+		assertEquals(2, server.getRequestCount());
+		assertTrue(breaker.isOpen());
+
+		Thread.sleep(150);
+		server.setErrorRates(0, 0, 0);
+		mailSender.send(message("Test Mail"));
+		assertTrue(!breaker.isOpen());
+		assertEquals(3, server.getRequestCount());
+	}
+}
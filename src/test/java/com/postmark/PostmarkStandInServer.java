@@ -0,0 +1,554 @@
+package com.postmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.postmark.util.DaemonThreadFactory;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embeddable local stand-in for the Postmark API, to test and load-test offline.
+ * <p>
+ * Serves <tt>/email</tt>, <tt>/email/batch</tt>, <tt>/email/withTemplate</tt> and
+ * <tt>/email/batchWithTemplates</tt> with Postmark-like validation and responses, plus
+ * configurable latency, error rates and throttling. Addresses without <tt>'@'</tt> are rejected as invalid, like Postmark does.
+ * Recipients can be {@link #suppress(String) suppressed}, and are then listed by
+ * <tt>/message-streams/{stream}/suppressions/dump</tt>.
+ * <p>
+ * Usage:
+ * <pre>
+ * PostmarkStandInServer server = new PostmarkStandInServer().start();
+ * PostmarkMailSender sender = new PostmarkMailSender("POSTMARK_API_TEST");
+ * sender.setApiUrl(server.getUrl());
+ * </pre>
+ */
+public class PostmarkStandInServer {
+
+	/** Postmark error codes used by the stand-in. */
+	static final int ERROR_INVALID_TOKEN = 10;
+	static final int ERROR_INVALID_EMAIL = 300;
+	static final int ERROR_MISSING_FIELD = 402;
+	static final int ERROR_INVALID_JSON = 403;
+	static final int ERROR_INACTIVE_RECIPIENT = 406;
+	static final int ERROR_TEMPLATE = 1101;
+
+	private static final int MAX_RECORDED = 1000;
+
+	static {
+		// the JDK server otherwise delays small responses (Nagle's algorithm)
+		if (System.getProperty("sun.net.httpserver.nodelay") == null)
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final Random random = new Random();
+
+	private volatile long minLatencyMillis;
+	private volatile long maxLatencyMillis;
+	private volatile long stallMillis;
+	private volatile double unauthorizedRate;
+	private volatile double unprocessableRate;
+	private volatile double serverErrorRate;
+	private volatile int maxRequestsPerSecond;
+	private volatile String serverToken;
+
+	private long throttleSecond;
+	private int throttleCount;
+
+	private final AtomicInteger failingRequests = new AtomicInteger();
+	private final AtomicInteger stalledRequests = new AtomicInteger();
+	private final AtomicInteger truncatedBatches = new AtomicInteger();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong acceptedMessages = new AtomicLong();
+	private final AtomicLong rejectedMessages = new AtomicLong();
+	private final AtomicLong throttledRequests = new AtomicLong();
+	private final AtomicLong gzipRequests = new AtomicLong();
+	private final LinkedList<JsonObject> received = new LinkedList<JsonObject>();
+	/** Creation time of the suppressions, by lower-cased address. */
+	private final Map<String, String> suppressions = new LinkedHashMap<String, String>();
+
+	/**
+	 * Creates a stand-in listening on a free local port.
+	 */
+	public PostmarkStandInServer() throws IOException {
+		this(0);
+	}
+
+	/**
+	 * @param port the local port to listen on, <tt>0</tt> for any free port
+	 */
+	public PostmarkStandInServer(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 128);
+		executor = Executors.newCachedThreadPool(new DaemonThreadFactory("postmark-stand-in"));
+		server.setExecutor(executor);
+		server.createContext("/email", new EmailHandler());
+		server.createContext("/message-streams", new SuppressionsHandler());
+	}
+
+	public PostmarkStandInServer start() {
+		server.start();
+		return this;
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * @return the base URL of this stand-in, for {@link PostmarkMailSender#setApiUrl(String)}
+	 */
+	public String getUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	/**
+	 * Delays every response by a random duration between the given bounds.
+	 */
+	public PostmarkStandInServer setLatencyMillis(long minLatencyMillis, long maxLatencyMillis) {
+		this.minLatencyMillis = minLatencyMillis;
+		this.maxLatencyMillis = maxLatencyMillis;
+		return this;
+	}
+
+	/**
+	 * Delays the response to the next <tt>count</tt> requests by <tt>millis</tt>, on top of the latency.
+	 */
+	public PostmarkStandInServer stallNextRequests(int count, long millis) {
+		stallMillis = millis;
+		stalledRequests.set(count);
+		return this;
+	}
+
+	/**
+	 * Makes a ratio of the requests fail at random with the given HTTP status.
+	 *
+	 * @param unauthorizedRate ratio of <tt>401</tt> responses
+	 * @param unprocessableRate ratio of <tt>422</tt> responses
+	 * @param serverErrorRate ratio of <tt>500</tt> responses
+	 */
+	public PostmarkStandInServer setErrorRates(double unauthorizedRate, double unprocessableRate, double serverErrorRate) {
+		this.unauthorizedRate = unauthorizedRate;
+		this.unprocessableRate = unprocessableRate;
+		this.serverErrorRate = serverErrorRate;
+		return this;
+	}
+
+	/**
+	 * Answers <tt>500</tt> to the next <tt>count</tt> requests.
+	 */
+	public PostmarkStandInServer failNextRequests(int count) {
+		failingRequests.set(count);
+		return this;
+	}
+
+	/**
+	 * Leaves the last message of the next <tt>count</tt> batches unprocessed, and out of the results.
+	 */
+	public PostmarkStandInServer truncateNextBatches(int count) {
+		truncatedBatches.set(count);
+		return this;
+	}
+
+	/**
+	 * Answers <tt>429</tt> to the requests exceeding the given rate, <tt>0</tt> for no limit.
+	 */
+	public PostmarkStandInServer setMaxRequestsPerSecond(int maxRequestsPerSecond) {
+		this.maxRequestsPerSecond = maxRequestsPerSecond;
+		return this;
+	}
+
+	/**
+	 * Only accepts the given server token. By default any token is accepted.
+	 */
+	public PostmarkStandInServer setServerToken(String serverToken) {
+		this.serverToken = serverToken;
+		return this;
+	}
+
+	/**
+	 * Marks a recipient inactive as of now: messages sent only to inactive recipients
+	 * are rejected, and the recipient is listed by the suppression dump.
+	 */
+	public PostmarkStandInServer suppress(String address) {
+		return suppress(address, new DateTime(DateTimeZone.UTC).toString());
+	}
+
+	/**
+	 * @param createdAt the ISO time the suppression was created at
+	 */
+	public PostmarkStandInServer suppress(String address, String createdAt) {
+		synchronized (suppressions) {
+			suppressions.put(address.toLowerCase(Locale.ENGLISH), createdAt);
+		}
+		return this;
+	}
+
+	public PostmarkStandInServer reactivate(String address) {
+		synchronized (suppressions) {
+			suppressions.remove(address.toLowerCase(Locale.ENGLISH));
+		}
+		return this;
+	}
+
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	public long getAcceptedCount() {
+		return acceptedMessages.get();
+	}
+
+	public long getRejectedCount() {
+		return rejectedMessages.get();
+	}
+
+	public long getThrottledCount() {
+		return throttledRequests.get();
+	}
+
+	/**
+	 * @return the number of requests with a gzip compressed body
+	 */
+	public long getGzipCount() {
+		return gzipRequests.get();
+	}
+
+	/**
+	 * @return the last accepted messages, oldest first
+	 */
+	public List<JsonObject> getReceivedMessages() {
+		synchronized (received) {
+			return new ArrayList<JsonObject>(received);
+		}
+	}
+
+	public void reset() {
+		requests.set(0);
+		acceptedMessages.set(0);
+		rejectedMessages.set(0);
+		throttledRequests.set(0);
+		gzipRequests.set(0);
+		synchronized (received) {
+			received.clear();
+		}
+	}
+
+	/**
+	 * Reads the request body, decompressed if sent with <tt>Content-Encoding: gzip</tt>.
+	 */
+	protected byte[] readBody(HttpExchange exchange) throws IOException {
+		InputStream in = exchange.getRequestBody();
+		if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+			gzipRequests.incrementAndGet();
+			in = new GZIPInputStream(in);
+		}
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int n;
+		while ((n = in.read(buf)) >= 0)
+			body.write(buf, 0, n);
+		return body.toByteArray();
+	}
+
+	private class EmailHandler implements HttpHandler {
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				requests.incrementAndGet();
+				String path = exchange.getRequestURI().getPath();
+				byte[] body = readBody(exchange);
+				sleep();
+
+				if (!"POST".equals(exchange.getRequestMethod())) {
+					respond(exchange, 405, error(0, "Method not allowed"));
+					return;
+				}
+				String token = exchange.getRequestHeaders().getFirst("X-Postmark-Server-Token");
+				if (token == null || (serverToken != null && !serverToken.equals(token)) || chance(unauthorizedRate)) {
+					respond(exchange, 401, error(ERROR_INVALID_TOKEN, "Bad or missing server or user API token."));
+					return;
+				}
+				if (throttled()) {
+					throttledRequests.incrementAndGet();
+					respond(exchange, 429, error(0, "Rate limit exceeded."));
+					return;
+				}
+				if (failingRequests.getAndDecrement() > 0 || chance(serverErrorRate)) {
+					respond(exchange, 500, error(0, "Internal server error."));
+					return;
+				}
+				if (chance(unprocessableRate)) {
+					rejectedMessages.incrementAndGet();
+					respond(exchange, 422, error(ERROR_INVALID_EMAIL, "Invalid email request."));
+					return;
+				}
+
+				JsonElement json;
+				try {
+					json = new JsonParser().parse(new String(body, "UTF-8"));
+				} catch (JsonParseException jpe) {
+					respond(exchange, 422, error(ERROR_INVALID_JSON, "Invalid JSON: " + jpe.getMessage()));
+					return;
+				}
+
+				if ("/email".equals(path) || "/email/withTemplate".equals(path)) {
+					boolean template = path.endsWith("withTemplate");
+					JsonObject result = accept(json, template);
+					respond(exchange, result.get("ErrorCode").getAsInt() == 0 ? 200 : 422, result);
+				} else if ("/email/batch".equals(path)) {
+					if (!json.isJsonArray()) {
+						respond(exchange, 422, error(ERROR_INVALID_JSON, "Expected an array of messages."));
+						return;
+					}
+					JsonArray messages = json.getAsJsonArray();
+					int count = truncatedBatches.getAndDecrement() > 0 ? messages.size() - 1 : messages.size();
+					JsonArray results = new JsonArray();
+					for (int i = 0; i < count; i++)
+						results.add(accept(messages.get(i), false));
+					respond(exchange, 200, results);
+				} else if ("/email/batchWithTemplates".equals(path)) {
+					JsonElement messages = json.isJsonObject() ? json.getAsJsonObject().get("Messages") : null;
+					if (messages == null || !messages.isJsonArray()) {
+						respond(exchange, 422, error(ERROR_INVALID_JSON, "Expected an array of messages in 'Messages'."));
+						return;
+					}
+					JsonArray results = new JsonArray();
+					for (JsonElement message : messages.getAsJsonArray())
+						results.add(accept(message, true));
+					respond(exchange, 200, results);
+				} else {
+					respond(exchange, 404, error(0, "Not found"));
+				}
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+
+	/**
+	 * Serves <tt>GET /message-streams/{stream}/suppressions/dump</tt>, with the optional
+	 * <tt>fromdate</tt> filter.
+	 */
+	private class SuppressionsHandler implements HttpHandler {
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				requests.incrementAndGet();
+				sleep();
+				if (!"GET".equals(exchange.getRequestMethod())) {
+					respond(exchange, 405, error(0, "Method not allowed"));
+					return;
+				}
+				String token = exchange.getRequestHeaders().getFirst("X-Postmark-Server-Token");
+				if (token == null || (serverToken != null && !serverToken.equals(token))) {
+					respond(exchange, 401, error(ERROR_INVALID_TOKEN, "Bad or missing server or user API token."));
+					return;
+				}
+				if (!exchange.getRequestURI().getPath().matches("/message-streams/[^/]+/suppressions/dump")) {
+					respond(exchange, 404, error(0, "Not found"));
+					return;
+				}
+				String fromDate = null;
+				String query = exchange.getRequestURI().getQuery();
+				if (query != null && query.startsWith("fromdate="))
+					fromDate = query.substring("fromdate=".length());
+
+				JsonArray list = new JsonArray();
+				synchronized (suppressions) {
+					for (Map.Entry<String, String> suppression : suppressions.entrySet()) {
+						if (fromDate != null && suppression.getValue().substring(0, 10).compareTo(fromDate) < 0)
+							continue;
+						JsonObject item = new JsonObject();
+						item.addProperty("EmailAddress", suppression.getKey());
+						item.addProperty("SuppressionReason", "HardBounce");
+						item.addProperty("Origin", "Recipient");
+						item.addProperty("CreatedAt", suppression.getValue());
+						list.add(item);
+					}
+				}
+				JsonObject result = new JsonObject();
+				result.add("Suppressions", list);
+				respond(exchange, 200, result);
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+
+	/**
+	 * Validates one message and builds its result.
+	 */
+	protected JsonObject accept(JsonElement json, boolean template) {
+		if (!json.isJsonObject())
+			return reject(ERROR_INVALID_JSON, "Expected a message object.");
+		JsonObject message = json.getAsJsonObject();
+		if (!message.has("From"))
+			return reject(ERROR_MISSING_FIELD, "Missing 'From' field.");
+		if (!message.has("To"))
+			return reject(ERROR_MISSING_FIELD, "Missing 'To' field.");
+		if (template) {
+			if (!message.has("TemplateId") && !message.has("TemplateAlias"))
+				return reject(ERROR_TEMPLATE, "Missing 'TemplateId' or 'TemplateAlias' field.");
+		} else {
+			if (!message.has("Subject"))
+				return reject(ERROR_MISSING_FIELD, "Missing 'Subject' field.");
+			if (!message.has("TextBody") && !message.has("HtmlBody"))
+				return reject(ERROR_MISSING_FIELD, "Provide either email TextBody or HtmlBody or both.");
+		}
+		if (!validAddresses(message, "From") || !validAddresses(message, "To")
+				|| !validAddresses(message, "Cc") || !validAddresses(message, "Bcc"))
+			return reject(ERROR_INVALID_EMAIL, "Invalid email address.");
+		if (allSuppressed(message))
+			return reject(ERROR_INACTIVE_RECIPIENT, "You tried to send to a recipient that has been marked as inactive.");
+
+		acceptedMessages.incrementAndGet();
+		synchronized (received) {
+			received.add(message);
+			if (received.size() > MAX_RECORDED)
+				received.removeFirst();
+		}
+		JsonObject result = new JsonObject();
+		result.addProperty("ErrorCode", 0);
+		result.addProperty("Message", "OK");
+		result.addProperty("MessageID", UUID.randomUUID().toString());
+		result.addProperty("SubmittedAt", "2010-11-26T12:01:05.1794748-05:00");
+		result.addProperty("To", message.get("To").getAsString());
+		return result;
+	}
+
+	private JsonObject reject(int errorCode, String message) {
+		rejectedMessages.incrementAndGet();
+		return error(errorCode, message);
+	}
+
+	private static boolean validAddresses(JsonObject message, String field) {
+		if (!message.has(field))
+			return true;
+		String addresses = message.get(field).getAsString();
+		if (addresses.length() == 0)
+			return !"From".equals(field) && !"To".equals(field);
+		for (String address : addresses.split(","))
+			if (address.indexOf('@') < 0)
+				return false;
+		return true;
+	}
+
+	private boolean allSuppressed(JsonObject message) {
+		synchronized (suppressions) {
+			if (suppressions.isEmpty())
+				return false;
+			for (String field : new String[] { "To", "Cc", "Bcc" }) {
+				if (!message.has(field))
+					continue;
+				for (String address : message.get(field).getAsString().split(",")) {
+					int start = address.indexOf('<');
+					if (start >= 0)
+						address = address.substring(start + 1, address.indexOf('>', start));
+					address = address.trim().toLowerCase(Locale.ENGLISH);
+					if (address.length() > 0 && !suppressions.containsKey(address))
+						return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private static JsonObject error(int errorCode, String message) {
+		JsonObject error = new JsonObject();
+		error.addProperty("ErrorCode", errorCode);
+		error.addProperty("Message", message);
+		return error;
+	}
+
+	private static void respond(HttpExchange exchange, int status, JsonElement body) throws IOException {
+		byte[] bytes = body.toString().getBytes("UTF-8");
+		exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+	private boolean chance(double rate) {
+		if (rate <= 0)
+			return false;
+		synchronized (random) {
+			return random.nextDouble() < rate;
+		}
+	}
+
+	private void sleep() {
+		long min = minLatencyMillis;
+		long max = maxLatencyMillis;
+		long latency = stalledRequests.getAndDecrement() > 0 ? stallMillis : 0;
+		if (max <= 0 && latency <= 0)
+			return;
+		latency += min;
+		if (max > min) {
+			synchronized (random) {
+				latency += (long) (random.nextDouble() * (max - min));
+			}
+		}
+		try {
+			Thread.sleep(latency);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private synchronized boolean throttled() {
+		int max = maxRequestsPerSecond;
+		if (max <= 0)
+			return false;
+		long second = System.currentTimeMillis() / 1000;
+		if (second != throttleSecond) {
+			throttleSecond = second;
+			throttleCount = 0;
+		}
+		return ++throttleCount > max;
+	}
+
+	/**
+	 * Runs a stand-in until the JVM is stopped.
+	 *
+	 * @param args optional port, default 8025
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		PostmarkStandInServer server = new PostmarkStandInServer(args.length > 0 ? Integer.parseInt(args[0]) : 8025).start();
+		System.out.println("Postmark stand-in listening on " + server.getUrl());
+		Object forever = new Object();
+		synchronized (forever) {
+			forever.wait();
+		}
+	}
+}
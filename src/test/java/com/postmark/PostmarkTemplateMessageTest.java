@@ -0,0 +1,174 @@
+package com.postmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.springframework.mail.MailParseException;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.SimpleMailMessage;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class PostmarkTemplateMessageTest {
+
+	static PostmarkTemplateMessage message(String to) {
+		PostmarkTemplateMessage m = new PostmarkTemplateMessage();
+		m.setFrom(PostmarkMailSenderTest.VALID_EMAIL);
+		m.setTo(to);
+		m.setTemplateAlias("welcome");
+		m.setTag("test");
+		m.addModelValue("name", "Zoé").addModelValue("count", 3);
+		return m;
+	}
+
+	private static JsonObject parse(byte[] json) throws Exception {
+		return new JsonParser().parse(new String(json, "UTF-8")).getAsJsonObject();
+	}
+
+	@Test
+	public void testWrite() throws Exception {
+		PostmarkTemplateMessage m = message("you@gmail.com");
+		m.setSubject("Not sent");
+		Map<String, Object> order = new LinkedHashMap<String, Object>();
+		order.put("total", new BigDecimal("12.50"));
+		order.put("ratio", 0.5);
+		order.put("paid", Boolean.TRUE);
+		order.put("items", Arrays.asList("book", null));
+		order.put("codes", new int[] { 1, 2 });
+		m.addModelValue("order", order);
+		SimpleMailMessageWriter.validate(m);
+
+		byte[] json = SimpleMailMessageWriter.encode(m, true);
+		assertEquals(json.length, SimpleMailMessageWriter.length(m, true));
+		JsonObject o = parse(json);
+		assertEquals("welcome", o.get("TemplateAlias").getAsString());
+		assertFalse(o.has("TemplateId"));
+		assertFalse(o.has("Subject"));
+		assertEquals("test", o.get("Tag").getAsString());
+		JsonObject model = o.getAsJsonObject("TemplateModel");
+		assertEquals("Zoé", model.get("name").getAsString());
+		assertEquals(3, model.get("count").getAsInt());
+		JsonObject parsedOrder = model.getAsJsonObject("order");
+		assertEquals(new BigDecimal("12.50"), parsedOrder.get("total").getAsBigDecimal());
+		assertEquals(0.5, parsedOrder.get("ratio").getAsDouble(), 0);
+		assertTrue(parsedOrder.get("paid").getAsBoolean());
+		assertEquals(2, parsedOrder.getAsJsonArray("items").size());
+		assertTrue(parsedOrder.getAsJsonArray("items").get(1).isJsonNull());
+		assertEquals(2, parsedOrder.getAsJsonArray("codes").get(1).getAsInt());
+
+		m.setTemplateAlias(null);
+		m.setTemplateId(1234L);
+		m.setTemplateModel(null);
+		o = parse(SimpleMailMessageWriter.encode(m, false));
+		assertEquals(1234, o.get("TemplateId").getAsLong());
+		assertEquals(0, o.getAsJsonObject("TemplateModel").entrySet().size());
+	}
+
+	@Test
+	public void testValidate() {
+		PostmarkTemplateMessage m = message("you@gmail.com");
+		m.setTemplateAlias(null);
+		try {
+			SimpleMailMessageWriter.validate(m);
+			fail("No Exception arose whilst missing a template.");
+		} catch (MailParseException mpe) {
+			// expected
+		}
+		m.setTemplateAlias("welcome");
+		m.setTemplateId(1234L);
+		try {
+			SimpleMailMessageWriter.validate(m);
+			fail("No Exception arose whilst giving both a template id and alias.");
+		} catch (MailParseException mpe) {
+			// expected
+		}
+		m.setTemplateId(null);
+		m.addModelValue("ratio", Double.NaN);
+		try {
+			SimpleMailMessageWriter.validate(m);
+			fail("No Exception arose whilst giving a NaN model value.");
+		} catch (MailParseException mpe) {
+			// expected
+		}
+		m.addModelValue("ratio", 0.5);
+		List<Object> cyclic = new ArrayList<Object>();
+		cyclic.add(cyclic);
+		m.addModelValue("cyclic", cyclic);
+		try {
+			SimpleMailMessageWriter.validate(m);
+			fail("No Exception arose whilst giving a cyclic model.");
+		} catch (MailParseException mpe) {
+			// expected
+		}
+		try {
+			new FrozenMessage(message("you@gmail.com"));
+			fail("No Exception arose whilst freezing a template message.");
+		} catch (MailParseException mpe) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testTemplateBatchLength() throws Exception {
+		List<PostmarkTemplateMessage> batch = Arrays.asList(message("a@gmail.com"), message("b@gmail.com"));
+		long length = 0;
+		for (SimpleMailMessage m : batch)
+			length += SimpleMailMessageWriter.length(m, false);
+		JsonEntity entity = JsonEntity.forTemplateBatch(batch, false, length);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		entity.writeTo(bytes);
+		assertEquals(bytes.size(), entity.getContentLength());
+		assertEquals(2, parse(bytes.toByteArray()).getAsJsonArray("Messages").size());
+	}
+
+	@Test
+	public void testSend() throws Exception {
+		PostmarkStandInServer server = new PostmarkStandInServer().start();
+		PostmarkMailSender mailSender = new PostmarkMailSender("POSTMARK_API_TEST");
+		try {
+			mailSender.setApiUrl(server.getUrl());
+			mailSender.send(message("you@gmail.com"));
+			JsonObject received = server.getReceivedMessages().get(0);
+			assertEquals("welcome", received.get("TemplateAlias").getAsString());
+			assertEquals("Zoé", received.getAsJsonObject("TemplateModel").get("name").getAsString());
+
+			// template and plain messages of a same send go to their own batch endpoint
+			SimpleMailMessage[] messages = { message("a@gmail.com"), PostmarkMailSenderTest.message("Test plain mail"),
+					message("b@gmail.com") };
+			mailSender.send(messages);
+			assertEquals(3, server.getRequestCount());
+			assertEquals(4, server.getAcceptedCount());
+
+			// a model which cannot be written only fails its own message
+			PostmarkTemplateMessage invalid = message("d@gmail.com");
+			invalid.addModelValue("ratio", Double.POSITIVE_INFINITY);
+			try {
+				mailSender.send(new SimpleMailMessage[] { message("e@gmail.com"), invalid });
+				fail("No Exception arose whilst giving an infinite model value.");
+			} catch (MailSendException mse) {
+				assertEquals(1, mse.getFailedMessages().size());
+				assertTrue(mse.getFailedMessages().containsKey(invalid));
+			}
+			assertEquals(5, server.getAcceptedCount());
+
+			mailSender.sendAsync(Collections.singletonList(message("c@gmail.com")), null).get(0).get();
+			assertEquals(6, server.getAcceptedCount());
+		} finally {
+			mailSender.close();
+			server.stop();
+		}
+	}
+}
@@ -0,0 +1,212 @@
+package com.postmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.springframework.mail.MailException;
+import org.springframework.mail.SimpleMailMessage;
+
+import com.postmark.PostmarkMailSender.PostmarkResponse;
+
+public class PrioritySchedulerTest {
+
+	private static PostmarkMessage message(String tag, Priority priority) {
+		PostmarkMessage m = PostmarkMailSenderTest.message("Test priority");
+		m.setTag(tag);
+		m.setPriority(priority);
+		return m;
+	}
+
+	/**
+	 * Starts a thread acquiring a permit, recording its name once granted, and giving
+	 * the permit back. Returns once the thread waits.
+	 */
+	private static Thread waiter(final PriorityScheduler scheduler, final Priority priority, final String name,
+			final List<String> granted) throws InterruptedException {
+		int depth = scheduler.getQueueDepth(priority);
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				scheduler.acquire(priority);
+				granted.add(name);
+				scheduler.release(priority);
+			}
+		};
+		thread.start();
+		while (scheduler.getQueueDepth(priority) == depth)
+			Thread.sleep(1);
+		return thread;
+	}
+
+	@Test
+	public void testPriorityOf() {
+		PriorityScheduler scheduler = new PriorityScheduler(4);
+		scheduler.setTagPriority("newsletter", Priority.LOW);
+		scheduler.setTagPriority("password-reset", Priority.HIGH);
+		assertEquals(Priority.LOW, scheduler.priorityOf(message("newsletter", null)));
+		assertEquals(Priority.HIGH, scheduler.priorityOf(message("password-reset", null)));
+		assertEquals(Priority.NORMAL, scheduler.priorityOf(message("welcome", null)));
+		assertEquals(Priority.HIGH, scheduler.priorityOf(message("newsletter", Priority.HIGH)));
+
+		scheduler.setDefaultPriority(Priority.LOW);
+		assertEquals(Priority.LOW, scheduler.priorityOf(message(null, null)));
+		assertEquals(Priority.HIGH, scheduler.priorityOf(Arrays.asList(message("newsletter", null), message("password-reset", null))));
+
+		FrozenMessage frozen = new FrozenMessage(message("welcome", Priority.HIGH));
+		assertEquals(Priority.HIGH, scheduler.priorityOf(frozen.newMessage("a@exemple.com")));
+	}
+
+	@Test
+	public void testHighPriorityFirst() throws Exception {
+		PriorityScheduler scheduler = new PriorityScheduler(1);
+		List<String> granted = Collections.synchronizedList(new ArrayList<String>());
+		scheduler.acquire(Priority.LOW);
+		Thread[] threads = {
+				waiter(scheduler, Priority.LOW, "low1", granted),
+				waiter(scheduler, Priority.LOW, "low2", granted),
+				waiter(scheduler, Priority.NORMAL, "normal", granted),
+				waiter(scheduler, Priority.HIGH, "high", granted) };
+		scheduler.release(Priority.LOW);
+		for (Thread thread : threads)
+			thread.join();
+		assertEquals(Arrays.asList("high", "normal", "low1", "low2"), granted);
+		assertEquals(3, scheduler.getGrantedCount(Priority.LOW));
+		assertEquals(1, scheduler.getWaitTime(Priority.HIGH).getCount());
+	}
+
+	@Test
+	public void testWeightedShares() throws Exception {
+		final PriorityScheduler scheduler = new PriorityScheduler(1);
+		scheduler.setWeight(Priority.HIGH, 3);
+		scheduler.setWeight(Priority.LOW, 1);
+		final int[] granted = new int[Priority.values().length];
+		final int total = 200;
+		final CountDownLatch started = new CountDownLatch(8);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (final Priority priority : new Priority[] { Priority.HIGH, Priority.LOW }) {
+			for (int t = 0; t < 4; t++) {
+				Thread thread = new Thread() {
+					@Override
+					public void run() {
+						started.countDown();
+						try {
+							started.await();
+						} catch (InterruptedException ie) {
+							return;
+						}
+						while (true) {
+							scheduler.acquire(priority);
+							try {
+								synchronized (granted) {
+									if (granted[0] + granted[2] >= total)
+										return;
+									granted[priority.ordinal()]++;
+								}
+								// a request in flight
+								Thread.sleep(1);
+							} catch (InterruptedException ie) {
+								return;
+							} finally {
+								scheduler.release(priority);
+							}
+						}
+					}
+				};
+				threads.add(thread);
+				thread.start();
+			}
+		}
+		for (Thread thread : threads)
+			thread.join();
+		// a low priority class gets its share, about a quarter
+		assertTrue(granted[2] > total / 8);
+		assertTrue(granted[0] > granted[2] * 2);
+	}
+
+	@Test
+	public void testReservedPermits() throws Exception {
+		PriorityScheduler scheduler = new PriorityScheduler(4);
+		assertEquals(1, scheduler.getReservedPermits());
+		for (int i = 0; i < 3; i++)
+			assertTrue(scheduler.tryAcquire(Priority.LOW, 0, TimeUnit.MILLISECONDS));
+		assertFalse(scheduler.tryAcquire(Priority.LOW, 10, TimeUnit.MILLISECONDS));
+		assertEquals(0, scheduler.getQueueDepth(Priority.LOW));
+		assertTrue(scheduler.tryAcquire(Priority.HIGH, 0, TimeUnit.MILLISECONDS));
+		assertFalse(scheduler.tryAcquire(Priority.HIGH, 10, TimeUnit.MILLISECONDS));
+		assertEquals(3, scheduler.getInFlight(Priority.LOW));
+
+		scheduler.release(Priority.LOW);
+		assertFalse(scheduler.tryAcquire(Priority.LOW, 0, TimeUnit.MILLISECONDS));
+		scheduler.release(Priority.HIGH);
+		assertTrue(scheduler.tryAcquire(Priority.LOW, 0, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testSenderPriorities() throws Exception {
+		PostmarkStandInServer server = new PostmarkStandInServer().start();
+		PostmarkMailSender mailSender = new PostmarkMailSender("POSTMARK_API_TEST");
+		try {
+			mailSender.setApiUrl(server.getUrl());
+			PriorityScheduler scheduler = new PriorityScheduler(mailSender.getMaxConnectionsPerRoute());
+			scheduler.setTagPriority("newsletter", Priority.LOW);
+			mailSender.setPriorityScheduler(scheduler);
+
+			mailSender.send(message("password-reset", Priority.HIGH));
+			mailSender.send(new PostmarkMessage[] { message("newsletter", null), message("newsletter", null) });
+			mailSender.sendAsync(message("welcome", null)).get();
+			assertEquals(1, scheduler.getGrantedCount(Priority.HIGH));
+			assertEquals(1, scheduler.getGrantedCount(Priority.NORMAL));
+			assertEquals(1, scheduler.getGrantedCount(Priority.LOW));
+			assertEquals(0, scheduler.getInFlight(Priority.LOW));
+			assertEquals(4, server.getAcceptedCount());
+		} finally {
+			mailSender.close();
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testAsyncLowPriorityProgress() throws Exception {
+		PostmarkStandInServer server = new PostmarkStandInServer().start();
+		server.setLatencyMillis(5, 5);
+		PostmarkMailSender mailSender = new PostmarkMailSender("POSTMARK_API_TEST");
+		try {
+			mailSender.setApiUrl(server.getUrl());
+			mailSender.setMaxConnectionsPerRoute(1);
+			final List<Priority> completed = Collections.synchronizedList(new ArrayList<Priority>());
+			SendCallback callback = new SendCallback() {
+				@Override
+				public void onSuccess(SimpleMailMessage message, PostmarkResponse response) {
+					completed.add(((PostmarkMessage) message).getPriority());
+				}
+
+				@Override
+				public void onFailure(SimpleMailMessage message, MailException exception) {
+				}
+			};
+			List<Future<PostmarkResponse>> futures = new ArrayList<Future<PostmarkResponse>>();
+			for (int i = 0; i < 40; i++)
+				futures.add(mailSender.sendAsync(message("password-reset", Priority.HIGH), callback));
+			futures.add(mailSender.sendAsync(message("newsletter", Priority.LOW), callback));
+			for (Future<PostmarkResponse> future : futures)
+				future.get();
+
+			// weighted 8 to 1, the low priority task does not wait for the whole high priority backlog
+			int index = completed.indexOf(Priority.LOW);
+			assertTrue(completed.toString(), index >= 0 && index < 10);
+		} finally {
+			mailSender.close();
+			server.stop();
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package com.postmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.SimpleMailMessage;
+
+import com.postmark.PostmarkMailSender.PostmarkResponse;
+import com.postmark.PostmarkMailSender.PostmarkResponseStatus;
+
+/**
+ * Runs {@link RoutingMailSender} against two {@link PostmarkStandInServer}s, one per token.
+ */
+public class RoutingMailSenderTest {
+
+	PostmarkStandInServer transactionalServer;
+	PostmarkStandInServer marketingServer;
+	RoutingMailSender mailSender;
+
+	@Before
+	public void setUp() throws Exception {
+		transactionalServer = new PostmarkStandInServer().setServerToken("TRANSACTIONAL").start();
+		marketingServer = new PostmarkStandInServer().setServerToken("MARKETING").start();
+		Map<String, PostmarkMailSender> routes = new LinkedHashMap<String, PostmarkMailSender>();
+		routes.put("transactional", sender("TRANSACTIONAL", transactionalServer));
+		routes.put("marketing", sender("MARKETING", marketingServer));
+		mailSender = new RoutingMailSender(routes, "transactional");
+	}
+
+	private static PostmarkMailSender sender(String token, PostmarkStandInServer server) {
+		PostmarkMailSender sender = new PostmarkMailSender(token);
+		sender.setApiUrl(server.getUrl());
+		return sender;
+	}
+
+	@After
+	public void tearDown() {
+		mailSender.close();
+		transactionalServer.stop();
+		marketingServer.stop();
+	}
+
+	private static PostmarkMessage message(String tag) {
+		PostmarkMessage m = PostmarkMailSenderTest.message("Test routed mail");
+		m.setTag(tag);
+		return m;
+	}
+
+	@Test
+	public void testRouteByTag() {
+		mailSender.send(message("marketing"));
+		mailSender.send(message("password-reset"));
+		SimpleMailMessage simple = new SimpleMailMessage(message("marketing"));
+		mailSender.send(simple);
+		assertEquals(1, marketingServer.getAcceptedCount());
+		assertEquals(2, transactionalServer.getAcceptedCount());
+	}
+
+	@Test
+	public void testCustomRouter() {
+		mailSender.setRouter(new MessageRouter() {
+			@Override
+			public String route(SimpleMailMessage message) {
+				return message.getSubject().startsWith("Newsletter") ? "marketing" : null;
+			}
+		});
+		PostmarkMessage m = message("transactional");
+		m.setSubject("Newsletter #1");
+		mailSender.send(m);
+		assertEquals(1, marketingServer.getAcceptedCount());
+		assertEquals(0, transactionalServer.getAcceptedCount());
+	}
+
+	@Test
+	public void testBatchSplitByRoute() {
+		PostmarkMessage msg[] = new PostmarkMessage[5];
+		for (int i = 0; i < msg.length; i++) {
+			msg[i] = message(i % 2 == 0 ? "marketing" : "welcome");
+			msg[i].setSubject("Test routed mail #" + i);
+		}
+		msg[1].setTo(PostmarkMailSenderTest.INVALID_EMAIL);
+		msg[2].setTo(PostmarkMailSenderTest.INVALID_EMAIL);
+		try {
+			mailSender.send(msg);
+			fail("No Exception arose whilst giving incorrect e-mail addresses.");
+		} catch (MailSendException mse) {
+			assertEquals(2, mse.getFailedMessages().size());
+			assertTrue(mse.getFailedMessages().containsKey(msg[1]));
+			assertTrue(mse.getFailedMessages().containsKey(msg[2]));
+		}
+		assertEquals(1, marketingServer.getRequestCount());
+		assertEquals(2, marketingServer.getAcceptedCount());
+		assertEquals(1, transactionalServer.getRequestCount());
+		assertEquals(1, transactionalServer.getAcceptedCount());
+	}
+
+	@Test
+	public void testRouteFailureIsolated() {
+		marketingServer.setErrorRates(0, 0, 1);
+		PostmarkMessage msg[] = { message("marketing"), message("welcome") };
+		try {
+			mailSender.send(msg);
+			fail("No Exception arose whilst a route fails.");
+		} catch (MailSendException mse) {
+			assertEquals(1, mse.getFailedMessages().size());
+			assertTrue(mse.getFailedMessages().containsKey(msg[0]));
+		}
+		assertEquals(1, transactionalServer.getAcceptedCount());
+	}
+
+	@Test
+	public void testSendAsyncKeepsOrder() throws Exception {
+		List<PostmarkMessage> messages = Arrays.asList(message("marketing"), message("welcome"),
+				message("marketing"), message("welcome"));
+		messages.get(2).setTo(PostmarkMailSenderTest.INVALID_EMAIL);
+		List<Future<PostmarkResponse>> futures = mailSender.sendAsync(messages, null);
+		assertEquals(4, futures.size());
+		for (int i = 0; i < futures.size(); i++) {
+			if (i == 2) {
+				try {
+					futures.get(i).get();
+					fail("No Exception arose whilst giving an incorrect e-mail address.");
+				} catch (Exception e) {
+					assertSame(MailSendException.class, e.getCause().getClass());
+				}
+			} else {
+				assertEquals(PostmarkResponseStatus.SUCCESS, futures.get(i).get().getStatus());
+			}
+		}
+		assertEquals(1, marketingServer.getAcceptedCount());
+		assertEquals(2, transactionalServer.getAcceptedCount());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownDefaultRoute() {
+		new RoutingMailSender(mailSender.getRoutes(), "unknown");
+	}
+}
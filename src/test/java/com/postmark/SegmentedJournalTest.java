@@ -0,0 +1,128 @@
+package com.postmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.postmark.util.SegmentedJournal;
+import com.postmark.util.SegmentedJournal.Record;
+
+public class SegmentedJournalTest {
+
+	File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = createTempDirectory();
+	}
+
+	@After
+	public void tearDown() {
+		delete(directory);
+	}
+
+	static File createTempDirectory() throws IOException {
+		File directory = File.createTempFile("postmark-journal", "");
+		if (!directory.delete() || !directory.mkdir())
+			throw new IOException("Cannot create " + directory);
+		return directory;
+	}
+
+	static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null)
+			for (File child : children)
+				delete(child);
+		file.delete();
+	}
+
+	private static byte[] record(int i) {
+		return ("record #" + i).getBytes();
+	}
+
+	@Test
+	public void testAppendPollAcknowledge() throws IOException {
+		SegmentedJournal journal = new SegmentedJournal(directory, 1024, false);
+		for (int i = 0; i < 10; i++)
+			assertEquals(i, journal.append(record(i)));
+		List<Record> records = journal.poll(4, Long.MAX_VALUE);
+		assertEquals(4, records.size());
+		assertEquals("record #3", new String(records.get(3).getData()));
+		records = journal.poll(100, 20);
+		assertEquals(2, records.size());
+		assertEquals(4, records.get(0).getSequence());
+
+		journal.acknowledge(5);
+		journal.acknowledge(0);
+		assertEquals(8, journal.getPendingCount());
+		journal.close();
+		assertEquals(8, journal.getPendingCount());
+	}
+
+	@Test
+	public void testReplay() throws IOException {
+		SegmentedJournal journal = new SegmentedJournal(directory, 1024, false);
+		for (int i = 0; i < 100; i++)
+			journal.append(record(i));
+		assertTrue(journal.getSegmentCount() > 1);
+		for (Record record : journal.poll(60, Long.MAX_VALUE))
+			if (record.getSequence() != 30)
+				journal.acknowledge(record.getSequence());
+		journal.close();
+
+		// only the cursor is persistent: the records acknowledged after 30 are replayed too
+		journal = new SegmentedJournal(directory, 1024, false);
+		assertEquals(70, journal.getPendingCount());
+		List<Record> records = journal.poll(100, Long.MAX_VALUE);
+		assertEquals(70, records.size());
+		assertEquals(30, records.get(0).getSequence());
+		assertEquals("record #30", new String(records.get(0).getData()));
+		assertEquals(99, records.get(69).getSequence());
+		assertEquals(100, journal.append(record(100)));
+		journal.close();
+	}
+
+	@Test
+	public void testCompaction() throws IOException {
+		SegmentedJournal journal = new SegmentedJournal(directory, 1024, false);
+		for (int i = 0; i < 200; i++)
+			journal.append(record(i));
+		int segments = journal.getSegmentCount();
+		assertEquals(segments, directory.list().length - 1);
+		for (Record record : journal.poll(150, Long.MAX_VALUE))
+			journal.acknowledge(record.getSequence());
+		assertTrue(journal.getSegmentCount() < segments);
+		assertEquals(journal.getSegmentCount(), directory.list().length - 1);
+		assertEquals(150, journal.poll(100, Long.MAX_VALUE).get(0).getSequence());
+		journal.close();
+	}
+
+	@Test
+	public void testTornRecord() throws IOException {
+		SegmentedJournal journal = new SegmentedJournal(directory, 1024, false);
+		for (int i = 0; i < 3; i++)
+			journal.append(record(i));
+		journal.close();
+
+		// corrupts the last record, as if the process died while writing it
+		File segment = directory.listFiles()[0].getName().endsWith(".segment") ? directory.listFiles()[0] : directory.listFiles()[1];
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		raf.seek(2 * (8 + record(0).length) + 8);
+		raf.write('X');
+		raf.close();
+
+		journal = new SegmentedJournal(directory, 1024, false);
+		assertEquals(2, journal.getPendingCount());
+		assertEquals(2, journal.append(record(3)));
+		assertEquals("record #3", new String(journal.poll(3, Long.MAX_VALUE).get(2).getData()));
+		journal.close();
+	}
+}
@@ -0,0 +1,110 @@
+package com.postmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mail.MailSendException;
+
+import com.postmark.SenderMetrics.Phase;
+import com.postmark.util.LatencyHistogram;
+
+public class SenderMetricsTest {
+
+	PostmarkStandInServer server;
+	PostmarkMailSender mailSender;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new PostmarkStandInServer().start();
+		mailSender = new PostmarkMailSender("POSTMARK_API_TEST");
+		mailSender.setApiUrl(server.getUrl());
+	}
+
+	@After
+	public void tearDown() {
+		mailSender.close();
+		server.stop();
+	}
+
+	@Test
+	public void testHistogram() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 1000; i++)
+			histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+		assertEquals(1000, histogram.getCount());
+		long p50 = TimeUnit.MICROSECONDS.toNanos(500);
+		assertTrue(histogram.getPercentile(.5) >= p50);
+		assertTrue(histogram.getPercentile(.5) <= p50 * 1.125);
+		assertEquals(TimeUnit.MICROSECONDS.toNanos(1000), histogram.getPercentile(1));
+		assertEquals(1.0, histogram.getSnapshot().getMaxMillis(), 1e-9);
+		assertEquals(0.5005, histogram.getSnapshot().getMeanMillis(), 1e-9);
+	}
+
+	@Test
+	public void testHistogramPrecision() {
+		for (long v = 0; v < 1 << 16; v += 7) {
+			LatencyHistogram histogram = new LatencyHistogram();
+			histogram.record(v);
+			histogram.record(Long.MAX_VALUE);
+			long p50 = histogram.getPercentile(.5);
+			assertTrue(v + " reported as " + p50, p50 >= v && p50 <= v * 1.125 + 1);
+		}
+	}
+
+	@Test
+	public void testSenderMetrics() throws Exception {
+		mailSender.setJmxName("com.postmark:type=PostmarkMailSender,name=test");
+		final CountDownLatch reported = new CountDownLatch(1);
+		mailSender.setMetricsReporter(new MetricsReporter() {
+			@Override
+			public void report(SenderMetrics metrics) {
+				reported.countDown();
+			}
+		});
+		mailSender.setMetricsReportIntervalMillis(10);
+
+		mailSender.send(PostmarkMailSenderTest.message("Test metrics"));
+		PostmarkMessage[] msg = { PostmarkMailSenderTest.message("Test metrics"), PostmarkMailSenderTest.message("Test metrics") };
+		msg[1].setTo(PostmarkMailSenderTest.INVALID_EMAIL);
+		// rejected by Postmark rather than locally
+		mailSender.setAddressParser(null);
+		try {
+			mailSender.send(msg);
+			fail("No Exception arose whilst giving an incorrect e-mail address.");
+		} catch (MailSendException mse) {
+			// expected
+		}
+
+		SenderMetrics metrics = mailSender.getMetrics();
+		assertEquals(2, metrics.getRequestCount());
+		assertEquals(0, metrics.getInFlightRequests());
+		assertEquals(2, metrics.getSuccessCount());
+		assertEquals(1, metrics.getUserErrorCount());
+		assertEquals(Long.valueOf(1), metrics.getErrorCodeCounts().get(PostmarkStandInServer.ERROR_INVALID_EMAIL));
+		assertTrue(metrics.getBytesSent() > 0);
+		assertEquals(0, metrics.getLeasedConnections());
+		for (Phase phase : Phase.values())
+			assertEquals(phase.toString(), 2, metrics.getLatency(phase).getCount());
+
+		MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("com.postmark:type=PostmarkMailSender,name=test");
+		assertEquals(2L, mbeanServer.getAttribute(name, "SuccessCount"));
+		assertEquals(2L, ((CompositeData) mbeanServer.getAttribute(name, "RoundTripLatency")).get("count"));
+		assertTrue(reported.await(5, TimeUnit.SECONDS));
+
+		mailSender.close();
+		assertTrue(!mbeanServer.isRegistered(name));
+	}
+}
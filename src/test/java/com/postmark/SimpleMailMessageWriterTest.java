@@ -0,0 +1,135 @@
+package com.postmark;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.springframework.mail.MailParseException;
+import org.springframework.mail.SimpleMailMessage;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.postmark.PostmarkMailSender.SimpleMailMessageAdapter;
+import com.postmark.util.Utf8JsonWriter;
+import com.postmark.util.UnicodeEscapeFilterWriter;
+
+public class SimpleMailMessageWriterTest {
+
+	private static Gson gson;
+
+	static {
+		GsonBuilder gsonBuilder = new GsonBuilder();
+		gsonBuilder.disableHtmlEscaping();
+		gsonBuilder.registerTypeAdapter(SimpleMailMessage.class, new SimpleMailMessageAdapter());
+		gsonBuilder.registerTypeAdapter(PostmarkMessage.class, new SimpleMailMessageAdapter());
+		gson = gsonBuilder.create();
+	}
+
+	private static String write(SimpleMailMessage m) throws IOException {
+		SimpleMailMessageWriter.validate(m);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		// small buffer, to go through flushes
+		Utf8JsonWriter out = new Utf8JsonWriter(bytes, new byte[16]);
+		SimpleMailMessageWriter.write(m, out);
+		out.flush();
+		assertEquals(bytes.size(), SimpleMailMessageWriter.length(m, false));
+		return bytes.toString("US-ASCII");
+	}
+
+	@Test
+	public void testWriteSimpleMailMessage() throws IOException {
+		SimpleMailMessage m = new SimpleMailMessage();
+		m.setSubject("Test");
+		m.setText("This is a test email");
+		m.setFrom("nicolas@gmail.com");
+		m.setTo(new String[]{"you@gmail.com", "him@gmail.com"});
+		assertEquals("{\"From\":\"nicolas@gmail.com\",\"To\":\"you@gmail.com,him@gmail.com\",\"Subject\":\"Test\",\"TextBody\":\"This is a test email\"}",
+				write(m));
+	}
+
+	@Test(expected=MailParseException.class)
+	public void testMissingParam() throws IOException {
+		SimpleMailMessage m = new SimpleMailMessage();
+		m.setSubject("Test");
+		m.setText("This is a test email");
+		m.setFrom("nicolas@gmail.com");
+		write(m);
+	}
+
+	@Test
+	public void testWritePostMarkMessage() throws IOException {
+		PostmarkMessage m = new PostmarkMessage();
+		m.setSubject("Test");
+		m.setText("This is a test email");
+		m.setFrom("nicolas@gmail.com");
+		m.setTag("test");
+		m.setTo(new String[]{"<Your name here> you@gmail.com", "him@gmail.com"});
+		assertEquals("{\"From\":\"nicolas@gmail.com\",\"To\":\"<Your name here> you@gmail.com,him@gmail.com\",\"Subject\":\"Test\",\"Tag\":\"test\",\"TextBody\":\"This is a test email\"}",
+				write(m));
+	}
+
+	@Test
+	public void testSameOutputAsAdapter() throws IOException {
+		PostmarkMessage m = new PostmarkMessage();
+		m.setFrom("Nicolas <nicolas@gmail.com>");
+		m.setTo(new String[]{"you@gmail.com"});
+		m.setCc(new String[]{"a@gmail.com", "b@gmail.com"});
+		m.setBcc(new String[0]);
+		m.setReplyTo("reply@gmail.com");
+		m.setHtmlBody("<p class=\"x\">été \\ € 😀 \u2028</p>");
+		m.setTag("tag");
+
+		// every char of the Basic Multilingual Plane, in both the subject and the body
+		StringBuilder all = new StringBuilder();
+		for (int c = 0; c < 0x10000; c++)
+			all.append((char) c);
+		m.setSubject(all.toString());
+		m.setText(all.toString());
+		assertEquals(UnicodeEscapeFilterWriter.escape(gson.toJson(m)), write(m));
+
+		m.setText(null);
+		assertEquals(UnicodeEscapeFilterWriter.escape(gson.toJson(m)), write(m));
+	}
+
+	@Test
+	public void testRawUtf8() throws IOException {
+		PostmarkMessage m = new PostmarkMessage();
+		m.setFrom("nicolas@gmail.com");
+		m.setTo("you@gmail.com");
+		m.setSubject("Accents été € 😀 \u2028 \"\\");
+		m.setHtmlBody("<p>à bientôt</p>");
+		SimpleMailMessageWriter.validate(m);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Utf8JsonWriter out = new Utf8JsonWriter(bytes, new byte[16], true);
+		SimpleMailMessageWriter.write(m, out);
+		out.flush();
+		assertEquals(bytes.size(), SimpleMailMessageWriter.length(m, true));
+		assertEquals("{\"From\":\"nicolas@gmail.com\",\"To\":\"you@gmail.com\","
+				+ "\"Subject\":\"Accents été € 😀 \\u2028 \\\"\\\\\","
+				+ "\"HtmlBody\":\"<p>à bientôt</p>\"}",
+				bytes.toString("UTF-8"));
+	}
+
+	@Test
+	public void testBatchEntity() throws IOException {
+		SimpleMailMessage m1 = new SimpleMailMessage();
+		m1.setFrom("nicolas@gmail.com");
+		m1.setTo("you@gmail.com");
+		m1.setSubject("é");
+		m1.setText("1");
+		SimpleMailMessage m2 = new SimpleMailMessage(m1);
+		m2.setText("2");
+
+		JsonEntity entity = JsonEntity.forBatch(Arrays.asList(m1, m2), false,
+				SimpleMailMessageWriter.length(m1, false) + SimpleMailMessageWriter.length(m2, false));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		entity.writeTo(bytes);
+		assertEquals("[" + write(m1) + "," + write(m2) + "]", bytes.toString("US-ASCII"));
+		assertEquals(bytes.size(), entity.getContentLength());
+		assertEquals(bytes.size(), JsonEntity.forMessage(m1, false).getContentLength() + JsonEntity.forMessage(m2, false).getContentLength() + 3);
+	}
+}
@@ -0,0 +1,173 @@
+package com.postmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mail.MailSendException;
+
+import com.postmark.PostmarkMailSender.PostmarkResponseStatus;
+import com.postmark.util.BloomFilter;
+
+/**
+ * Runs {@link SuppressionList} syncs against a local {@link PostmarkStandInServer}.
+ */
+public class SuppressionListTest {
+
+	static final String BOUNCED_EMAIL = "bounced@exemple.com";
+
+	PostmarkStandInServer server;
+	PostmarkMailSender mailSender;
+	SuppressionList suppressions;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new PostmarkStandInServer().start();
+		mailSender = new PostmarkMailSender("POSTMARK_API_TEST");
+		mailSender.setApiUrl(server.getUrl());
+		mailSender.setSuppressionSyncIntervalMillis(0);
+		suppressions = new SuppressionList();
+		mailSender.setSuppressionList(suppressions);
+	}
+
+	@After
+	public void tearDown() {
+		mailSender.close();
+		server.stop();
+	}
+
+	@Test
+	public void testBloomFilter() {
+		BloomFilter filter = new BloomFilter(10000, 0.01);
+		for (int i = 0; i < 10000; i++)
+			filter.add("user" + i + "@exemple.com");
+		int falsePositives = 0;
+		for (int i = 0; i < 10000; i++) {
+			assertTrue(filter.mightContain("user" + i + "@exemple.com"));
+			if (filter.mightContain("other" + i + "@exemple.com"))
+				falsePositives++;
+		}
+		assertTrue(falsePositives < 200);
+	}
+
+	@Test
+	public void testGrow() {
+		for (int i = 0; i < 5000; i++)
+			suppressions.add("User" + i + "@Exemple.com");
+		assertEquals(5000, suppressions.size());
+		for (int i = 0; i < 5000; i++)
+			assertTrue(suppressions.isSuppressed("User " + i + " <user" + i + "@exemple.com>"));
+		assertFalse(suppressions.isSuppressed("user5000@exemple.com"));
+	}
+
+	@Test
+	public void testSkipSuppressed() {
+		server.suppress(BOUNCED_EMAIL);
+		assertEquals(1, mailSender.syncSuppressions());
+		assertEquals(1, server.getRequestCount());
+
+		PostmarkMessage bounced = PostmarkMailSenderTest.message("Test suppressed mail");
+		bounced.setTo("Bounced <BOUNCED@exemple.com>");
+		mailSender.send(bounced);
+		assertEquals(1, server.getRequestCount());
+		assertEquals(1, mailSender.getMetrics().getSuppressedCount());
+
+		// sent as long as one recipient is not suppressed
+		PostmarkMessage partly = PostmarkMailSenderTest.message("Test partly suppressed mail");
+		partly.setTo(new String[] { BOUNCED_EMAIL, PostmarkMailSenderTest.VALID_EMAIL });
+		mailSender.send(new PostmarkMessage[] { bounced, partly });
+		assertEquals(2, server.getRequestCount());
+		assertEquals(1, server.getAcceptedCount());
+		assertEquals(2, mailSender.getMetrics().getSuppressedCount());
+	}
+
+	@Test
+	public void testIncrementalSync() {
+		server.suppress(BOUNCED_EMAIL, "2010-01-01T00:00:00Z");
+		assertEquals(1, mailSender.syncSuppressions());
+		server.suppress("recent@exemple.com");
+		assertEquals(1, mailSender.syncSuppressions());
+		assertEquals(2, suppressions.size());
+
+		// only full syncs drop reactivated recipients
+		server.reactivate(BOUNCED_EMAIL);
+		mailSender.syncSuppressions();
+		assertTrue(suppressions.isSuppressed(BOUNCED_EMAIL));
+		suppressions.setFullSyncIntervalMillis(0);
+		assertEquals(1, mailSender.syncSuppressions());
+		assertFalse(suppressions.isSuppressed(BOUNCED_EMAIL));
+		assertTrue(suppressions.isSuppressed("recent@exemple.com"));
+	}
+
+	@Test
+	public void testLearnFromRejection() {
+		server.suppress(BOUNCED_EMAIL);
+		PostmarkMessage bounced = PostmarkMailSenderTest.message("Test suppressed mail");
+		bounced.setTo(BOUNCED_EMAIL);
+		try {
+			mailSender.send(bounced);
+			fail("No Exception arose whilst sending to an inactive recipient.");
+		} catch (MailSendException mse) {
+			assertEquals(1, server.getRequestCount());
+		}
+		assertTrue(suppressions.isSuppressed(BOUNCED_EMAIL));
+		mailSender.send(bounced);
+		assertEquals(1, server.getRequestCount());
+	}
+
+	@Test
+	public void testBackgroundSync() throws Exception {
+		mailSender.close();
+		mailSender = new PostmarkMailSender("POSTMARK_API_TEST");
+		mailSender.setApiUrl(server.getUrl());
+		mailSender.setSuppressionList(suppressions);
+		mailSender.setSuppressionSyncIntervalMillis(20);
+		server.suppress(BOUNCED_EMAIL);
+		mailSender.warmUp();
+		for (int i = 0; i < 100 && suppressions.size() == 0; i++)
+			Thread.sleep(10);
+		assertTrue(suppressions.isSuppressed(BOUNCED_EMAIL));
+
+		PostmarkMessage bounced = PostmarkMailSenderTest.message("Test suppressed mail");
+		bounced.setTo(BOUNCED_EMAIL);
+		assertEquals(PostmarkResponseStatus.SUPPRESSED, mailSender.sendAsync(bounced).get().getStatus());
+	}
+
+	@Test
+	public void testPersistence() throws IOException {
+		File file = File.createTempFile("suppressions", ".txt");
+		file.delete();
+		file.deleteOnExit();
+		mailSender.close();
+		mailSender = new PostmarkMailSender("POSTMARK_API_TEST");
+		mailSender.setApiUrl(server.getUrl());
+		mailSender.setSuppressionSyncIntervalMillis(0);
+		mailSender.setSuppressionList(new SuppressionList(file));
+		server.suppress(BOUNCED_EMAIL);
+		mailSender.syncSuppressions();
+
+		SuppressionList loaded = new SuppressionList(file);
+		assertTrue(loaded.isSuppressed(BOUNCED_EMAIL));
+		assertEquals(1, loaded.size());
+		assertEquals(mailSender.getSuppressionList().getLastSyncMillis(), loaded.getLastSyncMillis());
+		assertFalse(loaded.isFullSyncDue(loaded.getLastSyncMillis()));
+
+		FileOutputStream out = new FileOutputStream(file);
+		out.write("not a list\n".getBytes("UTF-8"));
+		out.close();
+		try {
+			new SuppressionList(file);
+			fail("No Exception arose whilst loading a corrupted file.");
+		} catch (IOException ioe) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package com.postmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ThrottlingTest {
+
+	@Test
+	public void testRateLimiterBurst() {
+		RateLimiter limiter = new RateLimiter(1, 3);
+		assertEquals(3, limiter.getBurst());
+		for (int i = 0; i < 3; i++)
+			assertTrue(limiter.tryAcquire());
+		assertFalse(limiter.tryAcquire());
+	}
+
+	@Test
+	public void testRateLimiterRate() {
+		RateLimiter limiter = new RateLimiter(50, 1);
+		long start = System.nanoTime();
+		for (int i = 0; i < 11; i++)
+			limiter.acquire();
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue("10 intervals of 20 ms took " + elapsed + " ms", elapsed >= 190);
+	}
+
+	@Test
+	public void testTimedAcquire() {
+		RateLimiter rate = new RateLimiter(1, 1);
+		assertTrue(rate.tryAcquire(0, TimeUnit.MILLISECONDS));
+		long start = System.nanoTime();
+		assertFalse(rate.tryAcquire(50, TimeUnit.MILLISECONDS));
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 50);
+
+		AdaptiveConcurrencyLimiter concurrency = new AdaptiveConcurrencyLimiter();
+		concurrency.setInitialLimit(1);
+		assertTrue(concurrency.tryAcquire(0, TimeUnit.MILLISECONDS));
+		assertFalse(concurrency.tryAcquire(20, TimeUnit.MILLISECONDS));
+		concurrency.cancel();
+		assertEquals(0, concurrency.getInFlight());
+		assertTrue(concurrency.tryAcquire(0, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testCancelledTrial() throws Exception {
+		CircuitBreaker breaker = new CircuitBreaker();
+		breaker.setFailureThreshold(1);
+		breaker.setOpenMillis(10);
+		breaker.onFailure(false);
+		Thread.sleep(20);
+		assertTrue(breaker.acquire());
+		breaker.onCancel(true);
+		// the cancelled trial neither closed the breaker nor kept others out
+		assertTrue(breaker.isOpen());
+		assertTrue(breaker.acquire());
+		breaker.onSuccess(true);
+		assertFalse(breaker.isOpen());
+	}
+
+	@Test
+	public void testStaleOutcomes() throws Exception {
+		CircuitBreaker breaker = new CircuitBreaker();
+		breaker.setFailureThreshold(1);
+		breaker.setOpenMillis(10);
+		// let through before the breaker opens
+		assertFalse(breaker.acquire());
+		assertFalse(breaker.acquire());
+		breaker.onFailure(false);
+		assertTrue(breaker.isOpen());
+		Thread.sleep(20);
+		assertTrue(breaker.acquire());
+
+		// the stale requests neither close the breaker nor let a second trial through
+		breaker.onSuccess(false);
+		assertTrue(breaker.isOpen());
+		breaker.onFailure(false);
+		breaker.onCancel(false);
+		try {
+			breaker.acquire();
+			fail("No Exception arose whilst a trial request is in flight.");
+		} catch (CircuitBreaker.OpenException oe) {
+			// expected
+		}
+		breaker.onSuccess(true);
+		assertFalse(breaker.isOpen());
+	}
+
+	@Test
+	public void testConcurrencyLimiterIncrease() {
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter();
+		limiter.setInitialLimit(2);
+		for (int i = 0; i < 100; i++) {
+			limiter.acquire();
+			limiter.acquire();
+			limiter.release(1000000, false);
+			limiter.release(1000000, false);
+		}
+		assertTrue(limiter.getLimit() > 2);
+		assertEquals(0, limiter.getInFlight());
+	}
+
+	@Test
+	public void testConcurrencyLimiterDecrease() throws InterruptedException {
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter();
+		limiter.setInitialLimit(100);
+		limiter.acquire();
+		limiter.release(1000000, true);
+		assertEquals(75, limiter.getLimit());
+
+		// a latency spike counts as a drop, once the previous decrease is a round trip old
+		limiter.acquire();
+		limiter.release(1000000, false);
+		Thread.sleep(20);
+		limiter.acquire();
+		limiter.release(100000000, false);
+		assertEquals(56, limiter.getLimit());
+	}
+
+	@Test
+	public void testSenderThrottling() throws Exception {
+		PostmarkStandInServer server = new PostmarkStandInServer().start();
+		PostmarkMailSender mailSender = new PostmarkMailSender("POSTMARK_API_TEST");
+		try {
+			mailSender.setApiUrl(server.getUrl());
+			mailSender.setRateLimiter(new RateLimiter(50, 1));
+			AdaptiveConcurrencyLimiter concurrency = new AdaptiveConcurrencyLimiter();
+			mailSender.setConcurrencyLimiter(concurrency);
+			long start = System.nanoTime();
+			for (int i = 0; i < 6; i++)
+				mailSender.send(PostmarkMailSenderTest.message("Test throttled mail"));
+			assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 90);
+			assertEquals(6, server.getAcceptedCount());
+			assertEquals(0, concurrency.getInFlight());
+		} finally {
+			mailSender.close();
+			server.stop();
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package com.postmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mail.MailSendException;
+
+import com.postmark.PostmarkMailSender.DeadlineExceededException;
+import com.postmark.PostmarkMailSender.PostmarkResponse;
+import com.postmark.PostmarkMailSender.PostmarkResponseStatus;
+
+/**
+ * Runs the timeouts, deadlines and hedged sends of {@link PostmarkMailSender} against
+ * a slow {@link PostmarkStandInServer}.
+ */
+public class TimeoutTest {
+
+	PostmarkStandInServer server;
+	PostmarkMailSender mailSender;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new PostmarkStandInServer().start();
+		mailSender = new PostmarkMailSender("POSTMARK_API_TEST");
+		mailSender.setApiUrl(server.getUrl());
+	}
+
+	@After
+	public void tearDown() {
+		mailSender.close();
+		server.stop();
+	}
+
+	private static long millisSince(long start) {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+	}
+
+	@Test
+	public void testDeadline() {
+		mailSender.setDeadlineMillis(100);
+		server.stallNextRequests(1, 1000);
+		long start = System.nanoTime();
+		try {
+			mailSender.send(PostmarkMailSenderTest.message("Test slow mail"));
+			fail("No Exception arose whilst exceeding the deadline.");
+		} catch (MailSendException mse) {
+			assertTrue(mse.getCause() instanceof DeadlineExceededException);
+		}
+		assertTrue(millisSince(start) < 800);
+
+		// the pool is left usable, without a deadline for a cold JVM
+		mailSender.setDeadlineMillis(0);
+		mailSender.send(PostmarkMailSenderTest.message("Test fast mail"));
+		assertEquals(1, server.getAcceptedCount());
+	}
+
+	@Test
+	public void testPerCallTimeout() {
+		server.stallNextRequests(1, 1000);
+		try {
+			mailSender.send(PostmarkMailSenderTest.message("Test slow mail"), 100, TimeUnit.MILLISECONDS);
+			fail("No Exception arose whilst exceeding the timeout.");
+		} catch (MailSendException mse) {
+			assertTrue(mse.getCause() instanceof DeadlineExceededException);
+		}
+		PostmarkResponse response = mailSender.send(PostmarkMailSenderTest.message("Test fast mail"), 5, TimeUnit.SECONDS);
+		assertEquals(PostmarkResponseStatus.SUCCESS, response.getStatus());
+	}
+
+	@Test
+	public void testDeadlineStopsRetries() {
+		RetryPolicy policy = new RetryPolicy();
+		policy.setMaxAttempts(10);
+		policy.setInitialBackoffMillis(50);
+		policy.setMultiplier(1);
+		mailSender.setRetryPolicy(policy);
+		mailSender.setDeadlineMillis(150);
+		server.setErrorRates(0, 0, 1);
+		try {
+			mailSender.send(PostmarkMailSenderTest.message("Test retried mail"));
+			fail("No Exception arose whilst Postmark fails.");
+		} catch (MailSendException mse) {
+			// expected
+		}
+		assertTrue(server.getRequestCount() < 10);
+	}
+
+	@Test
+	public void testDeadlineBoundsLimiters() {
+		mailSender.setRateLimiter(new RateLimiter(0.5, 1));
+		mailSender.send(PostmarkMailSenderTest.message("Test first mail"));
+		long start = System.nanoTime();
+		try {
+			mailSender.send(PostmarkMailSenderTest.message("Test rate limited mail"), 100, TimeUnit.MILLISECONDS);
+			fail("No Exception arose whilst waiting for the rate limiter past the deadline.");
+		} catch (MailSendException mse) {
+			assertTrue(mse.getCause() instanceof DeadlineExceededException);
+		}
+		assertTrue(millisSince(start) < 500);
+		assertEquals(1, server.getRequestCount());
+	}
+
+	@Test
+	public void testSocketTimeout() {
+		mailSender.setSocketTimeoutMillis(100);
+		server.stallNextRequests(1, 1000);
+		try {
+			mailSender.send(PostmarkMailSenderTest.message("Test slow mail"));
+			fail("No Exception arose whilst Postmark does not answer.");
+		} catch (MailSendException mse) {
+			assertTrue(mse.getCause() instanceof SocketTimeoutException);
+		}
+	}
+
+	@Test
+	public void testLeaseTimeout() throws Exception {
+		mailSender.setMaxTotalConnections(1);
+		mailSender.setMaxConnectionsPerRoute(1);
+		mailSender.setLeaseTimeoutMillis(50);
+		server.stallNextRequests(1, 500);
+		Future<PostmarkResponse> slow = mailSender.sendAsync(PostmarkMailSenderTest.message("Test slow mail"));
+		Thread.sleep(100);
+		try {
+			mailSender.send(PostmarkMailSenderTest.message("Test waiting mail"));
+			fail("No Exception arose whilst the pool is exhausted.");
+		} catch (MailSendException mse) {
+			assertTrue(mse.getCause() instanceof ConnectionPoolTimeoutException);
+		}
+		assertEquals(PostmarkResponseStatus.SUCCESS, slow.get().getStatus());
+	}
+
+	private static HedgePolicy hedgePolicy(boolean duplicatesAllowed) {
+		HedgePolicy policy = new HedgePolicy();
+		policy.setMinDelayMillis(50);
+		policy.setMaxDelayMillis(50);
+		policy.setDuplicatesAllowed(duplicatesAllowed);
+		return policy;
+	}
+
+	@Test
+	public void testHedge() throws Exception {
+		// opens a connection, so that the stalled first attempt reaches the stand-in
+		// before the hedge rather than after it
+		mailSender.send(PostmarkMailSenderTest.message("Test warm-up mail"));
+		HedgePolicy policy = hedgePolicy(true);
+		mailSender.setHedgePolicy(policy);
+
+		server.stallNextRequests(1, 1000);
+		long start = System.nanoTime();
+		PostmarkResponse response = mailSender.send(PostmarkMailSenderTest.message("Test hedged mail"), 5, TimeUnit.SECONDS);
+		assertEquals(PostmarkResponseStatus.SUCCESS, response.getStatus());
+		assertTrue(millisSince(start) < 800);
+		assertEquals(3, server.getRequestCount());
+		assertEquals(1, policy.getHedgeCount());
+		assertEquals(1, policy.getHedgeWinCount());
+
+		// a fast send is not hedged
+		mailSender.send(PostmarkMailSenderTest.message("Test fast mail"));
+		assertEquals(4, server.getRequestCount());
+		assertEquals(1, policy.getHedgeCount());
+	}
+
+	@Test
+	public void testNoHedgeOfWrittenRequest() {
+		HedgePolicy policy = hedgePolicy(false);
+		mailSender.setHedgePolicy(policy);
+		server.stallNextRequests(1, 300);
+		mailSender.send(PostmarkMailSenderTest.message("Test slow mail"));
+		assertEquals(1, server.getRequestCount());
+		assertEquals(1, server.getAcceptedCount());
+		assertEquals(0, policy.getHedgeCount());
+	}
+}
@@ -1,12 +1,19 @@
 package com.postmark;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 
 import org.junit.Test;
 
 import com.postmark.util.UnicodeEscapeFilterWriter;
+import com.postmark.util.Utf8JsonWriter;
 
 public class UnicodeEscapeTest {
 	
@@ -16,6 +23,59 @@ public class UnicodeEscapeTest {
 	@Test
 	public void testEscape() throws IOException {
 		assertEquals(TEST_RESULT, UnicodeEscapeFilterWriter.escape(TEST));
+		assertEquals("\\u20ac\\uffff\\u0100", UnicodeEscapeFilterWriter.escape("€￿Ā"));
 	}
 
+	@Test
+	public void testEscapeASCII() throws IOException {
+		String ascii = "Only ASCII\n";
+		assertSame(ascii, UnicodeEscapeFilterWriter.escape(ascii));
+	}
+
+	@Test
+	public void testWriterOffsets() throws IOException {
+		StringWriter out = new StringWriter();
+		UnicodeEscapeFilterWriter fw = new UnicodeEscapeFilterWriter(out) { };
+		fw.write(("xx" + TEST + "yy").toCharArray(), 2, TEST.length());
+		fw.write("xx" + TEST + "yy", 2, TEST.length());
+		fw.write('a');
+		fw.write('é');
+		assertEquals(TEST_RESULT + TEST_RESULT + "a\\u00e9", out.toString());
+	}
+
+	@Test
+	public void testEscapeToBuffers() {
+		CharBuffer chars = CharBuffer.allocate(TEST_RESULT.length());
+		assertEquals(TEST.length(), UnicodeEscapeFilterWriter.escape(TEST, 0, chars));
+		assertEquals(TEST_RESULT, new String(chars.array()));
+
+		// stops before an escape sequence not fitting in the buffer
+		ByteBuffer bytes = ByteBuffer.allocate(TEST_RESULT.length() - 1);
+		int end = UnicodeEscapeFilterWriter.escape(TEST, 0, bytes);
+		assertEquals(TEST.length() - 1, end);
+		assertEquals(TEST_RESULT.length() - 6, bytes.position());
+		ByteBuffer rest = ByteBuffer.allocate(6);
+		assertEquals(TEST.length(), UnicodeEscapeFilterWriter.escape(TEST, end, rest));
+		assertEquals("\\u00ff", new String(rest.array()));
+	}
+
+	@Test
+	public void testEncodeUtf8() throws IOException {
+		String text = TEST + "€😀";
+		byte[] expected = text.getBytes("UTF-8");
+		ByteBuffer bytes = ByteBuffer.allocate(expected.length);
+		assertEquals(text.length(), UnicodeEscapeFilterWriter.encodeUtf8(text, 0, bytes));
+		assertEquals(new String(expected, "UTF-8"), new String(bytes.array(), "UTF-8"));
+	}
+
+	@Test
+	public void testEscapeTiming() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Utf8JsonWriter writer = new Utf8JsonWriter(out, new byte[16]).timeEscapes();
+		writer.beginArray().value("Only ASCII, longer than the buffer");
+		assertEquals(0, writer.getEscapeNanos());
+		writer.value(TEST).endArray().flush();
+		assertTrue(writer.getEscapeNanos() > 0);
+		assertEquals("[\"Only ASCII, longer than the buffer\",\"" + TEST_RESULT.replace("\n", "\\n") + "\"]", out.toString("US-ASCII"));
+	}
 }